@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.codec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Formatter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HexCodec} and {@link Base64Codec} benchmarks, against the {@link Formatter} based hex encoding
+ * previously used by {@link org.tfennelly.httpanalyse.common.util.ByteUtils} and the JDK's {@link Base64}.
+ * <p/>
+ * Run with {@code mvn -P benchmark compile exec:exec}.  JMH options can be passed via {@code -Djmh.args="..."}
+ * e.g. {@code -Djmh.args="CodecBenchmark.hex -p size=32"}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"32", "1024"})
+    private int size;
+
+    private byte[] bytes;
+    private String hex;
+    private String base64;
+    private char[] charOut;
+    private byte[] byteOut;
+    private ByteBuffer directIn;
+    private ByteBuffer directOut;
+
+    @Setup
+    public void setup() {
+        bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        hex = HexCodec.encode(bytes);
+        base64 = Base64.getEncoder().encodeToString(bytes);
+        charOut = new char[size * 2];
+        byteOut = new byte[size * 2];
+        directIn = ByteBuffer.allocateDirect(size);
+        directIn.put(bytes).flip();
+        directOut = ByteBuffer.allocateDirect(size * 2);
+    }
+
+    @Benchmark
+    public String hexEncodeFormatter() {
+        // ByteUtils.toHexString before HexCodec.
+        Formatter formatter = new Formatter(new StringBuffer());
+        for (int i = 0; i < bytes.length; i++) {
+            formatter.format("%02x", 0xff & bytes[i]);
+        }
+        return formatter.toString();
+    }
+
+    @Benchmark
+    public String hexEncode() {
+        return HexCodec.encode(bytes);
+    }
+
+    @Benchmark
+    public char[] hexEncodeIntoChars() {
+        HexCodec.encode(bytes, 0, bytes.length, charOut, 0);
+        return charOut;
+    }
+
+    @Benchmark
+    public ByteBuffer hexEncodeDirect() {
+        directIn.rewind();
+        directOut.clear();
+        HexCodec.encode(directIn, directOut);
+        return directOut;
+    }
+
+    @Benchmark
+    public byte[] hexDecode() {
+        return HexCodec.decode(hex);
+    }
+
+    @Benchmark
+    public byte[] hexDecodeIntoBytes() {
+        HexCodec.decode(hex, 0, hex.length(), byteOut, 0);
+        return byteOut;
+    }
+
+    @Benchmark
+    public String base64EncodeJdk() {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    @Benchmark
+    public String base64Encode() {
+        return Base64Codec.encode(bytes);
+    }
+
+    @Benchmark
+    public char[] base64EncodeIntoChars() {
+        Base64Codec.encode(bytes, 0, bytes.length, charOut, 0);
+        return charOut;
+    }
+
+    @Benchmark
+    public byte[] base64DecodeJdk() {
+        return Base64.getDecoder().decode(base64);
+    }
+
+    @Benchmark
+    public byte[] base64Decode() {
+        return Base64Codec.decode(base64);
+    }
+
+    @Benchmark
+    public byte[] base64DecodeIntoBytes() {
+        Base64Codec.decode(base64, 0, base64.length(), byteOut, 0);
+        return byteOut;
+    }
+}
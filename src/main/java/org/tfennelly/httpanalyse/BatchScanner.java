@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse;
+
+import org.tfennelly.httpanalyse.common.HttpClientImpl;
+import org.tfennelly.httpanalyse.common.ResponseBodyConsumer;
+import org.tfennelly.httpanalyse.common.StreamingHttpResponse;
+import org.tfennelly.httpanalyse.common.pool.Route;
+import org.tfennelly.httpanalyse.common.security.CertificateInventory;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.NamedThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scans a stream of targets concurrently, writing one result line per target as each completes.
+ * <p/>
+ * Targets are read lazily and at most {@code concurrency} targets are in flight at any time, so memory use
+ * is flat no matter how many targets are in the input.  Runs on virtual threads where the JDK supports them.
+ * Response bodies are never read... only the status and certificates are used, so the body is discarded as
+ * the response is closed.
+ * <p/>
+ * Result lines are tab separated: target, status code, time (ms), certificate subject, certificate expiry, error.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class BatchScanner {
+
+    public static final String RESULT_HEADER = "target\tstatus\tmillis\tsubject\tnotAfter\terror";
+
+    private static final ResponseBodyConsumer<ScanResponse> SCAN_RESPONSE = new ResponseBodyConsumer<ScanResponse>() {
+        @Override
+        public ScanResponse consume(StreamingHttpResponse response) {
+            // Body left unread.  Closing the response drains it if small, otherwise closes the connection.
+            return new ScanResponse(response.statusCode(), response.getServerCerts());
+        }
+    };
+
+    private final HttpClientImpl httpClient;
+    private final int concurrency;
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile CertificateInventory inventory;
+
+    public BatchScanner(HttpClientImpl httpClient, int concurrency) {
+        AssertArgument.isNotNull(httpClient, "httpClient");
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("'concurrency' must be greater than zero.");
+        }
+        this.httpClient = httpClient;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Scan all targets read from the supplied reader (one per line).
+     * <p/>
+     * Blank lines and lines starting with '#' are ignored.  Targets without a scheme are scanned over https.
+     *
+     * @param targets The target reader.
+     * @param results The result writer.
+     * @throws IOException Error reading targets or writing results.
+     * @throws InterruptedException Interrupted while waiting on in-flight targets.
+     */
+    public void scan(BufferedReader targets, final Writer results) throws IOException, InterruptedException {
+        AssertArgument.isNotNull(targets, "targets");
+        AssertArgument.isNotNull(results, "results");
+
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final IOException[] writeError = new IOException[1];
+        ExecutorService executor = newExecutor(concurrency);
+
+        try {
+            writeLine(results, RESULT_HEADER);
+
+            String line;
+            while ((line = targets.readLine()) != null) {
+                final String target = line.trim();
+
+                if (target.length() == 0 || target.startsWith("#")) {
+                    continue;
+                }
+
+                inFlight.acquire();
+                synchronized (writeError) {
+                    if (writeError[0] != null) {
+                        throw writeError[0];
+                    }
+                }
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                writeLine(results, scanTarget(target));
+                            } catch (IOException e) {
+                                synchronized (writeError) {
+                                    writeError[0] = e;
+                                }
+                            } finally {
+                                inFlight.release();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            }
+
+            // Wait for the in-flight targets to complete.
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            results.flush();
+        }
+    }
+
+    /**
+     * Set the inventory into which the server certificate chain of each scanned target is recorded.
+     * @param inventory The certificate inventory, or null for no inventory.
+     */
+    public void setInventory(CertificateInventory inventory) {
+        this.inventory = inventory;
+    }
+
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private String scanTarget(String target) {
+        StringBuilder result = new StringBuilder(256);
+        long start = System.nanoTime();
+
+        result.append(target);
+        try {
+            URL url = new URL(target.contains("://") ? target : "https://" + target);
+            ScanResponse response = httpClient.get(url, SCAN_RESPONSE);
+            Certificate[] certs = response.serverCerts;
+            CertificateInventory inventory = this.inventory;
+
+            if (inventory != null && certs != null && certs.length > 0) {
+                Route route = Route.fromURL(url);
+                inventory.record(route.getHost(), route.getPort(), certs);
+            }
+
+            result.append('\t').append(response.statusCode);
+            result.append('\t').append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (certs != null && certs.length > 0 && certs[0] instanceof X509Certificate) {
+                X509Certificate cert = (X509Certificate) certs[0];
+                result.append('\t').append(cert.getSubjectX500Principal().getName());
+                result.append('\t').append(cert.getNotAfter().getTime());
+            } else {
+                result.append("\t\t");
+            }
+            result.append('\t');
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            result.append("\t\t").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            result.append("\t\t\t").append(String.valueOf(e).replace('\t', ' ').replace('\n', ' '));
+        } finally {
+            scanned.incrementAndGet();
+        }
+
+        return result.toString();
+    }
+
+    private static void writeLine(Writer results, String line) throws IOException {
+        synchronized (results) {
+            results.write(line);
+            results.write('\n');
+            results.flush();
+        }
+    }
+
+    /**
+     * Create the scan executor.
+     * <p/>
+     * Uses a virtual thread per task executor if the JDK supports it (concurrency is bounded by the caller),
+     * otherwise a fixed pool of platform threads.
+     *
+     * @param concurrency The scan concurrency.
+     * @return The executor.
+     */
+    static ExecutorService newExecutor(int concurrency) {
+        try {
+            Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factoryMethod.invoke(null);
+        } catch (Exception e) {
+            // Virtual threads not supported on this JDK.
+            return Executors.newFixedThreadPool(concurrency, new NamedThreadFactory("httpanalyse-scan"));
+        }
+    }
+
+    private static final class ScanResponse {
+
+        private final int statusCode;
+        private final Certificate[] serverCerts;
+
+        private ScanResponse(int statusCode, Certificate[] serverCerts) {
+            this.statusCode = statusCode;
+            this.serverCerts = serverCerts;
+        }
+    }
+}
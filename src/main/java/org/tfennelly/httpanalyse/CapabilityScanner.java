@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse;
+
+import org.tfennelly.httpanalyse.common.nio.TlsCapabilities;
+import org.tfennelly.httpanalyse.common.nio.TlsEnumerator;
+import org.tfennelly.httpanalyse.common.pool.Route;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Enumerates the TLS capabilities of a stream of targets with a {@link TlsEnumerator}, writing one capability
+ * matrix row per target as each completes.
+ * <p/>
+ * Like {@link ProbeScanner}, targets are read lazily and at most {@code concurrency} targets are in flight at
+ * any time.  No threads are tied up per in-flight target.
+ * <p/>
+ * Result lines are tab separated: target, protocols, capability matrix row (see
+ * {@link TlsCapabilities#toMatrixRow()}), handshake attempts, time (ms), error.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class CapabilityScanner {
+
+    public static final String RESULT_HEADER = "target\tprotocols\tcapabilities\tattempts\tmillis\terror";
+
+    private final TlsEnumerator enumerator;
+    private final int concurrency;
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public CapabilityScanner(TlsEnumerator enumerator, int concurrency) {
+        AssertArgument.isNotNull(enumerator, "enumerator");
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("'concurrency' must be greater than zero.");
+        }
+        this.enumerator = enumerator;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Enumerate all targets read from the supplied reader (one per line).
+     * <p/>
+     * Blank lines and lines starting with '#' are ignored.  Targets are "host", "host:port" or a URL.  The
+     * port defaults to 443.
+     *
+     * @param targets The target reader.
+     * @param results The result writer.
+     * @throws IOException Error reading targets or writing results.
+     * @throws InterruptedException Interrupted while waiting on in-flight targets.
+     */
+    public void scan(BufferedReader targets, final Writer results) throws IOException, InterruptedException {
+        AssertArgument.isNotNull(targets, "targets");
+        AssertArgument.isNotNull(results, "results");
+
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final IOException[] writeError = new IOException[1];
+
+        try {
+            writeLine(results, RESULT_HEADER);
+
+            String line;
+            while ((line = targets.readLine()) != null) {
+                final String target = line.trim();
+
+                if (target.length() == 0 || target.startsWith("#")) {
+                    continue;
+                }
+
+                inFlight.acquire();
+                synchronized (writeError) {
+                    if (writeError[0] != null) {
+                        inFlight.release();
+                        throw writeError[0];
+                    }
+                }
+
+                final long start = System.nanoTime();
+                CompletableFuture<TlsCapabilities> future;
+                try {
+                    Route route = toRoute(target);
+                    future = enumerator.enumerateAsync(route.getHost(), route.getPort());
+                } catch (Exception e) {
+                    future = new CompletableFuture<TlsCapabilities>();
+                    future.completeExceptionally(e);
+                }
+
+                future.whenComplete(new BiConsumer<TlsCapabilities, Throwable>() {
+                    @Override
+                    public void accept(TlsCapabilities result, Throwable error) {
+                        try {
+                            writeLine(results, toResultLine(target, start, result, error));
+                        } catch (IOException e) {
+                            synchronized (writeError) {
+                                writeError[0] = e;
+                            }
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+
+            // Wait for the in-flight targets to complete.
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } finally {
+            results.flush();
+        }
+    }
+
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private static Route toRoute(String target) throws IOException {
+        if (target.contains("://")) {
+            return Route.fromURL(new URL(target));
+        }
+        return Route.fromURL(new URL("https://" + target));
+    }
+
+    private String toResultLine(String target, long start, TlsCapabilities capabilities, Throwable error) {
+        StringBuilder result = new StringBuilder(512);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        result.append(target);
+        if (error == null) {
+            int protocolCount = 0;
+
+            result.append('\t');
+            for (String protocol : capabilities.getProtocols()) {
+                if (protocolCount++ > 0) {
+                    result.append(',');
+                }
+                result.append(protocol);
+            }
+            result.append('\t').append(capabilities.toMatrixRow());
+            result.append('\t').append(capabilities.getAttempts());
+            result.append('\t').append(millis);
+            result.append('\t');
+            if (capabilities.getError() != null) {
+                failed.incrementAndGet();
+                result.append(capabilities.getError().replace('\t', ' ').replace('\n', ' '));
+            }
+        } else {
+            failed.incrementAndGet();
+            result.append("\t\t\t\t").append(millis);
+            result.append('\t').append(String.valueOf(error).replace('\t', ' ').replace('\n', ' '));
+        }
+        scanned.incrementAndGet();
+
+        return result.toString();
+    }
+
+    private static void writeLine(Writer results, String line) throws IOException {
+        synchronized (results) {
+            results.write(line);
+            results.write('\n');
+            results.flush();
+        }
+    }
+}
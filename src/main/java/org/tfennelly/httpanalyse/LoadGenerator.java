@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse;
+
+import org.tfennelly.httpanalyse.common.HttpClient;
+import org.tfennelly.httpanalyse.common.metrics.LatencyHistogram;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator.
+ * <p/>
+ * Requests are started on a fixed schedule derived from the {@link LoadProfile}, independent of how quickly
+ * earlier requests complete, so a slow server can't slow the generator down and hide its own tail latency.
+ * If the max number of in-flight requests is reached, the schedule is not shifted.  Requests are sent
+ * late and are charged for the delay in the {@link LoadReport#getCorrectedLatency() corrected} latency.
+ * <p/>
+ * A run consists of a warmup phase (at the profile's starting rate), whose results are reported separately
+ * and should be discarded, followed by the steady-state phase.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class LoadGenerator {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+    private final HttpClient httpClient;
+    private final URL url;
+    private final LoadProfile profile;
+    private long warmupNanos;
+    private long durationNanos = TimeUnit.SECONDS.toNanos(60);
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private LoadReport warmupReport;
+
+    public LoadGenerator(HttpClient httpClient, URL url, LoadProfile profile) {
+        AssertArgument.isNotNull(httpClient, "httpClient");
+        AssertArgument.isNotNull(url, "url");
+        AssertArgument.isNotNull(profile, "profile");
+        this.httpClient = httpClient;
+        this.url = url;
+        this.profile = profile;
+    }
+
+    public void setWarmup(long warmup, TimeUnit unit) {
+        this.warmupNanos = unit.toNanos(warmup);
+    }
+
+    public void setDuration(long duration, TimeUnit unit) {
+        this.durationNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Set the max number of requests in flight at any one time.
+     * @param maxInFlight Max in-flight requests.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("'maxInFlight' must be greater than zero.");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Get the report for the warmup phase of the last run.
+     * @return The warmup report, or null if there was no warmup phase.
+     */
+    public LoadReport getWarmupReport() {
+        return warmupReport;
+    }
+
+    /**
+     * Run the load.
+     * <p/>
+     * Blocks until the steady-state phase is complete and all in-flight requests have completed.
+     *
+     * @return The steady-state phase report.
+     * @throws InterruptedException Interrupted while running.
+     */
+    public LoadReport run() throws InterruptedException {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        ExecutorService executor = BatchScanner.newExecutor(maxInFlight);
+        Phase warmup = new Phase("warmup");
+        Phase steady = new Phase("steady-state");
+
+        long start = System.nanoTime();
+        long steadyStart = start + warmupNanos;
+        long end = steadyStart + durationNanos;
+        double offsetNanos = 0.0;
+
+        warmup.startedAt = start;
+        steady.startedAt = steadyStart;
+        try {
+            while (true) {
+                final long intendedStart = start + (long) offsetNanos;
+                if (intendedStart - end >= 0) {
+                    break;
+                }
+
+                final boolean isWarmup = (intendedStart - steadyStart < 0);
+                final Phase phase = (isWarmup ? warmup : steady);
+                double rate = (isWarmup ? profile.rateAt(0, durationNanos) : profile.rateAt(intendedStart - steadyStart, durationNanos));
+
+                offsetNanos += TimeUnit.SECONDS.toNanos(1) / rate;
+                parkUntil(intendedStart);
+                inFlight.acquire();
+                phase.scheduled++;
+                try {
+                    executor.execute(new Request(phase, intendedStart, inFlight));
+                } catch (RejectedExecutionException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            }
+
+            // Wait for the in-flight requests to complete.
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        warmupReport = (warmupNanos > 0 ? warmup.toReport() : null);
+        return steady.toReport();
+    }
+
+    private static void parkUntil(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private class Request implements Runnable {
+
+        private final Phase phase;
+        private final long intendedStart;
+        private final Semaphore inFlight;
+
+        private Request(Phase phase, long intendedStart, Semaphore inFlight) {
+            this.phase = phase;
+            this.intendedStart = intendedStart;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public void run() {
+            long sentAt = System.nanoTime();
+            boolean failed = false;
+
+            try {
+                // Drop the response's reference on content put in a body store.
+                httpClient.get(url).release();
+            } catch (Exception e) {
+                failed = true;
+            } finally {
+                long completedAt = System.nanoTime();
+
+                phase.record(intendedStart, sentAt, completedAt, failed);
+                inFlight.release();
+            }
+        }
+    }
+
+    private static class Phase {
+
+        private final String name;
+        private final LatencyHistogram correctedLatency = new LatencyHistogram();
+        private final LatencyHistogram uncorrectedLatency = new LatencyHistogram();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong maxSendLag = new AtomicLong();
+        private final AtomicLong lastCompletedAt = new AtomicLong(Long.MIN_VALUE);
+        private long startedAt;
+        // Only touched by the scheduling thread.
+        private long scheduled;
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        private void record(long intendedStart, long sentAt, long completedAt, boolean failed) {
+            if (failed) {
+                errors.incrementAndGet();
+            } else {
+                completed.incrementAndGet();
+                correctedLatency.record(completedAt - intendedStart);
+                uncorrectedLatency.record(completedAt - sentAt);
+            }
+            updateMax(maxSendLag, sentAt - intendedStart);
+            updateMax(lastCompletedAt, completedAt);
+        }
+
+        private LoadReport toReport() {
+            long duration = (scheduled == 0 ? 0 : Math.max(0, lastCompletedAt.get() - startedAt));
+            return new LoadReport(name, duration, scheduled, completed.get(), errors.get(), maxSendLag.get(),
+                    correctedLatency.snapshot(), uncorrectedLatency.snapshot());
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+    }
+}
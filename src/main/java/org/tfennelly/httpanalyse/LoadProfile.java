@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse;
+
+/**
+ * The target request rate of a {@link LoadGenerator} over the course of its steady-state phase.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public abstract class LoadProfile {
+
+    /**
+     * Get the target request rate at a point in the steady-state phase.
+     * @param elapsedNanos Time elapsed since the start of the phase.
+     * @param phaseNanos The phase duration.
+     * @return The target rate in requests per second.  Always greater than zero.
+     */
+    public abstract double rateAt(long elapsedNanos, long phaseNanos);
+
+    /**
+     * Fixed request rate.
+     * @param requestsPerSecond The request rate.
+     * @return The profile.
+     */
+    public static LoadProfile constantRate(final double requestsPerSecond) {
+        assertRate(requestsPerSecond, "requestsPerSecond");
+        return new LoadProfile() {
+            @Override
+            public double rateAt(long elapsedNanos, long phaseNanos) {
+                return requestsPerSecond;
+            }
+
+            @Override
+            public String toString() {
+                return requestsPerSecond + " req/s";
+            }
+        };
+    }
+
+    /**
+     * Request rate ramping linearly across the phase.
+     * @param fromRequestsPerSecond The rate at the start of the phase (also used for warmup).
+     * @param toRequestsPerSecond The rate at the end of the phase.
+     * @return The profile.
+     */
+    public static LoadProfile ramp(final double fromRequestsPerSecond, final double toRequestsPerSecond) {
+        assertRate(fromRequestsPerSecond, "fromRequestsPerSecond");
+        assertRate(toRequestsPerSecond, "toRequestsPerSecond");
+        return new LoadProfile() {
+            @Override
+            public double rateAt(long elapsedNanos, long phaseNanos) {
+                if (phaseNanos <= 0) {
+                    return fromRequestsPerSecond;
+                }
+                double progress = Math.min(1.0, Math.max(0.0, (double) elapsedNanos / phaseNanos));
+                return fromRequestsPerSecond + ((toRequestsPerSecond - fromRequestsPerSecond) * progress);
+            }
+
+            @Override
+            public String toString() {
+                return fromRequestsPerSecond + " -> " + toRequestsPerSecond + " req/s";
+            }
+        };
+    }
+
+    private static void assertRate(double rate, String name) {
+        if (!(rate > 0.0) || Double.isInfinite(rate)) {
+            throw new IllegalArgumentException("Invalid '" + name + "' value '" + rate + "'. Must be greater than zero.");
+        }
+    }
+}
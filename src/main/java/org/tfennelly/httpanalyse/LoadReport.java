@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse;
+
+import org.tfennelly.httpanalyse.common.metrics.HistogramSnapshot;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results of one phase (warmup or steady-state) of a {@link LoadGenerator} run.
+ * <p/>
+ * Two latency histograms are reported.  The corrected one measures each request from the time it was
+ * scheduled to start, so requests held back behind a slow server (or a saturated client) are charged for
+ * the wait, i.e. it is free of coordinated omission.  The uncorrected one measures from the time the
+ * request was actually sent, which is what a closed-loop client would report.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class LoadReport {
+
+    private final String phase;
+    private final long durationNanos;
+    private final long scheduled;
+    private final long completed;
+    private final long errors;
+    private final long maxSendLagNanos;
+    private final HistogramSnapshot correctedLatency;
+    private final HistogramSnapshot uncorrectedLatency;
+
+    LoadReport(String phase, long durationNanos, long scheduled, long completed, long errors, long maxSendLagNanos,
+               HistogramSnapshot correctedLatency, HistogramSnapshot uncorrectedLatency) {
+        this.phase = phase;
+        this.durationNanos = durationNanos;
+        this.scheduled = scheduled;
+        this.completed = completed;
+        this.errors = errors;
+        this.maxSendLagNanos = maxSendLagNanos;
+        this.correctedLatency = correctedLatency;
+        this.uncorrectedLatency = uncorrectedLatency;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    /**
+     * Get the phase duration, from its first scheduled request to its last completion.
+     * @return The phase duration in nanoseconds.
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Get the number of requests scheduled in the phase.
+     * @return The number of scheduled requests.
+     */
+    public long getScheduled() {
+        return scheduled;
+    }
+
+    /**
+     * Get the number of requests that got a response.
+     * @return The number of completed requests.
+     */
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Get the number of requests that failed without a response.
+     * @return The number of failed requests.
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Get the largest delay between a request's scheduled start and it actually being sent.
+     * <p/>
+     * A large lag means the generator could not keep up with the target rate (e.g. max in-flight reached).
+     * @return The max send lag in nanoseconds.
+     */
+    public long getMaxSendLagNanos() {
+        return maxSendLagNanos;
+    }
+
+    /**
+     * Get the achieved throughput.
+     * @return Completed requests per second.
+     */
+    public double getThroughput() {
+        return (durationNanos == 0 ? 0.0 : completed / ((double) durationNanos / TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    /**
+     * Get the latency histogram, measured from each request's scheduled start time.
+     * @return The corrected latency histogram (nanoseconds).
+     */
+    public HistogramSnapshot getCorrectedLatency() {
+        return correctedLatency;
+    }
+
+    /**
+     * Get the latency histogram, measured from each request's actual send time.
+     * @return The uncorrected latency histogram (nanoseconds).
+     */
+    public HistogramSnapshot getUncorrectedLatency() {
+        return uncorrectedLatency;
+    }
+
+    @Override
+    public String toString() {
+        return phase + ": scheduled: " + scheduled + ", completed: " + completed + ", errors: " + errors
+                + ", throughput: " + String.format("%.1f", getThroughput()) + " req/s"
+                + ", max send lag: " + TimeUnit.NANOSECONDS.toMillis(maxSendLagNanos) + "ms"
+                + "\n  corrected latency:   " + correctedLatency
+                + "\n  uncorrected latency: " + uncorrectedLatency;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse;
+
+import org.tfennelly.httpanalyse.common.nio.TlsProbe;
+import org.tfennelly.httpanalyse.common.nio.TlsProbeResult;
+import org.tfennelly.httpanalyse.common.pool.Route;
+import org.tfennelly.httpanalyse.common.security.CertificateInventory;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.NamedThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Probes a stream of targets with a handshake-only {@link TlsProbe}, writing one result line per target as
+ * each completes.
+ * <p/>
+ * Like {@link BatchScanner}, targets are read lazily and at most {@code concurrency} targets are in flight at
+ * any time.  No threads are tied up per in-flight target.  Completed probes are handed to a single recorder
+ * thread, which writes the result line and records the chain in the {@link #setInventory(CertificateInventory)
+ * inventory}, so the probe's selector thread never blocks on disk I/O.
+ * <p/>
+ * Result lines are tab separated: target, protocol, cipher suite, time (ms), certificate subject, certificate
+ * expiry, error.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class ProbeScanner {
+
+    public static final String RESULT_HEADER = "target\tprotocol\tcipher\tmillis\tsubject\tnotAfter\terror";
+
+    private final TlsProbe probe;
+    private final int concurrency;
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile CertificateInventory inventory;
+
+    public ProbeScanner(TlsProbe probe, int concurrency) {
+        AssertArgument.isNotNull(probe, "probe");
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("'concurrency' must be greater than zero.");
+        }
+        this.probe = probe;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Probe all targets read from the supplied reader (one per line).
+     * <p/>
+     * Blank lines and lines starting with '#' are ignored.  Targets are "host", "host:port" or a URL.  The
+     * port defaults to 443.
+     *
+     * @param targets The target reader.
+     * @param results The result writer.
+     * @throws IOException Error reading targets or writing results.
+     * @throws InterruptedException Interrupted while waiting on in-flight targets.
+     */
+    public void scan(BufferedReader targets, final Writer results) throws IOException, InterruptedException {
+        AssertArgument.isNotNull(targets, "targets");
+        AssertArgument.isNotNull(results, "results");
+
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final IOException[] writeError = new IOException[1];
+        ExecutorService recorder = Executors.newSingleThreadExecutor(new NamedThreadFactory("httpanalyse-probe-recorder"));
+
+        try {
+            writeLine(results, RESULT_HEADER);
+
+            String line;
+            while ((line = targets.readLine()) != null) {
+                final String target = line.trim();
+
+                if (target.length() == 0 || target.startsWith("#")) {
+                    continue;
+                }
+
+                inFlight.acquire();
+                synchronized (writeError) {
+                    if (writeError[0] != null) {
+                        inFlight.release();
+                        throw writeError[0];
+                    }
+                }
+
+                final long start = System.nanoTime();
+                CompletableFuture<TlsProbeResult> future;
+                try {
+                    Route route = toRoute(target);
+                    future = probe.probeAsync(route.getHost(), route.getPort());
+                } catch (Exception e) {
+                    future = new CompletableFuture<TlsProbeResult>();
+                    future.completeExceptionally(e);
+                }
+
+                future.whenCompleteAsync(new BiConsumer<TlsProbeResult, Throwable>() {
+                    @Override
+                    public void accept(TlsProbeResult result, Throwable error) {
+                        try {
+                            writeLine(results, toResultLine(target, start, result, error));
+                        } catch (IOException e) {
+                            synchronized (writeError) {
+                                writeError[0] = e;
+                            }
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }, recorder);
+            }
+
+            // Wait for the in-flight targets to complete.
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } finally {
+            recorder.shutdown();
+            results.flush();
+        }
+    }
+
+    /**
+     * Set the inventory into which the certificate chain of each probed target is recorded.
+     * @param inventory The certificate inventory, or null for no inventory.
+     */
+    public void setInventory(CertificateInventory inventory) {
+        this.inventory = inventory;
+    }
+
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private static Route toRoute(String target) throws IOException {
+        if (target.contains("://")) {
+            return Route.fromURL(new URL(target));
+        }
+        return Route.fromURL(new URL("https://" + target));
+    }
+
+    private String toResultLine(String target, long start, TlsProbeResult probeResult, Throwable error) {
+        StringBuilder result = new StringBuilder(256);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        result.append(target);
+        if (error == null) {
+            error = recordInInventory(probeResult);
+        }
+        if (error == null) {
+            X509Certificate cert = probeResult.getServerCertificate();
+
+            result.append('\t').append(probeResult.getProtocol());
+            result.append('\t').append(probeResult.getCipherSuite());
+            result.append('\t').append(millis);
+            if (cert != null) {
+                result.append('\t').append(cert.getSubjectX500Principal().getName());
+                result.append('\t').append(cert.getNotAfter().getTime());
+            } else {
+                result.append("\t\t");
+            }
+            result.append('\t');
+        } else {
+            failed.incrementAndGet();
+            result.append("\t\t\t").append(millis);
+            result.append("\t\t\t").append(String.valueOf(error).replace('\t', ' ').replace('\n', ' '));
+        }
+        scanned.incrementAndGet();
+
+        return result.toString();
+    }
+
+    private Throwable recordInInventory(TlsProbeResult probeResult) {
+        CertificateInventory inventory = this.inventory;
+
+        if (inventory != null && probeResult.getServerCertificate() != null) {
+            try {
+                inventory.record(probeResult.getHost(), probeResult.getPort(), probeResult.getPeerCertificates());
+            } catch (IOException e) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private static void writeLine(Writer results, String line) throws IOException {
+        synchronized (results) {
+            results.write(line);
+            results.write('\n');
+            results.flush();
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse;
+
+import org.tfennelly.httpanalyse.common.HttpClientImpl;
+import org.tfennelly.httpanalyse.common.ResponseBodyConsumer;
+import org.tfennelly.httpanalyse.common.StreamingHttpResponse;
+import org.tfennelly.httpanalyse.common.capture.CaptureLog;
+import org.tfennelly.httpanalyse.common.capture.CapturedExchange;
+import org.tfennelly.httpanalyse.common.metrics.LatencyHistogram;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.TimingWheel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays the exchanges recorded in a {@link CaptureLog}.
+ * <p/>
+ * Requests are started at their recorded offsets from the first exchange, scaled by the speed factor, regardless
+ * of how quickly earlier requests complete (open-loop, like the {@link LoadGenerator}), so the recorded
+ * inter-arrival timing and, for a server that responds as quickly as the original, the recorded concurrency are
+ * reproduced.  At {@link #AS_FAST_AS_POSSIBLE} speed, requests are sent back to back, limited only by the max
+ * in-flight requests.
+ * <p/>
+ * The log is streamed, never loaded.  Requests are scheduled on a {@link TimingWheel}, at most a bounded number
+ * ahead of the replay, rather than a sleeping thread per request.  Exchanges are logged when they complete, so
+ * they're reordered by start time within a window of {@link #REORDER_WINDOW} exchanges before being scheduled.
+ * Replaying the same log always produces the same schedule.
+ * <p/>
+ * Each replayed response's status and body size are compared against the recording, and the replay latency
+ * is reported alongside the recorded latency.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class ReplayEngine {
+
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+    public static final int REORDER_WINDOW = 4096;
+    public static final int MAX_MISMATCH_SAMPLES = 100;
+
+    // Max requests scheduled on the wheel but not yet started.
+    private static final int MAX_SCHEDULED = 16 * 1024;
+    // Lead time for the first request, so it isn't late before it's scheduled.
+    private static final long START_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final HttpClientImpl httpClient;
+    private final CaptureLog captureLog;
+    private URL target;
+    private double speed = 1.0;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private long fromSequence;
+    private long toSequence = Long.MAX_VALUE;
+
+    public ReplayEngine(HttpClientImpl httpClient, CaptureLog captureLog) {
+        AssertArgument.isNotNull(httpClient, "httpClient");
+        AssertArgument.isNotNull(captureLog, "captureLog");
+        this.httpClient = httpClient;
+        this.captureLog = captureLog;
+    }
+
+    /**
+     * Set the server to replay against e.g. a staging or local stand-in server.
+     * <p/>
+     * Each recorded URL's protocol, host and port are replaced with those of the target.  The path and query
+     * are kept.
+     * @param target The target server URL, or null to replay against the recorded URLs.
+     */
+    public void setTarget(URL target) {
+        this.target = target;
+    }
+
+    /**
+     * Set the replay speed.
+     * @param speed The speed factor e.g. 1.0 for the recorded timing, 2.0 for twice as fast, or
+     * {@link #AS_FAST_AS_POSSIBLE}.
+     */
+    public void setSpeed(double speed) {
+        if (!(speed > 0.0)) {
+            throw new IllegalArgumentException("Invalid 'speed' value '" + speed + "'. Must be greater than zero.");
+        }
+        this.speed = speed;
+    }
+
+    /**
+     * Set the max number of requests in flight at any one time.
+     * @param maxInFlight Max in-flight requests.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Invalid 'maxInFlight' value '" + maxInFlight + "'. Must be greater than zero.");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Set the range of exchanges to replay.
+     * @param fromSequence The sequence number of the first exchange to replay.
+     * @param toSequence The sequence number to stop at (exclusive).
+     */
+    public void setRange(long fromSequence, long toSequence) {
+        if (fromSequence < 0 || toSequence < fromSequence) {
+            throw new IllegalArgumentException("Invalid 'fromSequence' and 'toSequence' values '" + fromSequence + "', '" + toSequence + "'.");
+        }
+        this.fromSequence = fromSequence;
+        this.toSequence = toSequence;
+    }
+
+    /**
+     * Run the replay.
+     * <p/>
+     * Blocks until every exchange in the range (up to the current end of the log) has been replayed.
+     *
+     * @return The replay report.
+     * @throws IOException Error reading the capture log.
+     * @throws InterruptedException Interrupted while replaying.
+     */
+    public ReplayReport run() throws IOException, InterruptedException {
+        boolean timed = (speed != AS_FAST_AS_POSSIBLE);
+        CaptureLog.Cursor cursor = captureLog.openCursor(fromSequence);
+        PriorityQueue<ReplayRequest> reorderBuffer = new PriorityQueue<ReplayRequest>(REORDER_WINDOW, START_ORDER);
+        PriorityQueue<Long> originalEnds = new PriorityQueue<Long>();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Semaphore scheduledPermits = new Semaphore(MAX_SCHEDULED);
+        ExecutorService executor = BatchScanner.newExecutor(maxInFlight);
+        TimingWheel wheel = (timed ? new TimingWheel(1, TimeUnit.MILLISECONDS, 1024, executor) : null);
+        Results results = new Results();
+
+        long replayStart = System.nanoTime() + START_DELAY_NANOS;
+        long firstStartedAt = Long.MIN_VALUE;
+        boolean endOfLog = false;
+        try {
+            while (true) {
+                while (!endOfLog && reorderBuffer.size() < REORDER_WINDOW) {
+                    CapturedExchange exchange = cursor.next();
+                    if (exchange == null || exchange.getSequence() >= toSequence) {
+                        endOfLog = true;
+                    } else {
+                        reorderBuffer.add(new ReplayRequest(exchange));
+                    }
+                }
+
+                ReplayRequest request = reorderBuffer.poll();
+                if (request == null) {
+                    break;
+                }
+                if (firstStartedAt == Long.MIN_VALUE) {
+                    firstStartedAt = request.startedAt;
+                    replayStart = System.nanoTime() + START_DELAY_NANOS;
+                }
+                results.recordOriginal(request, originalEnds);
+
+                Replay replay = new Replay(request, inFlight, scheduledPermits, results);
+                if (timed) {
+                    scheduledPermits.acquire();
+                    replay.intendedStart = replayStart + (long) (TimeUnit.MILLISECONDS.toNanos(request.startedAt - firstStartedAt) / speed);
+                    wheel.schedule(replay, replay.intendedStart);
+                } else {
+                    inFlight.acquire();
+                    replay.intendedStart = System.nanoTime();
+                    replay.holdsInFlight = true;
+                    executor.execute(replay);
+                }
+            }
+
+            // Wait for all scheduled requests to start, then complete.
+            scheduledPermits.acquire(MAX_SCHEDULED);
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } finally {
+            if (wheel != null) {
+                wheel.close();
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        return results.toReport(replayStart);
+    }
+
+    private URL toReplayUrl(String recordedUrl) throws MalformedURLException {
+        URL url = new URL(recordedUrl);
+        if (target == null) {
+            return url;
+        }
+        return new URL(target.getProtocol(), target.getHost(), target.getPort(), url.getFile());
+    }
+
+    private static final Comparator<ReplayRequest> START_ORDER = new Comparator<ReplayRequest>() {
+        public int compare(ReplayRequest request1, ReplayRequest request2) {
+            if (request1.startedAt != request2.startedAt) {
+                return (request1.startedAt < request2.startedAt ? -1 : 1);
+            }
+            return (request1.sequence < request2.sequence ? -1 : (request1.sequence == request2.sequence ? 0 : 1));
+        }
+    };
+
+    /**
+     * The recorded request, and the recorded response details compared against.  The recorded response body
+     * is dropped, so the reorder buffer only holds request bodies.
+     */
+    private static final class ReplayRequest {
+
+        private final long sequence;
+        private final long startedAt;
+        private final String method;
+        private final String url;
+        private final Map<String, String> headers;
+        private final byte[] body;
+        private final int originalStatus;
+        private final long originalSize;
+        private final long originalTotalNanos;
+
+        private ReplayRequest(CapturedExchange exchange) {
+            this.sequence = exchange.getSequence();
+            this.startedAt = exchange.getStartedAt();
+            this.method = exchange.getMethod();
+            this.url = exchange.getUrl();
+            this.headers = exchange.getRequestHeaders();
+            this.body = exchange.getRequestBody();
+            this.originalStatus = exchange.getStatusCode();
+            this.originalSize = Math.max(0, exchange.getResponseBodyLength());
+            this.originalTotalNanos = exchange.getTiming().getTotalNanos();
+        }
+    }
+
+    private class Replay implements Runnable {
+
+        private final ReplayRequest request;
+        private final Semaphore inFlight;
+        private final Semaphore scheduledPermits;
+        private final Results results;
+        private long intendedStart;
+        private boolean holdsInFlight;
+
+        private Replay(ReplayRequest request, Semaphore inFlight, Semaphore scheduledPermits, Results results) {
+            this.request = request;
+            this.inFlight = inFlight;
+            this.scheduledPermits = scheduledPermits;
+            this.results = results;
+        }
+
+        @Override
+        public void run() {
+            if (!holdsInFlight) {
+                scheduledPermits.release();
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    results.recordError(request);
+                    return;
+                }
+            }
+
+            long sentAt = System.nanoTime();
+            results.started(sentAt - intendedStart);
+            try {
+                URL url = toReplayUrl(request.url);
+                Map<String, String> headers = request.headers;
+                if (target != null) {
+                    // Host is written by the client, from the target URL.
+                    headers = new LinkedHashMap<String, String>(headers);
+                    Iterator<String> names = headers.keySet().iterator();
+                    while (names.hasNext()) {
+                        if (names.next().equalsIgnoreCase("Host")) {
+                            names.remove();
+                        }
+                    }
+                }
+                BodySizeConsumer consumer = new BodySizeConsumer();
+                long size = httpClient.send(request.method, request.body, null, url, headers, consumer);
+                results.record(request, consumer.statusCode, size, consumer.totalNanos);
+            } catch (Exception e) {
+                results.recordError(request);
+            } finally {
+                results.completed();
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Counts the response body bytes, without buffering the body.
+     */
+    private static final class BodySizeConsumer implements ResponseBodyConsumer<Long> {
+
+        private int statusCode;
+        private long totalNanos;
+
+        public Long consume(StreamingHttpResponse response) throws IOException {
+            InputStream body = response.getInputStream();
+            byte[] buffer = new byte[8192];
+            long size = 0;
+            int read;
+
+            while ((read = body.read(buffer)) != -1) {
+                size += read;
+            }
+            statusCode = response.statusCode();
+            totalNanos = response.getTiming().getTotalNanos();
+
+            return size;
+        }
+    }
+
+    private static final class Results {
+
+        private final LatencyHistogram originalLatency = new LatencyHistogram();
+        private final LatencyHistogram replayLatency = new LatencyHistogram();
+        private final AtomicLong replayed = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong statusMismatches = new AtomicLong();
+        private final AtomicLong sizeMismatches = new AtomicLong();
+        private final AtomicLong maxSendLag = new AtomicLong();
+        private final AtomicLong lastCompletedAt = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger replayPeakConcurrency = new AtomicInteger();
+        private final List<ReplayReport.Mismatch> mismatches = Collections.synchronizedList(new ArrayList<ReplayReport.Mismatch>());
+        // Only touched by the scheduling thread.
+        private int originalPeakConcurrency;
+
+        private void recordOriginal(ReplayRequest request, PriorityQueue<Long> originalEnds) {
+            if (request.originalTotalNanos > 0) {
+                originalLatency.record(request.originalTotalNanos);
+            }
+
+            // Exchanges are released in start order... sweep the recorded [start, end) intervals.
+            while (!originalEnds.isEmpty() && originalEnds.peek() <= request.startedAt) {
+                originalEnds.poll();
+            }
+            originalEnds.add(request.startedAt + TimeUnit.NANOSECONDS.toMillis(Math.max(0, request.originalTotalNanos)));
+            originalPeakConcurrency = Math.max(originalPeakConcurrency, originalEnds.size());
+        }
+
+        private void started(long sendLag) {
+            updateMax(maxSendLag, sendLag);
+            int current = active.incrementAndGet();
+            int peak = replayPeakConcurrency.get();
+            while (current > peak && !replayPeakConcurrency.compareAndSet(peak, current)) {
+                peak = replayPeakConcurrency.get();
+            }
+        }
+
+        private void completed() {
+            active.decrementAndGet();
+            updateMax(lastCompletedAt, System.nanoTime());
+        }
+
+        private void record(ReplayRequest request, int statusCode, long size, long totalNanos) {
+            replayed.incrementAndGet();
+            replayLatency.record(totalNanos);
+
+            boolean statusMismatch = (statusCode != request.originalStatus);
+            boolean sizeMismatch = (size != request.originalSize);
+            if (statusMismatch) {
+                statusMismatches.incrementAndGet();
+            }
+            if (sizeMismatch) {
+                sizeMismatches.incrementAndGet();
+            }
+            if (statusMismatch || sizeMismatch) {
+                addMismatch(request, statusCode, size);
+            }
+        }
+
+        private void recordError(ReplayRequest request) {
+            replayed.incrementAndGet();
+            errors.incrementAndGet();
+            addMismatch(request, -1, -1);
+        }
+
+        private void addMismatch(ReplayRequest request, int statusCode, long size) {
+            if (mismatches.size() < MAX_MISMATCH_SAMPLES) {
+                mismatches.add(new ReplayReport.Mismatch(request.sequence, request.method, request.url, request.originalStatus,
+                        statusCode, request.originalSize, size));
+            }
+        }
+
+        private ReplayReport toReport(long replayStart) {
+            long duration = (replayed.get() == 0 ? 0 : Math.max(0, lastCompletedAt.get() - replayStart));
+            List<ReplayReport.Mismatch> mismatchSample;
+            synchronized (mismatches) {
+                mismatchSample = new ArrayList<ReplayReport.Mismatch>(mismatches.subList(0, Math.min(MAX_MISMATCH_SAMPLES, mismatches.size())));
+            }
+            return new ReplayReport(duration, replayed.get(), errors.get(), statusMismatches.get(), sizeMismatches.get(), maxSendLag.get(),
+                    originalPeakConcurrency, replayPeakConcurrency.get(), originalLatency.snapshot(), replayLatency.snapshot(),
+                    Collections.unmodifiableList(mismatchSample));
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse;
+
+import org.tfennelly.httpanalyse.common.metrics.HistogramSnapshot;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results of a {@link ReplayEngine} run, compared against the recorded exchanges.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class ReplayReport {
+
+    private final long durationNanos;
+    private final long replayed;
+    private final long errors;
+    private final long statusMismatches;
+    private final long sizeMismatches;
+    private final long maxSendLagNanos;
+    private final int originalPeakConcurrency;
+    private final int replayPeakConcurrency;
+    private final HistogramSnapshot originalLatency;
+    private final HistogramSnapshot replayLatency;
+    private final List<Mismatch> mismatches;
+
+    ReplayReport(long durationNanos, long replayed, long errors, long statusMismatches, long sizeMismatches, long maxSendLagNanos,
+                 int originalPeakConcurrency, int replayPeakConcurrency, HistogramSnapshot originalLatency,
+                 HistogramSnapshot replayLatency, List<Mismatch> mismatches) {
+        this.durationNanos = durationNanos;
+        this.replayed = replayed;
+        this.errors = errors;
+        this.statusMismatches = statusMismatches;
+        this.sizeMismatches = sizeMismatches;
+        this.maxSendLagNanos = maxSendLagNanos;
+        this.originalPeakConcurrency = originalPeakConcurrency;
+        this.replayPeakConcurrency = replayPeakConcurrency;
+        this.originalLatency = originalLatency;
+        this.replayLatency = replayLatency;
+        this.mismatches = mismatches;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Get the number of exchanges replayed, incl. those that failed.
+     * @return The number of replayed exchanges.
+     */
+    public long getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * Get the number of replayed requests that failed without a response.
+     * @return The number of failed requests.
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Get the number of replayed responses whose status differed from the recorded status.
+     * @return The number of status mismatches.
+     */
+    public long getStatusMismatches() {
+        return statusMismatches;
+    }
+
+    /**
+     * Get the number of replayed responses whose body size differed from the recorded body size.
+     * @return The number of size mismatches.
+     */
+    public long getSizeMismatches() {
+        return sizeMismatches;
+    }
+
+    /**
+     * Get the largest delay between a request's scheduled start and it actually being sent.
+     * @return The max send lag in nanoseconds.
+     */
+    public long getMaxSendLagNanos() {
+        return maxSendLagNanos;
+    }
+
+    /**
+     * Get the max number of recorded exchanges that were in flight at the same time.
+     * @return The recorded peak concurrency.
+     */
+    public int getOriginalPeakConcurrency() {
+        return originalPeakConcurrency;
+    }
+
+    /**
+     * Get the max number of replayed requests that were in flight at the same time.
+     * @return The replay peak concurrency.
+     */
+    public int getReplayPeakConcurrency() {
+        return replayPeakConcurrency;
+    }
+
+    /**
+     * Get the recorded latency of the replayed exchanges.
+     * @return The recorded latency histogram (nanoseconds).
+     */
+    public HistogramSnapshot getOriginalLatency() {
+        return originalLatency;
+    }
+
+    /**
+     * Get the replay latency, measured from each request's actual send time.
+     * @return The replay latency histogram (nanoseconds).
+     */
+    public HistogramSnapshot getReplayLatency() {
+        return replayLatency;
+    }
+
+    /**
+     * Get a sample of the mismatched exchanges (the first {@link ReplayEngine#MAX_MISMATCH_SAMPLES}).
+     * @return The mismatch sample.
+     */
+    public List<Mismatch> getMismatches() {
+        return mismatches;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+
+        report.append("replayed: ").append(replayed).append(", errors: ").append(errors)
+                .append(", status mismatches: ").append(statusMismatches).append(", size mismatches: ").append(sizeMismatches)
+                .append(", duration: ").append(TimeUnit.NANOSECONDS.toMillis(durationNanos)).append("ms")
+                .append(", max send lag: ").append(TimeUnit.NANOSECONDS.toMillis(maxSendLagNanos)).append("ms")
+                .append(", peak concurrency: ").append(replayPeakConcurrency).append(" (recorded ").append(originalPeakConcurrency).append(")")
+                .append("\n  recorded latency: ").append(originalLatency)
+                .append("\n  replay latency:   ").append(replayLatency);
+        for (Mismatch mismatch : mismatches) {
+            report.append("\n  ").append(mismatch);
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * A replayed exchange whose status or body size differed from the recording.
+     */
+    public static final class Mismatch {
+
+        private final long sequence;
+        private final String method;
+        private final String url;
+        private final int originalStatus;
+        private final int replayStatus;
+        private final long originalSize;
+        private final long replaySize;
+
+        Mismatch(long sequence, String method, String url, int originalStatus, int replayStatus, long originalSize, long replaySize) {
+            this.sequence = sequence;
+            this.method = method;
+            this.url = url;
+            this.originalStatus = originalStatus;
+            this.replayStatus = replayStatus;
+            this.originalSize = originalSize;
+            this.replaySize = replaySize;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getOriginalStatus() {
+            return originalStatus;
+        }
+
+        /**
+         * Get the replayed status.
+         * @return The replayed status, or -1 if the replayed request failed.
+         */
+        public int getReplayStatus() {
+            return replayStatus;
+        }
+
+        public long getOriginalSize() {
+            return originalSize;
+        }
+
+        /**
+         * Get the replayed body size.
+         * @return The replayed body size, or -1 if the replayed request failed.
+         */
+        public long getReplaySize() {
+            return replaySize;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + sequence + " " + method + " " + url + ": status " + originalStatus + " -> " + (replayStatus == -1 ? "error" : replayStatus)
+                    + ", size " + originalSize + " -> " + (replaySize == -1 ? "error" : replaySize);
+        }
+    }
+}
@@ -2,31 +2,679 @@ package org.tfennelly.httpanalyse;
 
 import org.tfennelly.httpanalyse.common.HttpClientImpl;
 import org.tfennelly.httpanalyse.common.HttpResponse;
+import org.tfennelly.httpanalyse.common.buffer.BufferPool;
+import org.tfennelly.httpanalyse.common.capture.CaptureLog;
+import org.tfennelly.httpanalyse.common.capture.CapturedExchange;
+import org.tfennelly.httpanalyse.common.dns.CachingHostResolver;
+import org.tfennelly.httpanalyse.common.dns.SystemHostResolver;
+import org.tfennelly.httpanalyse.common.har.HarReader;
+import org.tfennelly.httpanalyse.common.har.HarWriter;
+import org.tfennelly.httpanalyse.common.nio.TlsEnumerator;
+import org.tfennelly.httpanalyse.common.nio.TlsProbe;
+import org.tfennelly.httpanalyse.common.pool.ConnectionPool;
+import org.tfennelly.httpanalyse.common.pool.Route;
+import org.tfennelly.httpanalyse.common.security.CertificateInventory;
+import org.tfennelly.httpanalyse.common.store.BodyRef;
+import org.tfennelly.httpanalyse.common.store.BodyStore;
+import org.tfennelly.httpanalyse.common.util.CharsetUtils;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * SSL Analyse
+ * <p/>
+ * Usage:
+ * <pre>
+ * SSLAnalyse &lt;url&gt;
+ * SSLAnalyse -scan &lt;targets-file | -&gt; [-concurrency &lt;n&gt;] [-out &lt;results-file&gt;] [-timeout &lt;ms&gt;] [-inventory &lt;dir&gt;] [-preresolve &lt;threads&gt;]
+ * SSLAnalyse -probe &lt;targets-file | -&gt; [-concurrency &lt;n&gt;] [-out &lt;results-file&gt;] [-timeout &lt;ms&gt;] [-inventory &lt;dir&gt;] [-preresolve &lt;threads&gt;]
+ * SSLAnalyse -enumerate &lt;targets-file | -&gt; [-concurrency &lt;n&gt;] [-out &lt;results-file&gt;] [-timeout &lt;ms&gt;] [-host-rate &lt;handshakes/s&gt;] [-preresolve &lt;threads&gt;]
+ * SSLAnalyse -inventory &lt;dir&gt; [-expiring &lt;days&gt;] [-changed-within &lt;hours&gt;]
+ * SSLAnalyse -load &lt;url&gt; -rate &lt;req/s&gt; [-ramp-to &lt;req/s&gt;] [-warmup &lt;s&gt;] [-duration &lt;s&gt;] [-concurrency &lt;n&gt;] [-timeout &lt;ms&gt;] [-capture &lt;dir&gt;] [-body-store &lt;dir&gt;]
+ * SSLAnalyse -replay &lt;capture-dir&gt; [-target &lt;url&gt;] [-speed &lt;factor | max&gt;] [-concurrency &lt;n&gt;] [-timeout &lt;ms&gt;]
+ * SSLAnalyse -har-export &lt;capture-dir&gt; [-out &lt;har-file&gt;] [-bodies &lt;omit | base64 | hash&gt;] [-body-store &lt;dir&gt;]
+ * SSLAnalyse -har-import &lt;har-file | -&gt; -capture &lt;dir&gt; [-body-store &lt;dir&gt;]
+ * </pre>
+ * In scan mode, targets are read one per line from the file (or stdin if "-") and results are written
+ * incrementally to the results file (or stdout).
+ * <p/>
+ * Probe mode is like scan mode, but only completes the TLS handshake with each target (see {@link TlsProbe}),
+ * capturing the certificate chain, protocol and cipher suite without sending an HTTP request.
+ * <p/>
+ * Scan and probe modes can record the observed certificate chains in a {@link CertificateInventory}.  Inventory
+ * mode lists the hosts in an inventory whose certificate expires within the given number of days and/or whose
+ * certificate changed within the given number of hours.
+ * <p/>
+ * Scan, probe and enumerate modes can resolve all target hosts into a {@link CachingHostResolver} (using the given
+ * number of threads) before the first target is started, so lookups don't hold up the scan.  Requires a targets file.
+ * <p/>
+ * Enumerate mode writes the protocols and cipher suites each target accepts (see {@link TlsEnumerator}),
+ * limiting the handshake rate on each target host.
+ * <p/>
+ * In load mode, requests are sent open-loop at the target rate (see {@link LoadGenerator}).  The exchanges can be
+ * recorded in a {@link CaptureLog}, with the response bodies deduplicated into a {@link BodyStore}.  A capture log
+ * recorded with a body store needs the same store for HAR export (other than of hashes).
+ * <p/>
+ * Replay mode replays the exchanges in a capture log, optionally against another server, with the recorded timing
+ * scaled by the speed factor (see {@link ReplayEngine}), and reports how the responses compare with the recording.
+ * <p/>
+ * HAR export mode streams the exchanges in a capture log to a HAR file (or stdout) (see {@link HarWriter}).  HAR
+ * import mode appends the entries of a HAR file (or stdin if "-") to a capture log, e.g. for replay.  Hashed HAR
+ * bodies are resolved against the body store.
  */
 public class SSLAnalyse {
 
-    public static void main(String[] args) throws IOException {
-        HttpClientImpl httpClient = new HttpClientImpl();
-        HttpResponse response = httpClient.get(new URL("https://appservice.foxweave.io?operation=getTargets&com.foxweave.servlet.login.Login=cloudbees_tomfennelly"));
+    private static final int DEFAULT_CONCURRENCY = 256;
+    private static final int DEFAULT_PROBE_CONCURRENCY = 4096;
+    private static final int DEFAULT_ENUMERATE_CONCURRENCY = 1024;
+    private static final int DEFAULT_TIMEOUT = 10000;
+    private static final int DEFAULT_WARMUP = 10;
+    private static final int DEFAULT_DURATION = 60;
 
-        System.out.println(response.statusCode());
-        System.out.println(response.contentAsString());
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            usage();
+            return;
+        }
 
-        Certificate[] certs = response.getServerCerts();
-        if (certs != null && certs.length > 0) {
-            System.out.println(certs[0]);
-//            for (Certificate cert : certs) {
-//            }
+        if (args[0].equals("-scan")) {
+            scan(args);
+        } else if (args[0].equals("-probe")) {
+            probe(args);
+        } else if (args[0].equals("-enumerate")) {
+            enumerate(args);
+        } else if (args[0].equals("-inventory")) {
+            inventory(args);
+        } else if (args[0].equals("-load")) {
+            load(args);
+        } else if (args[0].equals("-replay")) {
+            replay(args);
+        } else if (args[0].equals("-har-export")) {
+            harExport(args);
+        } else if (args[0].equals("-har-import")) {
+            harImport(args);
         } else {
-            System.out.println("No certs");
+            analyse(args[0]);
+        }
+    }
+
+    private static void analyse(String url) throws IOException {
+        HttpClientImpl httpClient = new HttpClientImpl();
+        try {
+            HttpResponse response = httpClient.get(new URL(url));
+
+            try {
+                System.out.println(response.statusCode());
+                System.out.println(response.contentAsString());
+                System.out.println(response.getTiming());
+
+                Certificate[] certs = response.getServerCerts();
+                if (certs != null && certs.length > 0) {
+                    System.out.println(certs[0]);
+                } else {
+                    System.out.println("No certs");
+                }
+            } finally {
+                response.release();
+            }
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    private static void scan(String[] args) throws IOException, InterruptedException {
+        String targetsFile = null;
+        String resultsFile = null;
+        String inventoryDir = null;
+        int concurrency = DEFAULT_CONCURRENCY;
+        int timeout = DEFAULT_TIMEOUT;
+        int preResolveThreads = 0;
+
+        for (int i = 0; i < args.length - 1; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+
+            if (option.equals("-scan")) {
+                targetsFile = value;
+            } else if (option.equals("-concurrency")) {
+                concurrency = Integer.parseInt(value);
+            } else if (option.equals("-out")) {
+                resultsFile = value;
+            } else if (option.equals("-timeout")) {
+                timeout = Integer.parseInt(value);
+            } else if (option.equals("-inventory")) {
+                inventoryDir = value;
+            } else if (option.equals("-preresolve")) {
+                preResolveThreads = Integer.parseInt(value);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (targetsFile == null || (preResolveThreads > 0 && targetsFile.equals("-"))) {
+            usage();
+            return;
+        }
+
+        // Targets may share a host, so allow every in-flight target its own connection.
+        HttpClientImpl httpClient = new HttpClientImpl(new ConnectionPool(concurrency, concurrency, ConnectionPool.DEFAULT_IDLE_TIMEOUT));
+        httpClient.setConnectTimeout(timeout);
+        httpClient.setReadTimeout(timeout);
+        httpClient.setFollowRedirects(false);
+        CachingHostResolver resolver = preResolve(targetsFile, preResolveThreads);
+        httpClient.setHostResolver(resolver);
+
+        BufferedReader targets = new BufferedReader(new InputStreamReader(targetsFile.equals("-") ? System.in : new FileInputStream(targetsFile), CharsetUtils.UTF8));
+        Writer results = new BufferedWriter(new OutputStreamWriter(resultsFile == null ? System.out : new FileOutputStream(resultsFile), CharsetUtils.UTF8));
+        BatchScanner scanner = new BatchScanner(httpClient, concurrency);
+        CertificateInventory inventory = (inventoryDir != null ? new CertificateInventory(new File(inventoryDir)) : null);
+        scanner.setInventory(inventory);
+
+        try {
+            long start = System.currentTimeMillis();
+            scanner.scan(targets, results);
+            System.err.println("Scanned " + scanner.getScanned() + " targets (" + scanner.getFailed() + " failed) in " + (System.currentTimeMillis() - start) + "ms.");
+            System.err.println(httpClient.getMetrics().snapshot());
+            System.err.println("DNS: " + resolver.getStats());
+        } finally {
+            targets.close();
+            if (resultsFile != null) {
+                results.close();
+            }
+            httpClient.close();
+            closeResolver(resolver);
+            if (inventory != null) {
+                inventory.close();
+            }
+        }
+    }
+
+    private static void probe(String[] args) throws IOException, InterruptedException {
+        String targetsFile = null;
+        String resultsFile = null;
+        String inventoryDir = null;
+        int concurrency = DEFAULT_PROBE_CONCURRENCY;
+        int timeout = DEFAULT_TIMEOUT;
+        int preResolveThreads = 0;
+
+        for (int i = 0; i < args.length - 1; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+
+            if (option.equals("-probe")) {
+                targetsFile = value;
+            } else if (option.equals("-concurrency")) {
+                concurrency = Integer.parseInt(value);
+            } else if (option.equals("-out")) {
+                resultsFile = value;
+            } else if (option.equals("-timeout")) {
+                timeout = Integer.parseInt(value);
+            } else if (option.equals("-inventory")) {
+                inventoryDir = value;
+            } else if (option.equals("-preresolve")) {
+                preResolveThreads = Integer.parseInt(value);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (targetsFile == null || (preResolveThreads > 0 && targetsFile.equals("-"))) {
+            usage();
+            return;
+        }
+
+        TlsProbe probe = new TlsProbe();
+        probe.setTimeout(timeout);
+        CachingHostResolver resolver = preResolve(targetsFile, preResolveThreads);
+        probe.setHostResolver(resolver);
+
+        BufferedReader targets = new BufferedReader(new InputStreamReader(targetsFile.equals("-") ? System.in : new FileInputStream(targetsFile), CharsetUtils.UTF8));
+        Writer results = new BufferedWriter(new OutputStreamWriter(resultsFile == null ? System.out : new FileOutputStream(resultsFile), CharsetUtils.UTF8));
+        ProbeScanner scanner = new ProbeScanner(probe, concurrency);
+        CertificateInventory inventory = (inventoryDir != null ? new CertificateInventory(new File(inventoryDir)) : null);
+        scanner.setInventory(inventory);
+
+        try {
+            long start = System.currentTimeMillis();
+            scanner.scan(targets, results);
+            System.err.println("Probed " + scanner.getScanned() + " targets (" + scanner.getFailed() + " failed) in " + (System.currentTimeMillis() - start) + "ms.");
+            System.err.println("DNS: " + resolver.getStats());
+        } finally {
+            targets.close();
+            if (resultsFile != null) {
+                results.close();
+            }
+            probe.close();
+            closeResolver(resolver);
+            if (inventory != null) {
+                inventory.close();
+            }
+        }
+    }
+
+    private static void enumerate(String[] args) throws IOException, InterruptedException {
+        String targetsFile = null;
+        String resultsFile = null;
+        int concurrency = DEFAULT_ENUMERATE_CONCURRENCY;
+        int timeout = DEFAULT_TIMEOUT;
+        double hostRate = TlsEnumerator.DEFAULT_MAX_ATTEMPTS_PER_SECOND;
+        int preResolveThreads = 0;
+
+        for (int i = 0; i < args.length - 1; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+
+            if (option.equals("-enumerate")) {
+                targetsFile = value;
+            } else if (option.equals("-concurrency")) {
+                concurrency = Integer.parseInt(value);
+            } else if (option.equals("-out")) {
+                resultsFile = value;
+            } else if (option.equals("-timeout")) {
+                timeout = Integer.parseInt(value);
+            } else if (option.equals("-host-rate")) {
+                hostRate = Double.parseDouble(value);
+            } else if (option.equals("-preresolve")) {
+                preResolveThreads = Integer.parseInt(value);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (targetsFile == null || (preResolveThreads > 0 && targetsFile.equals("-"))) {
+            usage();
+            return;
+        }
+
+        TlsProbe probe = new TlsProbe();
+        probe.setTimeout(timeout);
+        CachingHostResolver resolver = preResolve(targetsFile, preResolveThreads);
+        probe.setHostResolver(resolver);
+        TlsEnumerator enumerator = new TlsEnumerator(probe);
+        enumerator.setMaxAttemptsPerSecond(hostRate);
+
+        BufferedReader targets = new BufferedReader(new InputStreamReader(targetsFile.equals("-") ? System.in : new FileInputStream(targetsFile), CharsetUtils.UTF8));
+        Writer results = new BufferedWriter(new OutputStreamWriter(resultsFile == null ? System.out : new FileOutputStream(resultsFile), CharsetUtils.UTF8));
+        CapabilityScanner scanner = new CapabilityScanner(enumerator, concurrency);
+
+        try {
+            long start = System.currentTimeMillis();
+            scanner.scan(targets, results);
+            System.err.println("Enumerated " + scanner.getScanned() + " targets (" + scanner.getFailed() + " failed) in " + (System.currentTimeMillis() - start) + "ms.");
+            System.err.println("DNS: " + resolver.getStats());
+        } finally {
+            targets.close();
+            if (resultsFile != null) {
+                results.close();
+            }
+            enumerator.close();
+            probe.close();
+            closeResolver(resolver);
+        }
+    }
+
+    private static void inventory(String[] args) throws IOException {
+        String inventoryDir = null;
+        int expiringDays = -1;
+        int changedHours = -1;
+
+        for (int i = 0; i < args.length - 1; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+
+            if (option.equals("-inventory")) {
+                inventoryDir = value;
+            } else if (option.equals("-expiring")) {
+                expiringDays = Integer.parseInt(value);
+            } else if (option.equals("-changed-within")) {
+                changedHours = Integer.parseInt(value);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (inventoryDir == null) {
+            usage();
+            return;
+        }
+
+        CertificateInventory inventory = new CertificateInventory(new File(inventoryDir));
+        try {
+            long now = System.currentTimeMillis();
+
+            System.out.println("Inventory: " + inventory.getHostCount() + " hosts, " + inventory.getCertificateCount() + " certificates.");
+            if (expiringDays >= 0) {
+                System.out.println("Expiring within " + expiringDays + " days:");
+                for (String host : inventory.getHostsExpiring(Long.MIN_VALUE, now + TimeUnit.DAYS.toMillis(expiringDays))) {
+                    System.out.println("\t" + host + "\t" + new Date(inventory.getNotAfter(host)));
+                }
+            }
+            if (changedHours >= 0) {
+                System.out.println("Changed within " + changedHours + " hours:");
+                for (String host : inventory.getHostsChangedSince(now - TimeUnit.HOURS.toMillis(changedHours))) {
+                    System.out.println("\t" + host);
+                }
+            }
+        } finally {
+            inventory.close();
+        }
+    }
+
+    private static void load(String[] args) throws IOException, InterruptedException {
+        String url = null;
+        double rate = 0.0;
+        double rampTo = 0.0;
+        int warmup = DEFAULT_WARMUP;
+        int duration = DEFAULT_DURATION;
+        int concurrency = LoadGenerator.DEFAULT_MAX_IN_FLIGHT;
+        int timeout = DEFAULT_TIMEOUT;
+        String captureDir = null;
+        String bodyStoreDir = null;
+
+        for (int i = 0; i < args.length - 1; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+
+            if (option.equals("-load")) {
+                url = value;
+            } else if (option.equals("-rate")) {
+                rate = Double.parseDouble(value);
+            } else if (option.equals("-ramp-to")) {
+                rampTo = Double.parseDouble(value);
+            } else if (option.equals("-warmup")) {
+                warmup = Integer.parseInt(value);
+            } else if (option.equals("-duration")) {
+                duration = Integer.parseInt(value);
+            } else if (option.equals("-concurrency")) {
+                concurrency = Integer.parseInt(value);
+            } else if (option.equals("-timeout")) {
+                timeout = Integer.parseInt(value);
+            } else if (option.equals("-capture")) {
+                captureDir = value;
+            } else if (option.equals("-body-store")) {
+                bodyStoreDir = value;
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (url == null || rate <= 0.0) {
+            usage();
+            return;
+        }
+
+        HttpClientImpl httpClient = new HttpClientImpl(new ConnectionPool(concurrency, concurrency, ConnectionPool.DEFAULT_IDLE_TIMEOUT));
+        httpClient.setConnectTimeout(timeout);
+        httpClient.setReadTimeout(timeout);
+        BodyStore bodyStore = (bodyStoreDir != null ? new BodyStore(new File(bodyStoreDir)) : null);
+        httpClient.setBodyStore(bodyStore);
+        // The load generator releases every response, so bodies can be read into pooled buffers.
+        httpClient.setBufferPool(BufferPool.getDefault());
+        CaptureLog captureLog = (captureDir != null ? new CaptureLog(new File(captureDir)) : null);
+        if (captureLog != null) {
+            captureLog.setBodyStore(bodyStore);
+        }
+        httpClient.setCaptureLog(captureLog);
+
+        LoadProfile profile = (rampTo > 0.0 ? LoadProfile.ramp(rate, rampTo) : LoadProfile.constantRate(rate));
+        LoadGenerator loadGenerator = new LoadGenerator(httpClient, new URL(url), profile);
+        loadGenerator.setWarmup(warmup, TimeUnit.SECONDS);
+        loadGenerator.setDuration(duration, TimeUnit.SECONDS);
+        loadGenerator.setMaxInFlight(concurrency);
+
+        try {
+            System.err.println("Load: " + profile + " for " + duration + "s (after " + warmup + "s warmup).");
+            LoadReport report = loadGenerator.run();
+            if (loadGenerator.getWarmupReport() != null) {
+                System.out.println(loadGenerator.getWarmupReport());
+            }
+            System.out.println(report);
+        } finally {
+            httpClient.close();
+            if (captureLog != null) {
+                captureLog.close();
+                System.err.println("Capture: " + captureLog.getStats());
+            }
+            if (bodyStore != null) {
+                System.err.println("Body store: " + bodyStore.getStats());
+                bodyStore.close();
+            }
+        }
+    }
+
+    private static void replay(String[] args) throws IOException, InterruptedException {
+        String captureDir = null;
+        String target = null;
+        double speed = 1.0;
+        int concurrency = ReplayEngine.DEFAULT_MAX_IN_FLIGHT;
+        int timeout = DEFAULT_TIMEOUT;
+
+        for (int i = 0; i < args.length - 1; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+
+            if (option.equals("-replay")) {
+                captureDir = value;
+            } else if (option.equals("-target")) {
+                target = value;
+            } else if (option.equals("-speed")) {
+                speed = (value.equals("max") ? ReplayEngine.AS_FAST_AS_POSSIBLE : Double.parseDouble(value));
+            } else if (option.equals("-concurrency")) {
+                concurrency = Integer.parseInt(value);
+            } else if (option.equals("-timeout")) {
+                timeout = Integer.parseInt(value);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (captureDir == null || !new File(captureDir).isDirectory() || speed <= 0.0) {
+            usage();
+            return;
+        }
+
+        HttpClientImpl httpClient = new HttpClientImpl(new ConnectionPool(concurrency, concurrency, ConnectionPool.DEFAULT_IDLE_TIMEOUT));
+        httpClient.setConnectTimeout(timeout);
+        httpClient.setReadTimeout(timeout);
+        // Replay exactly what was recorded.
+        httpClient.setFollowRedirects(false);
+
+        CaptureLog captureLog = new CaptureLog(new File(captureDir));
+        try {
+            ReplayEngine replayEngine = new ReplayEngine(httpClient, captureLog);
+            if (target != null) {
+                replayEngine.setTarget(new URL(target));
+            }
+            replayEngine.setSpeed(speed);
+            replayEngine.setMaxInFlight(concurrency);
+
+            System.err.println("Replay: " + captureLog.getNextSequence() + " exchanges at " + (speed == ReplayEngine.AS_FAST_AS_POSSIBLE ? "max" : speed + "x") + " speed.");
+            System.out.println(replayEngine.run());
+        } finally {
+            httpClient.close();
+            captureLog.close();
+        }
+    }
+
+    private static void harExport(String[] args) throws IOException {
+        String captureDir = null;
+        String outFile = null;
+        HarWriter.BodyMode bodyMode = HarWriter.BodyMode.BASE64;
+        String bodyStoreDir = null;
+
+        for (int i = 0; i < args.length - 1; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+
+            if (option.equals("-har-export")) {
+                captureDir = value;
+            } else if (option.equals("-out")) {
+                outFile = value;
+            } else if (option.equals("-bodies")) {
+                bodyMode = HarWriter.BodyMode.valueOf(value.toUpperCase());
+            } else if (option.equals("-body-store")) {
+                bodyStoreDir = value;
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (captureDir == null || !new File(captureDir).isDirectory()) {
+            usage();
+            return;
         }
+
+        BodyStore bodyStore = (bodyStoreDir != null ? new BodyStore(new File(bodyStoreDir)) : null);
+        OutputStream out = (outFile != null ? new FileOutputStream(outFile) : System.out);
+        CaptureLog captureLog = new CaptureLog(new File(captureDir));
+        captureLog.setBodyStore(bodyStore);
+        try {
+            HarWriter harWriter = new HarWriter(out, bodyMode);
+            try {
+                CaptureLog.Cursor cursor = captureLog.openCursor(0);
+                CapturedExchange exchange;
+                while ((exchange = cursor.next()) != null) {
+                    harWriter.write(exchange);
+                }
+            } finally {
+                harWriter.close();
+            }
+            System.err.println("Exported " + harWriter.getEntryCount() + " exchanges.");
+        } finally {
+            captureLog.close();
+            if (bodyStore != null) {
+                bodyStore.close();
+            }
+        }
+    }
+
+    private static void harImport(String[] args) throws IOException {
+        String harFile = null;
+        String captureDir = null;
+        String bodyStoreDir = null;
+
+        for (int i = 0; i < args.length - 1; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+
+            if (option.equals("-har-import")) {
+                harFile = value;
+            } else if (option.equals("-capture")) {
+                captureDir = value;
+            } else if (option.equals("-body-store")) {
+                bodyStoreDir = value;
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (harFile == null || captureDir == null) {
+            usage();
+            return;
+        }
+
+        final BodyStore bodyStore = (bodyStoreDir != null ? new BodyStore(new File(bodyStoreDir)) : null);
+        HarReader harReader = new HarReader(harFile.equals("-") ? System.in : new FileInputStream(harFile));
+        CaptureLog captureLog = new CaptureLog(new File(captureDir));
+        if (bodyStore != null) {
+            captureLog.setBodyStore(bodyStore);
+            harReader.setBodyResolver(new HarReader.BodyResolver() {
+                public byte[] resolve(String sha256) throws IOException {
+                    BodyRef bodyRef = bodyStore.find(sha256);
+                    return (bodyRef != null ? bodyStore.get(bodyRef) : null);
+                }
+            });
+        }
+        try {
+            long imported = 0;
+            CapturedExchange exchange;
+            while ((exchange = harReader.next()) != null) {
+                captureLog.append(exchange);
+                imported++;
+            }
+            System.err.println("Imported " + imported + " exchanges.");
+        } finally {
+            captureLog.close();
+            harReader.close();
+            if (bodyStore != null) {
+                bodyStore.close();
+            }
+        }
+    }
+
+    /**
+     * Resolve the hosts of all targets in the targets file into a new resolver.
+     * @return The resolver, or the default resolver if not pre-resolving.
+     */
+    private static CachingHostResolver preResolve(String targetsFile, int threads) throws IOException {
+        if (threads <= 0) {
+            return CachingHostResolver.getDefault();
+        }
+
+        List<String> hosts = new ArrayList<String>();
+        BufferedReader targets = new BufferedReader(new InputStreamReader(new FileInputStream(targetsFile), CharsetUtils.UTF8));
+        try {
+            String line;
+            while ((line = targets.readLine()) != null) {
+                String target = line.trim();
+                if (target.length() == 0 || target.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    hosts.add(Route.fromURL(new URL(target.contains("://") ? target : "https://" + target)).getHost());
+                } catch (MalformedURLException e) {
+                    // Reported against the target by the scan.
+                }
+            }
+        } finally {
+            targets.close();
+        }
+
+        CachingHostResolver resolver = new CachingHostResolver(new SystemHostResolver(), threads);
+        // Held for the scan... hosts are only looked up once each.
+        resolver.setTtl(1, TimeUnit.DAYS);
+        resolver.setNegativeTtl(1, TimeUnit.DAYS);
+        resolver.setMaxEntries(Math.max(hosts.size(), CachingHostResolver.DEFAULT_MAX_ENTRIES));
+
+        long start = System.currentTimeMillis();
+        resolver.preResolveAsync(hosts).join();
+        System.err.println("Pre-resolved the hosts of " + hosts.size() + " targets in " + (System.currentTimeMillis() - start) + "ms (" + resolver.getStats() + ").");
+
+        return resolver;
+    }
+
+    private static void closeResolver(CachingHostResolver resolver) {
+        if (resolver != CachingHostResolver.getDefault()) {
+            resolver.close();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage:");
+        System.err.println("\tSSLAnalyse <url>");
+        System.err.println("\tSSLAnalyse -scan <targets-file | -> [-concurrency <n>] [-out <results-file>] [-timeout <ms>] [-inventory <dir>] [-preresolve <threads>]");
+        System.err.println("\tSSLAnalyse -probe <targets-file | -> [-concurrency <n>] [-out <results-file>] [-timeout <ms>] [-inventory <dir>] [-preresolve <threads>]");
+        System.err.println("\tSSLAnalyse -enumerate <targets-file | -> [-concurrency <n>] [-out <results-file>] [-timeout <ms>] [-host-rate <handshakes/s>] [-preresolve <threads>]");
+        System.err.println("\tSSLAnalyse -inventory <dir> [-expiring <days>] [-changed-within <hours>]");
+        System.err.println("\tSSLAnalyse -load <url> -rate <req/s> [-ramp-to <req/s>] [-warmup <s>] [-duration <s>] [-concurrency <n>] [-timeout <ms>] [-capture <dir>] [-body-store <dir>]");
+        System.err.println("\tSSLAnalyse -replay <capture-dir> [-target <url>] [-speed <factor | max>] [-concurrency <n>] [-timeout <ms>]");
+        System.err.println("\tSSLAnalyse -har-export <capture-dir> [-out <har-file>] [-bodies <omit | base64 | hash>] [-body-store <dir>]");
+        System.err.println("\tSSLAnalyse -har-import <har-file | -> -capture <dir> [-body-store <dir>]");
     }
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common;
+
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking counterpart to {@link HttpClient}.
+ * <p/>
+ * Each method returns immediately.  The returned future completes with the {@link HttpResponse}, or
+ * exceptionally with the {@link java.io.IOException} that caused the request to fail.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public interface AsyncHttpClient {
+
+    CompletableFuture<HttpResponse> postAsync(final byte[] content, final String contentType, final URL url);
+
+    CompletableFuture<HttpResponse> postAsync(final byte[] content, final String contentType, final URL url,
+                                              final Map<String, String> headers);
+
+    CompletableFuture<HttpResponse> putAsync(final byte[] content, final String contentType, final URL url);
+
+    CompletableFuture<HttpResponse> getAsync(final URL url);
+
+    CompletableFuture<HttpResponse> deleteAsync(final URL url);
+}
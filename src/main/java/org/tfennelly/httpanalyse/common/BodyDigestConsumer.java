@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common;
+
+import org.tfennelly.httpanalyse.common.security.HashUtil;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.io.IOException;
+
+/**
+ * {@link ResponseBodyConsumer} that fingerprints the response body as it streams off the connection.
+ * <p/>
+ * The consumer is stateless, so a single instance can be shared by any number of threads.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class BodyDigestConsumer implements ResponseBodyConsumer<String> {
+
+    private final String algorithm;
+
+    public BodyDigestConsumer() {
+        this(HashUtil.SHA256);
+    }
+
+    /**
+     * Constructor.
+     * @param algorithm The digest algorithm e.g. {@link HashUtil#SHA256}.
+     */
+    public BodyDigestConsumer(String algorithm) {
+        AssertArgument.isNotNullAndNotEmpty(algorithm, "algorithm");
+        // Fail now, rather than on the first response.
+        HashUtil.getMessageDigest(algorithm);
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Digest the response body.
+     * @param response The streaming response.
+     * @return The body digest, as a lowercase hex string.
+     * @throws IOException Error reading the response body.
+     */
+    public String consume(StreamingHttpResponse response) throws IOException {
+        byte[] digest = HashUtil.digest(algorithm, response.getInputStream());
+        return HashUtil.appendHex(new StringBuilder(digest.length * 2), digest).toString();
+    }
+}
@@ -5,35 +5,234 @@
  */
 package org.tfennelly.httpanalyse.common;
 
-import org.tfennelly.httpanalyse.common.security.PrivateX509TrustManager;
-import org.tfennelly.httpanalyse.common.security.TrustManagerUtil;
+import org.tfennelly.httpanalyse.common.buffer.BufferPool;
+import org.tfennelly.httpanalyse.common.buffer.PooledBuffer;
+import org.tfennelly.httpanalyse.common.cache.HttpCache;
+import org.tfennelly.httpanalyse.common.capture.CaptureLog;
+import org.tfennelly.httpanalyse.common.capture.CapturedExchange;
+import org.tfennelly.httpanalyse.common.dns.HostResolver;
+import org.tfennelly.httpanalyse.common.metrics.HttpMetrics;
+import org.tfennelly.httpanalyse.common.pool.ConnectionFactory;
+import org.tfennelly.httpanalyse.common.pool.ConnectionPool;
+import org.tfennelly.httpanalyse.common.pool.PooledConnection;
+import org.tfennelly.httpanalyse.common.pool.Route;
+import org.tfennelly.httpanalyse.common.pool.SocketConnectionFactory;
+import org.tfennelly.httpanalyse.common.security.SSLContextRegistry;
+import org.tfennelly.httpanalyse.common.security.TlsSessionCache;
+import org.tfennelly.httpanalyse.common.store.BodyRef;
+import org.tfennelly.httpanalyse.common.store.BodyStore;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.StreamUtils;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.security.cert.X509Certificate;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 /**
- * A concrete implementation of {@link HttpClient} which uses the jdk
- * {@link java.net.HttpURLConnection} perform post, get, update, and delete operations.
+ * A concrete implementation of {@link HttpClient} that performs post, get, update, and delete operations
+ * over keep-alive connections leased from a {@link ConnectionPool}.
+ * <p/>
+ * Connections are made through the proxy the JVM's {@link ProxySelector#getDefault() default proxy selector}
+ * selects for the URL, so the standard {@code http.proxyHost}, {@code https.proxyHost}, {@code http.nonProxyHosts}
+ * and {@code socksProxyHost} system properties apply, as they did to {@link java.net.HttpURLConnection}.  https is
+ * tunnelled through an HTTP proxy (CONNECT).  Proxy authentication is not supported.
  *
  * @author <a href="mailto:daniel.bevenius@gmail.com">daniel.bevenius@gmail.com</a>
  */
 public class HttpClientImpl implements HttpClient {
 
-    private SSLSocketFactory secureSocketFactory;
+    private static final int MAX_REDIRECTS = 20;
+
+    private final ConnectionPool connectionPool;
+    private ConnectionFactory connectionFactory;
+    private SSLContext sslContext;
+    private X509Certificate trustedCert;
+    private TlsSessionCache tlsSessionCache = new TlsSessionCache();
+    private HostResolver hostResolver;
     private String basicAuthCredentials;
+    private int connectTimeout;
+    private int readTimeout;
+    private boolean followRedirects = true;
+    private volatile HttpMetrics metrics = new HttpMetrics();
+    private volatile CaptureLog captureLog;
+    private volatile BodyStore bodyStore;
+    private volatile HttpCache cache;
+    private volatile BufferPool bufferPool;
+
+    // Cache misses and revalidations... one hop, redirects are followed through the cache.
+    private final HttpCache.Origin cacheOrigin = new HttpCache.Origin() {
+        public HttpResponse send(String method, byte[] content, String contentType, URL url, Map<String, String> headers) throws IOException {
+            return sendBuffered(method, content, contentType, url, headers, false);
+        }
+    };
+
+    public HttpClientImpl() {
+        this(new ConnectionPool());
+    }
+
+    /**
+     * Create a client backed by the supplied connection pool.
+     * <p/>
+     * The pool may be shared with other clients that have the same trust configuration.
+     *
+     * @param connectionPool The connection pool.
+     */
+    public HttpClientImpl(ConnectionPool connectionPool) {
+        AssertArgument.isNotNull(connectionPool, "connectionPool");
+        this.connectionPool = connectionPool;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public synchronized void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.connectionFactory = null;
+    }
+
+    public synchronized void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        this.connectionFactory = null;
+    }
+
+    /**
+     * Set the resolver used to resolve the hosts of new connections.
+     * @param hostResolver The host resolver, or null for the
+     * {@link org.tfennelly.httpanalyse.common.dns.CachingHostResolver#getDefault() default}.
+     */
+    public synchronized void setHostResolver(HostResolver hostResolver) {
+        this.hostResolver = hostResolver;
+        this.connectionFactory = null;
+    }
+
+    public void setFollowRedirects(boolean followRedirects) {
+        this.followRedirects = followRedirects;
+    }
+
+    /**
+     * Set the TLS session cache.
+     * <p/>
+     * Clients with the same trust and session cache configuration share an {@link SSLContext} (see
+     * {@link SSLContextRegistry}), and so share cached sessions.  Changing the trusted cert or the session cache
+     * settings switches to another context and its sessions.
+     *
+     * @param tlsSessionCache The TLS session cache.
+     */
+    public void setTlsSessionCache(TlsSessionCache tlsSessionCache) {
+        AssertArgument.isNotNull(tlsSessionCache, "tlsSessionCache");
+        synchronized (this) {
+            this.tlsSessionCache = tlsSessionCache;
+            // Rebuilt (from the registry) for the new configuration on the next connection...
+            sslContext = null;
+            connectionFactory = null;
+        }
+        connectionPool.closeIdleConnections(0);
+    }
+
+    public synchronized TlsSessionCache getTlsSessionCache() {
+        return tlsSessionCache;
+    }
+
+    /**
+     * Get the metrics registry the client records every request into.
+     * @return The metrics registry.
+     */
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the metrics registry e.g. to aggregate the metrics of multiple clients.
+     * @param metrics The metrics registry.
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        AssertArgument.isNotNull(metrics, "metrics");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the log that buffered exchanges (see {@link #send(String, byte[], String, URL, Map)}) are captured to.
+     * <p/>
+     * Exchanges are appended {@link CaptureLog#appendAsync(CapturedExchange) asynchronously}, so capturing
+     * doesn't add disk I/O to the request path.  Streamed responses are not captured.
+     * @param captureLog The capture log, or null to stop capturing.
+     */
+    public void setCaptureLog(CaptureLog captureLog) {
+        this.captureLog = captureLog;
+    }
+
+    public CaptureLog getCaptureLog() {
+        return captureLog;
+    }
+
+    /**
+     * Set the store that the content of buffered responses is put in.
+     * <p/>
+     * Responses then carry a {@link BodyRef reference} to their content rather than the content itself (see
+     * {@link HttpResponseImpl#getBodyRef()}), and identical content is stored once.  Each response holds a
+     * reference on its content until it's {@link HttpResponse#release() released}.  Exchanges captured to
+     * a {@link CaptureLog} using the same store are recorded by reference.
+     * @param bodyStore The body store, or null to hold response content in memory.
+     */
+    public void setBodyStore(BodyStore bodyStore) {
+        this.bodyStore = bodyStore;
+    }
+
+    public BodyStore getBodyStore() {
+        return bodyStore;
+    }
+
+    /**
+     * Set the pool that the content of buffered responses is read into.
+     * <p/>
+     * Responses then hold their content in a pooled off-heap buffer (see {@link HttpResponseImpl#getContentBuffer()}),
+     * returned to the pool when the response is {@link HttpResponse#release() released}, so a client whose
+     * responses are all released allocates next to nothing per response.  Responses that are not released just
+     * take their buffer out of the pool.  Ignored if a {@link #setBodyStore(BodyStore) body store} is set.
+     * @param bufferPool The buffer pool, or null to read response content into byte arrays.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Set the cache that buffered requests (see {@link #send(String, byte[], String, URL, Map)}) are sent through.
+     * <p/>
+     * Requests answered by the cache are not recorded in the {@link #getMetrics() metrics} or captured, but the
+     * conditional requests it revalidates with (and their 304s) are.  Streamed requests bypass the cache.
+     * @param cache The cache, or null to send all requests to the server.
+     */
+    public void setCache(HttpCache cache) {
+        this.cache = cache;
+    }
+
+    public HttpCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Close the client, closing all pooled connections.
+     */
+    public void close() {
+        connectionPool.close();
+    }
 
     public void setBasicAuthCredentials(String basicAuthCredentials) {
         this.basicAuthCredentials = basicAuthCredentials;
@@ -71,12 +270,24 @@ public class HttpClientImpl implements HttpClient {
         return send("DELETE", null, null, url);
     }
 
+    /**
+     * Set a privately trusted cert, accepted as a fallback to the default trust managers.
+     * @param trustedCert The trusted cert, or null for default trust only.
+     * @throws GeneralSecurityException Error building the SSL context.
+     */
     public void setTrustedCert(final X509Certificate trustedCert) throws GeneralSecurityException {
-        TrustManager[] trustManagers = TrustManagerUtil.getDefaultTrustManagersWithX509Fallback(new PrivateX509TrustManager(trustedCert));
-
-        SSLContext sc = SSLContext.getInstance("TLS");
-        sc.init(null, trustManagers, new java.security.SecureRandom());
-        secureSocketFactory = sc.getSocketFactory();
+        synchronized (this) {
+            // Shared with all other clients trusting the same cert, with the same session cache settings...
+            if (trustedCert != null) {
+                sslContext = SSLContextRegistry.getDefault().getSSLContext(tlsSessionCache, trustedCert);
+            } else {
+                sslContext = SSLContextRegistry.getDefault().getSSLContext(tlsSessionCache);
+            }
+            this.trustedCert = trustedCert;
+            connectionFactory = null;
+        }
+        // Idle connections were established under the old trust config...
+        connectionPool.closeIdleConnections(0);
     }
 
     private void assertUrlAndContentType(final URL url, final String contentType) {
@@ -88,36 +299,314 @@ public class HttpClientImpl implements HttpClient {
     }
 
     public HttpResponse send(final String method, final byte[] content, final String contentType, final URL url, final Map<String, String> headers) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        HttpCache responseCache = cache;
+        if (responseCache == null) {
+            return sendBuffered(method, content, contentType, url, headers, followRedirects);
+        }
 
-        if (secureSocketFactory != null && conn instanceof HttpsURLConnection) {
-            HttpsURLConnection httpsConn = (HttpsURLConnection) conn;
-            httpsConn.setSSLSocketFactory(secureSocketFactory);
+        // Each hop goes through the cache, so redirects are cached (or not) in their own right.
+        String requestMethod = method;
+        byte[] requestContent = content;
+        String requestContentType = contentType;
+        URL requestUrl = url;
+
+        for (int redirectCount = 0; ; redirectCount++) {
+            HttpResponse response = responseCache.send(requestMethod, requestContent, requestContentType, requestUrl, headers, cacheOrigin);
+
+            if (!followRedirects || redirectCount == MAX_REDIRECTS) {
+                return response;
+            }
+            URL redirectUrl = getRedirectUrl(requestUrl, response.statusCode(), response.headerFields());
+            if (redirectUrl == null) {
+                return response;
+            }
+
+            response.release();
+            if (!keepsMethod(response.statusCode(), requestMethod)) {
+                requestMethod = "GET";
+                requestContent = null;
+                requestContentType = null;
+            }
+            requestUrl = redirectUrl;
         }
+    }
+
+    private HttpResponse sendBuffered(final String method, final byte[] content, final String contentType, final URL url, final Map<String, String> headers,
+                                      final boolean followRedirects) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        StreamingHttpResponseImpl response = (StreamingHttpResponseImpl) sendStreamingAndRecordErrors(method, content, contentType, url, headers, followRedirects);
+        // Recorded against the last hop, if redirected.
+        URL responseUrl = response.getRequestUrl();
 
         try {
-            conn.setRequestMethod(method);
-            conn.setDoOutput(true);
-            for (Entry<String, String> entry : headers.entrySet()) {
-                conn.setRequestProperty(entry.getKey(), entry.getValue());
+            BodyStore store = bodyStore;
+            BufferPool pool = bufferPool;
+            byte[] responseContent = null;
+            PooledBuffer pooledContent = null;
+            if (response.hasBody()) {
+                if (store == null && pool != null) {
+                    pooledContent = StreamUtils.readStream(response.getInputStream(), response.contentLength(), pool);
+                } else {
+                    responseContent = StreamUtils.readStream(response.getInputStream(), response.contentLength());
+                }
             }
-            if (contentType != null) {
-                conn.setRequestProperty("Content-Type", contentType);
+
+            HttpResponse httpResponse;
+            if (store != null && responseContent != null) {
+                BodyRef bodyRef = store.put(responseContent);
+                httpResponse = new HttpResponseImpl(response.statusCode(), response.statusMessage(), response.headerFields(),
+                        response.contentType(), store, bodyRef, response.getServerCerts(), response.getTiming());
+            } else if (pooledContent != null) {
+                httpResponse = new HttpResponseImpl(response.statusCode(), response.statusMessage(), response.headerFields(),
+                        response.contentType(), pooledContent, response.getServerCerts(), response.getTiming());
+            } else {
+                httpResponse = new HttpResponseImpl(response.statusCode(), response.statusMessage(), response.headerFields(),
+                        response.contentType(), responseContent, response.getServerCerts(), response.getTiming());
             }
-            if (content != null && (method.equals("POST") || method.equals("PUT"))) {
-                conn.setRequestProperty("Content-Length", String.valueOf(content.length));
-                final OutputStream os = conn.getOutputStream();
-                try {
-                    os.write(content);
-                    os.flush();
-                } finally {
-                    os.close();
+            metrics.record(responseUrl.getHost(), httpResponse.statusCode(), httpResponse.getTiming());
+
+            CaptureLog capture = captureLog;
+            if (capture != null) {
+                Map<String, String> requestHeaders = headers;
+                String requestContentType = response.getRequestContentType();
+                if (requestContentType != null) {
+                    // So a replay sends the same Content-Type.
+                    requestHeaders = new LinkedHashMap<String, String>(headers);
+                    requestHeaders.put("Content-Type", requestContentType);
                 }
+                capture.appendAsync(CapturedExchange.fromResponse(startedAt, response.getRequestMethod(), responseUrl.toExternalForm(), requestHeaders,
+                        response.getRequestContent(), httpResponse));
             }
 
-            return new HttpResponseImpl(conn);
+            return httpResponse;
+        } catch (IOException e) {
+            metrics.recordError(responseUrl.getHost());
+            throw e;
         } finally {
-            conn.disconnect();
+            response.close();
         }
     }
+
+    /**
+     * Perform a GET, streaming the response body through the supplied consumer.
+     *
+     * @param url The URL.
+     * @param consumer The response body consumer.
+     * @param <T> The consumer result type.
+     * @return The consumer result.
+     * @throws IOException Request failed, or error consuming the response body.
+     */
+    public <T> T get(final URL url, final ResponseBodyConsumer<T> consumer) throws IOException {
+        final Map<String, String> headers = Collections.emptyMap();
+        return send("GET", null, null, url, headers, consumer);
+    }
+
+    /**
+     * Send a request, streaming the response body through the supplied consumer.
+     * <p/>
+     * The response is closed once the consumer returns.
+     *
+     * @param method The request method.
+     * @param content The request content, or null.
+     * @param contentType The request content type, or null.
+     * @param url The URL.
+     * @param headers Request headers.
+     * @param consumer The response body consumer.
+     * @param <T> The consumer result type.
+     * @return The consumer result.
+     * @throws IOException Request failed, or error consuming the response body.
+     */
+    public <T> T send(final String method, final byte[] content, final String contentType, final URL url, final Map<String, String> headers,
+                      final ResponseBodyConsumer<T> consumer) throws IOException {
+        AssertArgument.isNotNull(consumer, "consumer");
+
+        StreamingHttpResponse response = sendStreamingAndRecordErrors(method, content, contentType, url, headers, followRedirects);
+        try {
+            T result = consumer.consume(response);
+            // Recorded against the last hop, if redirected.
+            metrics.record(((StreamingHttpResponseImpl) response).getRequestUrl().getHost(), response.statusCode(), response.getTiming());
+            return result;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Perform a GET, returning a response whose body is read live off the connection.
+     * <p/>
+     * The caller must close the returned response.
+     *
+     * @param url The URL.
+     * @return The streaming response.
+     * @throws IOException Request failed.
+     */
+    public StreamingHttpResponse getStreaming(final URL url) throws IOException {
+        final Map<String, String> headers = Collections.emptyMap();
+        return sendStreaming("GET", null, null, url, headers);
+    }
+
+    /**
+     * Send a request, returning a response whose body is read live off the connection.
+     * <p/>
+     * The caller must close the returned response.
+     *
+     * @param method The request method.
+     * @param content The request content, or null.
+     * @param contentType The request content type, or null.
+     * @param url The URL.
+     * @param headers Request headers.
+     * @return The streaming response.
+     * @throws IOException Request failed.
+     */
+    public StreamingHttpResponse sendStreaming(final String method, final byte[] content, final String contentType, final URL url, final Map<String, String> headers) throws IOException {
+        return sendStreaming(method, content, contentType, url, headers, followRedirects);
+    }
+
+    private StreamingHttpResponse sendStreaming(final String method, final byte[] content, final String contentType, final URL url, final Map<String, String> headers,
+                                                final boolean followRedirects) throws IOException {
+        String requestMethod = method;
+        byte[] requestContent = content;
+        String requestContentType = contentType;
+        URL requestUrl = url;
+
+        for (int redirectCount = 0; ; redirectCount++) {
+            StreamingHttpResponse response = execute(requestMethod, requestContent, requestContentType, requestUrl, headers);
+
+            if (!followRedirects || redirectCount == MAX_REDIRECTS) {
+                return response;
+            }
+            URL redirectUrl = getRedirectUrl(requestUrl, response.statusCode(), response.headerFields());
+            if (redirectUrl == null) {
+                return response;
+            }
+
+            response.close();
+            if (!keepsMethod(response.statusCode(), requestMethod)) {
+                requestMethod = "GET";
+                requestContent = null;
+                requestContentType = null;
+            }
+            requestUrl = redirectUrl;
+        }
+    }
+
+    private StreamingHttpResponse sendStreamingAndRecordErrors(final String method, final byte[] content, final String contentType, final URL url, final Map<String, String> headers,
+                                                               final boolean followRedirects) throws IOException {
+        try {
+            return sendStreaming(method, content, contentType, url, headers, followRedirects);
+        } catch (IOException e) {
+            metrics.recordError(url.getHost());
+            throw e;
+        }
+    }
+
+    private StreamingHttpResponse execute(final String method, final byte[] content, final String contentType, final URL url, final Map<String, String> headers) throws IOException {
+        Route route = Route.fromURL(url, selectProxy(url));
+        long startedAt = System.nanoTime();
+
+        while (true) {
+            PooledConnection connection = connectionPool.lease(route, getConnectionFactory());
+            boolean responseStarted = false;
+
+            try {
+                long writeStartedAt = System.nanoTime();
+                HttpWire.writeRequest(connection.getOutputStream(), method, url, route.isProxyForwarded(), headers, contentType, content);
+                long writtenAt = System.nanoTime();
+
+                connection.awaitInput();
+                long firstByteAt = System.nanoTime();
+
+                HttpWire.ResponseHead head = HttpWire.readResponseHead(connection.getInputStream());
+                responseStarted = true;
+
+                return new StreamingHttpResponseImpl(connection, method, url, content, contentType, head, startedAt, writtenAt - writeStartedAt, firstByteAt - writtenAt, firstByteAt);
+            } catch (IOException e) {
+                connection.release(false);
+                if (connection.isReused() && !responseStarted && !method.equals("POST")) {
+                    // The server probably closed the kept-alive connection under us... retry on another connection.
+                    continue;
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                connection.release(false);
+                throw e;
+            }
+        }
+    }
+
+    private synchronized ConnectionFactory getConnectionFactory() throws IOException {
+        if (connectionFactory == null) {
+            if (sslContext == null) {
+                // Registry context rather than the JVM default, so the session cache is configurable...
+                try {
+                    if (trustedCert != null) {
+                        sslContext = SSLContextRegistry.getDefault().getSSLContext(tlsSessionCache, trustedCert);
+                    } else {
+                        sslContext = SSLContextRegistry.getDefault().getSSLContext(tlsSessionCache);
+                    }
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Failed to create default SSLContext.", e);
+                }
+            }
+            connectionFactory = new SocketConnectionFactory(sslContext.getSocketFactory(), hostResolver, connectTimeout, readTimeout);
+        }
+        return connectionFactory;
+    }
+
+    private static Proxy selectProxy(URL url) {
+        ProxySelector proxySelector = ProxySelector.getDefault();
+        if (proxySelector == null) {
+            return Proxy.NO_PROXY;
+        }
+
+        List<Proxy> proxies;
+        try {
+            proxies = proxySelector.select(url.toURI());
+        } catch (URISyntaxException e) {
+            // Not a URI the selector can match on... same as HttpURLConnection, which then connects directly.
+            return Proxy.NO_PROXY;
+        }
+        // Only the first is tried.  There's no fail over to the rest of the list.
+        return (proxies != null && !proxies.isEmpty() ? proxies.get(0) : Proxy.NO_PROXY);
+    }
+
+    /**
+     * Get the URL a response redirects to.
+     * @return The redirect URL, or null if the response is not a redirect that can be followed.
+     */
+    private static URL getRedirectUrl(URL requestUrl, int statusCode, Map<String, List<String>> headerFields) throws MalformedURLException {
+        if (!isRedirect(statusCode)) {
+            return null;
+        }
+
+        String location = getHeader(headerFields, "Location");
+        if (location == null) {
+            return null;
+        }
+
+        URL redirectUrl = new URL(requestUrl, location);
+        if (!redirectUrl.getProtocol().equals(requestUrl.getProtocol())) {
+            // Same as HttpURLConnection... don't follow redirects across protocols.
+            return null;
+        }
+        return redirectUrl;
+    }
+
+    private static boolean keepsMethod(int redirectStatusCode, String method) {
+        return redirectStatusCode == 307 || redirectStatusCode == 308 || method.equals("HEAD");
+    }
+
+    private static boolean isRedirect(int statusCode) {
+        return statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307 || statusCode == 308;
+    }
+
+    private static String getHeader(Map<String, List<String>> headerFields, String name) {
+        for (Entry<String, List<String>> header : headerFields.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+
+        return null;
+    }
 }
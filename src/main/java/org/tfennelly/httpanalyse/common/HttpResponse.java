@@ -5,6 +5,7 @@
  */
 package org.tfennelly.httpanalyse.common;
 
+import java.io.IOException;
 import java.security.cert.Certificate;
 import java.util.List;
 import java.util.Map;
@@ -72,4 +73,29 @@ public interface HttpResponse {
      * @return The response content as a String, or null if there is no response content.
      */
     String contentAsString();
+
+    /**
+     * Get the per-phase timing of the request/response exchange.
+     * <p/>
+     * Where redirects were followed, this is the timing of the final exchange.
+     * <p/>
+     * By default, nothing is measured (not even the total).
+     * @return The request timing.
+     */
+    default RequestTiming getTiming() {
+        return RequestTiming.totalOnly(RequestTiming.NOT_MEASURED);
+    }
+
+    /**
+     * Release the response content.
+     * <p/>
+     * Content may be held in a {@link org.tfennelly.httpanalyse.common.store.BodyStore body store} or pooled
+     * buffer, which the response holds a reference on until it's released.  Every response should be released
+     * once its content is no longer needed.  The content is not available after release.
+     * <p/>
+     * A no-op by default, for implementations that hold their content in memory.
+     * @throws IOException Error releasing the content.
+     */
+    default void release() throws IOException {
+    }
 }
\ No newline at end of file
@@ -5,6 +5,9 @@
  */
 package org.tfennelly.httpanalyse.common;
 
+import org.tfennelly.httpanalyse.common.buffer.PooledBuffer;
+import org.tfennelly.httpanalyse.common.store.BodyRef;
+import org.tfennelly.httpanalyse.common.store.BodyStore;
 import org.tfennelly.httpanalyse.common.util.StreamUtils;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -12,6 +15,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
 import java.security.cert.Certificate;
 import java.util.List;
 import java.util.Map;
@@ -27,9 +31,13 @@ public class HttpResponseImpl implements HttpResponse {
     private final int statusCode;
     private String statusMessage;
     private byte[] content;
+    private BodyStore bodyStore;
+    private volatile BodyRef bodyRef;
+    private volatile PooledBuffer pooledContent;
     private String contentType;
     private Map<String, List<String>> headerFields;
     private Certificate[] serverCerts;
+    private RequestTiming timing;
 
     /**
      * Sole constructors that collects information from the provided {@link java.net.HttpURLConnection}
@@ -41,14 +49,83 @@ public class HttpResponseImpl implements HttpResponse {
      * @throws java.io.IOException If an error occurs while retrieving information from {@link java.net.HttpURLConnection}.
      */
     public HttpResponseImpl(final HttpURLConnection con) throws IOException {
+        long startedAt = System.nanoTime();
         con.connect();
         statusCode = con.getResponseCode();
         statusMessage = con.getResponseMessage();
         headerFields = con.getHeaderFields();
         content = getContent(con);
         contentType = con.getContentType();
+        // HttpURLConnection doesn't expose the individual phases...
+        timing = RequestTiming.totalOnly(System.nanoTime() - startedAt);
+    }
+
+    /**
+     * Constructor for responses read directly off the wire by the pooled {@link HttpClientImpl} transport.
+     *
+     * @param statusCode The response status code.
+     * @param statusMessage The response status message.
+     * @param headerFields The response header fields.
+     * @param contentType The response content type.
+     * @param content The response content.
+     * @param serverCerts The server certificates, or null if not https.
+     * @param timing The request timing.
+     */
+    public HttpResponseImpl(final int statusCode, final String statusMessage, final Map<String, List<String>> headerFields,
+                            final String contentType, final byte[] content, final Certificate[] serverCerts, final RequestTiming timing) {
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.headerFields = headerFields;
+        this.contentType = contentType;
+        this.content = content;
+        this.serverCerts = serverCerts;
+        this.timing = timing;
+    }
+
+    /**
+     * Constructor for responses whose content is held in a {@link BodyStore}.
+     * <p/>
+     * The response owns a reference to the content, dropped by {@link #release()}.  The content is read from
+     * the store on each call to {@link #content()}, so it isn't held in memory.
+     *
+     * @param statusCode The response status code.
+     * @param statusMessage The response status message.
+     * @param headerFields The response header fields.
+     * @param contentType The response content type.
+     * @param bodyStore The body store.
+     * @param bodyRef The response content reference.
+     * @param serverCerts The server certificates, or null if not https.
+     * @param timing The request timing.
+     */
+    public HttpResponseImpl(final int statusCode, final String statusMessage, final Map<String, List<String>> headerFields,
+                            final String contentType, final BodyStore bodyStore, final BodyRef bodyRef, final Certificate[] serverCerts,
+                            final RequestTiming timing) {
+        this(statusCode, statusMessage, headerFields, contentType, (byte[]) null, serverCerts, timing);
+        this.bodyStore = bodyStore;
+        this.bodyRef = bodyRef;
     }
     
+    /**
+     * Constructor for responses whose content is held in a pooled off-heap buffer.
+     * <p/>
+     * The response owns the buffer reference, dropped by {@link #release()}.  {@link #content()} copies the
+     * content out of the buffer on each call, so consumers that can should use {@link #getContentBuffer()}.
+     *
+     * @param statusCode The response status code.
+     * @param statusMessage The response status message.
+     * @param headerFields The response header fields.
+     * @param contentType The response content type.
+     * @param pooledContent The response content, flipped ready for reading.
+     * @param serverCerts The server certificates, or null if not https.
+     * @param timing The request timing.
+     */
+    public HttpResponseImpl(final int statusCode, final String statusMessage, final Map<String, List<String>> headerFields,
+                            final String contentType, final PooledBuffer pooledContent, final Certificate[] serverCerts,
+                            final RequestTiming timing) {
+        this(statusCode, statusMessage, headerFields, contentType, (byte[]) null, serverCerts, timing);
+        this.pooledContent = pooledContent;
+    }
+
     /* (non-Javadoc)
      * @see com.foxweave.http.HttpResponse#statusCode()
      */
@@ -67,13 +144,84 @@ public class HttpResponseImpl implements HttpResponse {
      * @see com.foxweave.http.HttpResponse#content()
      */
     public byte[] content() {
+        BodyRef ref = bodyRef;
+        if (ref != null) {
+            try {
+                return bodyStore.get(ref);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read response content '" + ref + "' from body store '" + bodyStore.getDirectory().getAbsolutePath() + "'.", e);
+            }
+        }
+        PooledBuffer pooled = pooledContent;
+        if (pooled != null) {
+            ByteBuffer buffer = pooled.buffer().duplicate();
+            byte[] pooledBytes = new byte[buffer.remaining()];
+            buffer.get(pooledBytes);
+            return pooledBytes;
+        }
         return content;
     }
     
     @Override
     public boolean hasContent() {
+        BodyRef ref = bodyRef;
+        if (ref != null) {
+            return ref.getLength() != 0;
+        }
+        PooledBuffer pooled = pooledContent;
+        if (pooled != null) {
+            return pooled.buffer().hasRemaining();
+        }
         return content != null && content.length != 0;
     }
+
+    /**
+     * Get a read-only view of the response content.
+     * <p/>
+     * Content held in a pooled buffer is not copied, so the view is only valid until the response is
+     * {@link #release() released}.
+     * @return The content, or null if there's no content.
+     */
+    public ByteBuffer getContentBuffer() {
+        PooledBuffer pooled = pooledContent;
+        if (pooled != null) {
+            return pooled.buffer().asReadOnlyBuffer();
+        }
+        byte[] bytes = content();
+        return (bytes != null ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : null);
+    }
+
+    /**
+     * Get the reference to the response content, if it's held in a {@link BodyStore}.
+     * @return The content reference, or null if the content is held in memory (or there's no content).
+     */
+    public BodyRef getBodyRef() {
+        return bodyRef;
+    }
+
+    public BodyStore getBodyStore() {
+        return bodyStore;
+    }
+
+    /**
+     * Drop the response's reference to content held in a {@link BodyStore} or pooled buffer.
+     * <p/>
+     * The content is not available after release.  A no-op if the content is held in memory.
+     * @throws IOException Error writing to the body store.
+     */
+    @Override
+    public synchronized void release() throws IOException {
+        if (pooledContent != null) {
+            PooledBuffer released = pooledContent;
+            pooledContent = null;
+            released.release();
+        }
+        if (bodyRef != null) {
+            BodyRef released = bodyRef;
+            bodyRef = null;
+            bodyStore.release(released);
+        }
+    }
     
     /**
      * {@inheritDoc}
@@ -122,8 +270,13 @@ public class HttpResponseImpl implements HttpResponse {
         return serverCerts;
     }
 
+    public RequestTiming getTiming() {
+        return timing;
+    }
+
     @Override
     public String contentAsString() {
+        byte[] content = content();
         if (content != null) {
             try {
                 return new String(content, "UTF-8");
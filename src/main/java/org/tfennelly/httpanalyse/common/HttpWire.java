@@ -0,0 +1,646 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common;
+
+import org.tfennelly.httpanalyse.common.buffer.BufferPool;
+import org.tfennelly.httpanalyse.common.buffer.PooledBuffer;
+import org.tfennelly.httpanalyse.common.pool.Route;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTTP/1.1 wire protocol support for the pooled {@link HttpClientImpl} transport.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class HttpWire {
+
+    public static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final String USER_AGENT = "httpanalyse";
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+    private static final int MAX_HEADER_COUNT = 256;
+    // RFC 9110 "tchar"s, other than DIGIT and ALPHA.
+    private static final String TOKEN_SYMBOLS = "!#$%&'*+-.^_`|~";
+
+    private static final ThreadLocal<HeadEncoder> HEAD_ENCODER = new ThreadLocal<HeadEncoder>() {
+        @Override
+        protected HeadEncoder initialValue() {
+            return new HeadEncoder();
+        }
+    };
+
+    private HttpWire() {
+    }
+
+    /**
+     * Write the request line, headers and body.
+     *
+     * @param outputStream The connection output stream.
+     * @param method The request method.
+     * @param url The request URL.
+     * @param headers Request headers.
+     * @param contentType Request body content type, or null.
+     * @param content Request body, or null.
+     * @throws IOException Error writing the request.
+     */
+    public static void writeRequest(OutputStream outputStream, String method, URL url, Map<String, String> headers, String contentType, byte[] content) throws IOException {
+        writeRequest(outputStream, method, url, false, headers, contentType, content);
+    }
+
+    /**
+     * Write the request line, headers and body.
+     *
+     * @param outputStream The connection output stream.
+     * @param method The request method.
+     * @param url The request URL.
+     * @param absoluteForm True if the request target is to be the absolute URL (for a forwarding proxy), or
+     * false for just the path and query.
+     * @param headers Request headers.
+     * @param contentType Request body content type, or null.
+     * @param content Request body, or null.
+     * @throws IOException Error writing the request.
+     */
+    public static void writeRequest(OutputStream outputStream, String method, URL url, boolean absoluteForm, Map<String, String> headers,
+                                    String contentType, byte[] content) throws IOException {
+        // Encoded in the thread's reusable encoder... no per request head buffers.
+        HeadEncoder encoder = HEAD_ENCODER.get();
+        int headLength = encoder.encode(method, url, absoluteForm, headers, contentType, content);
+        outputStream.write(encoder.bytes, 0, headLength);
+        if (sendsBody(method) && content != null) {
+            outputStream.write(content);
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Encode the request line and headers.
+     *
+     * @param method The request method.
+     * @param url The request URL.
+     * @param headers Request headers.
+     * @param contentType Request body content type, or null.
+     * @param content Request body, or null.
+     * @return The encoded request head, incl. the blank line terminating the headers.
+     */
+    public static byte[] encodeRequestHead(String method, URL url, Map<String, String> headers, String contentType, byte[] content) {
+        StringBuilder head = new StringBuilder(256);
+        appendRequestHead(head, method, url, false, headers, contentType, content);
+        return head.toString().getBytes(ISO_8859_1);
+    }
+
+    /**
+     * Encode the request line, headers and body into a buffer leased from the supplied pool.
+     *
+     * @param method The request method.
+     * @param url The request URL.
+     * @param headers Request headers.
+     * @param contentType Request body content type, or null.
+     * @param content Request body, or null.
+     * @param pool The pool.
+     * @return The encoded request, flipped ready for writing.  The caller must release it.
+     */
+    public static PooledBuffer encodeRequest(String method, URL url, Map<String, String> headers, String contentType, byte[] content, BufferPool pool) {
+        HeadEncoder encoder = HEAD_ENCODER.get();
+        int headLength = encoder.encode(method, url, false, headers, contentType, content);
+        boolean sendsBody = (sendsBody(method) && content != null);
+        PooledBuffer request = pool.lease(headLength + (sendsBody ? content.length : 0));
+        ByteBuffer buffer = request.buffer();
+
+        buffer.put(encoder.bytes, 0, headLength);
+        if (sendsBody) {
+            buffer.put(content);
+        }
+        buffer.flip();
+
+        return request;
+    }
+
+    private static void appendRequestHead(StringBuilder head, String method, URL url, boolean absoluteForm, Map<String, String> headers,
+                                          String contentType, byte[] content) {
+        String requestTarget = url.getFile();
+        boolean sendsBody = sendsBody(method);
+
+        if (requestTarget.length() == 0) {
+            requestTarget = "/";
+        }
+        if (absoluteForm) {
+            requestTarget = url.getProtocol() + "://" + Route.fromURL(url).toHostHeader() + requestTarget;
+        }
+        // All checked before anything is encoded... a CR or LF would split the request.
+        assertToken(method, "method");
+        assertNoLineBreaks(requestTarget, "request target");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            assertToken(header.getKey(), "header name");
+            if (header.getValue() != null) {
+                assertNoLineBreaks(header.getValue(), "'" + header.getKey() + "' header value");
+            }
+        }
+        if (contentType != null) {
+            assertNoLineBreaks(contentType, "'Content-Type' header value");
+        }
+
+        head.append(method).append(' ').append(requestTarget).append(" HTTP/1.1\r\n");
+        appendHeader(head, "Host", Route.fromURL(url).toHostHeader(), headers);
+        appendHeader(head, "User-Agent", USER_AGENT, headers);
+        appendHeader(head, "Accept", "*/*", headers);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (sendsBody && header.getKey().equalsIgnoreCase("Content-Length")) {
+                continue;
+            }
+            head.append(header.getKey()).append(": ").append(header.getValue() != null ? header.getValue() : "").append("\r\n");
+        }
+        if (contentType != null) {
+            appendHeader(head, "Content-Type", contentType, headers);
+        }
+        if (sendsBody) {
+            head.append("Content-Length: ").append(content != null ? content.length : 0).append("\r\n");
+        }
+        head.append("\r\n");
+    }
+
+    private static void assertToken(String token, String name) {
+        if (token == null || token.length() == 0) {
+            throw new IllegalArgumentException("Invalid " + name + " '" + token + "'. Must be a non-empty token.");
+        }
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || TOKEN_SYMBOLS.indexOf(c) != -1)) {
+                throw new IllegalArgumentException("Invalid " + name + " '" + token + "'. Invalid character at index " + i + ".");
+            }
+        }
+    }
+
+    private static void assertNoLineBreaks(String value, String name) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == '\0') {
+                // Not echoed... the value is attacker controlled, more often than not.
+                throw new IllegalArgumentException("Invalid " + name + ". Cannot contain CR, LF or NUL (found at index " + i + ").");
+            }
+        }
+    }
+
+    public static boolean sendsBody(String method) {
+        return (method.equals("POST") || method.equals("PUT"));
+    }
+
+    /**
+     * Read the response status line and headers, skipping over any interim (1xx) responses.
+     *
+     * @param inputStream The connection input stream.
+     * @return The response head.
+     * @throws IOException Error reading the response.
+     */
+    public static ResponseHead readResponseHead(InputStream inputStream) throws IOException {
+        while (true) {
+            ResponseHead head = parseResponseHead(inputStream);
+            if (!head.isInterim()) {
+                return head;
+            }
+        }
+    }
+
+    /**
+     * Parse a single response head (status line and headers) from the supplied stream.
+     * <p/>
+     * Unlike {@link #readResponseHead(InputStream)}, interim (1xx) responses are returned to the caller.
+     *
+     * @param inputStream The stream.
+     * @return The response head.
+     * @throws IOException Error reading the response.
+     */
+    public static ResponseHead parseResponseHead(InputStream inputStream) throws IOException {
+        String statusLine = readLine(inputStream);
+
+        // Tolerate a stray CRLF after a previous response body.
+        while (statusLine != null && statusLine.length() == 0) {
+            statusLine = readLine(inputStream);
+        }
+        if (statusLine == null) {
+            throw new EOFException("Connection closed before response status line was received.");
+        }
+
+        ResponseHead head = parseStatusLine(statusLine);
+        readHeaders(inputStream, head);
+
+        return head;
+    }
+
+    /**
+     * Open the response body stream.
+     * <p/>
+     * Closing the returned stream does not close the underlying connection stream.
+     *
+     * @param inputStream The connection input stream.
+     * @param method The request method.
+     * @param head The response head.
+     * @return The body stream.
+     * @throws IOException Invalid response framing.
+     */
+    public static InputStream openBody(InputStream inputStream, String method, ResponseHead head) throws IOException {
+        if (!head.hasBody(method)) {
+            return new ContentLengthInputStream(inputStream, 0);
+        }
+        if (head.isChunked()) {
+            return new ChunkedInputStream(inputStream);
+        }
+
+        long contentLength = head.getContentLength();
+        if (contentLength != -1) {
+            return new ContentLengthInputStream(inputStream, contentLength);
+        }
+
+        // Body delimited by connection close.
+        head.delimitedByClose = true;
+        return new ContentLengthInputStream(inputStream, Long.MAX_VALUE);
+    }
+
+    private static void appendHeader(StringBuilder head, String name, String value, Map<String, String> headers) {
+        for (String headerName : headers.keySet()) {
+            if (headerName.equalsIgnoreCase(name)) {
+                // Explicitly set by the caller.
+                return;
+            }
+        }
+        head.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    private static ResponseHead parseStatusLine(String statusLine) throws ProtocolException {
+        int firstSpace = statusLine.indexOf(' ');
+
+        if (firstSpace == -1 || !statusLine.startsWith("HTTP/")) {
+            throw new ProtocolException("Invalid HTTP response status line '" + statusLine + "'.");
+        }
+
+        int secondSpace = statusLine.indexOf(' ', firstSpace + 1);
+        String statusCode = (secondSpace == -1 ? statusLine.substring(firstSpace + 1) : statusLine.substring(firstSpace + 1, secondSpace));
+        ResponseHead head = new ResponseHead();
+
+        head.version = statusLine.substring(0, firstSpace);
+        head.statusLine = statusLine;
+        head.statusMessage = (secondSpace == -1 ? "" : statusLine.substring(secondSpace + 1));
+        try {
+            head.statusCode = Integer.parseInt(statusCode.trim());
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid HTTP response status line '" + statusLine + "'.");
+        }
+
+        return head;
+    }
+
+    private static void readHeaders(InputStream inputStream, ResponseHead head) throws IOException {
+        // Same shape as HttpURLConnection.getHeaderFields() i.e. status line under the null key.
+        head.headerFields.put(null, Collections.singletonList(head.statusLine));
+
+        for (int headerCount = 0; ; headerCount++) {
+            String headerLine = readLine(inputStream);
+
+            if (headerLine == null) {
+                throw new EOFException("Connection closed while reading response headers.");
+            }
+            if (headerLine.length() == 0) {
+                return;
+            }
+            if (headerCount == MAX_HEADER_COUNT) {
+                throw new ProtocolException("Response header count exceeds " + MAX_HEADER_COUNT + ".");
+            }
+
+            int colon = headerLine.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+
+            String name = headerLine.substring(0, colon).trim();
+            String value = headerLine.substring(colon + 1).trim();
+            List<String> values = head.headerFields.get(name);
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                head.headerFields.put(name, values);
+            }
+            values.add(value);
+        }
+    }
+
+    /**
+     * Read a CRLF (or LF) terminated line.
+     * @param inputStream The stream.
+     * @return The line, without the line terminator, or null if the stream is at EOF.
+     * @throws IOException Error reading the line.
+     */
+    static String readLine(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b = inputStream.read();
+
+        if (b == -1) {
+            return null;
+        }
+        while (b != -1 && b != '\n') {
+            if (b != '\r') {
+                if (line.size() == MAX_LINE_LENGTH) {
+                    throw new ProtocolException("Response line length exceeds " + MAX_LINE_LENGTH + " bytes.");
+                }
+                line.write(b);
+            }
+            b = inputStream.read();
+        }
+
+        return new String(line.toByteArray(), ISO_8859_1);
+    }
+
+    /**
+     * Response status line and headers.
+     */
+    public static final class ResponseHead {
+
+        private String version;
+        private String statusLine;
+        private int statusCode;
+        private String statusMessage;
+        private final Map<String, List<String>> headerFields = new LinkedHashMap<String, List<String>>();
+        private boolean delimitedByClose;
+
+        public String getVersion() {
+            return version;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getStatusMessage() {
+            return statusMessage;
+        }
+
+        public Map<String, List<String>> getHeaderFields() {
+            return headerFields;
+        }
+
+        /**
+         * Get the last value of the named header (case insensitive).
+         * @param name The header name.
+         * @return The header value, or null if not present.
+         */
+        public String getHeader(String name) {
+            for (Map.Entry<String, List<String>> header : headerFields.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    List<String> values = header.getValue();
+                    return values.get(values.size() - 1);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Is this an interim (1xx) response, other than a protocol switch.
+         * @return True if this is an interim response, otherwise false.
+         */
+        public boolean isInterim() {
+            return statusCode >= 100 && statusCode < 200 && statusCode != 101;
+        }
+
+        public boolean isChunked() {
+            String transferEncoding = getHeader("Transfer-Encoding");
+            return (transferEncoding != null && transferEncoding.toLowerCase().endsWith("chunked"));
+        }
+
+        /**
+         * Get the declared Content-Length.
+         * @return The content length, or -1 if not declared.
+         * @throws ProtocolException Invalid Content-Length header value.
+         */
+        public long getContentLength() throws ProtocolException {
+            String contentLength = getHeader("Content-Length");
+
+            if (contentLength == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length header value '" + contentLength + "'.");
+            }
+        }
+
+        /**
+         * Mark the body of this response as delimited by the server closing the connection.
+         */
+        public void setDelimitedByClose() {
+            delimitedByClose = true;
+        }
+
+        public boolean hasBody(String method) {
+            return !method.equals("HEAD") && statusCode >= 200 && statusCode != 204 && statusCode != 304;
+        }
+
+        /**
+         * Can the connection be kept alive for another exchange once this response body has been fully read.
+         * @return True if the connection can be reused, otherwise false.
+         */
+        public boolean isKeepAlive() {
+            if (delimitedByClose) {
+                return false;
+            }
+
+            String connection = getHeader("Connection");
+            if (version.equals("HTTP/1.0")) {
+                return (connection != null && connection.equalsIgnoreCase("keep-alive"));
+            }
+            return (connection == null || !connection.toLowerCase().contains("close"));
+        }
+    }
+
+    private static final class ContentLengthInputStream extends InputStream {
+
+        private final InputStream inputStream;
+        private final boolean delimitedByClose;
+        private long remaining;
+
+        private ContentLengthInputStream(InputStream inputStream, long contentLength) {
+            this.inputStream = inputStream;
+            this.delimitedByClose = (contentLength == Long.MAX_VALUE);
+            this.remaining = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = inputStream.read();
+            if (b == -1) {
+                return endOfStream();
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int readCount = inputStream.read(buffer, offset, (int) Math.min(length, remaining));
+            if (readCount == -1) {
+                return endOfStream();
+            }
+            remaining -= readCount;
+            return readCount;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(inputStream.available(), remaining);
+        }
+
+        private int endOfStream() throws EOFException {
+            if (!delimitedByClose) {
+                throw new EOFException("Connection closed before response body was fully received.");
+            }
+            remaining = 0;
+            return -1;
+        }
+
+        @Override
+        public void close() {
+            // Don't close the connection stream.
+        }
+    }
+
+    private static final class ChunkedInputStream extends InputStream {
+
+        private final InputStream inputStream;
+        private long chunkRemaining;
+        private boolean eof;
+
+        private ChunkedInputStream(InputStream inputStream) {
+            this.inputStream = inputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int b = inputStream.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed mid chunk.");
+            }
+            chunkRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int readCount = inputStream.read(buffer, offset, (int) Math.min(length, chunkRemaining));
+            if (readCount == -1) {
+                throw new EOFException("Connection closed mid chunk.");
+            }
+            chunkRemaining -= readCount;
+            return readCount;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (eof) {
+                return false;
+            }
+            if (chunkRemaining > 0) {
+                return true;
+            }
+
+            String chunkSizeLine = readLine(inputStream);
+            if (chunkSizeLine != null && chunkSizeLine.length() == 0) {
+                // CRLF terminating the previous chunk.
+                chunkSizeLine = readLine(inputStream);
+            }
+            if (chunkSizeLine == null) {
+                throw new EOFException("Connection closed before final chunk.");
+            }
+
+            int extensionStart = chunkSizeLine.indexOf(';');
+            if (extensionStart != -1) {
+                chunkSizeLine = chunkSizeLine.substring(0, extensionStart);
+            }
+            try {
+                chunkRemaining = Long.parseLong(chunkSizeLine.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid chunk size '" + chunkSizeLine + "'.");
+            }
+
+            if (chunkRemaining == 0) {
+                // Last chunk... consume trailers.
+                String trailer = readLine(inputStream);
+                while (trailer != null && trailer.length() > 0) {
+                    trailer = readLine(inputStream);
+                }
+                eof = true;
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // Don't close the connection stream.
+        }
+    }
+
+    /**
+     * Per thread request head encoder, reused across requests.
+     */
+    private static final class HeadEncoder {
+
+        // Buffers grown beyond this by an outsized request are not kept for the next one.
+        private static final int MAX_RETAINED_LENGTH = MAX_LINE_LENGTH;
+
+        private StringBuilder head = new StringBuilder(256);
+        private byte[] bytes = new byte[1024];
+
+        /**
+         * Encode the request line and headers into {@link #bytes}.
+         * @return The encoded length.
+         */
+        private int encode(String method, URL url, boolean absoluteForm, Map<String, String> headers, String contentType, byte[] content) {
+            if (head.capacity() > MAX_RETAINED_LENGTH) {
+                head = new StringBuilder(256);
+            }
+            if (bytes.length > MAX_RETAINED_LENGTH) {
+                bytes = new byte[1024];
+            }
+            head.setLength(0);
+            appendRequestHead(head, method, url, absoluteForm, headers, contentType, content);
+
+            int length = head.length();
+            if (bytes.length < length) {
+                bytes = new byte[length];
+            }
+            for (int i = 0; i < length; i++) {
+                char c = head.charAt(i);
+                // Same as encoding ISO-8859-1.
+                bytes[i] = (byte) (c <= 0xFF ? c : '?');
+            }
+
+            return length;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-phase timing breakdown of a request/response exchange.
+ * <p/>
+ * All times are in nanoseconds.  Connection phases (DNS, connect and TLS handshake) are 0 when the
+ * exchange was made on a reused connection.  A phase that could not be observed is {@link #NOT_MEASURED}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class RequestTiming {
+
+    public static final long NOT_MEASURED = -1;
+
+    private final long dnsNanos;
+    private final long connectNanos;
+    private final long tlsHandshakeNanos;
+    private final long requestWriteNanos;
+    private final long timeToFirstByteNanos;
+    private final long transferNanos;
+    private final long totalNanos;
+    private final boolean connectionReused;
+    private final boolean tlsSessionResumed;
+
+    /**
+     * Constructor.
+     * @param dnsNanos Host name resolution time.
+     * @param connectNanos TCP connect time.
+     * @param tlsHandshakeNanos TLS handshake time.
+     * @param requestWriteNanos Time to write the request.
+     * @param timeToFirstByteNanos Time from the request being written to the first response byte arriving.
+     * @param transferNanos Time from the first response byte to the end of the response body.
+     * @param totalNanos Total exchange time, incl. any wait for a pooled connection.
+     * @param connectionReused True if the exchange was made on a reused connection.
+     * @param tlsSessionResumed True if the connection's TLS handshake resumed a cached session.
+     */
+    public RequestTiming(long dnsNanos, long connectNanos, long tlsHandshakeNanos, long requestWriteNanos,
+                         long timeToFirstByteNanos, long transferNanos, long totalNanos, boolean connectionReused,
+                         boolean tlsSessionResumed) {
+        this.dnsNanos = dnsNanos;
+        this.connectNanos = connectNanos;
+        this.tlsHandshakeNanos = tlsHandshakeNanos;
+        this.requestWriteNanos = requestWriteNanos;
+        this.timeToFirstByteNanos = timeToFirstByteNanos;
+        this.transferNanos = transferNanos;
+        this.totalNanos = totalNanos;
+        this.connectionReused = connectionReused;
+        this.tlsSessionResumed = tlsSessionResumed;
+    }
+
+    /**
+     * Create a timing where only the total time could be observed.
+     * @param totalNanos The total exchange time.
+     * @return The timing.
+     */
+    public static RequestTiming totalOnly(long totalNanos) {
+        return new RequestTiming(NOT_MEASURED, NOT_MEASURED, NOT_MEASURED, NOT_MEASURED, NOT_MEASURED, NOT_MEASURED, totalNanos, false, false);
+    }
+
+    public long getDnsNanos() {
+        return dnsNanos;
+    }
+
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    public long getTlsHandshakeNanos() {
+        return tlsHandshakeNanos;
+    }
+
+    public long getRequestWriteNanos() {
+        return requestWriteNanos;
+    }
+
+    public long getTimeToFirstByteNanos() {
+        return timeToFirstByteNanos;
+    }
+
+    public long getTransferNanos() {
+        return transferNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public boolean isConnectionReused() {
+        return connectionReused;
+    }
+
+    /**
+     * Did the TLS handshake resume a cached session (abbreviated handshake) rather than perform a full handshake.
+     * <p/>
+     * Always false for plain http and for exchanges on a reused connection (no handshake).
+     * @return True if the TLS session was resumed, otherwise false.
+     */
+    public boolean isTlsSessionResumed() {
+        return tlsSessionResumed;
+    }
+
+    @Override
+    public String toString() {
+        return "dns: " + toMillis(dnsNanos) + "ms, connect: " + toMillis(connectNanos) + "ms, tls: " + toMillis(tlsHandshakeNanos)
+                + "ms, write: " + toMillis(requestWriteNanos) + "ms, ttfb: " + toMillis(timeToFirstByteNanos)
+                + "ms, transfer: " + toMillis(transferNanos) + "ms, total: " + toMillis(totalNanos) + "ms"
+                + (connectionReused ? " (reused connection)" : "") + (tlsSessionResumed ? " (resumed TLS session)" : "");
+    }
+
+    private static String toMillis(long nanos) {
+        if (nanos == NOT_MEASURED) {
+            return "?";
+        }
+        return String.format("%.3f", (double) nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common;
+
+import java.io.IOException;
+
+/**
+ * Consumes a {@link StreamingHttpResponse} body as it streams off the connection e.g. hashing it,
+ * sampling it or writing it to disk, without ever holding the whole body in memory.
+ * <p/>
+ * The response is closed by the client once the consumer returns.
+ *
+ * @param <T> The consumer result type.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public interface ResponseBodyConsumer<T> {
+
+    /**
+     * Consume the response.
+     * @param response The streaming response.
+     * @return The consumer result.
+     * @throws IOException Error consuming the response body.
+     */
+    T consume(StreamingHttpResponse response) throws IOException;
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.security.cert.Certificate;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response whose body is read directly off the connection, rather than being buffered in memory.
+ * <p/>
+ * Must be {@link #close() closed} once the caller is finished with the body, which hands the connection
+ * back to the pool (or closes it if the body was not fully read).
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public interface StreamingHttpResponse extends Closeable {
+
+    /**
+     * The response status code.
+     *
+     * @return {@code int} the status code of the response.
+     */
+    int statusCode();
+
+    /**
+     * The response status message.
+     *
+     * @return {@code String} the status message.
+     */
+    String statusMessage();
+
+    /**
+     * Get the content type of the response body.
+     *
+     * @return The content type of the response body.
+     */
+    String contentType();
+
+    /**
+     * Get the declared length of the response body.
+     *
+     * @return The content length, or -1 if not known up front (chunked, or delimited by connection close).
+     */
+    long contentLength();
+
+    /**
+     * Gets the response header fields.
+     *
+     * @return {@code Map<String, List<String>>} A map keyed by the header name and a list of the values
+     * set for that header name.
+     */
+    Map<String, List<String>> headerFields();
+
+    /**
+     * Get the server certificates.
+     * <p/>
+     * Only applies to https.
+     * @return The server certificates, or null if it's not https.
+     */
+    Certificate[] getServerCerts();
+
+    /**
+     * Get the live response body stream.
+     * <p/>
+     * Closing the stream closes the response.
+     *
+     * @return The response body stream.  Empty if the response has no body.
+     */
+    InputStream getInputStream();
+
+    /**
+     * Get the live response body as a channel.
+     * <p/>
+     * Closing the channel closes the response.
+     *
+     * @return The response body channel.
+     */
+    ReadableByteChannel getChannel();
+
+    /**
+     * Get the per-phase timing of the request/response exchange.
+     * <p/>
+     * The transfer phase runs until the body has been fully read (or the response is closed), so the timing
+     * is only final at that point.
+     * @return The request timing.
+     */
+    RequestTiming getTiming();
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common;
+
+import org.tfennelly.httpanalyse.common.pool.ConnectionTiming;
+import org.tfennelly.httpanalyse.common.pool.PooledConnection;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.cert.Certificate;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A concrete implementation of {@link StreamingHttpResponse}, reading the body off a {@link PooledConnection}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class StreamingHttpResponseImpl implements StreamingHttpResponse {
+
+    // Max number of unread body bytes we'll drain on close in order to keep the connection alive.
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    private final PooledConnection connection;
+    // The request this responds to... the last hop, if redirects were followed.
+    private final String requestMethod;
+    private final URL requestUrl;
+    private final byte[] requestContent;
+    private final String requestContentType;
+    private final HttpWire.ResponseHead head;
+    private final InputStream wireBodyStream;
+    private final InputStream bodyStream;
+    private final Certificate[] serverCerts;
+    private final boolean hasBody;
+    private final long startedAt;
+    private final long requestWriteNanos;
+    private final long timeToFirstByteNanos;
+    private final long firstByteAt;
+    // Captured up front... the connection goes back to the pool (and on to other requests) on close.
+    private final boolean connectionReused;
+    private final ConnectionTiming connectionTiming;
+    private long completedAt;
+    private boolean bodyConsumed;
+    private boolean closed;
+
+    StreamingHttpResponseImpl(final PooledConnection connection, final String method, final URL url, final byte[] content, final String contentType,
+                              final HttpWire.ResponseHead head, final long startedAt, final long requestWriteNanos, final long timeToFirstByteNanos,
+                              final long firstByteAt) throws IOException {
+        this.connection = connection;
+        this.requestMethod = method;
+        this.requestUrl = url;
+        this.requestContent = content;
+        this.requestContentType = contentType;
+        this.head = head;
+        this.startedAt = startedAt;
+        this.requestWriteNanos = requestWriteNanos;
+        this.timeToFirstByteNanos = timeToFirstByteNanos;
+        this.firstByteAt = firstByteAt;
+        this.connectionReused = connection.isReused();
+        this.connectionTiming = connection.getTiming();
+        this.wireBodyStream = HttpWire.openBody(connection.getInputStream(), method, head);
+        this.bodyStream = new BodyInputStream(wireBodyStream);
+        this.serverCerts = getServerCerts(connection, head);
+        this.hasBody = head.hasBody(method);
+        this.bodyConsumed = !hasBody;
+        if (bodyConsumed) {
+            completedAt = System.nanoTime();
+        }
+    }
+
+    String getRequestMethod() {
+        return requestMethod;
+    }
+
+    URL getRequestUrl() {
+        return requestUrl;
+    }
+
+    byte[] getRequestContent() {
+        return requestContent;
+    }
+
+    String getRequestContentType() {
+        return requestContentType;
+    }
+
+    public int statusCode() {
+        return head.getStatusCode();
+    }
+
+    public String statusMessage() {
+        return head.getStatusMessage();
+    }
+
+    public String contentType() {
+        return head.getHeader("Content-Type");
+    }
+
+    public long contentLength() {
+        try {
+            return (head.isChunked() ? -1 : head.getContentLength());
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public Map<String, List<String>> headerFields() {
+        return head.getHeaderFields();
+    }
+
+    public Certificate[] getServerCerts() {
+        return serverCerts;
+    }
+
+    public InputStream getInputStream() {
+        return bodyStream;
+    }
+
+    public ReadableByteChannel getChannel() {
+        return Channels.newChannel(bodyStream);
+    }
+
+    public RequestTiming getTiming() {
+        long endedAt = (completedAt != 0 ? completedAt : System.nanoTime());
+
+        if (connectionReused) {
+            return new RequestTiming(0, 0, 0, requestWriteNanos, timeToFirstByteNanos, endedAt - firstByteAt, endedAt - startedAt, true, false);
+        } else {
+            return new RequestTiming(connectionTiming.getDnsNanos(), connectionTiming.getConnectNanos(), connectionTiming.getTlsHandshakeNanos(),
+                    requestWriteNanos, timeToFirstByteNanos, endedAt - firstByteAt, endedAt - startedAt, false,
+                    connectionTiming.isTlsSessionResumed());
+        }
+    }
+
+    /**
+     * Does this response have a body e.g. HEAD, 204 and 304 responses do not.
+     * @return True if the response has a body, otherwise false.
+     */
+    boolean hasBody() {
+        return hasBody;
+    }
+
+    /**
+     * Close the response, releasing the connection.
+     * <p/>
+     * The connection is kept alive for reuse if the body has been fully read, or if the unread remainder
+     * is small enough to drain.  Otherwise it is closed.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (completedAt == 0) {
+            completedAt = System.nanoTime();
+        }
+        connection.release(head.isKeepAlive() && drain());
+    }
+
+    private boolean drain() {
+        if (bodyConsumed) {
+            return true;
+        }
+
+        try {
+            byte[] drainBuffer = new byte[4096];
+            int drained = 0;
+
+            while (drained <= MAX_DRAIN) {
+                int readCount = wireBodyStream.read(drainBuffer);
+                if (readCount == -1) {
+                    return true;
+                }
+                drained += readCount;
+            }
+        } catch (IOException e) {
+            // Not reusable
+        }
+
+        return false;
+    }
+
+    private void setBodyConsumed() {
+        if (!bodyConsumed) {
+            bodyConsumed = true;
+            completedAt = System.nanoTime();
+        }
+    }
+
+    private static Certificate[] getServerCerts(PooledConnection connection, HttpWire.ResponseHead head) {
+        if (head.getStatusCode() >= 200 && head.getStatusCode() < 300 && connection.isSecure()) {
+            try {
+                return ((SSLSocket) connection.getSocket()).getSession().getPeerCertificates();
+            } catch (SSLPeerUnverifiedException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private class BodyInputStream extends FilterInputStream {
+
+        private BodyInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            assertOpen();
+            int b = super.read();
+            if (b == -1) {
+                setBodyConsumed();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            assertOpen();
+            int readCount = super.read(buffer, offset, length);
+            if (readCount == -1) {
+                setBodyConsumed();
+            }
+            return readCount;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            assertOpen();
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            StreamingHttpResponseImpl.this.close();
+        }
+
+        private void assertOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Response closed.");
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of off-heap (direct) buffers for request and response bodies.
+ * <p/>
+ * Buffers come in power of two size classes, from {@link #getMinBufferSize() min} to {@link #getMaxBufferSize() max}
+ * buffer size.  Each class carves its buffers out of direct slabs, allocated on demand and never freed, so once the
+ * pool has warmed up, leasing and releasing a buffer allocates nothing.  Leases beyond the max buffer size, or beyond
+ * the pool's {@link #getMaxPooledBytes() max} slab bytes, get an unpooled heap buffer that's left to the GC on release.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_MIN_BUFFER_SIZE = 4 * 1024;
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64 * 1024 * 1024;
+
+    private static final BufferPool DEFAULT_POOL = new BufferPool();
+
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    private final int slabSize;
+    private final long maxPooledBytes;
+    private final SizeClass[] sizeClasses;
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong slabs = new AtomicLong();
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong unpooledLeases = new AtomicLong();
+    private final AtomicLong grows = new AtomicLong();
+
+    public BufferPool() {
+        this(DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_SLAB_SIZE, DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**
+     * Constructor.
+     * @param minBufferSize The smallest size class.  A power of two.
+     * @param maxBufferSize The largest size class.  A power of two.
+     * @param slabSize The size of the slabs buffers are carved out of.  Slabs of the size classes bigger than this
+     * hold one buffer.
+     * @param maxPooledBytes The max total size of the slabs.
+     */
+    public BufferPool(int minBufferSize, int maxBufferSize, int slabSize, long maxPooledBytes) {
+        if (minBufferSize < 1 || Integer.bitCount(minBufferSize) != 1) {
+            throw new IllegalArgumentException("Invalid 'minBufferSize' value '" + minBufferSize + "'. Must be a power of two.");
+        }
+        if (maxBufferSize < minBufferSize || Integer.bitCount(maxBufferSize) != 1) {
+            throw new IllegalArgumentException("Invalid 'maxBufferSize' value '" + maxBufferSize + "'. Must be a power of two, not less than 'minBufferSize'.");
+        }
+        if (slabSize < 1) {
+            throw new IllegalArgumentException("Invalid 'slabSize' value '" + slabSize + "'. Must be greater than zero.");
+        }
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("Invalid 'maxPooledBytes' value '" + maxPooledBytes + "'. Cannot be negative.");
+        }
+        this.minBufferSize = minBufferSize;
+        this.maxBufferSize = maxBufferSize;
+        this.slabSize = slabSize;
+        this.maxPooledBytes = maxPooledBytes;
+
+        int classCount = Integer.numberOfTrailingZeros(maxBufferSize) - Integer.numberOfTrailingZeros(minBufferSize) + 1;
+        this.sizeClasses = new SizeClass[classCount];
+        for (int i = 0; i < classCount; i++) {
+            sizeClasses[i] = new SizeClass(minBufferSize << i);
+        }
+    }
+
+    /**
+     * Get the default pool, shared by all clients that are not configured with a pool of their own.
+     * @return The default pool.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT_POOL;
+    }
+
+    public int getMinBufferSize() {
+        return minBufferSize;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    /**
+     * Lease a buffer.
+     * @param capacity The min capacity.
+     * @return The buffer, cleared, with one reference.
+     */
+    public PooledBuffer lease(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid 'capacity' value '" + capacity + "'. Cannot be negative.");
+        }
+        leases.incrementAndGet();
+
+        if (capacity <= maxBufferSize) {
+            SizeClass sizeClass = sizeClasses[sizeClassIndex(capacity)];
+            PooledBuffer buffer = sizeClass.allocate();
+            if (buffer != null) {
+                return buffer.lease();
+            }
+        }
+
+        unpooledLeases.incrementAndGet();
+        return new PooledBuffer(null, ByteBuffer.allocate(capacity)).lease();
+    }
+
+    /**
+     * Grow a buffer, replacing it with a bigger one.
+     * <p/>
+     * The content (up to the position) is copied to the new buffer and the old buffer is released.  The caller
+     * must hold the only reference.
+     * @param buffer The buffer.
+     * @param minCapacity The min capacity of the new buffer.
+     * @return The new buffer, positioned after the copied content.
+     */
+    public PooledBuffer grow(PooledBuffer buffer, int minCapacity) {
+        return grow(buffer, minCapacity, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Grow a buffer, replacing it with a bigger one no bigger than the supplied max capacity.
+     * <p/>
+     * As {@link #grow(PooledBuffer, int)}, but for content of known (max) length.
+     * @param buffer The buffer.
+     * @param minCapacity The min capacity of the new buffer.
+     * @param maxCapacity The max capacity of the new buffer.  Must not be less than the min capacity.
+     * @return The new buffer, positioned after the copied content.
+     */
+    public PooledBuffer grow(PooledBuffer buffer, int minCapacity, int maxCapacity) {
+        if (maxCapacity < minCapacity) {
+            throw new IllegalArgumentException("Invalid 'maxCapacity' value '" + maxCapacity + "'. Cannot be less than 'minCapacity' (" + minCapacity + ").");
+        }
+        if (minCapacity <= buffer.capacity()) {
+            return buffer;
+        }
+        grows.incrementAndGet();
+
+        // Double, so a stream of unknown length is copied O(log n) times.
+        long newCapacity = Math.max(minCapacity, Math.min((long) buffer.capacity() * 2, maxCapacity));
+        PooledBuffer grown = lease((int) newCapacity);
+        ByteBuffer content = buffer.buffer();
+        content.flip();
+        grown.buffer().put(content);
+        buffer.release();
+
+        return grown;
+    }
+
+    public BufferPoolStats getStats() {
+        long free = 0;
+        long leased = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            synchronized (sizeClass) {
+                free += sizeClass.freeCount;
+                leased += sizeClass.allocatedCount - sizeClass.freeCount;
+            }
+        }
+        return new BufferPoolStats(leases.get(), unpooledLeases.get(), grows.get(), leased, free, slabs.get(), pooledBytes.get());
+    }
+
+    private int sizeClassIndex(int capacity) {
+        if (capacity <= minBufferSize) {
+            return 0;
+        }
+        // Smallest power of two >= capacity, relative to the min.
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(minBufferSize);
+    }
+
+    /**
+     * Free buffers of one size.
+     */
+    final class SizeClass {
+
+        private final int bufferSize;
+        private PooledBuffer[] free = new PooledBuffer[0];
+        private int freeCount;
+        private int allocatedCount;
+
+        private SizeClass(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        /**
+         * Take a free buffer, carving a new slab if there are none.
+         * @return The buffer, or null if the pool is at its max size.
+         */
+        private synchronized PooledBuffer allocate() {
+            if (freeCount == 0 && !addSlab()) {
+                return null;
+            }
+            PooledBuffer buffer = free[--freeCount];
+            free[freeCount] = null;
+            return buffer;
+        }
+
+        synchronized void free(PooledBuffer buffer) {
+            free[freeCount++] = buffer;
+        }
+
+        private boolean addSlab() {
+            int buffersPerSlab = Math.max(1, slabSize / bufferSize);
+            long slabBytes = (long) buffersPerSlab * bufferSize;
+
+            while (true) {
+                long current = pooledBytes.get();
+                if (current + slabBytes > maxPooledBytes) {
+                    return false;
+                }
+                if (pooledBytes.compareAndSet(current, current + slabBytes)) {
+                    break;
+                }
+            }
+            slabs.incrementAndGet();
+
+            ByteBuffer slab = ByteBuffer.allocateDirect((int) slabBytes);
+            // Every buffer of the class can be free at once, so free never has to grow.
+            PooledBuffer[] grownFree = new PooledBuffer[allocatedCount + buffersPerSlab];
+            System.arraycopy(free, 0, grownFree, 0, freeCount);
+            free = grownFree;
+            for (int i = 0; i < buffersPerSlab; i++) {
+                slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+                free[freeCount++] = new PooledBuffer(this, slab.slice());
+            }
+            allocatedCount += buffersPerSlab;
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.buffer;
+
+/**
+ * Point in time snapshot of {@link BufferPool} statistics.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class BufferPoolStats {
+
+    private final long leases;
+    private final long unpooledLeases;
+    private final long grows;
+    private final long leased;
+    private final long free;
+    private final long slabs;
+    private final long pooledBytes;
+
+    BufferPoolStats(long leases, long unpooledLeases, long grows, long leased, long free, long slabs, long pooledBytes) {
+        this.leases = leases;
+        this.unpooledLeases = unpooledLeases;
+        this.grows = grows;
+        this.leased = leased;
+        this.free = free;
+        this.slabs = slabs;
+        this.pooledBytes = pooledBytes;
+    }
+
+    public long getLeases() {
+        return leases;
+    }
+
+    /**
+     * Get the number of leases that got an unpooled heap buffer, because the size was beyond the largest size
+     * class or the pool was at its max size.
+     * @return The number of unpooled leases.
+     */
+    public long getUnpooledLeases() {
+        return unpooledLeases;
+    }
+
+    /**
+     * Get the number of buffers replaced with a bigger one e.g. reading a stream of unknown length.
+     * @return The number of grows.
+     */
+    public long getGrows() {
+        return grows;
+    }
+
+    /**
+     * Get the number of pooled buffers currently leased i.e. not yet released.
+     * @return The number of leased buffers.
+     */
+    public long getLeased() {
+        return leased;
+    }
+
+    public long getFree() {
+        return free;
+    }
+
+    public long getSlabs() {
+        return slabs;
+    }
+
+    /**
+     * Get the total size of the direct slabs allocated by the pool.
+     * @return The pooled bytes.
+     */
+    public long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "leases: " + leases + ", unpooled leases: " + unpooledLeases + ", grows: " + grows + ", leased: " + leased
+                + ", free: " + free + ", slabs: " + slabs + ", pooled bytes: " + pooledBytes;
+    }
+}
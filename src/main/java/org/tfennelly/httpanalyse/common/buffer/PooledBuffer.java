@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted buffer leased from a {@link BufferPool}.
+ * <p/>
+ * A buffer is leased with one reference.  {@link #retain()} adds one, {@link #release()} drops one, and the buffer
+ * goes back to the pool when the last is dropped.  The buffer must not be used after its last release... the same
+ * instance is handed out again by the pool.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class PooledBuffer {
+
+    private final BufferPool.SizeClass sizeClass;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCount = new AtomicInteger();
+
+    /**
+     * Constructor.
+     * @param sizeClass The size class the buffer is returned to, or null if it's not pooled.
+     * @param buffer The buffer.
+     */
+    PooledBuffer(BufferPool.SizeClass sizeClass, ByteBuffer buffer) {
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Get the underlying buffer.
+     * <p/>
+     * Position and limit are the holder's to manage.  Leased buffers are cleared.
+     * @return The buffer.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Is the buffer pooled i.e. is it returned to the pool on release.
+     * @return True if the buffer is pooled, false if it was allocated because the size was beyond the pool's
+     * size classes, or the pool was at its max size.
+     */
+    public boolean isPooled() {
+        return sizeClass != null;
+    }
+
+    public int refCount() {
+        return refCount.get();
+    }
+
+    /**
+     * Add a reference.
+     * @return This buffer.
+     * @throws IllegalStateException The buffer has been released.
+     */
+    public PooledBuffer retain() {
+        while (true) {
+            int current = refCount.get();
+            if (current <= 0) {
+                throw new IllegalStateException("Buffer already released.");
+            }
+            if (refCount.compareAndSet(current, current + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference, returning the buffer to the pool if it was the last.
+     * @return True if that was the last reference.
+     * @throws IllegalStateException The buffer has been released.
+     */
+    public boolean release() {
+        while (true) {
+            int current = refCount.get();
+            if (current <= 0) {
+                throw new IllegalStateException("Buffer already released.");
+            }
+            if (refCount.compareAndSet(current, current - 1)) {
+                if (current == 1) {
+                    if (sizeClass != null) {
+                        sizeClass.free(this);
+                    }
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Lease... the first reference.
+     */
+    PooledBuffer lease() {
+        buffer.clear();
+        refCount.set(1);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return buffer + " (refs: " + refCount.get() + (sizeClass != null ? ")" : ", unpooled)");
+    }
+}
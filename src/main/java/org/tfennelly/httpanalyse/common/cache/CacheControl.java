@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.cache;
+
+import java.util.List;
+
+/**
+ * Parsed Cache-Control directives (RFC 9111 section 5.2), request or response.
+ * <p/>
+ * Unknown directives are ignored.  Delta-seconds values are in seconds, -1 if the directive is absent.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class CacheControl {
+
+    /**
+     * max-stale with no value... any staleness is acceptable.
+     */
+    static final long ANY_STALENESS = Long.MAX_VALUE;
+
+    static final CacheControl NONE = new CacheControl();
+
+    boolean noStore;
+    boolean noCache;
+    boolean mustRevalidate;
+    boolean isPrivate;
+    boolean isPublic;
+    boolean onlyIfCached;
+    long maxAge = -1;
+    long maxStale = -1;
+    long minFresh = -1;
+
+    /**
+     * Parse the Cache-Control header values.
+     * @param values The header values, or null.
+     * @param pragma The Pragma header value, or null.  "no-cache" is only honoured if there's no Cache-Control.
+     * @return The directives.
+     */
+    static CacheControl parse(List<String> values, String pragma) {
+        if (values == null || values.isEmpty()) {
+            if (pragma != null && pragma.toLowerCase().contains("no-cache")) {
+                CacheControl cacheControl = new CacheControl();
+                cacheControl.noCache = true;
+                return cacheControl;
+            }
+            return NONE;
+        }
+
+        CacheControl cacheControl = new CacheControl();
+        for (String value : values) {
+            if (value != null) {
+                cacheControl.parse(value);
+            }
+        }
+        return cacheControl;
+    }
+
+    private void parse(String header) {
+        int length = header.length();
+        int position = 0;
+
+        while (position < length) {
+            // Directive name...
+            int nameStart = skipWhitespace(header, position);
+            int nameEnd = nameStart;
+            while (nameEnd < length && header.charAt(nameEnd) != '=' && header.charAt(nameEnd) != ',') {
+                nameEnd++;
+            }
+            String name = header.substring(nameStart, nameEnd).trim().toLowerCase();
+
+            // Optional value, token or quoted-string...
+            String value = null;
+            position = nameEnd;
+            if (position < length && header.charAt(position) == '=') {
+                int valueStart = skipWhitespace(header, position + 1);
+                if (valueStart < length && header.charAt(valueStart) == '"') {
+                    int valueEnd = header.indexOf('"', valueStart + 1);
+                    if (valueEnd == -1) {
+                        valueEnd = length;
+                    }
+                    value = header.substring(valueStart + 1, valueEnd);
+                    position = valueEnd + 1;
+                } else {
+                    int valueEnd = valueStart;
+                    while (valueEnd < length && header.charAt(valueEnd) != ',') {
+                        valueEnd++;
+                    }
+                    value = header.substring(valueStart, valueEnd).trim();
+                    position = valueEnd;
+                }
+            }
+            // Past the separator.
+            while (position < length && header.charAt(position) != ',') {
+                position++;
+            }
+            position++;
+
+            apply(name, value);
+        }
+    }
+
+    private void apply(String name, String value) {
+        if (name.equals("no-store")) {
+            noStore = true;
+        } else if (name.equals("no-cache")) {
+            // A no-cache field list is treated as unqualified no-cache i.e. always revalidate.
+            noCache = true;
+        } else if (name.equals("must-revalidate") || name.equals("proxy-revalidate")) {
+            mustRevalidate = true;
+        } else if (name.equals("private")) {
+            isPrivate = true;
+        } else if (name.equals("public")) {
+            isPublic = true;
+        } else if (name.equals("only-if-cached")) {
+            onlyIfCached = true;
+        } else if (name.equals("max-age")) {
+            maxAge = toSeconds(value, maxAge);
+        } else if (name.equals("max-stale")) {
+            maxStale = (value == null ? ANY_STALENESS : toSeconds(value, maxStale));
+        } else if (name.equals("min-fresh")) {
+            minFresh = toSeconds(value, minFresh);
+        }
+    }
+
+    /**
+     * Parse delta-seconds.  An invalid value is ignored, and a value too large is the largest value.
+     */
+    private static long toSeconds(String value, long defaultValue) {
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return defaultValue;
+            }
+        }
+        if (value.length() > 10) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.min(Long.parseLong(value), Integer.MAX_VALUE);
+    }
+
+    private static int skipWhitespace(String header, int position) {
+        while (position < header.length() && Character.isWhitespace(header.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+}
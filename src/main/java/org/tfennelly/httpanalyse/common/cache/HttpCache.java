@@ -0,0 +1,843 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.cache;
+
+import org.tfennelly.httpanalyse.common.HttpResponse;
+import org.tfennelly.httpanalyse.common.HttpResponseImpl;
+import org.tfennelly.httpanalyse.common.RequestTiming;
+import org.tfennelly.httpanalyse.common.store.BodyRef;
+import org.tfennelly.httpanalyse.common.store.BodyStore;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Private HTTP response cache (RFC 9111), sitting in front of an {@link Origin}.
+ * <p/>
+ * GET responses are stored if the response allows it and they can be reused i.e. they have a freshness lifetime
+ * (Cache-Control max-age, Expires, or heuristically from Last-Modified) or a validator (ETag or Last-Modified).
+ * A fresh stored response is served without contacting the origin.  A stale (or no-cache) one is revalidated with
+ * If-None-Match/If-Modified-Since, and a 304 refreshes it and serves its stored body, so polling an unchanged
+ * resource costs a 304 rather than a full download.  Variants selected by the response Vary header are stored
+ * separately.  Request Cache-Control (no-cache, no-store, max-age, max-stale, min-fresh, only-if-cached) and
+ * Pragma: no-cache are honoured.  A no-store request can still be served a stored response, but the response
+ * it gets from the origin is not stored.  A successful unsafe request (POST, PUT, DELETE...) invalidates the responses
+ * stored for its URL.
+ * <p/>
+ * Bodies are held on the heap, or in a {@link BodyStore} if one is supplied.  The cache is bounded by a max number
+ * of entries and a max number of body bytes, evicting the least recently used entries.  Responses
+ * whose body is more than an eighth of the max bytes are not stored, so one response can't flush the cache.
+ * <p/>
+ * Range and conditional requests from the caller are not answered from the cache.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class HttpCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Max variants (see Vary) stored per URL.
+     */
+    private static final int MAX_VARIANTS = 8;
+    /**
+     * Cap on the heuristic freshness lifetime of responses with only a Last-Modified.
+     */
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L;
+
+    private static final String[] HOP_BY_HOP_HEADERS = {"Connection", "Keep-Alive", "Proxy-Connection", "TE", "Trailer", "Transfer-Encoding", "Upgrade"};
+
+    private static final ThreadLocal<SimpleDateFormat[]> HTTP_DATE_FORMATS = new ThreadLocal<SimpleDateFormat[]>() {
+        @Override
+        protected SimpleDateFormat[] initialValue() {
+            // IMF-fixdate, then the obsolete RFC 850 and asctime formats (RFC 9110 section 5.6.7).
+            SimpleDateFormat[] formats = {
+                    new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US),
+                    new SimpleDateFormat("EEEE, dd-MMM-yy HH:mm:ss zzz", Locale.US),
+                    new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy", Locale.US)
+            };
+            for (SimpleDateFormat format : formats) {
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            }
+            return formats;
+        }
+    };
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final BodyStore bodyStore;
+
+    // Access ordered, for LRU eviction.  Guarded by "this".
+    private final LinkedHashMap<String, List<CacheEntry>> entries = new LinkedHashMap<String, List<CacheEntry>>(16, 0.75f, true);
+    private int entryCount;
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong bypasses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Sends requests the cache can't answer itself.
+     */
+    public interface Origin {
+
+        /**
+         * Send a request to the origin server, without following redirects.
+         * @param method The request method.
+         * @param content The request content, or null.
+         * @param contentType The request content type, or null.
+         * @param url The URL.
+         * @param headers Request headers.
+         * @return The response.
+         * @throws IOException Request failed.
+         */
+        HttpResponse send(String method, byte[] content, String contentType, URL url, Map<String, String> headers) throws IOException;
+    }
+
+    public HttpCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, null);
+    }
+
+    /**
+     * Constructor.
+     * @param maxEntries The max number of stored responses.
+     * @param maxBytes The max total length of the stored response bodies.
+     * @param bodyStore The store to hold stored response bodies in, or null to hold them on the heap.
+     */
+    public HttpCache(int maxEntries, long maxBytes, BodyStore bodyStore) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid 'maxEntries' value '" + maxEntries + "'. Must be greater than zero.");
+        }
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Invalid 'maxBytes' value '" + maxBytes + "'. Must be greater than zero.");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.bodyStore = bodyStore;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public BodyStore getBodyStore() {
+        return bodyStore;
+    }
+
+    /**
+     * Send a request through the cache.
+     * <p/>
+     * Responses served from the cache have an Age header and a total-only timing (the cache lookup).  A request
+     * with only-if-cached that can't be served from the cache gets a 504 (Gateway Timeout), as per RFC 9111.
+     *
+     * @param method The request method.
+     * @param content The request content, or null.
+     * @param contentType The request content type, or null.
+     * @param url The URL.
+     * @param headers Request headers.
+     * @param origin The origin the request is sent to if it can't be served from the cache.
+     * @return The response.
+     * @throws IOException Request to the origin failed.
+     */
+    public HttpResponse send(String method, byte[] content, String contentType, URL url, Map<String, String> headers, Origin origin) throws IOException {
+        AssertArgument.isNotNullAndNotEmpty(method, "method");
+        AssertArgument.isNotNull(url, "url");
+        AssertArgument.isNotNull(headers, "headers");
+        AssertArgument.isNotNull(origin, "origin");
+
+        String key = toKey(url);
+
+        if (!method.equals("GET")) {
+            bypasses.incrementAndGet();
+            HttpResponse response = origin.send(method, content, contentType, url, headers);
+            if (!isSafe(method) && response.statusCode() >= 200 && response.statusCode() < 400) {
+                invalidate(key);
+            }
+            return response;
+        }
+
+        CacheControl requestControl = CacheControl.parse(getRequestHeaders(headers, "Cache-Control"), getRequestHeader(headers, "Pragma"));
+        if (isConditionalOrRange(headers)) {
+            bypasses.incrementAndGet();
+            return origin.send(method, content, contentType, url, headers);
+        }
+
+        long startedAt = System.nanoTime();
+        CacheEntry entry = lookup(key, headers);
+        if (entry != null) {
+            long age = entry.currentAge(System.currentTimeMillis());
+            if (isFresh(entry, requestControl, age)) {
+                HttpResponse response = entry.toResponse(age, RequestTiming.totalOnly(System.nanoTime() - startedAt));
+                if (response != null) {
+                    hits.incrementAndGet();
+                    return response;
+                }
+                // Evicted from the body store under us.
+                entry = null;
+            }
+        }
+
+        if (requestControl.onlyIfCached) {
+            misses.incrementAndGet();
+            return new HttpResponseImpl(504, "Gateway Timeout", Collections.<String, List<String>>emptyMap(), null, (byte[]) null,
+                    null, RequestTiming.totalOnly(System.nanoTime() - startedAt));
+        }
+
+        if (entry != null && entry.hasValidator()) {
+            revalidations.incrementAndGet();
+
+            Map<String, String> conditionalHeaders = new LinkedHashMap<String, String>(headers);
+            if (entry.etag != null) {
+                conditionalHeaders.put("If-None-Match", entry.etag);
+            }
+            if (entry.lastModified != null) {
+                conditionalHeaders.put("If-Modified-Since", entry.lastModified);
+            }
+
+            long requestTime = System.currentTimeMillis();
+            HttpResponse response = origin.send(method, content, contentType, url, conditionalHeaders);
+            long responseTime = System.currentTimeMillis();
+
+            if (response.statusCode() != 304) {
+                store(key, entry, headers, requestControl, response, requestTime, responseTime);
+                return response;
+            }
+
+            release(response);
+            CacheEntry freshened = new CacheEntry(entry, response.headerFields(), requestTime, responseTime);
+            if (!requestControl.noStore) {
+                replace(key, entry, freshened);
+            }
+            HttpResponse freshenedResponse = freshened.toResponse(freshened.currentAge(responseTime), response.getTiming());
+            if (freshenedResponse != null) {
+                notModified.incrementAndGet();
+                return freshenedResponse;
+            }
+            // Evicted from the body store under us... need the body after all.
+        }
+
+        misses.incrementAndGet();
+        long requestTime = System.currentTimeMillis();
+        HttpResponse response = origin.send(method, content, contentType, url, headers);
+        long responseTime = System.currentTimeMillis();
+        store(key, entry, headers, requestControl, response, requestTime, responseTime);
+
+        return response;
+    }
+
+    /**
+     * Remove the responses stored for a URL.
+     * @param url The URL.
+     */
+    public void invalidate(URL url) {
+        AssertArgument.isNotNull(url, "url");
+        invalidate(toKey(url));
+    }
+
+    /**
+     * Remove all stored responses.
+     */
+    public void clear() {
+        List<CacheEntry> removed = new ArrayList<CacheEntry>();
+        synchronized (this) {
+            for (List<CacheEntry> variants : entries.values()) {
+                removed.addAll(variants);
+            }
+            entries.clear();
+            entryCount = 0;
+            bytes = 0;
+        }
+        discard(removed);
+    }
+
+    public HttpCacheStats getStats() {
+        int currentEntries;
+        long currentBytes;
+        synchronized (this) {
+            currentEntries = entryCount;
+            currentBytes = bytes;
+        }
+        return new HttpCacheStats(hits.get(), misses.get(), revalidations.get(), notModified.get(), bypasses.get(), stores.get(),
+                invalidations.get(), evictions.get(), currentEntries, currentBytes);
+    }
+
+    private void invalidate(String key) {
+        List<CacheEntry> removed;
+        synchronized (this) {
+            removed = entries.remove(key);
+            if (removed == null) {
+                return;
+            }
+            for (CacheEntry entry : removed) {
+                entryCount--;
+                bytes -= entry.length;
+            }
+        }
+        invalidations.addAndGet(removed.size());
+        discard(removed);
+    }
+
+    private synchronized CacheEntry lookup(String key, Map<String, String> requestHeaders) {
+        List<CacheEntry> variants = entries.get(key);
+        if (variants == null) {
+            return null;
+        }
+        for (CacheEntry entry : variants) {
+            if (entry.matches(requestHeaders)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store an origin response, if allowed and useful.  The response replaces the stale entry it was fetched for.
+     */
+    private void store(String key, CacheEntry stale, Map<String, String> requestHeaders, CacheControl requestControl, HttpResponse response,
+                       long requestTime, long responseTime) {
+        CacheEntry entry = null;
+        try {
+            if (isStorable(requestControl, response)) {
+                entry = CacheEntry.create(this, key, requestHeaders, response, requestTime, responseTime);
+            }
+        } catch (IOException e) {
+            // Body store write failed... just not cached.
+        }
+
+        if (entry == null) {
+            if (stale != null && !requestControl.noStore) {
+                // Superseded by a response that can't be stored.
+                replace(key, stale, null);
+            }
+            return;
+        }
+        stores.incrementAndGet();
+
+        List<CacheEntry> removed = new ArrayList<CacheEntry>();
+        synchronized (this) {
+            List<CacheEntry> variants = entries.get(key);
+            if (variants == null) {
+                variants = new ArrayList<CacheEntry>(1);
+                entries.put(key, variants);
+            }
+            for (Iterator<CacheEntry> iterator = variants.iterator(); iterator.hasNext(); ) {
+                CacheEntry variant = iterator.next();
+                if (variant == stale || variant.sameVariant(entry)) {
+                    iterator.remove();
+                    removed.add(variant);
+                    entryCount--;
+                    bytes -= variant.length;
+                }
+            }
+            if (variants.size() == MAX_VARIANTS) {
+                CacheEntry oldest = variants.remove(0);
+                removed.add(oldest);
+                entryCount--;
+                bytes -= oldest.length;
+                evictions.incrementAndGet();
+            }
+            variants.add(entry);
+            entryCount++;
+            bytes += entry.length;
+
+            evict(removed);
+        }
+        discard(removed);
+    }
+
+    /**
+     * Replace a (revalidated) entry, or just remove it if the replacement is null.  A no-op if the entry's gone.
+     */
+    private void replace(String key, CacheEntry entry, CacheEntry replacement) {
+        CacheEntry removed = null;
+        synchronized (this) {
+            List<CacheEntry> variants = entries.get(key);
+            if (variants == null) {
+                return;
+            }
+            int index = variants.indexOf(entry);
+            if (index == -1) {
+                return;
+            }
+            if (replacement != null) {
+                // Same body... the replacement takes over the entry's body.
+                variants.set(index, replacement);
+            } else {
+                variants.remove(index);
+                entryCount--;
+                bytes -= entry.length;
+                if (variants.isEmpty()) {
+                    entries.remove(key);
+                }
+                removed = entry;
+            }
+        }
+        if (removed != null) {
+            discard(Collections.singletonList(removed));
+        }
+    }
+
+    /**
+     * Evict least recently used URLs until the cache is within its bounds.  Must hold the lock.
+     */
+    private void evict(List<CacheEntry> evicted) {
+        Iterator<List<CacheEntry>> iterator = entries.values().iterator();
+        while ((entryCount > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+            List<CacheEntry> variants = iterator.next();
+            iterator.remove();
+            for (CacheEntry entry : variants) {
+                entryCount--;
+                bytes -= entry.length;
+                evicted.add(entry);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Free the bodies of removed entries.  Called without the lock, as releasing from a body store is disk I/O.
+     */
+    private void discard(List<CacheEntry> removed) {
+        for (CacheEntry entry : removed) {
+            if (entry.bodyRef != null) {
+                try {
+                    bodyStore.release(entry.bodyRef);
+                } catch (IOException e) {
+                    // Only leaves the body in the store.
+                }
+            }
+        }
+    }
+
+    private boolean isStorable(CacheControl requestControl, HttpResponse response) {
+        int statusCode = response.statusCode();
+        if (statusCode < 200 || statusCode == 206 || statusCode == 304) {
+            return false;
+        }
+        CacheControl responseControl = CacheControl.parse(getHeaders(response.headerFields(), "Cache-Control"), null);
+        if (responseControl.noStore || requestControl.noStore) {
+            return false;
+        }
+        for (String vary : getVaryNames(response.headerFields())) {
+            if (vary.equals("*")) {
+                return false;
+            }
+        }
+        if (contentLength(response) > maxBytes / 8) {
+            return false;
+        }
+        boolean explicitlyCacheable = responseControl.maxAge >= 0 || responseControl.isPublic || responseControl.isPrivate
+                || getHeader(response.headerFields(), "Expires") != null;
+        if (!explicitlyCacheable && !isHeuristicallyCacheable(statusCode)) {
+            return false;
+        }
+        // Only worth storing if it can be served fresh, or revalidated.
+        return freshnessLifetime(statusCode, response.headerFields(), responseControl, System.currentTimeMillis()) > 0
+                || getHeader(response.headerFields(), "ETag") != null
+                || getHeader(response.headerFields(), "Last-Modified") != null;
+    }
+
+    private static boolean isFresh(CacheEntry entry, CacheControl requestControl, long age) {
+        if (requestControl.noCache || entry.noCache) {
+            return false;
+        }
+        if (requestControl.maxAge >= 0 && age > requestControl.maxAge * 1000) {
+            return false;
+        }
+        if (requestControl.minFresh >= 0 && entry.freshnessLifetime - age < requestControl.minFresh * 1000) {
+            return false;
+        }
+        if (entry.freshnessLifetime > age) {
+            return true;
+        }
+        // Stale... the client may accept that, unless the origin forbids it.
+        if (requestControl.maxStale < 0 || entry.mustRevalidate) {
+            return false;
+        }
+        return requestControl.maxStale == CacheControl.ANY_STALENESS || age - entry.freshnessLifetime <= requestControl.maxStale * 1000;
+    }
+
+    /**
+     * Freshness lifetime (RFC 9111 section 4.2.1), in milliseconds.
+     */
+    private static long freshnessLifetime(int statusCode, Map<String, List<String>> headerFields, CacheControl responseControl, long responseTime) {
+        if (responseControl.maxAge >= 0) {
+            return responseControl.maxAge * 1000;
+        }
+
+        long date = parseHttpDate(getHeader(headerFields, "Date"));
+        if (date == -1) {
+            date = responseTime;
+        }
+
+        String expires = getHeader(headerFields, "Expires");
+        if (expires != null) {
+            // An invalid Expires (e.g. "0") is in the past.
+            long expiresAt = parseHttpDate(expires);
+            return (expiresAt == -1 ? 0 : Math.max(0, expiresAt - date));
+        }
+
+        long lastModified = parseHttpDate(getHeader(headerFields, "Last-Modified"));
+        if (lastModified != -1 && isHeuristicallyCacheable(statusCode)) {
+            return Math.min(Math.max(0, date - lastModified) / 10, MAX_HEURISTIC_LIFETIME);
+        }
+
+        return 0;
+    }
+
+    private static boolean isHeuristicallyCacheable(int statusCode) {
+        switch (statusCode) {
+            case 200:
+            case 203:
+            case 204:
+            case 300:
+            case 301:
+            case 308:
+            case 404:
+            case 405:
+            case 410:
+            case 414:
+            case 501:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isSafe(String method) {
+        return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS") || method.equals("TRACE");
+    }
+
+    private static boolean isConditionalOrRange(Map<String, String> headers) {
+        return getRequestHeader(headers, "If-None-Match") != null || getRequestHeader(headers, "If-Modified-Since") != null
+                || getRequestHeader(headers, "If-Match") != null || getRequestHeader(headers, "If-Unmodified-Since") != null
+                || getRequestHeader(headers, "Range") != null;
+    }
+
+    private static String toKey(URL url) {
+        String key = url.toExternalForm();
+        int fragmentIndex = key.indexOf('#');
+        if (fragmentIndex != -1) {
+            key = key.substring(0, fragmentIndex);
+        }
+        return key;
+    }
+
+    private static void release(HttpResponse response) {
+        try {
+            response.release();
+        } catch (IOException e) {
+            // Only leaves the body in the store.
+        }
+    }
+
+    private static int contentLength(HttpResponse response) {
+        if (response instanceof HttpResponseImpl) {
+            HttpResponseImpl responseImpl = (HttpResponseImpl) response;
+            if (responseImpl.getBodyRef() != null) {
+                // Without reading it from the body store.
+                return responseImpl.getBodyRef().getLength();
+            }
+            ByteBuffer contentBuffer = responseImpl.getContentBuffer();
+            return (contentBuffer != null ? contentBuffer.remaining() : 0);
+        }
+        byte[] content = response.content();
+        return (content != null ? content.length : 0);
+    }
+
+    private static String[] getVaryNames(Map<String, List<String>> headerFields) {
+        List<String> varyHeaders = getHeaders(headerFields, "Vary");
+        if (varyHeaders == null) {
+            return new String[0];
+        }
+        List<String> names = new ArrayList<String>();
+        for (String varyHeader : varyHeaders) {
+            if (varyHeader == null) {
+                continue;
+            }
+            for (String name : varyHeader.split(",")) {
+                name = name.trim();
+                if (name.length() != 0) {
+                    names.add(name.toLowerCase());
+                }
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    private static List<String> getHeaders(Map<String, List<String>> headerFields, String name) {
+        for (Entry<String, List<String>> header : headerFields.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String getHeader(Map<String, List<String>> headerFields, String name) {
+        List<String> values = getHeaders(headerFields, name);
+        return (values != null ? values.get(0) : null);
+    }
+
+    private static String getRequestHeader(Map<String, String> headers, String name) {
+        for (Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static List<String> getRequestHeaders(Map<String, String> headers, String name) {
+        String value = getRequestHeader(headers, name);
+        return (value != null ? Collections.singletonList(value) : null);
+    }
+
+    private static long parseHttpDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        for (SimpleDateFormat format : HTTP_DATE_FORMATS.get()) {
+            try {
+                return format.parse(value.trim()).getTime();
+            } catch (ParseException e) {
+                // Try the next format.
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A stored response.  Immutable... revalidation replaces the entry with a freshened one sharing its body.
+     */
+    private static final class CacheEntry {
+
+        private final HttpCache cache;
+        private final String[] varyNames;
+        private final String[] varyValues;
+        private final int statusCode;
+        private final String statusMessage;
+        private final Map<String, List<String>> headerFields;
+        private final String contentType;
+        private final Certificate[] serverCerts;
+        // One of...
+        private final byte[] body;
+        private final BodyRef bodyRef;
+        private final int length;
+
+        private final long requestTime;
+        private final long responseTime;
+        private final long correctedInitialAge;
+        private final long freshnessLifetime;
+        private final boolean noCache;
+        private final boolean mustRevalidate;
+        private final String etag;
+        private final String lastModified;
+
+        private CacheEntry(HttpCache cache, String[] varyNames, String[] varyValues, int statusCode, String statusMessage,
+                           Map<String, List<String>> headerFields, String contentType, Certificate[] serverCerts,
+                           byte[] body, BodyRef bodyRef, int length, long requestTime, long responseTime) {
+            this.cache = cache;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+            this.statusCode = statusCode;
+            this.statusMessage = statusMessage;
+            this.headerFields = headerFields;
+            this.contentType = contentType;
+            this.serverCerts = serverCerts;
+            this.body = body;
+            this.bodyRef = bodyRef;
+            this.length = length;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+
+            CacheControl responseControl = CacheControl.parse(getHeaders(headerFields, "Cache-Control"), null);
+            this.freshnessLifetime = freshnessLifetime(statusCode, headerFields, responseControl, responseTime);
+            this.noCache = responseControl.noCache;
+            this.mustRevalidate = responseControl.mustRevalidate;
+            this.etag = getHeader(headerFields, "ETag");
+            this.lastModified = getHeader(headerFields, "Last-Modified");
+
+            // RFC 9111 section 4.2.3...
+            long date = parseHttpDate(getHeader(headerFields, "Date"));
+            long apparentAge = (date == -1 ? 0 : Math.max(0, responseTime - date));
+            long ageValue = parseAge(getHeader(headerFields, "Age"));
+            long correctedAgeValue = ageValue + (responseTime - requestTime);
+            this.correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+        }
+
+        /**
+         * Freshened copy of a revalidated entry, with the 304 response's headers merged in (RFC 9111 section 3.2).
+         */
+        private CacheEntry(CacheEntry entry, Map<String, List<String>> notModifiedHeaders, long requestTime, long responseTime) {
+            this(entry.cache, entry.varyNames, entry.varyValues, entry.statusCode, entry.statusMessage,
+                    mergeHeaders(entry.headerFields, notModifiedHeaders), entry.contentType, entry.serverCerts,
+                    entry.body, entry.bodyRef, entry.length, requestTime, responseTime);
+        }
+
+        private static CacheEntry create(HttpCache cache, String key, Map<String, String> requestHeaders, HttpResponse response,
+                                         long requestTime, long responseTime) throws IOException {
+            String[] varyNames = getVaryNames(response.headerFields());
+            String[] varyValues = new String[varyNames.length];
+            for (int i = 0; i < varyNames.length; i++) {
+                String value = getRequestHeader(requestHeaders, varyNames[i]);
+                varyValues[i] = (value != null ? value.trim() : null);
+            }
+
+            byte[] body = null;
+            BodyRef bodyRef = null;
+            int length = 0;
+            if (response.hasContent()) {
+                if (cache.bodyStore != null) {
+                    HttpResponseImpl responseImpl = (response instanceof HttpResponseImpl ? (HttpResponseImpl) response : null);
+                    if (responseImpl != null && responseImpl.getBodyStore() == cache.bodyStore && responseImpl.getBodyRef() != null
+                            && cache.bodyStore.retain(responseImpl.getBodyRef())) {
+                        // Already in the store... just take a reference.
+                        bodyRef = responseImpl.getBodyRef();
+                    } else {
+                        bodyRef = cache.bodyStore.put(response.content());
+                    }
+                    length = bodyRef.getLength();
+                } else {
+                    // Straight from a pooled buffer, if that's where the content is.
+                    ByteBuffer content = (response instanceof HttpResponseImpl ? ((HttpResponseImpl) response).getContentBuffer() : ByteBuffer.wrap(response.content()));
+                    body = new byte[content.remaining()];
+                    content.duplicate().get(body);
+                    length = body.length;
+                }
+            }
+
+            return new CacheEntry(cache, varyNames, varyValues, response.statusCode(), response.statusMessage(),
+                    new LinkedHashMap<String, List<String>>(response.headerFields()), response.contentType(), response.getServerCerts(),
+                    body, bodyRef, length, requestTime, responseTime);
+        }
+
+        private boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+
+        private long currentAge(long now) {
+            return correctedInitialAge + Math.max(0, now - responseTime);
+        }
+
+        private boolean matches(Map<String, String> requestHeaders) {
+            for (int i = 0; i < varyNames.length; i++) {
+                String value = getRequestHeader(requestHeaders, varyNames[i]);
+                if (value != null) {
+                    value = value.trim();
+                }
+                if (value == null ? varyValues[i] != null : !value.equals(varyValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean sameVariant(CacheEntry other) {
+            if (varyNames.length != other.varyNames.length) {
+                return false;
+            }
+            for (int i = 0; i < varyNames.length; i++) {
+                if (!varyNames[i].equals(other.varyNames[i])) {
+                    return false;
+                }
+                if (varyValues[i] == null ? other.varyValues[i] != null : !varyValues[i].equals(other.varyValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Create a response from the entry.
+         * @return The response, or null if the body is no longer in the body store.
+         */
+        private HttpResponse toResponse(long age, RequestTiming timing) throws IOException {
+            byte[] content = null;
+            if (bodyRef != null) {
+                content = cache.bodyStore.get(bodyRef);
+                if (content == null) {
+                    return null;
+                }
+            } else if (body != null) {
+                // Copied... the caller may modify the response content.
+                content = body.clone();
+            }
+
+            Map<String, List<String>> responseHeaders = new LinkedHashMap<String, List<String>>(headerFields);
+            removeHeader(responseHeaders, "Age");
+            responseHeaders.put("Age", Collections.singletonList(Long.toString(age / 1000)));
+
+            return new HttpResponseImpl(statusCode, statusMessage, responseHeaders, contentType, content, serverCerts, timing);
+        }
+
+        private static Map<String, List<String>> mergeHeaders(Map<String, List<String>> storedHeaders, Map<String, List<String>> notModifiedHeaders) {
+            Map<String, List<String>> merged = new LinkedHashMap<String, List<String>>(storedHeaders);
+            for (Entry<String, List<String>> header : notModifiedHeaders.entrySet()) {
+                String name = header.getKey();
+                if (name == null || name.equalsIgnoreCase("Content-Length") || isHopByHop(name)) {
+                    continue;
+                }
+                removeHeader(merged, name);
+                merged.put(name, header.getValue());
+            }
+            return merged;
+        }
+
+        private static void removeHeader(Map<String, List<String>> headerFields, String name) {
+            for (Iterator<String> iterator = headerFields.keySet().iterator(); iterator.hasNext(); ) {
+                if (name.equalsIgnoreCase(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        private static boolean isHopByHop(String name) {
+            for (String hopByHop : HOP_BY_HOP_HEADERS) {
+                if (hopByHop.equalsIgnoreCase(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static long parseAge(String value) {
+            if (value == null) {
+                return 0;
+            }
+            try {
+                return Math.max(0, Long.parseLong(value.trim())) * 1000;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.cache;
+
+/**
+ * Point in time snapshot of {@link HttpCache} statistics.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class HttpCacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long revalidations;
+    private final long notModified;
+    private final long bypasses;
+    private final long stores;
+    private final long invalidations;
+    private final long evictions;
+    private final int entries;
+    private final long bytes;
+
+    HttpCacheStats(long hits, long misses, long revalidations, long notModified, long bypasses, long stores, long invalidations,
+                   long evictions, int entries, long bytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.revalidations = revalidations;
+        this.notModified = notModified;
+        this.bypasses = bypasses;
+        this.stores = stores;
+        this.invalidations = invalidations;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Get the number of requests answered with a fresh stored response, without contacting the origin.
+     * @return The number of hits.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of cacheable requests with no usable stored response, sent to the origin unconditionally.
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of stale (or no-cache) stored responses revalidated with a conditional request.
+     * @return The number of revalidations.
+     */
+    public long getRevalidations() {
+        return revalidations;
+    }
+
+    /**
+     * Get the number of revalidations answered with a 304 (Not Modified) i.e. served from the cache without
+     * transferring the body.
+     * @return The number of 304s.
+     */
+    public long getNotModified() {
+        return notModified;
+    }
+
+    /**
+     * Get the number of requests passed straight to the origin e.g. unsafe methods, no-store and conditional requests.
+     * @return The number of bypasses.
+     */
+    public long getBypasses() {
+        return bypasses;
+    }
+
+    /**
+     * Get the number of origin responses stored.
+     * @return The number of stores.
+     */
+    public long getStores() {
+        return stores;
+    }
+
+    /**
+     * Get the number of stored responses dropped because an unsafe request changed their resource.
+     * @return The number of invalidations.
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Get the number of stored responses dropped to keep the cache within its max entries and bytes.
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * Get the total length of the stored response bodies.
+     * @return The stored body bytes.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the ratio of cacheable requests served without transferring a body (hits and 304s).
+     * @return The hit ratio, 0 if there have been no cacheable requests.
+     */
+    public double getHitRatio() {
+        long lookups = hits + misses + revalidations;
+        if (lookups == 0) {
+            return 0;
+        }
+        return (double) (hits + notModified) / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + hits + ", misses: " + misses + ", revalidations: " + revalidations + ", not modified: " + notModified
+                + ", bypasses: " + bypasses + ", stores: " + stores + ", invalidations: " + invalidations + ", evictions: " + evictions
+                + ", entries: " + entries + ", bytes: " + bytes;
+    }
+}
@@ -0,0 +1,987 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.capture;
+
+import org.tfennelly.httpanalyse.common.RequestTiming;
+import org.tfennelly.httpanalyse.common.store.BodyRef;
+import org.tfennelly.httpanalyse.common.store.BodyStore;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.CharsetUtils;
+import org.tfennelly.httpanalyse.common.util.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of captured request/response exchanges.
+ * <p/>
+ * The log is a directory of segment files, each named after the sequence number of its first exchange.  New
+ * segments are preallocated and memory mapped, so an append is a copy into the page cache, never a write
+ * system call.  When an exchange doesn't fit in the active segment, the segment is sealed (forced, trimmed
+ * to its records and its index written) and a new segment is started.
+ * <p/>
+ * Each record is framed with its length and a CRC32 of its content.  Opening a log recovers a segment that
+ * wasn't sealed (e.g. after a crash) up to its last intact record.
+ * <p/>
+ * Each segment has a sparse index, with an entry every {@link #INDEX_INTERVAL} bytes, mapping a sequence number
+ * to its record's position.  Looking up an exchange is a binary search of its segment's index followed by a
+ * short forward scan.
+ * <p/>
+ * {@link #appendAsync(CapturedExchange)} hands the exchange to a background writer thread, so recording from
+ * the request path never waits on the log.  Exchanges are dropped (and counted) if the writer falls more than
+ * the queue capacity behind.
+ * <p/>
+ * Thread safe.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class CaptureLog implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
+    public static final int INDEX_INTERVAL = 4096;
+    public static final String SEGMENT_SUFFIX = ".capture";
+    public static final String INDEX_SUFFIX = ".index";
+
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int MAX_RECORD_LENGTH = Integer.MAX_VALUE - 1024;
+    private static final int INDEX_MAGIC = 0x48414349;
+    private static final int INDEX_VERSION = 1;
+    // Body length marker for a body recorded by reference to the body store.
+    private static final int BODY_REF = -2;
+
+    private final File directory;
+    private final int segmentSize;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+
+    // Guarded by writeLock...
+    private final Object writeLock = new Object();
+    private final CRC32 writeCrc = new CRC32();
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(64 * 1024);
+    private Segment activeSegment;
+    private long nextSequence;
+
+    private final BlockingQueue<QueuedExchange> queue;
+    private final Object queueLock = new Object();
+    private final AtomicLong submitted = new AtomicLong();
+    private long written;
+    private volatile Thread writerThread;
+    private volatile IOException asyncError;
+    private volatile boolean closed;
+    private volatile BodyStore bodyStore;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Open (or create) the capture log in the supplied directory.
+     * @param directory The log directory.
+     * @throws IOException Error opening or recovering the log.
+     */
+    public CaptureLog(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Open (or create) the capture log in the supplied directory.
+     * @param directory The log directory.
+     * @param segmentSize The segment size.  An exchange larger than this gets a segment of its own.
+     * @param queueCapacity The max number of exchanges queued for the asynchronous writer.
+     * @throws IOException Error opening or recovering the log.
+     */
+    public CaptureLog(File directory, int segmentSize, int queueCapacity) throws IOException {
+        AssertArgument.isNotNull(directory, "directory");
+        if (segmentSize < INDEX_INTERVAL) {
+            throw new IllegalArgumentException("Invalid 'segmentSize' value '" + segmentSize + "'. Must be at least " + INDEX_INTERVAL + ".");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid 'queueCapacity' value '" + queueCapacity + "'. Must be greater than zero.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create capture log directory '" + directory.getAbsolutePath() + "'.");
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.queue = new ArrayBlockingQueue<QueuedExchange>(queueCapacity);
+        open();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Set the store that response bodies are written to.
+     * <p/>
+     * The response bodies of exchanges appended after this are put in the store and recorded by reference, so a
+     * body captured any number of times is stored once.  Each record holds a reference on its body in the store.
+     * Exchanges read from the log read their bodies back from the store, so it must be the store the log was
+     * written with.  Set before appending.
+     * @param bodyStore The body store, or null to record bodies in the log.
+     */
+    public void setBodyStore(BodyStore bodyStore) {
+        this.bodyStore = bodyStore;
+    }
+
+    public BodyStore getBodyStore() {
+        return bodyStore;
+    }
+
+    /**
+     * Get the sequence number the next appended exchange will get.
+     * @return The next sequence number.
+     */
+    public long getNextSequence() {
+        synchronized (writeLock) {
+            return nextSequence;
+        }
+    }
+
+    /**
+     * Append an exchange to the log, on the calling thread.
+     * @param exchange The exchange.
+     * @return The sequence number assigned to the exchange.
+     * @throws IOException Error appending to the log.
+     */
+    public long append(CapturedExchange exchange) throws IOException {
+        AssertArgument.isNotNull(exchange, "exchange");
+        synchronized (writeLock) {
+            assertOpen();
+            return write(exchange, false);
+        }
+    }
+
+    /**
+     * Queue an exchange for appending to the log by the background writer.
+     * <p/>
+     * Never blocks.  Write failures are counted in the {@link #getStats() stats} and reported by the next
+     * {@link #flush()} or {@link #close()}.
+     * @param exchange The exchange.
+     * @return True if the exchange was queued, false if it was dropped because the queue is full (or the
+     * log is closed).
+     */
+    public boolean appendAsync(CapturedExchange exchange) {
+        AssertArgument.isNotNull(exchange, "exchange");
+        if (closed) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        startWriter();
+
+        // Take the record's reference on a stored body now, while the caller still holds its own.
+        boolean retained;
+        try {
+            retained = retainBody(exchange);
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            asyncError = e;
+            return false;
+        }
+
+        boolean queued;
+        // Checked again under the lock close() sets it under, so nothing is queued once the writer may have
+        // finished draining.
+        synchronized (queueLock) {
+            queued = (!closed && queue.offer(new QueuedExchange(exchange, retained)));
+            if (queued) {
+                submitted.incrementAndGet();
+            }
+        }
+        if (!queued) {
+            dropped.incrementAndGet();
+            if (retained) {
+                releaseBody(exchange.getResponseBodyRef());
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Get an exchange by sequence number.
+     * @param sequence The sequence number.
+     * @return The exchange, or null if there's no exchange with that sequence number in the log.
+     * @throws IOException Error reading the log.
+     */
+    public CapturedExchange read(long sequence) throws IOException {
+        CapturedExchange exchange = openCursor(sequence).next();
+        return (exchange != null && exchange.getSequence() == sequence ? exchange : null);
+    }
+
+    /**
+     * Open a cursor over the log.
+     * @param fromSequence The sequence number of the first exchange to read.
+     * @return The cursor.
+     */
+    public Cursor openCursor(long fromSequence) {
+        return new Cursor(fromSequence);
+    }
+
+    /**
+     * Wait for all queued exchanges to be written and force the active segment to disk.
+     * @throws IOException An asynchronous append failed since the last flush, or error forcing the segment.
+     * @throws InterruptedException Interrupted waiting for the queue to drain.
+     */
+    public void flush() throws IOException, InterruptedException {
+        long target = submitted.get();
+        synchronized (queueLock) {
+            while (written < target && writerThread != null && writerThread.isAlive()) {
+                queueLock.wait(100);
+            }
+        }
+        synchronized (writeLock) {
+            if (activeSegment != null && activeSegment.writeBuffer != null) {
+                activeSegment.writeBuffer.force();
+            }
+        }
+        throwAsyncError();
+    }
+
+    public CaptureStats getStats() {
+        return new CaptureStats(appended.get(), dropped.get(), failed.get(), bytes.get(), segments.size(), queue.size());
+    }
+
+    /**
+     * Close the log, writing all queued exchanges and sealing the active segment.
+     * @throws IOException An asynchronous append failed since the last flush, or error sealing the segment.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread writer;
+        synchronized (queueLock) {
+            closed = true;
+            writer = writerThread;
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the capture log writer to finish.", e);
+            }
+        }
+
+        synchronized (writeLock) {
+            if (activeSegment != null) {
+                seal(activeSegment);
+                activeSegment = null;
+            }
+        }
+        throwAsyncError();
+    }
+
+    private void assertOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Capture log '" + directory.getAbsolutePath() + "' is closed.");
+        }
+    }
+
+    private void throwAsyncError() throws IOException {
+        IOException error = asyncError;
+        if (error != null) {
+            asyncError = null;
+            throw new IOException("Asynchronous capture log append failed.", error);
+        }
+    }
+
+    private void startWriter() {
+        if (writerThread != null) {
+            return;
+        }
+        synchronized (queueLock) {
+            if (writerThread == null && !closed) {
+                writerThread = new NamedThreadFactory("httpanalyse-capture").newThread(new Runnable() {
+                    public void run() {
+                        drainQueue();
+                    }
+                });
+                writerThread.start();
+            }
+        }
+    }
+
+    private void drainQueue() {
+        List<QueuedExchange> batch = new ArrayList<QueuedExchange>();
+
+        while (true) {
+            QueuedExchange exchange;
+            try {
+                exchange = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                exchange = null;
+            }
+            if (exchange == null) {
+                if (closed && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+
+            batch.add(exchange);
+            queue.drainTo(batch);
+            synchronized (writeLock) {
+                for (QueuedExchange queued : batch) {
+                    try {
+                        write(queued.exchange, queued.bodyRetained);
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        asyncError = e;
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        asyncError = new IOException("Unexpected error appending exchange to capture log.", e);
+                    }
+                }
+            }
+            synchronized (queueLock) {
+                written += batch.size();
+                queueLock.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    private long write(CapturedExchange exchange, boolean bodyRetained) throws IOException {
+        long sequence = nextSequence;
+        BodyStore store = bodyStore;
+        BodyRef bodyRef = null;
+
+        if (store != null) {
+            if (bodyRetained) {
+                bodyRef = exchange.getResponseBodyRef();
+            } else if (retainBody(exchange)) {
+                bodyRef = exchange.getResponseBodyRef();
+            } else {
+                byte[] responseBody = exchange.getResponseBody();
+                if (responseBody != null) {
+                    bodyRef = store.put(responseBody);
+                }
+            }
+        }
+
+        boolean written = false;
+        try {
+            encode(exchange, sequence, bodyRef);
+            writeRecord(sequence);
+            written = true;
+        } finally {
+            if (!written && bodyRef != null) {
+                releaseBody(bodyRef);
+            }
+        }
+
+        return sequence;
+    }
+
+    private void writeRecord(long sequence) throws IOException {
+        int payloadLength = encodeBuffer.remaining();
+        int recordLength = RECORD_HEADER_LENGTH + payloadLength;
+
+        if (activeSegment == null || activeSegment.capacity - activeSegment.committed < recordLength) {
+            roll(recordLength);
+        }
+
+        Segment segment = activeSegment;
+        int position = segment.committed;
+        if (segment.indexSize == 0 || position - segment.lastIndexedPosition >= INDEX_INTERVAL) {
+            segment.addIndexEntry(sequence, position);
+        }
+
+        writeCrc.reset();
+        writeCrc.update(encodeBuffer.duplicate());
+
+        MappedByteBuffer out = segment.writeBuffer;
+        out.position(position);
+        out.putInt(payloadLength);
+        out.putInt((int) writeCrc.getValue());
+        out.put(encodeBuffer);
+
+        // Publishes the record to cursors.
+        segment.committed = position + recordLength;
+        segment.recordCount++;
+        nextSequence++;
+        appended.incrementAndGet();
+        bytes.addAndGet(recordLength);
+    }
+
+    /**
+     * Take a reference on the exchange's response body, if it's held in this log's body store.
+     * @return True if a reference was taken.
+     */
+    private boolean retainBody(CapturedExchange exchange) throws IOException {
+        BodyStore store = bodyStore;
+        BodyRef bodyRef = exchange.getResponseBodyRef();
+        if (store == null || bodyRef == null || exchange.getBodyStore() != store) {
+            return false;
+        }
+        if (!store.retain(bodyRef)) {
+            throw new IOException("Response body '" + bodyRef + "' of exchange " + exchange + " is no longer in body store '" + store.getDirectory().getAbsolutePath() + "'.");
+        }
+        return true;
+    }
+
+    private void releaseBody(BodyRef bodyRef) {
+        try {
+            bodyStore.release(bodyRef);
+        } catch (IOException e) {
+            // Only leaves the body in the store.
+        }
+    }
+
+    private void roll(int recordLength) throws IOException {
+        if (activeSegment != null) {
+            seal(activeSegment);
+            activeSegment = null;
+        }
+
+        Segment segment = new Segment(nextSequence, new File(directory, toFileName(nextSequence, SEGMENT_SUFFIX)));
+        FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            segment.capacity = Math.max(segmentSize, recordLength);
+            segment.writeBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segment.capacity);
+            // Never repositioned, so cursors can safely duplicate it while the writer appends.
+            segment.readView = segment.writeBuffer.duplicate();
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            channel.close();
+        }
+
+        segments.put(segment.firstSequence, segment);
+        activeSegment = segment;
+    }
+
+    private void seal(Segment segment) throws IOException {
+        segment.writeBuffer.force();
+
+        FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.truncate(segment.committed);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        writeIndex(segment);
+
+        segment.writeBuffer = null;
+        segment.sealed = true;
+        segment.readView = null;
+    }
+
+    private void open() throws IOException {
+        File[] segmentFiles = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segmentFiles == null) {
+            throw new IOException("Unable to list capture log directory '" + directory.getAbsolutePath() + "'.");
+        }
+        // Fixed width names, so name order is sequence order.
+        Arrays.sort(segmentFiles);
+
+        for (int i = 0; i < segmentFiles.length; i++) {
+            File file = segmentFiles[i];
+            String name = file.getName();
+            Segment segment;
+            try {
+                segment = new Segment(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid capture log segment file name '" + file.getAbsolutePath() + "'.", e);
+            }
+
+            if (!readIndex(segment)) {
+                // Not sealed (or the index is missing/stale)... scan it and drop any torn record.
+                recover(segment);
+                writeIndex(segment);
+            }
+            segment.sealed = true;
+
+            if (segment.recordCount == 0 && i == segmentFiles.length - 1) {
+                deleteSegment(segment);
+            } else {
+                segments.put(segment.firstSequence, segment);
+            }
+            nextSequence = segment.firstSequence + segment.recordCount;
+        }
+    }
+
+    private void recover(Segment segment) throws IOException {
+        FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long fileLength = channel.size();
+            if (fileLength > Integer.MAX_VALUE) {
+                throw new IOException("Invalid capture log segment '" + segment.file.getAbsolutePath() + "'. Too large.");
+            }
+
+            ByteBuffer view = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+            CRC32 crc = new CRC32();
+            int position = 0;
+
+            while (true) {
+                ByteBuffer payload = readRecord(view, position, (int) fileLength, crc);
+                if (payload == null) {
+                    break;
+                }
+                long sequence = payload.getLong(payload.position());
+                if (sequence != segment.firstSequence + segment.recordCount) {
+                    break;
+                }
+                if (segment.indexSize == 0 || position - segment.lastIndexedPosition >= INDEX_INTERVAL) {
+                    segment.addIndexEntry(sequence, position);
+                }
+                position = payload.limit();
+                segment.recordCount++;
+            }
+
+            segment.committed = position;
+            if (position < fileLength) {
+                channel.truncate(position);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private boolean readIndex(Segment segment) throws IOException {
+        File indexFile = toIndexFile(segment);
+        if (!indexFile.isFile()) {
+            return false;
+        }
+
+        DataInputStream index = new DataInputStream(Channels.newInputStream(FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)));
+        try {
+            if (index.readInt() != INDEX_MAGIC || index.readInt() != INDEX_VERSION) {
+                return false;
+            }
+            int committed = index.readInt();
+            long recordCount = index.readLong();
+            int entryCount = index.readInt();
+            if (committed != segment.file.length()) {
+                return false;
+            }
+
+            byte[] entries = new byte[entryCount * 12];
+            index.readFully(entries);
+            ByteBuffer entryBuffer = ByteBuffer.wrap(entries);
+            for (int i = 0; i < entryCount; i++) {
+                segment.addIndexEntry(entryBuffer.getLong(), entryBuffer.getInt());
+            }
+            segment.committed = committed;
+            segment.recordCount = recordCount;
+
+            return true;
+        } catch (IOException e) {
+            // Torn index... rebuilt from the segment.
+            segment.indexSize = 0;
+            return false;
+        } finally {
+            index.close();
+        }
+    }
+
+    private void writeIndex(Segment segment) throws IOException {
+        File indexFile = toIndexFile(segment);
+        File tmpFile = new File(directory, indexFile.getName() + ".tmp");
+        FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        DataOutputStream index = new DataOutputStream(Channels.newOutputStream(channel));
+
+        try {
+            ByteBuffer entries = ByteBuffer.allocate(28 + segment.indexSize * 12);
+            entries.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putInt(segment.committed).putLong(segment.recordCount).putInt(segment.indexSize);
+            synchronized (segment) {
+                for (int i = 0; i < segment.indexSize; i++) {
+                    entries.putLong(segment.indexSequences[i]).putInt(segment.indexPositions[i]);
+                }
+            }
+            index.write(entries.array(), 0, entries.position());
+            index.flush();
+            channel.force(true);
+        } finally {
+            index.close();
+        }
+
+        if (!tmpFile.renameTo(indexFile)) {
+            if (!indexFile.delete() || !tmpFile.renameTo(indexFile)) {
+                throw new IOException("Unable to write capture log index '" + indexFile.getAbsolutePath() + "'.");
+            }
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        toIndexFile(segment).delete();
+        segment.file.delete();
+    }
+
+    private File toIndexFile(Segment segment) {
+        return new File(directory, toFileName(segment.firstSequence, INDEX_SUFFIX));
+    }
+
+    private static String toFileName(long sequence, String suffix) {
+        return String.format("%020d", sequence) + suffix;
+    }
+
+    /**
+     * Read the record at the supplied position.
+     * @return The record payload (position to limit), or null if there's no intact record at the position.
+     */
+    private static ByteBuffer readRecord(ByteBuffer view, int position, int end, CRC32 crc) {
+        if (end - position < RECORD_HEADER_LENGTH) {
+            return null;
+        }
+        int payloadLength = view.getInt(position);
+        if (payloadLength < 8 || payloadLength > end - position - RECORD_HEADER_LENGTH) {
+            return null;
+        }
+
+        ByteBuffer payload = view.duplicate();
+        payload.limit(position + RECORD_HEADER_LENGTH + payloadLength);
+        payload.position(position + RECORD_HEADER_LENGTH);
+
+        crc.reset();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != view.getInt(position + 4)) {
+            return null;
+        }
+        return payload;
+    }
+
+    private void encode(CapturedExchange exchange, long sequence, BodyRef responseBodyRef) throws IOException {
+        encodeBuffer.clear();
+
+        putLong(sequence);
+        putLong(exchange.getStartedAt());
+        putString(exchange.getMethod());
+        putString(exchange.getUrl());
+        putInt(exchange.getRequestHeaders().size());
+        for (Entry<String, String> header : exchange.getRequestHeaders().entrySet()) {
+            putString(header.getKey());
+            putString(header.getValue());
+        }
+        putBytes(exchange.getRequestBody());
+
+        putInt(exchange.getStatusCode());
+        putString(exchange.getStatusMessage());
+        putInt(exchange.getResponseHeaders().size());
+        for (Entry<String, List<String>> header : exchange.getResponseHeaders().entrySet()) {
+            putString(header.getKey());
+            List<String> values = header.getValue();
+            putInt(values != null ? values.size() : 0);
+            if (values != null) {
+                for (String value : values) {
+                    putString(value);
+                }
+            }
+        }
+        putString(exchange.getContentType());
+        if (responseBodyRef != null) {
+            putInt(BODY_REF);
+            ensureRoom(BodyRef.DIGEST_LENGTH + 4);
+            encodeBuffer.put(responseBodyRef.getDigest());
+            encodeBuffer.putInt(responseBodyRef.getLength());
+        } else {
+            putBytes(exchange.getResponseBody());
+        }
+
+        RequestTiming timing = exchange.getTiming();
+        putLong(timing.getDnsNanos());
+        putLong(timing.getConnectNanos());
+        putLong(timing.getTlsHandshakeNanos());
+        putLong(timing.getRequestWriteNanos());
+        putLong(timing.getTimeToFirstByteNanos());
+        putLong(timing.getTransferNanos());
+        putLong(timing.getTotalNanos());
+        ensureRoom(1);
+        encodeBuffer.put((byte) ((timing.isConnectionReused() ? 1 : 0) | (timing.isTlsSessionResumed() ? 2 : 0)));
+        putString(exchange.getCertFingerprint());
+
+        encodeBuffer.flip();
+    }
+
+    private CapturedExchange decode(ByteBuffer payload) {
+        long sequence = payload.getLong();
+        long startedAt = payload.getLong();
+        String method = getString(payload);
+        String url = getString(payload);
+        int requestHeaderCount = payload.getInt();
+        Map<String, String> requestHeaders = new LinkedHashMap<String, String>();
+        for (int i = 0; i < requestHeaderCount; i++) {
+            requestHeaders.put(getString(payload), getString(payload));
+        }
+        byte[] requestBody = getBytes(payload);
+
+        int statusCode = payload.getInt();
+        String statusMessage = getString(payload);
+        int responseHeaderCount = payload.getInt();
+        Map<String, List<String>> responseHeaders = new LinkedHashMap<String, List<String>>();
+        for (int i = 0; i < responseHeaderCount; i++) {
+            String name = getString(payload);
+            int valueCount = payload.getInt();
+            List<String> values = new ArrayList<String>(valueCount);
+            for (int j = 0; j < valueCount; j++) {
+                values.add(getString(payload));
+            }
+            responseHeaders.put(name, values);
+        }
+        String contentType = getString(payload);
+        byte[] responseBody = null;
+        BodyRef responseBodyRef = null;
+        if (payload.getInt(payload.position()) == BODY_REF) {
+            payload.getInt();
+            byte[] digest = new byte[BodyRef.DIGEST_LENGTH];
+            payload.get(digest);
+            responseBodyRef = new BodyRef(digest, payload.getInt());
+        } else {
+            responseBody = getBytes(payload);
+        }
+
+        long dnsNanos = payload.getLong();
+        long connectNanos = payload.getLong();
+        long tlsHandshakeNanos = payload.getLong();
+        long requestWriteNanos = payload.getLong();
+        long timeToFirstByteNanos = payload.getLong();
+        long transferNanos = payload.getLong();
+        long totalNanos = payload.getLong();
+        int flags = payload.get();
+        RequestTiming timing = new RequestTiming(dnsNanos, connectNanos, tlsHandshakeNanos, requestWriteNanos, timeToFirstByteNanos,
+                transferNanos, totalNanos, (flags & 1) != 0, (flags & 2) != 0);
+        String certFingerprint = getString(payload);
+
+        if (responseBodyRef != null) {
+            return new CapturedExchange(sequence, startedAt, method, url, requestHeaders, requestBody, statusCode, statusMessage,
+                    responseHeaders, contentType, bodyStore, responseBodyRef, timing, certFingerprint);
+        }
+        return new CapturedExchange(sequence, startedAt, method, url, requestHeaders, requestBody, statusCode, statusMessage,
+                responseHeaders, contentType, responseBody, timing, certFingerprint);
+    }
+
+    private void putInt(int value) throws IOException {
+        ensureRoom(4);
+        encodeBuffer.putInt(value);
+    }
+
+    private void putLong(long value) throws IOException {
+        ensureRoom(8);
+        encodeBuffer.putLong(value);
+    }
+
+    private void putString(String value) throws IOException {
+        putBytes(value != null ? value.getBytes(CharsetUtils.UTF8) : null);
+    }
+
+    private void putBytes(byte[] value) throws IOException {
+        if (value == null) {
+            putInt(-1);
+            return;
+        }
+        ensureRoom(4L + value.length);
+        encodeBuffer.putInt(value.length);
+        encodeBuffer.put(value);
+    }
+
+    private void ensureRoom(long length) throws IOException {
+        if (encodeBuffer.remaining() >= length) {
+            return;
+        }
+
+        long required = encodeBuffer.position() + length;
+        if (required > MAX_RECORD_LENGTH) {
+            throw new IOException("Exchange too large to capture. Max record length is " + MAX_RECORD_LENGTH + " bytes.");
+        }
+        ByteBuffer grown = ByteBuffer.allocate((int) Math.min(MAX_RECORD_LENGTH, Math.max(required, (long) encodeBuffer.capacity() * 2)));
+        encodeBuffer.flip();
+        grown.put(encodeBuffer);
+        encodeBuffer = grown;
+    }
+
+    private static String getString(ByteBuffer payload) {
+        byte[] bytes = getBytes(payload);
+        return (bytes != null ? new String(bytes, CharsetUtils.UTF8) : null);
+    }
+
+    private static byte[] getBytes(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Forward only cursor over the log.
+     * <p/>
+     * A cursor follows the log as it's appended to.  {@link #next()} returns null when the cursor has caught up
+     * with the end of the log, and can be called again later to read newly appended exchanges.
+     * <p/>
+     * Not thread safe.
+     */
+    public final class Cursor {
+
+        private final CRC32 crc = new CRC32();
+        private long seekSequence;
+        private Segment segment;
+        private ByteBuffer view;
+        private int position;
+
+        private Cursor(long fromSequence) {
+            this.seekSequence = fromSequence;
+        }
+
+        /**
+         * Read the next exchange.
+         * @return The next exchange, or null if there are no more exchanges (yet).
+         * @throws IOException Error reading the log, or the log is corrupt.
+         */
+        public CapturedExchange next() throws IOException {
+            while (true) {
+                if (segment == null) {
+                    Entry<Long, Segment> entry = segments.floorEntry(seekSequence);
+                    if (entry == null) {
+                        entry = segments.firstEntry();
+                    }
+                    if (entry == null) {
+                        return null;
+                    }
+                    enter(entry.getValue());
+                }
+
+                // Read sealed before committed... committed is final once sealed.
+                boolean sealed = segment.sealed;
+                int end = segment.committed;
+
+                if (position < end) {
+                    ByteBuffer payload = readRecord(view(), position, end, crc);
+                    if (payload == null) {
+                        throw new IOException("Corrupt capture log segment '" + segment.file.getAbsolutePath() + "' at offset " + position + ".");
+                    }
+                    position = payload.limit();
+                    if (seekSequence >= 0 && payload.getLong(payload.position()) < seekSequence) {
+                        continue;
+                    }
+                    seekSequence = -1;
+                    return decode(payload);
+                } else if (!sealed) {
+                    return null;
+                }
+
+                Entry<Long, Segment> next = segments.higherEntry(segment.firstSequence);
+                if (next == null) {
+                    return null;
+                }
+                enter(next.getValue());
+            }
+        }
+
+        private void enter(Segment segment) {
+            this.segment = segment;
+            this.view = null;
+            this.position = (seekSequence >= 0 ? segment.floorPosition(seekSequence) : 0);
+        }
+
+        private ByteBuffer view() throws IOException {
+            if (view == null) {
+                ByteBuffer readView = segment.readView;
+                if (readView == null) {
+                    readView = segment.mapSealed();
+                }
+                view = readView.duplicate();
+            }
+            return view;
+        }
+    }
+
+    private static final class Segment {
+
+        private final long firstSequence;
+        private final File file;
+        private long[] indexSequences = new long[64];
+        private int[] indexPositions = new int[64];
+        private int indexSize;
+        private int lastIndexedPosition;
+        private long recordCount;
+        private int capacity;
+        private MappedByteBuffer writeBuffer;
+        private volatile ByteBuffer readView;
+        private volatile int committed;
+        private volatile boolean sealed;
+
+        private Segment(long firstSequence, File file) {
+            this.firstSequence = firstSequence;
+            this.file = file;
+        }
+
+        private synchronized void addIndexEntry(long sequence, int position) {
+            if (indexSize == indexSequences.length) {
+                indexSequences = Arrays.copyOf(indexSequences, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+            indexSequences[indexSize] = sequence;
+            indexPositions[indexSize] = position;
+            indexSize++;
+            lastIndexedPosition = position;
+        }
+
+        /**
+         * Map a sealed segment read-only, once, for all cursors.
+         */
+        private synchronized ByteBuffer mapSealed() throws IOException {
+            if (readView == null) {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                try {
+                    readView = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } finally {
+                    channel.close();
+                }
+            }
+            return readView;
+        }
+
+        /**
+         * Get the position of the last indexed record at or before the supplied sequence number.
+         */
+        private synchronized int floorPosition(long sequence) {
+            int index = Arrays.binarySearch(indexSequences, 0, indexSize, sequence);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            return (index >= 0 ? indexPositions[index] : 0);
+        }
+    }
+
+    private static final class QueuedExchange {
+
+        private final CapturedExchange exchange;
+        private final boolean bodyRetained;
+
+        private QueuedExchange(CapturedExchange exchange, boolean bodyRetained) {
+            this.exchange = exchange;
+            this.bodyRetained = bodyRetained;
+        }
+    }
+}
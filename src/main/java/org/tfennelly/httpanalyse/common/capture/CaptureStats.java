@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.capture;
+
+/**
+ * Point in time snapshot of {@link CaptureLog} statistics.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class CaptureStats {
+
+    private final long appended;
+    private final long dropped;
+    private final long failed;
+    private final long bytes;
+    private final int segments;
+    private final int queued;
+
+    CaptureStats(long appended, long dropped, long failed, long bytes, int segments, int queued) {
+        this.appended = appended;
+        this.dropped = dropped;
+        this.failed = failed;
+        this.bytes = bytes;
+        this.segments = segments;
+        this.queued = queued;
+    }
+
+    /**
+     * Get the number of exchanges appended since the log was opened.
+     * @return The number of appended exchanges.
+     */
+    public long getAppended() {
+        return appended;
+    }
+
+    /**
+     * Get the number of asynchronous appends dropped because the write queue was full.
+     * @return The number of dropped exchanges.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Get the number of asynchronous appends that failed to write.
+     * @return The number of failed exchanges.
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Get the number of bytes appended since the log was opened, incl. record framing.
+     * @return The number of bytes appended.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    @Override
+    public String toString() {
+        return "appended: " + appended + ", dropped: " + dropped + ", failed: " + failed + ", bytes: " + bytes + ", segments: " + segments + ", queued: " + queued;
+    }
+}
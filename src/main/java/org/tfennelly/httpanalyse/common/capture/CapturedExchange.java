@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.capture;
+
+import org.tfennelly.httpanalyse.common.HttpResponse;
+import org.tfennelly.httpanalyse.common.HttpResponseImpl;
+import org.tfennelly.httpanalyse.common.RequestTiming;
+import org.tfennelly.httpanalyse.common.security.HashUtil;
+import org.tfennelly.httpanalyse.common.store.BodyRef;
+import org.tfennelly.httpanalyse.common.store.BodyStore;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.io.IOException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A captured request/response exchange, as recorded in a {@link CaptureLog}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class CapturedExchange {
+
+    private final long sequence;
+    private final long startedAt;
+    private final String method;
+    private final String url;
+    private final Map<String, String> requestHeaders;
+    private final byte[] requestBody;
+    private final int statusCode;
+    private final String statusMessage;
+    private final Map<String, List<String>> responseHeaders;
+    private final String contentType;
+    private final byte[] responseBody;
+    private final BodyStore bodyStore;
+    private final BodyRef responseBodyRef;
+    private final RequestTiming timing;
+    private final String certFingerprint;
+
+    /**
+     * Constructor.
+     * @param sequence The log sequence number, or -1 if not yet recorded.
+     * @param startedAt The time the request was started, in milliseconds since the epoch.
+     * @param method The request method.
+     * @param url The request URL.
+     * @param requestHeaders The request headers.
+     * @param requestBody The request body, or null.
+     * @param statusCode The response status code.
+     * @param statusMessage The response status message, or null.
+     * @param responseHeaders The response headers.
+     * @param contentType The response content type, or null.
+     * @param responseBody The response body, or null.
+     * @param timing The request timing.
+     * @param certFingerprint The SHA-256 fingerprint (hex) of the server certificate, or null if not https.
+     */
+    public CapturedExchange(long sequence, long startedAt, String method, String url, Map<String, String> requestHeaders, byte[] requestBody,
+                            int statusCode, String statusMessage, Map<String, List<String>> responseHeaders, String contentType,
+                            byte[] responseBody, RequestTiming timing, String certFingerprint) {
+        this(sequence, startedAt, method, url, requestHeaders, requestBody, statusCode, statusMessage, responseHeaders, contentType,
+                responseBody, null, null, timing, certFingerprint);
+    }
+
+    /**
+     * Constructor for an exchange whose response body is held in a {@link BodyStore}.
+     * @param sequence The log sequence number, or -1 if not yet recorded.
+     * @param startedAt The time the request was started, in milliseconds since the epoch.
+     * @param method The request method.
+     * @param url The request URL.
+     * @param requestHeaders The request headers.
+     * @param requestBody The request body, or null.
+     * @param statusCode The response status code.
+     * @param statusMessage The response status message, or null.
+     * @param responseHeaders The response headers.
+     * @param contentType The response content type, or null.
+     * @param bodyStore The store holding the response body, or null if the body can't be read (only its reference
+     * is known).
+     * @param responseBodyRef The response body reference.
+     * @param timing The request timing.
+     * @param certFingerprint The SHA-256 fingerprint (hex) of the server certificate, or null if not https.
+     */
+    public CapturedExchange(long sequence, long startedAt, String method, String url, Map<String, String> requestHeaders, byte[] requestBody,
+                            int statusCode, String statusMessage, Map<String, List<String>> responseHeaders, String contentType,
+                            BodyStore bodyStore, BodyRef responseBodyRef, RequestTiming timing, String certFingerprint) {
+        this(sequence, startedAt, method, url, requestHeaders, requestBody, statusCode, statusMessage, responseHeaders, contentType,
+                null, bodyStore, responseBodyRef, timing, certFingerprint);
+        AssertArgument.isNotNull(responseBodyRef, "responseBodyRef");
+    }
+
+    private CapturedExchange(long sequence, long startedAt, String method, String url, Map<String, String> requestHeaders, byte[] requestBody,
+                             int statusCode, String statusMessage, Map<String, List<String>> responseHeaders, String contentType,
+                             byte[] responseBody, BodyStore bodyStore, BodyRef responseBodyRef, RequestTiming timing, String certFingerprint) {
+        AssertArgument.isNotNullAndNotEmpty(method, "method");
+        AssertArgument.isNotNullAndNotEmpty(url, "url");
+        AssertArgument.isNotNull(timing, "timing");
+        this.sequence = sequence;
+        this.startedAt = startedAt;
+        this.method = method;
+        this.url = url;
+        this.requestHeaders = (requestHeaders != null ? requestHeaders : Collections.<String, String>emptyMap());
+        this.requestBody = requestBody;
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.responseHeaders = (responseHeaders != null ? responseHeaders : Collections.<String, List<String>>emptyMap());
+        this.contentType = contentType;
+        this.responseBody = responseBody;
+        this.bodyStore = bodyStore;
+        this.responseBodyRef = responseBodyRef;
+        this.timing = timing;
+        this.certFingerprint = certFingerprint;
+    }
+
+    /**
+     * Create an (unrecorded) exchange from a request and its response.
+     * @param startedAt The time the request was started, in milliseconds since the epoch.
+     * @param method The request method.
+     * @param url The request URL.
+     * @param requestHeaders The request headers.
+     * @param requestBody The request body, or null.
+     * @param response The response.
+     * @return The exchange.
+     */
+    public static CapturedExchange fromResponse(long startedAt, String method, String url, Map<String, String> requestHeaders,
+                                                byte[] requestBody, HttpResponse response) {
+        AssertArgument.isNotNull(response, "response");
+        if (response instanceof HttpResponseImpl) {
+            HttpResponseImpl responseImpl = (HttpResponseImpl) response;
+            BodyRef bodyRef = responseImpl.getBodyRef();
+            if (bodyRef != null) {
+                // Keep the reference rather than reading the body back.
+                return new CapturedExchange(-1, startedAt, method, url, requestHeaders, requestBody, response.statusCode(), response.statusMessage(),
+                        response.headerFields(), response.contentType(), responseImpl.getBodyStore(), bodyRef, response.getTiming(),
+                        toFingerprint(response.getServerCerts()));
+            }
+        }
+        return new CapturedExchange(-1, startedAt, method, url, requestHeaders, requestBody, response.statusCode(), response.statusMessage(),
+                response.headerFields(), response.contentType(), response.content(), response.getTiming(), toFingerprint(response.getServerCerts()));
+    }
+
+    /**
+     * Get the sequence number assigned when the exchange was recorded.
+     * @return The sequence number, or -1 if not recorded.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Map<String, String> getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    public byte[] getRequestBody() {
+        return requestBody;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    public Map<String, List<String>> getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Get the response body.
+     * <p/>
+     * A body held in a {@link BodyStore} is read from the store.
+     * @return The response body, or null if there's no body (or it's held in a store that's not available).
+     * @throws IOException Error reading the body from the store.
+     */
+    public byte[] getResponseBody() throws IOException {
+        if (responseBodyRef != null) {
+            return (bodyStore != null ? bodyStore.get(responseBodyRef) : null);
+        }
+        return responseBody;
+    }
+
+    /**
+     * Get the response body length, without reading a body held in a {@link BodyStore}.
+     * @return The response body length, or -1 if there's no body.
+     */
+    public int getResponseBodyLength() {
+        if (responseBodyRef != null) {
+            return responseBodyRef.getLength();
+        }
+        return (responseBody != null ? responseBody.length : -1);
+    }
+
+    /**
+     * Get the reference to the response body, if it's held in a {@link BodyStore}.
+     * @return The response body reference, or null if the body is held in memory (or there's no body).
+     */
+    public BodyRef getResponseBodyRef() {
+        return responseBodyRef;
+    }
+
+    /**
+     * Get the store holding the response body.
+     * @return The body store, or null if the body is held in memory (or the store is not available).
+     */
+    public BodyStore getBodyStore() {
+        return bodyStore;
+    }
+
+    public RequestTiming getTiming() {
+        return timing;
+    }
+
+    public String getCertFingerprint() {
+        return certFingerprint;
+    }
+
+    CapturedExchange withSequence(long sequence) {
+        return new CapturedExchange(sequence, startedAt, method, url, requestHeaders, requestBody, statusCode, statusMessage,
+                responseHeaders, contentType, responseBody, bodyStore, responseBodyRef, timing, certFingerprint);
+    }
+
+    @Override
+    public String toString() {
+        return "#" + sequence + " " + method + " " + url + " -> " + statusCode + " (" + timing + ")";
+    }
+
+    private static String toFingerprint(Certificate[] serverCerts) {
+        if (serverCerts == null || serverCerts.length == 0) {
+            return null;
+        }
+        try {
+            return HashUtil.toSHA256String(serverCerts[0].getEncoded());
+        } catch (CertificateEncodingException e) {
+            return null;
+        }
+    }
+}
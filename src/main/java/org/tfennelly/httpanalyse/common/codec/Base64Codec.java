@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.codec;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Lookup table Base64 codec (RFC 4648).
+ * <p/>
+ * Encodes using the standard alphabet, with padding.  Decodes both the standard and URL safe alphabets, with
+ * or without padding, skipping whitespace (so line wrapped PEM bodies decode as is).  Padding, if present, must
+ * complete the final quantum, as with {@link Base64#getDecoder()}.
+ * <p/>
+ * The variants that take an output buffer write straight into it, without creating any intermediate objects,
+ * and return the number of chars/bytes written.  {@link ByteBuffer} variants work on the buffers' remaining
+ * bytes and advance their positions.
+ * <p/>
+ * To decode strict (unwrapped, standard alphabet) Base64 into a new array, {@link Base64#getDecoder()} is faster.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class Base64Codec {
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] ALPHABET_BYTES = new byte[ALPHABET.length];
+    private static final byte PAD = '=';
+
+    private static final byte INVALID = -1;
+    private static final byte WHITESPACE = -2;
+    private static final byte PADDING = -3;
+    private static final byte[] VALUES = new byte[256];
+
+    static {
+        Arrays.fill(VALUES, INVALID);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            ALPHABET_BYTES[i] = (byte) ALPHABET[i];
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+        // URL safe alphabet...
+        VALUES['-'] = 62;
+        VALUES['_'] = 63;
+        VALUES[' '] = WHITESPACE;
+        VALUES['\t'] = WHITESPACE;
+        VALUES['\r'] = WHITESPACE;
+        VALUES['\n'] = WHITESPACE;
+        VALUES[PAD] = PADDING;
+    }
+
+    private Base64Codec() {
+    }
+
+    /**
+     * Get the encoded length of the supplied number of bytes.
+     * @param length The number of bytes.
+     * @return The encoded length (incl. padding).
+     */
+    public static int encodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Get the max decoded length of the supplied number of Base64 chars.
+     * @param length The number of chars.
+     * @return The max decoded length.  Exact for unpadded input without whitespace.
+     */
+    public static int maxDecodedLength(int length) {
+        return length / 4 * 3 + (length % 4) * 3 / 4;
+    }
+
+    public static String encode(byte[] bytes) {
+        AssertArgument.isNotNull(bytes, "bytes");
+        // Same output, and the JDK encoder is intrinsified on recent JVMs (see CodecBenchmark).
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    /**
+     * Encode into a char buffer.
+     * @param src The bytes.
+     * @param offset The offset of the first byte to encode.
+     * @param length The number of bytes to encode.
+     * @param dst The output buffer.  Must have room for {@link #encodedLength(int) encodedLength(length)} chars
+     * from {@code dstOffset}.
+     * @param dstOffset The offset in the output buffer to start writing at.
+     * @return The number of chars written.
+     */
+    public static int encode(byte[] src, int offset, int length, char[] dst, int dstOffset) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+        HexCodec.assertRange(src.length, offset, length);
+        HexCodec.assertRoom(dst.length, dstOffset, encodedLength(length));
+
+        int dstIndex = dstOffset;
+        int end = offset + length - length % 3;
+        for (int i = offset; i < end; i += 3) {
+            int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+            dst[dstIndex++] = ALPHABET[(bits >>> 18) & 0x3F];
+            dst[dstIndex++] = ALPHABET[(bits >>> 12) & 0x3F];
+            dst[dstIndex++] = ALPHABET[(bits >>> 6) & 0x3F];
+            dst[dstIndex++] = ALPHABET[bits & 0x3F];
+        }
+
+        int remaining = length % 3;
+        if (remaining > 0) {
+            int bits = (src[end] & 0xFF) << 16 | (remaining == 2 ? (src[end + 1] & 0xFF) << 8 : 0);
+            dst[dstIndex++] = ALPHABET[(bits >>> 18) & 0x3F];
+            dst[dstIndex++] = ALPHABET[(bits >>> 12) & 0x3F];
+            dst[dstIndex++] = (remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3F] : (char) PAD);
+            dst[dstIndex++] = (char) PAD;
+        }
+
+        return dstIndex - dstOffset;
+    }
+
+    /**
+     * Encode into a byte buffer, as ASCII.
+     * @param src The bytes.
+     * @param offset The offset of the first byte to encode.
+     * @param length The number of bytes to encode.
+     * @param dst The output buffer.  Must have room for {@link #encodedLength(int) encodedLength(length)} bytes
+     * from {@code dstOffset}.
+     * @param dstOffset The offset in the output buffer to start writing at.
+     * @return The number of bytes written.
+     */
+    public static int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+        HexCodec.assertRange(src.length, offset, length);
+        HexCodec.assertRoom(dst.length, dstOffset, encodedLength(length));
+
+        int dstIndex = dstOffset;
+        int end = offset + length - length % 3;
+        for (int i = offset; i < end; i += 3) {
+            int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+            dst[dstIndex++] = ALPHABET_BYTES[(bits >>> 18) & 0x3F];
+            dst[dstIndex++] = ALPHABET_BYTES[(bits >>> 12) & 0x3F];
+            dst[dstIndex++] = ALPHABET_BYTES[(bits >>> 6) & 0x3F];
+            dst[dstIndex++] = ALPHABET_BYTES[bits & 0x3F];
+        }
+
+        int remaining = length % 3;
+        if (remaining > 0) {
+            int bits = (src[end] & 0xFF) << 16 | (remaining == 2 ? (src[end + 1] & 0xFF) << 8 : 0);
+            dst[dstIndex++] = ALPHABET_BYTES[(bits >>> 18) & 0x3F];
+            dst[dstIndex++] = ALPHABET_BYTES[(bits >>> 12) & 0x3F];
+            dst[dstIndex++] = (remaining == 2 ? ALPHABET_BYTES[(bits >>> 6) & 0x3F] : PAD);
+            dst[dstIndex++] = PAD;
+        }
+
+        return dstIndex - dstOffset;
+    }
+
+    /**
+     * Encode the remaining bytes of {@code src} into {@code dst}, as ASCII.
+     * @param src The bytes.
+     * @param dst The output buffer.  Must have room for the {@link #encodedLength(int) encoded length} of the
+     * remaining bytes of {@code src}.
+     */
+    public static void encode(ByteBuffer src, ByteBuffer dst) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+
+        int length = src.remaining();
+        int encodedLength = encodedLength(length);
+        HexCodec.assertRoom(dst.remaining(), 0, encodedLength);
+
+        if (src.hasArray() && dst.hasArray()) {
+            encode(src.array(), src.arrayOffset() + src.position(), length, dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(dst.position() + encodedLength);
+            return;
+        }
+
+        for (int i = 0; i < length / 3; i++) {
+            int bits = (src.get() & 0xFF) << 16 | (src.get() & 0xFF) << 8 | (src.get() & 0xFF);
+            dst.put(ALPHABET_BYTES[(bits >>> 18) & 0x3F]);
+            dst.put(ALPHABET_BYTES[(bits >>> 12) & 0x3F]);
+            dst.put(ALPHABET_BYTES[(bits >>> 6) & 0x3F]);
+            dst.put(ALPHABET_BYTES[bits & 0x3F]);
+        }
+
+        int remaining = length % 3;
+        if (remaining > 0) {
+            int bits = (src.get() & 0xFF) << 16 | (remaining == 2 ? (src.get() & 0xFF) << 8 : 0);
+            dst.put(ALPHABET_BYTES[(bits >>> 18) & 0x3F]);
+            dst.put(ALPHABET_BYTES[(bits >>> 12) & 0x3F]);
+            dst.put(remaining == 2 ? ALPHABET_BYTES[(bits >>> 6) & 0x3F] : PAD);
+            dst.put(PAD);
+        }
+    }
+
+    public static byte[] decode(CharSequence base64) {
+        AssertArgument.isNotNull(base64, "base64");
+
+        byte[] bytes = new byte[maxDecodedLength(base64.length())];
+        int length = decode(base64, 0, base64.length(), bytes, 0);
+
+        return (length == bytes.length ? bytes : Arrays.copyOf(bytes, length));
+    }
+
+    /**
+     * Decode from a char sequence.
+     * @param src The Base64 chars.
+     * @param offset The offset of the first char to decode.
+     * @param length The number of chars to decode.
+     * @param dst The output buffer.  Must have room for the decoded bytes from {@code dstOffset}.
+     * @param dstOffset The offset in the output buffer to start writing at.
+     * @return The number of bytes written.
+     */
+    public static int decode(CharSequence src, int offset, int length, byte[] dst, int dstOffset) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+        HexCodec.assertRange(src.length(), offset, length);
+        HexCodec.assertRoom(dst.length, dstOffset, 0);
+
+        int end = offset + length;
+        int dstIndex = dstOffset;
+        int bits = 0;
+        int count = 0;
+        int pads = 0;
+        int i = offset;
+
+        while (i < end) {
+            if (count == 0 && pads == 0) {
+                // Fast path: whole quanta of alphabet chars.  Any other char drops to the char by char path below.
+                while (i <= end - 4 && dstIndex <= dst.length - 3) {
+                    char c0 = src.charAt(i);
+                    char c1 = src.charAt(i + 1);
+                    char c2 = src.charAt(i + 2);
+                    char c3 = src.charAt(i + 3);
+                    if ((c0 | c1 | c2 | c3) > 0xFF) {
+                        break;
+                    }
+                    int quantum = VALUES[c0] << 18 | VALUES[c1] << 12 | VALUES[c2] << 6 | VALUES[c3];
+                    if (quantum < 0) {
+                        break;
+                    }
+                    dst[dstIndex++] = (byte) (quantum >> 16);
+                    dst[dstIndex++] = (byte) (quantum >> 8);
+                    dst[dstIndex++] = (byte) quantum;
+                    i += 4;
+                }
+                if (i == end) {
+                    break;
+                }
+            }
+
+            char c = src.charAt(i);
+            int value = (c <= 0xFF ? VALUES[c] : INVALID);
+
+            if (value >= 0 && pads == 0) {
+                bits = bits << 6 | value;
+                if (++count == 4) {
+                    assertDecodeRoom(dst.length, dstIndex, 3);
+                    dst[dstIndex++] = (byte) (bits >> 16);
+                    dst[dstIndex++] = (byte) (bits >> 8);
+                    dst[dstIndex++] = (byte) bits;
+                    bits = 0;
+                    count = 0;
+                }
+            } else if (value == PADDING) {
+                assertPadding(count, ++pads, i);
+            } else if (value != WHITESPACE) {
+                throw invalidCharacter(c, i);
+            }
+            i++;
+        }
+
+        return finish(bits, count, pads, dst, dstIndex, dst.length) - dstOffset;
+    }
+
+    /**
+     * Decode from ASCII bytes.
+     * @param src The Base64 bytes.
+     * @param offset The offset of the first byte to decode.
+     * @param length The number of bytes to decode.
+     * @param dst The output buffer.  Must have room for the decoded bytes from {@code dstOffset}.
+     * @param dstOffset The offset in the output buffer to start writing at.
+     * @return The number of bytes written.
+     */
+    public static int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+        HexCodec.assertRange(src.length, offset, length);
+        HexCodec.assertRoom(dst.length, dstOffset, 0);
+
+        return decode(src, offset, length, dst, dstOffset, dst.length);
+    }
+
+    /**
+     * Decode from ASCII bytes, writing no further than {@code dstEnd}.
+     */
+    private static int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset, int dstEnd) {
+        int end = offset + length;
+        int dstIndex = dstOffset;
+        int bits = 0;
+        int count = 0;
+        int pads = 0;
+        int i = offset;
+
+        while (i < end) {
+            if (count == 0 && pads == 0) {
+                // Fast path: whole quanta of alphabet chars.  Any other char drops to the char by char path below.
+                while (i <= end - 4 && dstIndex <= dstEnd - 3) {
+                    int quantum = VALUES[src[i] & 0xFF] << 18 | VALUES[src[i + 1] & 0xFF] << 12 | VALUES[src[i + 2] & 0xFF] << 6 | VALUES[src[i + 3] & 0xFF];
+                    if (quantum < 0) {
+                        break;
+                    }
+                    dst[dstIndex++] = (byte) (quantum >> 16);
+                    dst[dstIndex++] = (byte) (quantum >> 8);
+                    dst[dstIndex++] = (byte) quantum;
+                    i += 4;
+                }
+                if (i == end) {
+                    break;
+                }
+            }
+
+            int c = src[i] & 0xFF;
+            int value = VALUES[c];
+
+            if (value >= 0 && pads == 0) {
+                bits = bits << 6 | value;
+                if (++count == 4) {
+                    assertDecodeRoom(dstEnd, dstIndex, 3);
+                    dst[dstIndex++] = (byte) (bits >> 16);
+                    dst[dstIndex++] = (byte) (bits >> 8);
+                    dst[dstIndex++] = (byte) bits;
+                    bits = 0;
+                    count = 0;
+                }
+            } else if (value == PADDING) {
+                assertPadding(count, ++pads, i);
+            } else if (value != WHITESPACE) {
+                throw invalidCharacter(c, i);
+            }
+            i++;
+        }
+
+        return finish(bits, count, pads, dst, dstIndex, dstEnd) - dstOffset;
+    }
+
+    /**
+     * Decode the remaining ASCII Base64 bytes of {@code src} into {@code dst}.
+     * @param src The Base64 bytes.
+     * @param dst The output buffer.  Must have room for the decoded bytes.
+     */
+    public static void decode(ByteBuffer src, ByteBuffer dst) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+
+        if (src.hasArray() && dst.hasArray()) {
+            int length = decode(src.array(), src.arrayOffset() + src.position(), src.remaining(), dst.array(), dst.arrayOffset() + dst.position(),
+                    dst.arrayOffset() + dst.limit());
+            src.position(src.limit());
+            dst.position(dst.position() + length);
+            return;
+        }
+
+        int start = src.position();
+        int bits = 0;
+        int count = 0;
+        int pads = 0;
+
+        while (src.hasRemaining()) {
+            int c = src.get() & 0xFF;
+            int value = VALUES[c];
+
+            if (value >= 0 && pads == 0) {
+                bits = bits << 6 | value;
+                if (++count == 4) {
+                    assertDecodeRoom(dst.remaining(), 0, 3);
+                    dst.put((byte) (bits >> 16));
+                    dst.put((byte) (bits >> 8));
+                    dst.put((byte) bits);
+                    bits = 0;
+                    count = 0;
+                }
+            } else if (value == PADDING) {
+                assertPadding(count, ++pads, src.position() - 1 - start);
+            } else if (value != WHITESPACE) {
+                throw invalidCharacter(c, src.position() - 1 - start);
+            }
+        }
+
+        assertTrailingCount(count, pads);
+        if (count > 1) {
+            assertDecodeRoom(dst.remaining(), 0, count - 1);
+            dst.put((byte) (count == 2 ? bits >> 4 : bits >> 10));
+            if (count == 3) {
+                dst.put((byte) (bits >> 2));
+            }
+        }
+    }
+
+    /**
+     * Write the bytes of a trailing partial quantum (2 or 3 chars).
+     */
+    private static int finish(int bits, int count, int pads, byte[] dst, int dstIndex, int dstEnd) {
+        assertTrailingCount(count, pads);
+        if (count == 2) {
+            assertDecodeRoom(dstEnd, dstIndex, 1);
+            dst[dstIndex++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            assertDecodeRoom(dstEnd, dstIndex, 2);
+            dst[dstIndex++] = (byte) (bits >> 10);
+            dst[dstIndex++] = (byte) (bits >> 2);
+        }
+        return dstIndex;
+    }
+
+    private static void assertTrailingCount(int count, int pads) {
+        if (count == 1) {
+            throw new IllegalArgumentException("Invalid Base64 length. Input ends with a single char quantum.");
+        }
+        if (pads > 0 && count + pads != 4) {
+            throw new IllegalArgumentException("Invalid Base64 padding. Padded input must end with a whole quantum.");
+        }
+    }
+
+    /**
+     * Padding can only complete a trailing 2 or 3 char quantum, to 4 chars.
+     */
+    private static void assertPadding(int count, int pads, int index) {
+        if (count < 2 || count + pads > 4) {
+            throw new IllegalArgumentException("Invalid Base64 padding at index " + index + ". Padding can only complete a 2 or 3 char quantum.");
+        }
+    }
+
+    private static void assertDecodeRoom(int size, int index, int length) {
+        if (index > size - length) {
+            throw new IllegalArgumentException("Invalid output buffer. No room for decoded bytes at offset " + index + " in output ending at " + size + ".");
+        }
+    }
+
+    private static IllegalArgumentException invalidCharacter(int c, int index) {
+        return new IllegalArgumentException(String.format("Invalid Base64 character 0x%04x at index %d", c, index));
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.codec;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lookup table hex codec.
+ * <p/>
+ * Encodes to lowercase hex and decodes upper or lowercase hex.  The variants that take an output buffer write
+ * straight into it, without creating any intermediate objects, and return the number of chars/bytes written.
+ * {@link ByteBuffer} variants work on the buffers' remaining bytes and advance their positions.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class HexCodec {
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] DIGIT_BYTES = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[] VALUES = new byte[256];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            VALUES['a' + i] = (byte) (10 + i);
+            VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private HexCodec() {
+    }
+
+    public static String encode(byte[] bytes) {
+        AssertArgument.isNotNull(bytes, "bytes");
+
+        byte[] hex = new byte[bytes.length * 2];
+        encode(bytes, 0, bytes.length, hex, 0);
+
+        // Latin-1 bytes are copied straight into a compact String, without a charset decode.
+        return new String(hex, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encode into a char buffer.
+     * @param src The bytes.
+     * @param offset The offset of the first byte to encode.
+     * @param length The number of bytes to encode.
+     * @param dst The output buffer.  Must have room for {@code length * 2} chars from {@code dstOffset}.
+     * @param dstOffset The offset in the output buffer to start writing at.
+     * @return The number of chars written.
+     */
+    public static int encode(byte[] src, int offset, int length, char[] dst, int dstOffset) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+        assertRange(src.length, offset, length);
+        assertRoom(dst.length, dstOffset, length * 2);
+
+        int dstIndex = dstOffset;
+        for (int i = offset; i < offset + length; i++) {
+            int b = src[i];
+            dst[dstIndex++] = DIGITS[(b >> 4) & 0x0F];
+            dst[dstIndex++] = DIGITS[b & 0x0F];
+        }
+
+        return length * 2;
+    }
+
+    /**
+     * Encode into a byte buffer, as ASCII.
+     * @param src The bytes.
+     * @param offset The offset of the first byte to encode.
+     * @param length The number of bytes to encode.
+     * @param dst The output buffer.  Must have room for {@code length * 2} bytes from {@code dstOffset}.
+     * @param dstOffset The offset in the output buffer to start writing at.
+     * @return The number of bytes written.
+     */
+    public static int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+        assertRange(src.length, offset, length);
+        assertRoom(dst.length, dstOffset, length * 2);
+
+        int dstIndex = dstOffset;
+        for (int i = offset; i < offset + length; i++) {
+            int b = src[i];
+            dst[dstIndex++] = DIGIT_BYTES[(b >> 4) & 0x0F];
+            dst[dstIndex++] = DIGIT_BYTES[b & 0x0F];
+        }
+
+        return length * 2;
+    }
+
+    /**
+     * Encode onto the end of a {@link StringBuilder}.
+     * @param src The bytes.
+     * @param offset The offset of the first byte to encode.
+     * @param length The number of bytes to encode.
+     * @param dst The builder.
+     * @return The builder.
+     */
+    public static StringBuilder encode(byte[] src, int offset, int length, StringBuilder dst) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+        assertRange(src.length, offset, length);
+
+        dst.ensureCapacity(dst.length() + length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            int b = src[i];
+            dst.append(DIGITS[(b >> 4) & 0x0F]);
+            dst.append(DIGITS[b & 0x0F]);
+        }
+
+        return dst;
+    }
+
+    /**
+     * Encode the remaining bytes of {@code src} into {@code dst}, as ASCII.
+     * @param src The bytes.
+     * @param dst The output buffer.  Must have room for twice the remaining bytes of {@code src}.
+     */
+    public static void encode(ByteBuffer src, ByteBuffer dst) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+
+        int length = src.remaining();
+        assertRoom(dst.remaining(), 0, length * 2);
+
+        if (src.hasArray() && dst.hasArray()) {
+            encode(src.array(), src.arrayOffset() + src.position(), length, dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(dst.position() + length * 2);
+            return;
+        }
+
+        for (int i = 0; i < length; i++) {
+            int b = src.get();
+            dst.put(DIGIT_BYTES[(b >> 4) & 0x0F]);
+            dst.put(DIGIT_BYTES[b & 0x0F]);
+        }
+    }
+
+    public static byte[] decode(CharSequence hex) {
+        AssertArgument.isNotNull(hex, "hex");
+
+        byte[] bytes = new byte[hex.length() / 2];
+        decode(hex, 0, hex.length(), bytes, 0);
+
+        return bytes;
+    }
+
+    /**
+     * Decode from a char sequence.
+     * @param src The hex chars.
+     * @param offset The offset of the first char to decode.
+     * @param length The number of chars to decode.  Must be even.
+     * @param dst The output buffer.  Must have room for {@code length / 2} bytes from {@code dstOffset}.
+     * @param dstOffset The offset in the output buffer to start writing at.
+     * @return The number of bytes written.
+     */
+    public static int decode(CharSequence src, int offset, int length, byte[] dst, int dstOffset) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+        assertRange(src.length(), offset, length);
+        assertEvenLength(length);
+        assertRoom(dst.length, dstOffset, length / 2);
+
+        int dstIndex = dstOffset;
+        for (int i = offset; i < offset + length; i += 2) {
+            char high = src.charAt(i);
+            char low = src.charAt(i + 1);
+            int value = ((high | low) <= 0xFF ? VALUES[high] << 4 | VALUES[low] : -1);
+            if (value < 0) {
+                throw invalidCharacter(high, low);
+            }
+            dst[dstIndex++] = (byte) value;
+        }
+
+        return length / 2;
+    }
+
+    /**
+     * Decode from ASCII bytes.
+     * @param src The hex bytes.
+     * @param offset The offset of the first byte to decode.
+     * @param length The number of bytes to decode.  Must be even.
+     * @param dst The output buffer.  Must have room for {@code length / 2} bytes from {@code dstOffset}.
+     * @param dstOffset The offset in the output buffer to start writing at.
+     * @return The number of bytes written.
+     */
+    public static int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+        assertRange(src.length, offset, length);
+        assertEvenLength(length);
+        assertRoom(dst.length, dstOffset, length / 2);
+
+        int dstIndex = dstOffset;
+        for (int i = offset; i < offset + length; i += 2) {
+            int value = VALUES[src[i] & 0xFF] << 4 | VALUES[src[i + 1] & 0xFF];
+            if (value < 0) {
+                throw invalidCharacter(src[i] & 0xFF, src[i + 1] & 0xFF);
+            }
+            dst[dstIndex++] = (byte) value;
+        }
+
+        return length / 2;
+    }
+
+    /**
+     * Decode the remaining ASCII hex bytes of {@code src} into {@code dst}.
+     * @param src The hex bytes.  The remaining length must be even.
+     * @param dst The output buffer.  Must have room for half the remaining bytes of {@code src}.
+     */
+    public static void decode(ByteBuffer src, ByteBuffer dst) {
+        AssertArgument.isNotNull(src, "src");
+        AssertArgument.isNotNull(dst, "dst");
+
+        int length = src.remaining();
+        assertEvenLength(length);
+        assertRoom(dst.remaining(), 0, length / 2);
+
+        if (src.hasArray() && dst.hasArray()) {
+            decode(src.array(), src.arrayOffset() + src.position(), length, dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(dst.position() + length / 2);
+            return;
+        }
+
+        for (int i = 0; i < length; i += 2) {
+            int high = src.get() & 0xFF;
+            int low = src.get() & 0xFF;
+            int value = VALUES[high] << 4 | VALUES[low];
+            if (value < 0) {
+                throw invalidCharacter(high, low);
+            }
+            dst.put((byte) value);
+        }
+    }
+
+    private static IllegalArgumentException invalidCharacter(int high, int low) {
+        int c = (high <= 0xFF && VALUES[high] >= 0 ? low : high);
+        return new IllegalArgumentException(String.format("Invalid hex character 0x%04x", c));
+    }
+
+    private static void assertEvenLength(int length) {
+        if ((length & 1) != 0) {
+            throw new IllegalArgumentException("Invalid hex length '" + length + "'. Must be even.");
+        }
+    }
+
+    static void assertRange(int size, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > size - length) {
+            throw new IllegalArgumentException("Invalid 'offset' and 'length' values '" + offset + "', '" + length + "'. Out of bounds for size " + size + ".");
+        }
+    }
+
+    static void assertRoom(int size, int offset, int length) {
+        if (offset < 0 || offset > size - length) {
+            throw new IllegalArgumentException("Invalid output offset '" + offset + "'. No room for " + length + " values in output of size " + size + ".");
+        }
+    }
+}
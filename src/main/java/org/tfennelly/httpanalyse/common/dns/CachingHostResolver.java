@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.dns;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link HostResolver} that caches the resolutions of an underlying resolver.
+ * <p/>
+ * Each entry expires independently, after the TTL if the host was resolved, or after the (shorter) negative
+ * TTL if it could not be.  A hit on an entry in the last quarter of its TTL refreshes the entry in the
+ * background, so hosts in use are not left to expire and block a lookup.  Concurrent misses on the same host
+ * share a single underlying resolution.  Once full, the least recently used entries are evicted.
+ * <p/>
+ * The cache is independent of (and layered over) the JVM's own {@link InetAddress} cache, which can't be
+ * sized, inspected or prefetched.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class CachingHostResolver implements HostResolver, Closeable {
+
+    public static final int DEFAULT_TTL_SECONDS = 60;
+    public static final int DEFAULT_NEGATIVE_TTL_SECONDS = 10;
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+    public static final int DEFAULT_RESOLVER_THREADS = 8;
+
+    private static final CachingHostResolver DEFAULT_RESOLVER = new CachingHostResolver();
+
+    private final HostResolver resolver;
+    private final ExecutorService resolverExecutor;
+    // Access ordered, for LRU eviction.  Guarded by itself.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+    private volatile long ttlNanos = TimeUnit.SECONDS.toNanos(DEFAULT_TTL_SECONDS);
+    private volatile long negativeTtlNanos = TimeUnit.SECONDS.toNanos(DEFAULT_NEGATIVE_TTL_SECONDS);
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+    private volatile boolean refreshAhead = true;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CachingHostResolver() {
+        this(new SystemHostResolver(), DEFAULT_RESOLVER_THREADS);
+    }
+
+    /**
+     * Constructor.
+     * @param resolver The underlying resolver.
+     * @param resolverThreads The number of threads used for asynchronous resolutions, background refreshes and
+     * pre-resolution.
+     */
+    public CachingHostResolver(HostResolver resolver, int resolverThreads) {
+        AssertArgument.isNotNull(resolver, "resolver");
+        if (resolverThreads < 1) {
+            throw new IllegalArgumentException("Invalid 'resolverThreads' value '" + resolverThreads + "'. Must be greater than zero.");
+        }
+        this.resolver = resolver;
+        this.resolverExecutor = Executors.newFixedThreadPool(resolverThreads, new NamedThreadFactory("httpanalyse-resolver"));
+    }
+
+    /**
+     * Get the default resolver, shared by all clients that are not configured with a resolver of their own.
+     * @return The default resolver.
+     */
+    public static CachingHostResolver getDefault() {
+        return DEFAULT_RESOLVER;
+    }
+
+    /**
+     * Set the time to live of resolved hosts.
+     * @param ttl The TTL.
+     * @param unit The TTL unit.
+     */
+    public void setTtl(long ttl, TimeUnit unit) {
+        AssertArgument.isNotNull(unit, "unit");
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Invalid 'ttl' value '" + ttl + "'. Cannot be negative.");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Set the time to live of resolution failures.
+     * @param negativeTtl The negative TTL (0 means failures are not cached).
+     * @param unit The negative TTL unit.
+     */
+    public void setNegativeTtl(long negativeTtl, TimeUnit unit) {
+        AssertArgument.isNotNull(unit, "unit");
+        if (negativeTtl < 0) {
+            throw new IllegalArgumentException("Invalid 'negativeTtl' value '" + negativeTtl + "'. Cannot be negative.");
+        }
+        this.negativeTtlNanos = unit.toNanos(negativeTtl);
+    }
+
+    /**
+     * Set the max number of cached entries.
+     * @param maxEntries Max number of entries.
+     */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid 'maxEntries' value '" + maxEntries + "'. Must be greater than zero.");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Enable/disable the background refresh of hit entries nearing expiry.
+     * @param refreshAhead True to refresh ahead of expiry (the default), otherwise false.
+     */
+    public void setRefreshAhead(boolean refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        AssertArgument.isNotNullAndNotEmpty(host, "host");
+
+        String key = host.toLowerCase(Locale.ENGLISH);
+        Entry entry = getCached(key);
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            entry = load(key);
+        }
+
+        return entry.getAddresses(host);
+    }
+
+    /**
+     * Resolve the supplied host, off the calling thread unless the host is cached.
+     * @param host The host name or IP address literal.
+     * @return The addresses future.  Completed exceptionally with {@link UnknownHostException} if the host
+     * cannot be resolved.
+     */
+    public CompletableFuture<InetAddress[]> resolveAsync(final String host) {
+        AssertArgument.isNotNullAndNotEmpty(host, "host");
+
+        final CompletableFuture<InetAddress[]> future = new CompletableFuture<InetAddress[]>();
+        final String key = host.toLowerCase(Locale.ENGLISH);
+        Entry entry = getCached(key);
+
+        if (entry != null) {
+            entry.complete(host, future);
+            return future;
+        }
+
+        try {
+            resolverExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(resolve(host));
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IllegalStateException("Resolver closed."));
+        }
+
+        return future;
+    }
+
+    /**
+     * Resolve all of the supplied hosts into the cache e.g. ahead of a scan.
+     * <p/>
+     * Hosts that can't be resolved are (negatively) cached too.
+     * @param hosts The hosts.
+     * @return A future that completes once all hosts have been resolved (or failed to resolve).
+     */
+    public CompletableFuture<Void> preResolveAsync(Collection<String> hosts) {
+        AssertArgument.isNotNull(hosts, "hosts");
+
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        Set<String> uniqueHosts = new LinkedHashSet<String>();
+
+        for (String host : hosts) {
+            if (host != null && host.length() > 0) {
+                uniqueHosts.add(host.toLowerCase(Locale.ENGLISH));
+            }
+        }
+        if (uniqueHosts.isEmpty()) {
+            future.complete(null);
+            return future;
+        }
+
+        final AtomicInteger pending = new AtomicInteger(uniqueHosts.size());
+        BiConsumer<InetAddress[], Throwable> onResolved = new BiConsumer<InetAddress[], Throwable>() {
+            @Override
+            public void accept(InetAddress[] addresses, Throwable error) {
+                if (pending.decrementAndGet() == 0) {
+                    future.complete(null);
+                }
+            }
+        };
+        for (String host : uniqueHosts) {
+            resolveAsync(host).whenComplete(onResolved);
+        }
+
+        return future;
+    }
+
+    /**
+     * Remove the supplied host from the cache, forcing a resolution on the next lookup.
+     * @param host The host.
+     */
+    public void invalidate(String host) {
+        AssertArgument.isNotNullAndNotEmpty(host, "host");
+        synchronized (entries) {
+            entries.remove(host.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * Remove all hosts from the cache.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Get a snapshot of the cache statistics.
+     * @return The statistics.
+     */
+    public ResolverStats getStats() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new ResolverStats(hits.get(), negativeHits.get(), misses.get(), failures.get(), refreshes.get(), evictions.get(), size);
+    }
+
+    @Override
+    public void close() {
+        resolverExecutor.shutdownNow();
+    }
+
+    /**
+     * Get the unexpired cache entry for the supplied host, counting the hit and triggering a background
+     * refresh if the entry is nearing expiry.
+     */
+    private Entry getCached(String key) {
+        long now = System.nanoTime();
+        Entry entry;
+
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (now - entry.expiresAt >= 0) {
+                entries.remove(key);
+                return null;
+            }
+        }
+
+        if (entry.failure != null) {
+            negativeHits.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+            if (refreshAhead && now - entry.refreshAt >= 0 && entry.refreshing.compareAndSet(false, true)) {
+                refresh(key, entry);
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Resolve the supplied host into the cache, or wait on an in-progress resolution of the host.
+     */
+    private Entry load(String key) {
+        CompletableFuture<Entry> future = new CompletableFuture<Entry>();
+        CompletableFuture<Entry> inProgress = loading.putIfAbsent(key, future);
+
+        if (inProgress != null) {
+            try {
+                return inProgress.join();
+            } catch (CompletionException e) {
+                throw (RuntimeException) e.getCause();
+            }
+        }
+
+        try {
+            Entry entry = newEntry(key);
+            cache(key, entry);
+            future.complete(entry);
+            return entry;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    private void refresh(final String key, final Entry entry) {
+        try {
+            resolverExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refreshes.incrementAndGet();
+                    Entry refreshed = newEntry(key);
+                    if (refreshed.failure == null) {
+                        synchronized (entries) {
+                            entries.replace(key, entry, refreshed);
+                        }
+                    }
+                    // else... keep serving the current addresses until they expire.
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed... the entry expires as normal.
+        }
+    }
+
+    private Entry newEntry(String key) {
+        try {
+            InetAddress[] addresses = resolver.resolve(key);
+            if (addresses == null || addresses.length == 0) {
+                throw new UnknownHostException(key);
+            }
+            return new Entry(addresses, null, ttlNanos);
+        } catch (UnknownHostException e) {
+            failures.incrementAndGet();
+            return new Entry(null, e, negativeTtlNanos);
+        }
+    }
+
+    private void cache(String key, Entry entry) {
+        if (entry.expiresAt == entry.createdAt) {
+            // Zero TTL... not cached.
+            return;
+        }
+
+        synchronized (entries) {
+            entries.put(key, entry);
+            if (entries.size() > maxEntries) {
+                trim();
+            }
+        }
+    }
+
+    /**
+     * Bring the cache back within its max size, evicting the least recently used entries.  Must be called
+     * holding the entries lock.
+     */
+    private void trim() {
+        long now = System.nanoTime();
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            if (now - entry.expiresAt < 0) {
+                // Expired entries were going anyway... not counted as evictions.
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final InetAddress[] addresses;
+        private final UnknownHostException failure;
+        private final long createdAt = System.nanoTime();
+        private final long expiresAt;
+        private final long refreshAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(InetAddress[] addresses, UnknownHostException failure, long ttlNanos) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = createdAt + ttlNanos;
+            this.refreshAt = createdAt + (ttlNanos - ttlNanos / 4);
+        }
+
+        private InetAddress[] getAddresses(String host) throws UnknownHostException {
+            if (failure != null) {
+                // A new exception per lookup, so the stack trace is the caller's.
+                UnknownHostException exception = new UnknownHostException(host);
+                exception.initCause(failure);
+                throw exception;
+            }
+            return addresses.clone();
+        }
+
+        private void complete(String host, CompletableFuture<InetAddress[]> future) {
+            try {
+                future.complete(getAddresses(host));
+            } catch (UnknownHostException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves host names to addresses.
+ * <p/>
+ * Implementations must be thread safe.  See {@link SystemHostResolver} and {@link CachingHostResolver}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public interface HostResolver {
+
+    /**
+     * Resolve the supplied host.
+     *
+     * @param host The host name or IP address literal.
+     * @return The host addresses, in preference order.  Never empty.
+     * @throws UnknownHostException The host could not be resolved.
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+}
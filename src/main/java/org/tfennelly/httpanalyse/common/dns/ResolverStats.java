@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.dns;
+
+/**
+ * Point in time snapshot of {@link CachingHostResolver} statistics.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class ResolverStats {
+
+    private final long hits;
+    private final long negativeHits;
+    private final long misses;
+    private final long failures;
+    private final long refreshes;
+    private final long evictions;
+    private final int size;
+
+    ResolverStats(long hits, long negativeHits, long misses, long failures, long refreshes, long evictions, int size) {
+        this.hits = hits;
+        this.negativeHits = negativeHits;
+        this.misses = misses;
+        this.failures = failures;
+        this.refreshes = refreshes;
+        this.evictions = evictions;
+        this.size = size;
+    }
+
+    /**
+     * Get the number of lookups answered with cached addresses.
+     * @return The number of hits.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups answered with a cached resolution failure.
+     * @return The number of negative hits.
+     */
+    public long getNegativeHits() {
+        return negativeHits;
+    }
+
+    /**
+     * Get the number of lookups that had to wait on the underlying resolver.
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of resolutions (misses and refreshes) the underlying resolver failed.
+     * @return The number of failures.
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * Get the number of background refreshes of entries nearing expiry.
+     * @return The number of refreshes.
+     */
+    public long getRefreshes() {
+        return refreshes;
+    }
+
+    /**
+     * Get the number of unexpired entries dropped to keep the cache within its max size.
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Get the ratio of lookups answered from the cache (positive or negative).
+     * @return The hit ratio (0.0 - 1.0).
+     */
+    public double getHitRatio() {
+        long total = hits + negativeHits + misses;
+        return (total == 0 ? 0.0 : (double) (hits + negativeHits) / total);
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + hits + ", negative hits: " + negativeHits + ", misses: " + misses + ", hit ratio: " + String.format("%.3f", getHitRatio())
+                + ", failures: " + failures + ", refreshes: " + refreshes + ", evictions: " + evictions + ", size: " + size;
+    }
+}
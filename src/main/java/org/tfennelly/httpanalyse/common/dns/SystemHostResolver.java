@@ -0,0 +1,21 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * {@link HostResolver} backed by the JVM's {@link InetAddress} resolution (and so the system name service).
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class SystemHostResolver implements HostResolver {
+
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+}
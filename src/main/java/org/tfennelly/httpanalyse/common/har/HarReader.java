@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.har;
+
+import org.tfennelly.httpanalyse.common.RequestTiming;
+import org.tfennelly.httpanalyse.common.capture.CapturedExchange;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.CharsetUtils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming HAR 1.2 reader.
+ * <p/>
+ * Entries are parsed one at a time as they're read, so a HAR of any number of entries is read in constant
+ * memory (bounded by the largest entry).  Each entry is returned as an (unrecorded) {@link CapturedExchange},
+ * with its entry index as the sequence number.
+ * <p/>
+ * Base64 and text bodies are decoded.  Bodies written as a hash by {@link HarWriter.BodyMode#HASH} are resolved
+ * through the {@link BodyResolver}, if one is set.
+ * <p/>
+ * Not thread safe.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class HarReader implements Closeable {
+
+    /**
+     * Resolves bodies written by hash.
+     */
+    public static interface BodyResolver {
+
+        /**
+         * Resolve a body.
+         * @param sha256 The body SHA-256, as a lowercase hex string.
+         * @return The body, or null if it can't be resolved.
+         * @throws IOException Error resolving the body.
+         */
+        byte[] resolve(String sha256) throws IOException;
+    }
+
+    private final Reader in;
+    private final JsonReader json;
+    private BodyResolver bodyResolver;
+    private SimpleDateFormat dateFormat;
+    private long entryIndex;
+    private boolean inEntries;
+    private boolean done;
+
+    /**
+     * Constructor.
+     * @param in The HAR stream (UTF-8).  Closed when the reader is closed.
+     */
+    public HarReader(InputStream in) {
+        AssertArgument.isNotNull(in, "in");
+        this.in = new BufferedReader(new InputStreamReader(in, CharsetUtils.UTF8), 64 * 1024);
+        this.json = new JsonReader(this.in);
+    }
+
+    public void setBodyResolver(BodyResolver bodyResolver) {
+        this.bodyResolver = bodyResolver;
+    }
+
+    /**
+     * Read the next entry.
+     * @return The next entry, or null if there are no more entries.
+     * @throws IOException Error reading the HAR, or invalid HAR.
+     */
+    public CapturedExchange next() throws IOException {
+        if (done) {
+            return null;
+        }
+        if (!inEntries && !findEntries()) {
+            done = true;
+            return null;
+        }
+        if (!json.nextElement()) {
+            // The rest of the document (e.g. pages after entries) isn't needed.
+            done = true;
+            return null;
+        }
+
+        Object entry = json.readValue();
+        if (!(entry instanceof Map)) {
+            throw new IOException("Invalid HAR entry " + entryIndex + ". Not an object.");
+        }
+        return toExchange(entryIndex++, asMap(entry));
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean findEntries() throws IOException {
+        json.beginObject();
+        String name;
+        while ((name = json.nextName()) != null) {
+            if (name.equals("log")) {
+                json.beginObject();
+                while ((name = json.nextName()) != null) {
+                    if (name.equals("entries")) {
+                        json.beginArray();
+                        inEntries = true;
+                        return true;
+                    }
+                    json.skipValue();
+                }
+            } else {
+                json.skipValue();
+            }
+        }
+        return false;
+    }
+
+    private CapturedExchange toExchange(long index, Map<String, Object> entry) throws IOException {
+        Map<String, Object> request = asMap(entry.get("request"));
+        Map<String, Object> response = asMap(entry.get("response"));
+        Map<String, Object> content = asMap(response.get("content"));
+        Map<String, Object> timings = asMap(entry.get("timings"));
+
+        String method = asString(request.get("method"));
+        String url = asString(request.get("url"));
+        if (method == null || url == null) {
+            throw new IOException("Invalid HAR entry " + index + ". Missing request method or url.");
+        }
+
+        Map<String, String> requestHeaders = new LinkedHashMap<String, String>();
+        for (Object header : asList(request.get("headers"))) {
+            Map<String, Object> nameValue = asMap(header);
+            String name = asString(nameValue.get("name"));
+            String value = asString(nameValue.get("value"));
+            if (name != null) {
+                String existing = requestHeaders.get(name);
+                requestHeaders.put(name, existing != null ? existing + ", " + value : value);
+            }
+        }
+        byte[] requestBody = null;
+        if (request.get("postData") instanceof Map) {
+            Map<String, Object> postData = asMap(request.get("postData"));
+            Object encoding = (postData.containsKey("_encoding") ? postData.get("_encoding") : postData.get("encoding"));
+            requestBody = toBody(index, postData.get("text"), encoding, postData.get("_sha256"));
+        }
+
+        Map<String, List<String>> responseHeaders = new LinkedHashMap<String, List<String>>();
+        for (Object header : asList(response.get("headers"))) {
+            Map<String, Object> nameValue = asMap(header);
+            String name = asString(nameValue.get("name"));
+            if (name != null) {
+                List<String> values = responseHeaders.get(name);
+                if (values == null) {
+                    values = new ArrayList<String>(1);
+                    responseHeaders.put(name, values);
+                }
+                values.add(asString(nameValue.get("value")));
+            }
+        }
+        String contentType = asString(content.get("mimeType"));
+        byte[] responseBody = toBody(index, content.get("text"), content.get("encoding"), content.get("_sha256"));
+
+        RequestTiming timing = toTiming(timings, asNanos(entry.get("time")),
+                Boolean.TRUE.equals(entry.get("_connectionReused")), Boolean.TRUE.equals(entry.get("_tlsSessionResumed")));
+
+        return new CapturedExchange(index, toEpochMillis(asString(entry.get("startedDateTime")), index), method, url, requestHeaders, requestBody,
+                asInt(response.get("status")), asString(response.get("statusText")), responseHeaders,
+                (contentType != null && contentType.length() > 0 ? contentType : null), responseBody, timing,
+                asString(entry.get("_serverCertSha256")));
+    }
+
+    private byte[] toBody(long index, Object text, Object encoding, Object sha256) throws IOException {
+        if (text instanceof String) {
+            if ("base64".equals(encoding)) {
+                try {
+                    return Base64.getDecoder().decode((String) text);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid base64 body in HAR entry " + index + ".", e);
+                }
+            }
+            return ((String) text).getBytes(CharsetUtils.UTF8);
+        }
+        if (sha256 instanceof String && bodyResolver != null) {
+            return bodyResolver.resolve((String) sha256);
+        }
+        return null;
+    }
+
+    private static RequestTiming toTiming(Map<String, Object> timings, long totalNanos, boolean connectionReused, boolean tlsSessionResumed) {
+        long dns = asNanos(timings.get("dns"));
+        long connect = asNanos(timings.get("connect"));
+        long ssl = asNanos(timings.get("ssl"));
+        if (connect != RequestTiming.NOT_MEASURED && ssl > 0) {
+            // HAR's connect time includes the TLS handshake.
+            connect = Math.max(0, connect - ssl);
+        }
+        return new RequestTiming(dns, connect, ssl, asNanos(timings.get("send")),
+                asNanos(timings.get("wait")), asNanos(timings.get("receive")),
+                totalNanos, connectionReused, tlsSessionResumed);
+    }
+
+    private long toEpochMillis(String startedDateTime, long index) throws IOException {
+        if (startedDateTime == null) {
+            throw new IOException("Invalid HAR entry " + index + ". Missing startedDateTime.");
+        }
+        if (dateFormat == null) {
+            // ISO 8601... "X" accepts "Z" and numeric offsets.
+            dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+        }
+
+        String normalized = startedDateTime;
+        int fractionStart = normalized.indexOf('.');
+        if (fractionStart == -1) {
+            // No fraction e.g. "2009-04-16T12:07:23Z"... insert one.
+            int zoneStart = Math.max(normalized.indexOf('Z', 19), Math.max(normalized.indexOf('+', 19), normalized.indexOf('-', 19)));
+            if (zoneStart != -1) {
+                normalized = normalized.substring(0, zoneStart) + ".000" + normalized.substring(zoneStart);
+            }
+        } else {
+            // SimpleDateFormat reads "SSS" as a count of milliseconds... use exactly 3 fraction digits.
+            int fractionEnd = fractionStart + 1;
+            while (fractionEnd < normalized.length() && Character.isDigit(normalized.charAt(fractionEnd))) {
+                fractionEnd++;
+            }
+            String fraction = (normalized.substring(fractionStart + 1, fractionEnd) + "000").substring(0, 3);
+            normalized = normalized.substring(0, fractionStart + 1) + fraction + normalized.substring(fractionEnd);
+        }
+
+        try {
+            return dateFormat.parse(normalized).getTime();
+        } catch (ParseException e) {
+            throw new IOException("Invalid HAR entry " + index + ". Invalid startedDateTime '" + startedDateTime + "'.", e);
+        }
+    }
+
+    /**
+     * Get a HAR time (milliseconds) as nanos.  -1 (or absent) is {@link RequestTiming#NOT_MEASURED}.
+     */
+    private static long asNanos(Object value) {
+        if (!(value instanceof Number) || ((Number) value).doubleValue() < 0) {
+            return RequestTiming.NOT_MEASURED;
+        }
+        return Math.round(((Number) value).doubleValue() * 1000000.0);
+    }
+
+    private static int asInt(Object value) {
+        return (value instanceof Number ? ((Number) value).intValue() : 0);
+    }
+
+    private static String asString(Object value) {
+        return (value instanceof String ? (String) value : null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        return (value instanceof Map ? (Map<String, Object>) value : Collections.<String, Object>emptyMap());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> asList(Object value) {
+        return (value instanceof List ? (List<Object>) value : Collections.emptyList());
+    }
+}
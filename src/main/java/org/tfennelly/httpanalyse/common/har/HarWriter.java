@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.har;
+
+import org.tfennelly.httpanalyse.common.HttpResponse;
+import org.tfennelly.httpanalyse.common.RequestTiming;
+import org.tfennelly.httpanalyse.common.capture.CapturedExchange;
+import org.tfennelly.httpanalyse.common.codec.Base64Codec;
+import org.tfennelly.httpanalyse.common.codec.HexCodec;
+import org.tfennelly.httpanalyse.common.security.HashUtil;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.CharsetUtils;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+
+/**
+ * Streaming HAR 1.2 writer.
+ * <p/>
+ * Each entry is written out as soon as it's added, so a HAR of any number of entries is written in constant
+ * memory.  The document is completed when the writer is closed.
+ * <p/>
+ * Bodies are written according to the {@link BodyMode}.  Server certificate fingerprints and timing flags are
+ * written as custom ("_" prefixed) fields, which {@link HarReader} reads back.
+ * <p/>
+ * Thread safe.  Entries can be written from the threads completing the requests.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class HarWriter implements Closeable, Flushable {
+
+    public static final String CREATOR_NAME = "httpanalyse";
+    public static final String CREATOR_VERSION = "1.0";
+
+    /**
+     * How bodies are written.
+     */
+    public static enum BodyMode {
+        /** Only the body size is written. */
+        OMIT,
+        /** The body is written base64 encoded. */
+        BASE64,
+        /** The body's SHA-256 (hex) is written in a "_sha256" field, for resolving against a body store. */
+        HASH
+    }
+
+    // Multiple of 3, so chunks encode without padding.
+    private static final int BASE64_CHUNK = 3 * 1024;
+
+    private final Writer out;
+    private final BodyMode bodyMode;
+    private final char[] base64Buffer = new char[Base64Codec.encodedLength(BASE64_CHUNK)];
+    private final byte[] escapeBytes = new byte[2];
+    private final char[] escapeChars = new char[4];
+    private final StringBuilder dateBuffer = new StringBuilder(32);
+    private final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    private long entryCount;
+    private boolean closed;
+
+    public HarWriter(OutputStream out) throws IOException {
+        this(out, BodyMode.BASE64);
+    }
+
+    /**
+     * Constructor.
+     * @param out The output stream.  Closed when the writer is closed.
+     * @param bodyMode How bodies are written.
+     * @throws IOException Error writing the document header.
+     */
+    public HarWriter(OutputStream out, BodyMode bodyMode) throws IOException {
+        AssertArgument.isNotNull(out, "out");
+        AssertArgument.isNotNull(bodyMode, "bodyMode");
+        this.out = new BufferedWriter(new OutputStreamWriter(out, CharsetUtils.UTF8), 64 * 1024);
+        this.bodyMode = bodyMode;
+
+        this.out.write("{\"log\":{\"version\":\"1.2\",\"creator\":{\"name\":");
+        writeString(CREATOR_NAME);
+        this.out.write(",\"version\":");
+        writeString(CREATOR_VERSION);
+        this.out.write("},\"entries\":[");
+    }
+
+    /**
+     * Write an entry for a completed request.
+     * @param startedAt The time the request was started, in milliseconds since the epoch.
+     * @param method The request method.
+     * @param url The request URL.
+     * @param requestHeaders The request headers.
+     * @param requestBody The request body, or null.
+     * @param response The response.
+     * @throws IOException Error writing the entry.
+     */
+    public void write(long startedAt, String method, String url, Map<String, String> requestHeaders, byte[] requestBody, HttpResponse response) throws IOException {
+        write(CapturedExchange.fromResponse(startedAt, method, url, requestHeaders, requestBody, response));
+    }
+
+    /**
+     * Write an entry.
+     * @param exchange The exchange.
+     * @throws IOException Error writing the entry.
+     */
+    public synchronized void write(CapturedExchange exchange) throws IOException {
+        AssertArgument.isNotNull(exchange, "exchange");
+        if (closed) {
+            throw new IOException("HAR writer is closed.");
+        }
+
+        RequestTiming timing = exchange.getTiming();
+        if (entryCount > 0) {
+            out.write(',');
+        }
+        out.write("\n{\"startedDateTime\":");
+        writeDate(exchange.getStartedAt());
+        out.write(",\"time\":");
+        writeMillis(timing.getTotalNanos());
+
+        out.write(",\"request\":{\"method\":");
+        writeString(exchange.getMethod());
+        out.write(",\"url\":");
+        writeString(exchange.getUrl());
+        out.write(",\"httpVersion\":\"HTTP/1.1\",\"cookies\":[],\"headers\":[");
+        boolean first = true;
+        for (Entry<String, String> header : exchange.getRequestHeaders().entrySet()) {
+            // Same as the response headers... a header without a name or value is not a header.
+            if (header.getKey() != null && header.getValue() != null) {
+                first = writeHeader(header.getKey(), header.getValue(), first);
+            }
+        }
+        out.write("],\"queryString\":[");
+        writeQueryString(exchange.getUrl());
+        out.write("]");
+        byte[] requestBody = exchange.getRequestBody();
+        if (requestBody != null) {
+            out.write(",\"postData\":{\"mimeType\":");
+            writeString(getHeader(exchange.getRequestHeaders(), "Content-Type"));
+            out.write(",\"params\":[]");
+            writeBody(requestBody, true);
+            out.write('}');
+        }
+        out.write(",\"headersSize\":-1,\"bodySize\":");
+        out.write(Integer.toString(requestBody != null ? requestBody.length : 0));
+
+        int responseBodyLength = exchange.getResponseBodyLength();
+        out.write("},\"response\":{\"status\":");
+        out.write(Integer.toString(exchange.getStatusCode()));
+        out.write(",\"statusText\":");
+        writeString(exchange.getStatusMessage() != null ? exchange.getStatusMessage() : "");
+        out.write(",\"httpVersion\":\"HTTP/1.1\",\"cookies\":[],\"headers\":[");
+        first = true;
+        for (Entry<String, List<String>> header : exchange.getResponseHeaders().entrySet()) {
+            // The null key is the status line (HttpURLConnection).
+            if (header.getKey() != null && header.getValue() != null) {
+                for (String value : header.getValue()) {
+                    first = writeHeader(header.getKey(), value, first);
+                }
+            }
+        }
+        out.write("],\"content\":{\"size\":");
+        out.write(Integer.toString(Math.max(0, responseBodyLength)));
+        out.write(",\"mimeType\":");
+        writeString(exchange.getContentType() != null ? exchange.getContentType() : "");
+        if (bodyMode == BodyMode.HASH && exchange.getResponseBodyRef() != null) {
+            // Already hashed by the body store... no need to read it back.
+            out.write(",\"_sha256\":");
+            writeString(exchange.getResponseBodyRef().getSha256());
+        } else if (responseBodyLength != -1 && bodyMode != BodyMode.OMIT) {
+            byte[] responseBody = exchange.getResponseBody();
+            if (responseBody != null) {
+                writeBody(responseBody, false);
+            }
+        }
+        out.write("},\"redirectURL\":\"\",\"headersSize\":-1,\"bodySize\":");
+        out.write(Integer.toString(responseBodyLength));
+
+        out.write("},\"cache\":{},\"timings\":{");
+        writeTimings(timing);
+        out.write('}');
+        if (exchange.getCertFingerprint() != null) {
+            out.write(",\"_serverCertSha256\":");
+            writeString(exchange.getCertFingerprint());
+        }
+        if (timing.isConnectionReused()) {
+            out.write(",\"_connectionReused\":true");
+        }
+        if (timing.isTlsSessionResumed()) {
+            out.write(",\"_tlsSessionResumed\":true");
+        }
+        out.write('}');
+
+        entryCount++;
+    }
+
+    public synchronized long getEntryCount() {
+        return entryCount;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Complete the document and close the output stream.
+     * @throws IOException Error writing.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.write("\n]}}\n");
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private boolean writeHeader(String name, String value, boolean first) throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        out.write("{\"name\":");
+        writeString(name);
+        out.write(",\"value\":");
+        writeString(value != null ? value : "");
+        out.write('}');
+        return false;
+    }
+
+    private void writeQueryString(String url) throws IOException {
+        int queryStart = url.indexOf('?');
+        if (queryStart == -1) {
+            return;
+        }
+        int queryEnd = url.indexOf('#', queryStart);
+        String query = url.substring(queryStart + 1, queryEnd != -1 ? queryEnd : url.length());
+
+        boolean first = true;
+        for (String parameter : query.split("&")) {
+            if (parameter.length() == 0) {
+                continue;
+            }
+            int equals = parameter.indexOf('=');
+            first = writeHeader(equals != -1 ? parameter.substring(0, equals) : parameter, equals != -1 ? parameter.substring(equals + 1) : "", first);
+        }
+    }
+
+    private void writeBody(byte[] body, boolean postData) throws IOException {
+        if (bodyMode == BodyMode.BASE64) {
+            out.write(",\"text\":\"");
+            for (int offset = 0; offset < body.length; offset += BASE64_CHUNK) {
+                int length = Base64Codec.encode(body, offset, Math.min(BASE64_CHUNK, body.length - offset), base64Buffer, 0);
+                out.write(base64Buffer, 0, length);
+            }
+            // HAR has no encoding field for postData... custom field.
+            out.write(postData ? "\",\"_encoding\":\"base64\"" : "\",\"encoding\":\"base64\"");
+        } else if (bodyMode == BodyMode.HASH) {
+            out.write(",\"_sha256\":");
+            writeString(HashUtil.toSHA256String(body));
+        }
+    }
+
+    private void writeTimings(RequestTiming timing) throws IOException {
+        long dns = timing.getDnsNanos();
+        long tls = timing.getTlsHandshakeNanos();
+        long connect = timing.getConnectNanos();
+        // HAR's connect time includes the TLS handshake.
+        long harConnect = (connect == RequestTiming.NOT_MEASURED ? connect : connect + Math.max(0, tls));
+        long send = timing.getRequestWriteNanos();
+        long wait = timing.getTimeToFirstByteNanos();
+        long receive = timing.getTransferNanos();
+        long blocked = RequestTiming.NOT_MEASURED;
+        if (dns != RequestTiming.NOT_MEASURED && harConnect != RequestTiming.NOT_MEASURED && send != RequestTiming.NOT_MEASURED
+                && wait != RequestTiming.NOT_MEASURED && receive != RequestTiming.NOT_MEASURED) {
+            blocked = Math.max(0, timing.getTotalNanos() - dns - harConnect - send - wait - receive);
+        }
+
+        out.write("\"blocked\":");
+        writeMillis(blocked);
+        out.write(",\"dns\":");
+        writeMillis(dns);
+        out.write(",\"connect\":");
+        writeMillis(harConnect);
+        out.write(",\"send\":");
+        // send, wait and receive are required... 0 if not measured.
+        writeMillis(Math.max(0, send));
+        out.write(",\"wait\":");
+        writeMillis(Math.max(0, wait));
+        out.write(",\"receive\":");
+        writeMillis(Math.max(0, receive));
+        out.write(",\"ssl\":");
+        writeMillis(tls);
+    }
+
+    /**
+     * Write nanos as milliseconds, to microsecond precision.  -1 (not measured) is written as -1.
+     */
+    private void writeMillis(long nanos) throws IOException {
+        if (nanos < 0) {
+            out.write("-1");
+            return;
+        }
+        long micros = nanos / 1000;
+        out.write(Long.toString(micros / 1000));
+        int fraction = (int) (micros % 1000);
+        if (fraction != 0) {
+            out.write('.');
+            out.write((char) ('0' + fraction / 100));
+            out.write((char) ('0' + fraction / 10 % 10));
+            out.write((char) ('0' + fraction % 10));
+        }
+    }
+
+    private void writeDate(long millis) throws IOException {
+        // ISO 8601, UTC.  Formatted by hand from a reused Calendar, rather than a DateFormat per entry.
+        calendar.setTimeInMillis(millis);
+        dateBuffer.setLength(0);
+        dateBuffer.append('"');
+        appendPadded(calendar.get(Calendar.YEAR), 4);
+        dateBuffer.append('-');
+        appendPadded(calendar.get(Calendar.MONTH) + 1, 2);
+        dateBuffer.append('-');
+        appendPadded(calendar.get(Calendar.DAY_OF_MONTH), 2);
+        dateBuffer.append('T');
+        appendPadded(calendar.get(Calendar.HOUR_OF_DAY), 2);
+        dateBuffer.append(':');
+        appendPadded(calendar.get(Calendar.MINUTE), 2);
+        dateBuffer.append(':');
+        appendPadded(calendar.get(Calendar.SECOND), 2);
+        dateBuffer.append('.');
+        appendPadded(calendar.get(Calendar.MILLISECOND), 3);
+        dateBuffer.append("Z\"");
+        out.append(dateBuffer);
+    }
+
+    private void appendPadded(int value, int width) {
+        String digits = Integer.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            dateBuffer.append('0');
+        }
+        dateBuffer.append(digits);
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+
+        out.write('"');
+        int runStart = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != 0x2028 && c != 0x2029) {
+                continue;
+            }
+            out.write(value, runStart, i - runStart);
+            runStart = i + 1;
+            switch (c) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default:
+                    out.write("\\u");
+                    escapeBytes[0] = (byte) (c >> 8);
+                    escapeBytes[1] = (byte) c;
+                    HexCodec.encode(escapeBytes, 0, 2, escapeChars, 0);
+                    out.write(escapeChars);
+            }
+        }
+        out.write(value, runStart, length - runStart);
+        out.write('"');
+    }
+
+    private static String getHeader(Map<String, String> headers, String name) {
+        for (Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return "";
+    }
+}
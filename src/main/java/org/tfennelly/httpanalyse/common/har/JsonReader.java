@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.har;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal pull JSON parser.
+ * <p/>
+ * Containers can be stepped through member by member (so a huge array is never held in memory), or read whole
+ * into {@link Map Maps}, {@link List Lists}, Strings, {@link Double Doubles}, Booleans and nulls.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class JsonReader {
+
+    /**
+     * Max container nesting depth.  Way beyond anything in a HAR, but stops a malicious document blowing the
+     * stack of {@link #readValue()} and {@link #skipValue()}.
+     */
+    static final int MAX_DEPTH = 256;
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private final StringBuilder token = new StringBuilder();
+    private int position;
+    private int limit;
+    private long offset;
+    // True once the first member/element of the current container has been read.
+    private boolean[] started = new boolean[32];
+    private int depth;
+
+    JsonReader(Reader in) {
+        this.in = in;
+    }
+
+    void beginObject() throws IOException {
+        expect('{');
+        push();
+    }
+
+    void beginArray() throws IOException {
+        expect('[');
+        push();
+    }
+
+    /**
+     * Step to the next member of the current object.
+     * @return The member name, or null if the object ended (the closing brace is consumed).
+     */
+    String nextName() throws IOException {
+        if (!hasNext('}')) {
+            return null;
+        }
+        String name = readString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Step to the next element of the current array.
+     * @return True if there's another element, false if the array ended (the closing bracket is consumed).
+     */
+    boolean nextElement() throws IOException {
+        return hasNext(']');
+    }
+
+    /**
+     * Read the next value whole.
+     */
+    Object readValue() throws IOException {
+        char c = peek();
+        if (c == '{') {
+            beginObject();
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            String name;
+            while ((name = nextName()) != null) {
+                object.put(name, readValue());
+            }
+            return object;
+        } else if (c == '[') {
+            beginArray();
+            List<Object> array = new ArrayList<Object>();
+            while (nextElement()) {
+                array.add(readValue());
+            }
+            return array;
+        } else if (c == '"') {
+            return readString();
+        }
+
+        String literal = readLiteral();
+        if (literal.equals("true")) {
+            return Boolean.TRUE;
+        } else if (literal.equals("false")) {
+            return Boolean.FALSE;
+        } else if (literal.equals("null")) {
+            return null;
+        }
+        try {
+            return Double.valueOf(literal);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid literal '" + literal + "'");
+        }
+    }
+
+    /**
+     * Skip the next value, without building it.
+     */
+    void skipValue() throws IOException {
+        char c = peek();
+        if (c == '{') {
+            beginObject();
+            while (nextName() != null) {
+                skipValue();
+            }
+        } else if (c == '[') {
+            beginArray();
+            while (nextElement()) {
+                skipValue();
+            }
+        } else if (c == '"') {
+            skipString();
+        } else {
+            readLiteral();
+        }
+    }
+
+    private boolean hasNext(char close) throws IOException {
+        char c = peek();
+        if (c == close) {
+            position++;
+            depth--;
+            return false;
+        }
+        if (started[depth - 1]) {
+            expect(',');
+        } else {
+            started[depth - 1] = true;
+        }
+        return true;
+    }
+
+    private void push() throws IOException {
+        if (depth == MAX_DEPTH) {
+            throw syntaxError("JSON nested deeper than " + MAX_DEPTH + " levels");
+        }
+        if (depth == started.length) {
+            boolean[] grown = new boolean[depth * 2];
+            System.arraycopy(started, 0, grown, 0, depth);
+            started = grown;
+        }
+        started[depth++] = false;
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        token.setLength(0);
+
+        while (true) {
+            if (position == limit && !fill()) {
+                throw new EOFException("Unterminated JSON string.");
+            }
+            // Copy unescaped runs in bulk.
+            int start = position;
+            while (position < limit) {
+                char c = buffer[position];
+                if (c == '"' || c == '\\') {
+                    break;
+                }
+                position++;
+            }
+            token.append(buffer, start, position - start);
+            if (position == limit) {
+                continue;
+            }
+
+            char c = buffer[position++];
+            if (c == '"') {
+                return token.toString();
+            }
+            char escaped = read();
+            switch (escaped) {
+                case '"': case '\\': case '/': token.append(escaped); break;
+                case 'b': token.append('\b'); break;
+                case 'f': token.append('\f'); break;
+                case 'n': token.append('\n'); break;
+                case 'r': token.append('\r'); break;
+                case 't': token.append('\t'); break;
+                case 'u':
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(read(), 16);
+                        if (digit < 0) {
+                            throw syntaxError("Invalid unicode escape");
+                        }
+                        value = (value << 4) | digit;
+                    }
+                    token.append((char) value);
+                    break;
+                default:
+                    throw syntaxError("Invalid escape '\\" + escaped + "'");
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        expect('"');
+        while (true) {
+            char c = read();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                read();
+            }
+        }
+    }
+
+    private String readLiteral() throws IOException {
+        peek();
+        token.setLength(0);
+        while (position < limit || fill()) {
+            char c = buffer[position];
+            if (c == ',' || c == '}' || c == ']' || c <= ' ') {
+                break;
+            }
+            token.append(c);
+            position++;
+        }
+        if (token.length() == 0) {
+            throw syntaxError("Expected a value");
+        }
+        return token.toString();
+    }
+
+    private void expect(char expected) throws IOException {
+        if (peek() != expected) {
+            throw syntaxError("Expected '" + expected + "' but found '" + buffer[position] + "'");
+        }
+        position++;
+    }
+
+    /**
+     * Skip whitespace and return the next char, without consuming it.
+     */
+    private char peek() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                throw new EOFException("Unexpected end of JSON.");
+            }
+            char c = buffer[position];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            position++;
+        }
+    }
+
+    private char read() throws IOException {
+        if (position == limit && !fill()) {
+            throw new EOFException("Unexpected end of JSON.");
+        }
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        offset += limit;
+        position = 0;
+        limit = 0;
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        limit = read;
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at offset " + (offset + position) + ".");
+    }
+}
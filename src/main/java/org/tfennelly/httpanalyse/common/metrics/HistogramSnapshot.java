@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.metrics;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time snapshot of a {@link LatencyHistogram}.
+ * <p/>
+ * Reported values are bucket midpoints, clamped to the recorded min/max, so are accurate to within the
+ * histogram's bucket precision.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class HistogramSnapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long min;
+    private final long max;
+
+    HistogramSnapshot(long[] counts, long count, long sum, long min, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Create an empty snapshot.
+     * @return An empty snapshot.
+     */
+    public static HistogramSnapshot empty() {
+        return new HistogramSnapshot(new long[LatencyHistogram.BUCKET_COUNT], 0, 0, Long.MAX_VALUE, Long.MIN_VALUE);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * Get the smallest recorded value.
+     * @return The smallest recorded value, or 0 if nothing was recorded.
+     */
+    public long getMin() {
+        return (count == 0 ? 0 : min);
+    }
+
+    /**
+     * Get the largest recorded value.
+     * @return The largest recorded value, or 0 if nothing was recorded.
+     */
+    public long getMax() {
+        return (count == 0 ? 0 : max);
+    }
+
+    public double getMean() {
+        return (count == 0 ? 0.0 : (double) sum / count);
+    }
+
+    /**
+     * Get the value at the supplied percentile.
+     * @param percentile The percentile (0.0 - 100.0).
+     * @return The value at the percentile, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("Invalid percentile '" + percentile + "'. Must be between 0.0 and 100.0.");
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil((percentile / 100.0) * count));
+        if (rank >= count) {
+            return max;
+        }
+
+        long cumulativeCount = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= rank) {
+                long low = LatencyHistogram.lowestValueAt(i);
+                long midpoint = low + ((LatencyHistogram.highestValueAt(i) - low) >> 1);
+                return Math.max(min, Math.min(max, midpoint));
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * Merge this snapshot with another e.g. to combine histograms from multiple clients or threads.
+     * @param other The other snapshot.
+     * @return A new merged snapshot.
+     */
+    public HistogramSnapshot merge(HistogramSnapshot other) {
+        AssertArgument.isNotNull(other, "other");
+
+        long[] mergedCounts = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            mergedCounts[i] = counts[i] + other.counts[i];
+        }
+
+        return new HistogramSnapshot(mergedCounts, count + other.count, sum + other.sum, Math.min(min, other.min), Math.max(max, other.max));
+    }
+
+    long[] getCounts() {
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + count + ", min: " + toMillis(getMin()) + "ms, mean: " + toMillis((long) getMean())
+                + "ms, p50: " + toMillis(getValueAtPercentile(50.0)) + "ms, p90: " + toMillis(getValueAtPercentile(90.0))
+                + "ms, p99: " + toMillis(getValueAtPercentile(99.0)) + "ms, p99.9: " + toMillis(getValueAtPercentile(99.9))
+                + "ms, max: " + toMillis(getMax()) + "ms";
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", (double) nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.metrics;
+
+import org.tfennelly.httpanalyse.common.RequestTiming;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request metrics registry.
+ * <p/>
+ * Aggregates latency histograms (total, time to first byte, and full vs resumed TLS handshakes), per
+ * status code counts and per host counts (incl. TLS session resumption, to spot hosts that break it).
+ * Recording is lock-free and, once a host has been seen, does not allocate.  The registry may be shared
+ * by multiple clients.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class HttpMetrics {
+
+    public static final int DEFAULT_MAX_HOSTS = 10000;
+
+    // Status codes 100 - 599 are counted individually, anything else in the "other" slot.
+    static final int STATUS_SLOTS = 600;
+
+    private final int maxHosts;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram fullTlsHandshake = new LatencyHistogram();
+    private final LatencyHistogram resumedTlsHandshake = new LatencyHistogram();
+    private final AtomicLongArray statusCounts = new AtomicLongArray(STATUS_SLOTS + 1);
+    private final ConcurrentHashMap<String, HostCounter> hostCounters = new ConcurrentHashMap<String, HostCounter>();
+    private final HostCounter otherHostsCounter = new HostCounter();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    public HttpMetrics() {
+        this(DEFAULT_MAX_HOSTS);
+    }
+
+    /**
+     * Constructor.
+     * @param maxHosts The maximum number of hosts to count individually.  Requests to any further hosts are
+     * lumped together, keeping memory bounded on very large scans.
+     */
+    public HttpMetrics(int maxHosts) {
+        if (maxHosts < 0) {
+            throw new IllegalArgumentException("Invalid 'maxHosts' value '" + maxHosts + "'. Cannot be negative.");
+        }
+        this.maxHosts = maxHosts;
+    }
+
+    /**
+     * Record a completed request.
+     * @param host The request host.
+     * @param statusCode The response status code.
+     * @param timing The request timing, or null if not available.
+     */
+    public void record(String host, int statusCode, RequestTiming timing) {
+        HostCounter hostCounter = hostCounter(host);
+
+        statusCounts.incrementAndGet(statusSlot(statusCode));
+        hostCounter.responses.incrementAndGet();
+        if (timing != null) {
+            latency.record(timing.getTotalNanos());
+            if (timing.getTimeToFirstByteNanos() != RequestTiming.NOT_MEASURED) {
+                timeToFirstByte.record(timing.getTimeToFirstByteNanos());
+            }
+            if (!timing.isConnectionReused() && timing.getTlsHandshakeNanos() > 0) {
+                hostCounter.tlsHandshakes.incrementAndGet();
+                if (timing.isTlsSessionResumed()) {
+                    hostCounter.tlsResumed.incrementAndGet();
+                    resumedTlsHandshake.record(timing.getTlsHandshakeNanos());
+                } else {
+                    fullTlsHandshake.record(timing.getTlsHandshakeNanos());
+                }
+            }
+        }
+    }
+
+    /**
+     * Record a failed request i.e. one that did not get a response.
+     * @param host The request host.
+     */
+    public void recordError(String host) {
+        errorCount.incrementAndGet();
+        hostCounter(host).errors.incrementAndGet();
+    }
+
+    /**
+     * Take a snapshot of the metrics.
+     * <p/>
+     * Recording is not blocked while the snapshot is taken.
+     * @return The snapshot.
+     */
+    public HttpMetricsSnapshot snapshot() {
+        long[] statusCountsSnapshot = new long[STATUS_SLOTS + 1];
+        Map<String, long[]> hostCountsSnapshot = new LinkedHashMap<String, long[]>();
+
+        for (int i = 0; i < statusCountsSnapshot.length; i++) {
+            statusCountsSnapshot[i] = statusCounts.get(i);
+        }
+        for (Map.Entry<String, HostCounter> hostCounter : hostCounters.entrySet()) {
+            hostCountsSnapshot.put(hostCounter.getKey(), hostCounter.getValue().snapshot());
+        }
+
+        return new HttpMetricsSnapshot(latency.snapshot(), timeToFirstByte.snapshot(), fullTlsHandshake.snapshot(), resumedTlsHandshake.snapshot(),
+                statusCountsSnapshot, hostCountsSnapshot, otherHostsCounter.snapshot(), errorCount.get());
+    }
+
+    /**
+     * Reset all metrics.
+     * <p/>
+     * Not atomic with respect to concurrent recording.
+     */
+    public void reset() {
+        latency.reset();
+        timeToFirstByte.reset();
+        fullTlsHandshake.reset();
+        resumedTlsHandshake.reset();
+        for (int i = 0; i < statusCounts.length(); i++) {
+            statusCounts.set(i, 0);
+        }
+        hostCounters.clear();
+        otherHostsCounter.reset();
+        errorCount.set(0);
+    }
+
+    static int statusSlot(int statusCode) {
+        return (statusCode >= 100 && statusCode < STATUS_SLOTS ? statusCode : STATUS_SLOTS);
+    }
+
+    private HostCounter hostCounter(String host) {
+        String key = (host != null ? host : "");
+        HostCounter counter = hostCounters.get(key);
+
+        if (counter == null) {
+            if (hostCounters.size() >= maxHosts) {
+                return otherHostsCounter;
+            }
+            counter = new HostCounter();
+            HostCounter existing = hostCounters.putIfAbsent(key, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+
+        return counter;
+    }
+
+    private static class HostCounter {
+        private final AtomicLong responses = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong tlsHandshakes = new AtomicLong();
+        private final AtomicLong tlsResumed = new AtomicLong();
+
+        private long[] snapshot() {
+            return new long[] {responses.get(), errors.get(), tlsHandshakes.get(), tlsResumed.get()};
+        }
+
+        private void reset() {
+            responses.set(0);
+            errors.set(0);
+            tlsHandshakes.set(0);
+            tlsResumed.set(0);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.metrics;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Point in time snapshot of {@link HttpMetrics}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class HttpMetricsSnapshot {
+
+    // Per host counts: responses, errors, TLS handshakes, resumed TLS handshakes.
+    private static final int HOST_COUNTS = 4;
+    private static final long[] NO_COUNTS = new long[HOST_COUNTS];
+
+    private final HistogramSnapshot latency;
+    private final HistogramSnapshot timeToFirstByte;
+    private final HistogramSnapshot fullTlsHandshake;
+    private final HistogramSnapshot resumedTlsHandshake;
+    private final long[] statusCounts;
+    private final Map<String, long[]> hostCounts;
+    private final long[] otherHostsCounts;
+    private final long errorCount;
+
+    HttpMetricsSnapshot(HistogramSnapshot latency, HistogramSnapshot timeToFirstByte, HistogramSnapshot fullTlsHandshake,
+                        HistogramSnapshot resumedTlsHandshake, long[] statusCounts, Map<String, long[]> hostCounts,
+                        long[] otherHostsCounts, long errorCount) {
+        this.latency = latency;
+        this.timeToFirstByte = timeToFirstByte;
+        this.fullTlsHandshake = fullTlsHandshake;
+        this.resumedTlsHandshake = resumedTlsHandshake;
+        this.statusCounts = statusCounts;
+        this.hostCounts = hostCounts;
+        this.otherHostsCounts = otherHostsCounts;
+        this.errorCount = errorCount;
+    }
+
+    /**
+     * Get the total request latency histogram.
+     * @return The latency histogram snapshot (nanoseconds).
+     */
+    public HistogramSnapshot getLatency() {
+        return latency;
+    }
+
+    /**
+     * Get the time to first byte histogram.
+     * @return The time to first byte histogram snapshot (nanoseconds).
+     */
+    public HistogramSnapshot getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    /**
+     * Get the full (not resumed) TLS handshake time histogram.
+     * @return The full TLS handshake histogram snapshot (nanoseconds).
+     */
+    public HistogramSnapshot getFullTlsHandshake() {
+        return fullTlsHandshake;
+    }
+
+    /**
+     * Get the resumed TLS handshake time histogram.
+     * @return The resumed TLS handshake histogram snapshot (nanoseconds).
+     */
+    public HistogramSnapshot getResumedTlsHandshake() {
+        return resumedTlsHandshake;
+    }
+
+    /**
+     * Get the ratio of TLS handshakes that resumed a cached session.
+     * @return The resumption ratio (0.0 - 1.0).
+     */
+    public double getTlsResumptionRatio() {
+        long handshakes = fullTlsHandshake.getCount() + resumedTlsHandshake.getCount();
+        return (handshakes == 0 ? 0.0 : (double) resumedTlsHandshake.getCount() / handshakes);
+    }
+
+    /**
+     * Get the number of responses received.
+     * @return The number of responses.
+     */
+    public long getResponseCount() {
+        long count = 0;
+        for (long statusCount : statusCounts) {
+            count += statusCount;
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of requests that failed without a response.
+     * @return The number of failed requests.
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Get the number of responses with the supplied status code.
+     * @param statusCode The status code.
+     * @return The number of responses.
+     */
+    public long getStatusCount(int statusCode) {
+        return statusCounts[HttpMetrics.statusSlot(statusCode)];
+    }
+
+    /**
+     * Get the response counts by status code, in status code order.
+     * <p/>
+     * Status codes outside the 100 - 599 range are counted under -1.
+     * @return The response counts by status code.  Only status codes that were seen are included.
+     */
+    public Map<Integer, Long> getStatusCounts() {
+        Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+
+        for (int i = 0; i < statusCounts.length; i++) {
+            if (statusCounts[i] != 0) {
+                counts.put((i == HttpMetrics.STATUS_SLOTS ? -1 : i), statusCounts[i]);
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Get the hosts that were counted individually.
+     * @return The hosts.
+     */
+    public Set<String> getHosts() {
+        return Collections.unmodifiableSet(hostCounts.keySet());
+    }
+
+    public long getHostResponseCount(String host) {
+        return getHostCounts(host)[0];
+    }
+
+    public long getHostErrorCount(String host) {
+        return getHostCounts(host)[1];
+    }
+
+    /**
+     * Get the number of TLS handshakes with the supplied host i.e. new https connections.
+     * @param host The host.
+     * @return The number of TLS handshakes.
+     */
+    public long getHostTlsHandshakeCount(String host) {
+        return getHostCounts(host)[2];
+    }
+
+    /**
+     * Get the number of TLS handshakes with the supplied host that resumed a cached session.
+     * <p/>
+     * A host with repeated handshakes but no resumptions does not support (or breaks) session resumption.
+     * @param host The host.
+     * @return The number of resumed TLS handshakes.
+     */
+    public long getHostTlsResumedCount(String host) {
+        return getHostCounts(host)[3];
+    }
+
+    /**
+     * Get the number of responses from hosts beyond the registry's individually counted host limit.
+     * @return The number of responses.
+     */
+    public long getOtherHostsResponseCount() {
+        return otherHostsCounts[0];
+    }
+
+    /**
+     * Get the number of failed requests to hosts beyond the registry's individually counted host limit.
+     * @return The number of failed requests.
+     */
+    public long getOtherHostsErrorCount() {
+        return otherHostsCounts[1];
+    }
+
+    /**
+     * Merge this snapshot with another e.g. to combine the metrics of multiple registries.
+     * @param other The other snapshot.
+     * @return A new merged snapshot.
+     */
+    public HttpMetricsSnapshot merge(HttpMetricsSnapshot other) {
+        AssertArgument.isNotNull(other, "other");
+
+        long[] mergedStatusCounts = new long[statusCounts.length];
+        for (int i = 0; i < statusCounts.length; i++) {
+            mergedStatusCounts[i] = statusCounts[i] + other.statusCounts[i];
+        }
+
+        Map<String, long[]> mergedHostCounts = new LinkedHashMap<String, long[]>(hostCounts);
+        for (Map.Entry<String, long[]> otherHostCounts : other.hostCounts.entrySet()) {
+            mergedHostCounts.put(otherHostCounts.getKey(), add(mergedHostCounts.get(otherHostCounts.getKey()), otherHostCounts.getValue()));
+        }
+
+        return new HttpMetricsSnapshot(latency.merge(other.latency), timeToFirstByte.merge(other.timeToFirstByte),
+                fullTlsHandshake.merge(other.fullTlsHandshake), resumedTlsHandshake.merge(other.resumedTlsHandshake), mergedStatusCounts,
+                mergedHostCounts, add(otherHostsCounts, other.otherHostsCounts), errorCount + other.errorCount);
+    }
+
+    @Override
+    public String toString() {
+        return "responses: " + getResponseCount() + ", errors: " + errorCount + ", status: " + getStatusCounts()
+                + ", hosts: " + hostCounts.size() + (otherHostsCounts[0] + otherHostsCounts[1] > 0 ? "+" : "")
+                + "\nlatency: " + latency + "\nttfb: " + timeToFirstByte
+                + "\ntls full: " + fullTlsHandshake + "\ntls resumed: " + resumedTlsHandshake;
+    }
+
+    private long[] getHostCounts(String host) {
+        long[] counts = hostCounts.get(host);
+        return (counts != null ? counts : NO_COUNTS);
+    }
+
+    private static long[] add(long[] counts, long[] otherCounts) {
+        if (counts == null) {
+            return otherCounts;
+        }
+        long[] sum = new long[HOST_COUNTS];
+        for (int i = 0; i < HOST_COUNTS; i++) {
+            sum[i] = counts[i] + otherCounts[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.metrics;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, fixed memory, log-linear (HDR style) histogram of latency values, in nanoseconds.
+ * <p/>
+ * Values are bucketed by power of two magnitude, with each magnitude split linearly into
+ * {@link #SUB_BUCKET_HALF_COUNT} sub-buckets, giving a relative error of under 1% across the full
+ * positive {@code long} range in ~58KB of counts.  Recording is a couple of atomic increments and does
+ * not allocate, so it can be called on every request.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 8;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+    static final int BUCKET_COUNT = (Long.SIZE - 1 - SUB_BUCKET_BITS + 2) * SUB_BUCKET_HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Record a value.
+     * @param value The value.  Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long recordValue = Math.max(value, 0);
+
+        counts.incrementAndGet(indexOf(recordValue));
+        totalCount.incrementAndGet();
+        sum.addAndGet(recordValue);
+        updateMin(recordValue);
+        updateMax(recordValue);
+    }
+
+    /**
+     * Add the counts from a snapshot (e.g. one taken from another histogram) into this histogram.
+     * @param snapshot The snapshot.
+     */
+    public void add(HistogramSnapshot snapshot) {
+        AssertArgument.isNotNull(snapshot, "snapshot");
+        if (snapshot.getCount() == 0) {
+            return;
+        }
+
+        long[] snapshotCounts = snapshot.getCounts();
+        for (int i = 0; i < snapshotCounts.length; i++) {
+            if (snapshotCounts[i] != 0) {
+                counts.addAndGet(i, snapshotCounts[i]);
+            }
+        }
+        totalCount.addAndGet(snapshot.getCount());
+        sum.addAndGet(snapshot.getSum());
+        updateMin(snapshot.getMin());
+        updateMax(snapshot.getMax());
+    }
+
+    /**
+     * Take a snapshot of the histogram.
+     * <p/>
+     * Recording is not blocked while the snapshot is taken, so values recorded concurrently may or may
+     * not be included.
+     * @return The snapshot.
+     */
+    public HistogramSnapshot snapshot() {
+        long[] snapshotCounts = new long[BUCKET_COUNT];
+        long snapshotTotal = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshotCounts[i] = counts.get(i);
+            snapshotTotal += snapshotCounts[i];
+        }
+
+        // Use the bucket total rather than totalCount, so the percentiles are consistent with the counts...
+        return new HistogramSnapshot(snapshotCounts, snapshotTotal, sum.get(), min.get(), max.get());
+    }
+
+    /**
+     * Get the number of recorded values.
+     * @return The number of recorded values.
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * Reset the histogram.
+     * <p/>
+     * Not atomic with respect to concurrent recording.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+    }
+
+    static int indexOf(long value) {
+        int shift = (Long.SIZE - SUB_BUCKET_BITS) - Long.numberOfLeadingZeros(value | (SUB_BUCKET_COUNT - 1));
+        return (shift * SUB_BUCKET_HALF_COUNT) + (int) (value >>> shift);
+    }
+
+    static long lowestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index / SUB_BUCKET_HALF_COUNT) - 1;
+        return (long) (index - (shift * SUB_BUCKET_HALF_COUNT)) << shift;
+    }
+
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index / SUB_BUCKET_HALF_COUNT) - 1;
+        return lowestValueAt(index) + (1L << shift) - 1;
+    }
+
+    private void updateMin(long value) {
+        long current = min.get();
+        while (value < current && !min.compareAndSet(current, value)) {
+            current = min.get();
+        }
+    }
+
+    private void updateMax(long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+}
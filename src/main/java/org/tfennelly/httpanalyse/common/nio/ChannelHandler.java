@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handles readiness events for a channel registered with an {@link EventLoop}.
+ * <p/>
+ * All methods are called on the event loop thread and must not block.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public interface ChannelHandler {
+
+    /**
+     * The channel is ready for one or more of the operations in its interest set.
+     * @param key The channel selection key.
+     * @throws IOException Error handling the event.  The handler is then notified via {@link #failed(Throwable)}.
+     */
+    void ready(SelectionKey key) throws IOException;
+
+    /**
+     * Handling failed, or the event loop was closed.
+     * @param cause The failure cause.
+     */
+    void failed(Throwable cause);
+}
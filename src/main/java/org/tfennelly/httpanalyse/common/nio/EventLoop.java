@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single threaded, selector driven event loop.
+ * <p/>
+ * Channels registered with the loop have their {@link ChannelHandler} called on the loop thread as they
+ * become ready.  Tasks can be handed to the loop from any thread via {@link #execute(Runnable)}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class EventLoop implements Closeable {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // Only accessed on the loop thread.
+    private final PriorityQueue<Timeout> timeouts = new PriorityQueue<Timeout>();
+    private final Thread thread;
+    // Guards the running check and enqueue in execute against close, so no task is queued after the final drain.
+    private final Object runningLock = new Object();
+    private volatile boolean running = true;
+
+    public EventLoop(String name) throws IOException {
+        AssertArgument.isNotNullAndNotEmpty(name, "name");
+        this.selector = Selector.open();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Is the calling thread the event loop thread.
+     * @return True if called on the event loop thread, otherwise false.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Execute the supplied task on the event loop thread.
+     * <p/>
+     * Tasks are expected to handle their own errors.  An error escaping a task is passed to the loop thread's
+     * {@link Thread.UncaughtExceptionHandler}, and the loop carries on.
+     * @param task The task.
+     * @throws RejectedExecutionException The loop is closed.
+     */
+    public void execute(Runnable task) {
+        AssertArgument.isNotNull(task, "task");
+        synchronized (runningLock) {
+            if (!running) {
+                throw new RejectedExecutionException("Event loop '" + thread.getName() + "' is closed.");
+            }
+            tasks.add(task);
+        }
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Register a channel with the loop.
+     * <p/>
+     * Must be called on the loop thread.
+     *
+     * @param channel The non-blocking channel.
+     * @param ops The initial interest set.
+     * @param handler The channel handler.
+     * @return The selection key.
+     * @throws ClosedChannelException The channel is closed.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler) throws ClosedChannelException {
+        assertInEventLoop();
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Schedule a task to run on the loop after the specified delay.
+     * <p/>
+     * Must be called on the loop thread.
+     *
+     * @param task The task.
+     * @param delay The delay.
+     * @param unit The delay time unit.
+     * @return The {@link Timeout}, which can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        assertInEventLoop();
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        timeouts.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void close() {
+        stopRunning();
+        selector.wakeup();
+    }
+
+    private void stopRunning() {
+        synchronized (runningLock) {
+            running = false;
+        }
+    }
+
+    private void assertInEventLoop() {
+        if (!inEventLoop()) {
+            throw new IllegalStateException("Must be called on event loop thread '" + thread.getName() + "'.");
+        }
+    }
+
+    private void runLoop() {
+        try {
+            while (running) {
+                long selectTimeout = runTimeouts();
+
+                if (tasks.isEmpty()) {
+                    selector.select(selectTimeout);
+                } else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    ChannelHandler handler = (ChannelHandler) key.attachment();
+
+                    selectedKeys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        handler.ready(key);
+                    } catch (Throwable t) {
+                        handler.failed(t);
+                    }
+                }
+
+                runTasks();
+            }
+        } catch (IOException e) {
+            stopRunning();
+        } catch (ClosedSelectorException e) {
+            stopRunning();
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Run expired timeouts.
+     * @return The select timeout (in milliseconds) until the next timeout expires, or 0 if there are none pending.
+     */
+    private long runTimeouts() {
+        long now = System.nanoTime();
+        Timeout timeout;
+
+        while ((timeout = timeouts.peek()) != null) {
+            if (timeout.isCancelled()) {
+                timeouts.poll();
+            } else if (timeout.deadline <= now) {
+                timeouts.poll();
+                runTask(timeout.task);
+            } else {
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout.deadline - now));
+            }
+        }
+
+        return 0;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runTask(task);
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            // Tasks are expected to handle their own errors.  Don't let one kill the loop.
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+        }
+    }
+
+    private void shutdown() {
+        ClosedChannelException closed = new ClosedChannelException();
+
+        // Whatever stopped the loop, no more tasks are accepted... so this drain is the last.
+        stopRunning();
+        runTasks();
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((ChannelHandler) key.attachment()).failed(closed);
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+            selector.close();
+        } catch (IOException e) {
+            // Ignore
+        } catch (ClosedSelectorException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * A task scheduled on the loop.
+     */
+    public static final class Timeout implements Comparable<Timeout> {
+
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(Timeout other) {
+            return (deadline < other.deadline ? -1 : (deadline == other.deadline ? 0 : 1));
+        }
+    }
+}
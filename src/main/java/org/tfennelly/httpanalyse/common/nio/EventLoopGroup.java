@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed size group of {@link EventLoop EventLoops}, handed out round-robin.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class EventLoopGroup implements Closeable {
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    public EventLoopGroup(int size, String namePrefix) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("'size' must be greater than zero.");
+        }
+
+        eventLoops = new EventLoop[size];
+        try {
+            for (int i = 0; i < size; i++) {
+                eventLoops[i] = new EventLoop(namePrefix + "-" + (i + 1));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return eventLoops.length;
+    }
+
+    public EventLoop next() {
+        return eventLoops[(nextIndex.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
+    }
+
+    @Override
+    public void close() {
+        for (EventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import org.tfennelly.httpanalyse.common.HttpWire;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental (push) HTTP/1.1 response parser.
+ * <p/>
+ * Fed with bytes as they arrive on a non-blocking connection.  The body is buffered in memory, up to the
+ * max body size.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class HttpResponseParser {
+
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_LINE_SIZE = 1024;
+    private static final int CRLFCRLF = 0x0D0A0D0A;
+    private static final int LFLF = 0x0A0A;
+
+    private enum State {
+        HEAD, BODY_LENGTH, BODY_UNTIL_CLOSE, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS, COMPLETE
+    }
+
+    private final String method;
+    private final int maxBodySize;
+    private State state = State.HEAD;
+    private final ByteArrayOutputStream headBuffer = new ByteArrayOutputStream(512);
+    private final StringBuilder lineBuffer = new StringBuilder();
+    private ByteArrayOutputStream body;
+    private HttpWire.ResponseHead head;
+    private long remaining;
+    // Last 4 bytes of the head, for spotting the blank line that terminates it.
+    private int headTail;
+
+    public HttpResponseParser(String method) {
+        this(method, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructor.
+     * @param method The request method.
+     * @param maxBodySize The max response body size, in bytes.  A larger body fails the parse.
+     */
+    public HttpResponseParser(String method, int maxBodySize) {
+        if (maxBodySize < 0) {
+            throw new IllegalArgumentException("Invalid 'maxBodySize' value '" + maxBodySize + "'. Cannot be negative.");
+        }
+        this.method = method;
+        this.maxBodySize = maxBodySize;
+    }
+
+    public boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    public HttpWire.ResponseHead getHead() {
+        return head;
+    }
+
+    /**
+     * Get the response body.
+     * @return The body, or null if the response has no body.
+     */
+    public byte[] getBody() {
+        return (body != null ? body.toByteArray() : null);
+    }
+
+    /**
+     * Feed the parser.
+     * @param buffer Buffer containing the next bytes received.  All remaining bytes are consumed.
+     * @return True if the response is complete, otherwise false.
+     * @throws IOException Invalid response.
+     */
+    public boolean feed(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && state != State.COMPLETE) {
+            switch (state) {
+                case HEAD:
+                    parseHead(buffer);
+                    break;
+                case BODY_LENGTH:
+                    remaining -= copyBody(buffer, remaining);
+                    if (remaining == 0) {
+                        state = State.COMPLETE;
+                    }
+                    break;
+                case BODY_UNTIL_CLOSE:
+                    copyBody(buffer, Long.MAX_VALUE);
+                    break;
+                case CHUNK_SIZE:
+                    if (readLine(buffer)) {
+                        parseChunkSize();
+                    }
+                    break;
+                case CHUNK_DATA:
+                    remaining -= copyBody(buffer, remaining);
+                    if (remaining == 0) {
+                        state = State.CHUNK_DATA_END;
+                    }
+                    break;
+                case CHUNK_DATA_END:
+                    if (readLine(buffer)) {
+                        lineBuffer.setLength(0);
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS:
+                    if (readLine(buffer)) {
+                        if (lineBuffer.length() == 0) {
+                            state = State.COMPLETE;
+                        }
+                        lineBuffer.setLength(0);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        // Skip anything that follows a complete response.
+        buffer.position(buffer.limit());
+
+        return state == State.COMPLETE;
+    }
+
+    /**
+     * The server closed the connection.
+     * @return True if the response is complete, otherwise false.
+     * @throws EOFException The connection was closed before a complete response was received.
+     */
+    public boolean endOfStream() throws EOFException {
+        if (state == State.BODY_UNTIL_CLOSE) {
+            state = State.COMPLETE;
+        }
+        if (state != State.COMPLETE) {
+            throw new EOFException("Connection closed before a complete response was received.");
+        }
+        return true;
+    }
+
+    private void parseHead(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+
+            if (headBuffer.size() == 0 && (b == '\r' || b == '\n')) {
+                // Tolerate stray line terminators ahead of the status line.
+                continue;
+            }
+
+            headBuffer.write(b);
+            headTail = (headTail << 8) | (b & 0xFF);
+            if (headBuffer.size() > MAX_HEAD_SIZE) {
+                throw new ProtocolException("Response head exceeds " + MAX_HEAD_SIZE + " bytes.");
+            }
+            if (headTail == CRLFCRLF || (headTail & 0xFFFF) == LFLF) {
+                head = HttpWire.parseResponseHead(new ByteArrayInputStream(headBuffer.toByteArray()));
+                headBuffer.reset();
+                headTail = 0;
+                if (!head.isInterim()) {
+                    startBody();
+                }
+                return;
+            }
+        }
+    }
+
+    private void startBody() throws ProtocolException {
+        if (!head.hasBody(method)) {
+            state = State.COMPLETE;
+            return;
+        }
+
+        if (head.isChunked()) {
+            body = new ByteArrayOutputStream();
+            state = State.CHUNK_SIZE;
+            return;
+        }
+
+        long contentLength = head.getContentLength();
+        if (contentLength > maxBodySize) {
+            throw new ProtocolException("Response body of " + contentLength + " bytes exceeds the max body size of " + maxBodySize + " bytes.");
+        }
+        if (contentLength != -1) {
+            // Sized up front, but not trusting the header for more than the first 64K.
+            body = new ByteArrayOutputStream((int) Math.min(contentLength, 64 * 1024));
+            remaining = contentLength;
+            state = (remaining == 0 ? State.COMPLETE : State.BODY_LENGTH);
+        } else {
+            body = new ByteArrayOutputStream();
+            head.setDelimitedByClose();
+            state = State.BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private long copyBody(ByteBuffer buffer, long max) throws ProtocolException {
+        int count = (int) Math.min(buffer.remaining(), max);
+        if (count > maxBodySize - body.size()) {
+            throw new ProtocolException("Response body exceeds the max body size of " + maxBodySize + " bytes.");
+        }
+        if (buffer.hasArray()) {
+            body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+            buffer.position(buffer.position() + count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                body.write(buffer.get());
+            }
+        }
+        return count;
+    }
+
+    private boolean readLine(ByteBuffer buffer) throws ProtocolException {
+        while (buffer.hasRemaining()) {
+            char c = (char) (buffer.get() & 0xFF);
+            if (c == '\n') {
+                return true;
+            }
+            if (c != '\r') {
+                if (lineBuffer.length() == MAX_CHUNK_LINE_SIZE) {
+                    throw new ProtocolException("Chunk line exceeds " + MAX_CHUNK_LINE_SIZE + " characters.");
+                }
+                lineBuffer.append(c);
+            }
+        }
+        return false;
+    }
+
+    private void parseChunkSize() throws ProtocolException {
+        String chunkSizeLine = lineBuffer.toString();
+        int extensionStart = chunkSizeLine.indexOf(';');
+
+        lineBuffer.setLength(0);
+        if (extensionStart != -1) {
+            chunkSizeLine = chunkSizeLine.substring(0, extensionStart);
+        }
+        try {
+            remaining = Long.parseLong(chunkSizeLine.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid chunk size '" + chunkSizeLine + "'.");
+        }
+        state = (remaining == 0 ? State.TRAILERS : State.CHUNK_DATA);
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import org.tfennelly.httpanalyse.common.security.TlsSessionCache;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking connection, optionally secured via an {@link SSLEngine}.
+ * <p/>
+ * Exposes plaintext {@link #read(ByteBuffer) read} and {@link #write(ByteBuffer) write} operations, hiding
+ * the TLS record wrapping/unwrapping.  Not thread safe... intended for use on a single {@link EventLoop} thread.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class NioConnection {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine sslEngine;
+    // Network bytes read from the channel, not yet unwrapped (write mode).
+    private ByteBuffer netIn;
+    // Network bytes wrapped, not yet written to the channel (read mode).
+    private ByteBuffer netOut;
+    // Unwrapped plaintext, not yet read by the caller (write mode).
+    private ByteBuffer appIn;
+    private boolean handshakeComplete;
+    private long handshakeStart;
+    private long handshakeStartedAt;
+    private long handshakeNanos;
+    private boolean sessionResumed;
+
+    /**
+     * Constructor.
+     * @param channel The connected (or connecting) non-blocking channel.
+     * @param sslEngine The client mode {@link SSLEngine}, or null for a plaintext connection.
+     */
+    public NioConnection(SocketChannel channel, SSLEngine sslEngine) {
+        AssertArgument.isNotNull(channel, "channel");
+        this.channel = channel;
+        this.sslEngine = sslEngine;
+        if (sslEngine != null) {
+            SSLSession session = sslEngine.getSession();
+            netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            netOut.flip();
+            appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        } else {
+            handshakeComplete = true;
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public boolean isSecure() {
+        return (sslEngine != null);
+    }
+
+    public SSLEngine getSSLEngine() {
+        return sslEngine;
+    }
+
+    public boolean isHandshakeComplete() {
+        return handshakeComplete;
+    }
+
+    /**
+     * Get the time taken to complete the TLS handshake.
+     * @return The handshake time in nanoseconds, or 0 if not secure/not complete.
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    /**
+     * Did the TLS handshake resume a cached session.
+     * @return True if the TLS session was resumed, otherwise false.
+     */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    /**
+     * Progress the TLS handshake as far as possible without blocking.
+     * @return The {@link SelectionKey} interest ops needed to progress the handshake further, or 0
+     * if the handshake is complete.
+     * @throws IOException Handshake failed.
+     */
+    public int handshake() throws IOException {
+        if (handshakeComplete) {
+            return 0;
+        }
+        if (handshakeStart == 0) {
+            handshakeStart = System.nanoTime();
+            handshakeStartedAt = System.currentTimeMillis();
+            sslEngine.beginHandshake();
+        }
+
+        while (true) {
+            switch (sslEngine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    if (!flushNetOut()) {
+                        return SelectionKey.OP_WRITE;
+                    }
+                    wrap(EMPTY);
+                    break;
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    if (!flushNetOut()) {
+                        return SelectionKey.OP_WRITE;
+                    }
+                    handshakeComplete = true;
+                    handshakeNanos = System.nanoTime() - handshakeStart;
+                    sessionResumed = TlsSessionCache.isResumed(sslEngine.getSession(), handshakeStartedAt);
+                    return 0;
+                default:
+                    // NEED_UNWRAP
+                    if (!flushNetOut()) {
+                        return SelectionKey.OP_WRITE;
+                    }
+                    SSLEngineResult.Status status = unwrap();
+                    if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        int readCount = channel.read(netIn);
+                        if (readCount == -1) {
+                            throw new EOFException("Connection closed by peer during TLS handshake.");
+                        }
+                        if (readCount == 0) {
+                            return SelectionKey.OP_READ;
+                        }
+                    } else if (status == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS engine closed during handshake.");
+                    }
+            }
+        }
+    }
+
+    /**
+     * Read plaintext bytes.
+     * @param dst The destination buffer.
+     * @return The number of bytes read, 0 if no bytes are currently available, or -1 at end of stream.
+     * @throws IOException Read error.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if (sslEngine == null) {
+            return channel.read(dst);
+        }
+
+        while (true) {
+            if (appIn.position() > 0) {
+                return drainAppIn(dst);
+            }
+
+            SSLEngineResult.Status status = unwrap();
+            if (status == SSLEngineResult.Status.CLOSED) {
+                return -1;
+            }
+            if (appIn.position() > 0) {
+                continue;
+            }
+            if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW || !netInHasData()) {
+                int readCount = channel.read(netIn);
+                if (readCount <= 0) {
+                    return readCount;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write plaintext bytes.
+     * @param src The source buffer.  Consumed bytes are removed from the buffer.
+     * @return True if all bytes from the source buffer (and all previously buffered bytes) have been
+     * written to the channel, otherwise false, in which case the caller should retry once the channel is writable.
+     * @throws IOException Write error.
+     */
+    public boolean write(ByteBuffer src) throws IOException {
+        if (sslEngine == null) {
+            channel.write(src);
+            return !src.hasRemaining();
+        }
+
+        while (true) {
+            if (!flushNetOut()) {
+                return false;
+            }
+            if (!src.hasRemaining()) {
+                return true;
+            }
+            wrap(src);
+        }
+    }
+
+    /**
+     * Close the connection.
+     * <p/>
+     * Sends a TLS close_notify on a best effort basis.
+     */
+    public void close() {
+        try {
+            if (sslEngine != null && handshakeComplete && channel.isConnected()) {
+                sslEngine.closeOutbound();
+                wrap(EMPTY);
+                flushNetOut();
+            }
+        } catch (IOException e) {
+            // Ignore
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private void wrap(ByteBuffer src) throws IOException {
+        netOut.compact();
+        try {
+            SSLEngineResult result = sslEngine.wrap(src, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = enlarge(netOut, sslEngine.getSession().getPacketBufferSize());
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0 && src.hasRemaining()) {
+                throw new SSLException("TLS engine closed.");
+            }
+        } finally {
+            netOut.flip();
+        }
+        if (sslEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+        }
+    }
+
+    private SSLEngineResult.Status unwrap() throws IOException {
+        netIn.flip();
+        try {
+            SSLEngineResult result = sslEngine.unwrap(netIn, appIn);
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, sslEngine.getSession().getApplicationBufferSize());
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (netIn.limit() == netIn.capacity()) {
+                        netIn.compact();
+                        netIn = enlarge(netIn, sslEngine.getSession().getPacketBufferSize());
+                        netIn.flip();
+                    }
+                    break;
+                default:
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 && result.getStatus() == SSLEngineResult.Status.OK) {
+                        return SSLEngineResult.Status.BUFFER_UNDERFLOW;
+                    }
+            }
+            if (handshakeComplete) {
+                handlePostHandshake();
+            }
+
+            return result.getStatus();
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    private void handlePostHandshake() throws IOException {
+        // e.g. TLS 1.3 session tickets and key updates.
+        SSLEngineResult.HandshakeStatus handshakeStatus = sslEngine.getHandshakeStatus();
+        if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+            handshakeStatus = sslEngine.getHandshakeStatus();
+        }
+        if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            wrap(EMPTY);
+            flushNetOut();
+        }
+    }
+
+    private boolean netInHasData() {
+        return netIn.position() > 0;
+    }
+
+    private int drainAppIn(ByteBuffer dst) {
+        appIn.flip();
+        try {
+            int count = Math.min(appIn.remaining(), dst.remaining());
+            if (count == appIn.remaining()) {
+                dst.put(appIn);
+            } else {
+                ByteBuffer slice = appIn.duplicate();
+                slice.limit(slice.position() + count);
+                dst.put(slice);
+                appIn.position(appIn.position() + count);
+            }
+            return count;
+        } finally {
+            appIn.compact();
+        }
+    }
+
+    private boolean flushNetOut() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = sslEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer enlarged = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minCapacity));
+        buffer.flip();
+        enlarged.put(buffer);
+        return enlarged;
+    }
+}
@@ -0,0 +1,575 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import org.tfennelly.httpanalyse.common.AsyncHttpClient;
+import org.tfennelly.httpanalyse.common.HttpResponse;
+import org.tfennelly.httpanalyse.common.HttpResponseImpl;
+import org.tfennelly.httpanalyse.common.HttpWire;
+import org.tfennelly.httpanalyse.common.RequestTiming;
+import org.tfennelly.httpanalyse.common.buffer.BufferPool;
+import org.tfennelly.httpanalyse.common.buffer.PooledBuffer;
+import org.tfennelly.httpanalyse.common.dns.CachingHostResolver;
+import org.tfennelly.httpanalyse.common.dns.HostResolver;
+import org.tfennelly.httpanalyse.common.pool.Route;
+import org.tfennelly.httpanalyse.common.security.SSLContextRegistry;
+import org.tfennelly.httpanalyse.common.security.TlsSessionCache;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.NamedThreadFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link AsyncHttpClient} implementation driven by a small pool of selector based {@link EventLoop EventLoops}.
+ * <p/>
+ * https is handled via {@link SSLEngine}, so no thread is tied up per request, allowing very large numbers of
+ * requests to be in flight at once.  Each request is made on its own connection.  Redirects are not followed.
+ * Response bodies are buffered in memory, so are capped at the {@link #setMaxBodySize(int) max body size}.
+ * <p/>
+ * Host resolution blocks, so runs on a small pool of resolver threads rather than on the event loops.  With a
+ * {@link CachingHostResolver} (the default), cached hosts are resolved on the calling thread and misses on the
+ * resolver's own threads, so the client's resolver pool is only used by other resolvers.
+ * <p/>
+ * The returned futures are completed on an event loop thread, so dependent stages that block should
+ * be attached using the {@code *Async} {@link CompletableFuture} methods.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class NioHttpClient implements AsyncHttpClient, Closeable {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+    public static final int DEFAULT_RESOLVER_THREADS = 8;
+    public static final int DEFAULT_MAX_BODY_SIZE = 32 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> readBuffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+    };
+
+    private final EventLoopGroup eventLoops;
+    private final ExecutorService resolverExecutor;
+    private volatile SSLContext sslContext;
+    private boolean customSSLContext;
+    private X509Certificate trustedCert;
+    private volatile TlsSessionCache tlsSessionCache = new TlsSessionCache();
+    private volatile HostResolver hostResolver = CachingHostResolver.getDefault();
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int readTimeout;
+    private volatile int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private volatile BufferPool bufferPool = BufferPool.getDefault();
+
+    public NioHttpClient() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public NioHttpClient(int eventLoopCount) throws IOException {
+        this(eventLoopCount, DEFAULT_RESOLVER_THREADS);
+    }
+
+    /**
+     * Constructor.
+     * @param eventLoopCount The number of event loops.
+     * @param resolverThreads The number of host resolver threads.
+     * @throws IOException Error opening the event loop selectors.
+     */
+    public NioHttpClient(int eventLoopCount, int resolverThreads) throws IOException {
+        if (resolverThreads < 1) {
+            throw new IllegalArgumentException("Invalid 'resolverThreads' value '" + resolverThreads + "'. Must be greater than zero.");
+        }
+        this.eventLoops = new EventLoopGroup(eventLoopCount, "httpanalyse-nio");
+        this.resolverExecutor = Executors.newFixedThreadPool(resolverThreads, new NamedThreadFactory("httpanalyse-nio-resolver"));
+    }
+
+    /**
+     * Set the SSL context.
+     * <p/>
+     * The context is bound to the client's {@link TlsSessionCache}, but keeps its own session cache size and TTL.
+     * @param sslContext The SSL context.
+     */
+    public synchronized void setSSLContext(SSLContext sslContext) {
+        AssertArgument.isNotNull(sslContext, "sslContext");
+        this.sslContext = tlsSessionCache.bind(sslContext);
+        this.customSSLContext = true;
+    }
+
+    /**
+     * Set the TLS session cache.
+     * @param tlsSessionCache The TLS session cache.
+     */
+    public synchronized void setTlsSessionCache(TlsSessionCache tlsSessionCache) {
+        AssertArgument.isNotNull(tlsSessionCache, "tlsSessionCache");
+        this.tlsSessionCache = tlsSessionCache;
+        if (customSSLContext) {
+            tlsSessionCache.bind(sslContext);
+        } else {
+            // Rebuilt (from the registry) for the new configuration on the next connection...
+            sslContext = null;
+        }
+    }
+
+    public TlsSessionCache getTlsSessionCache() {
+        return tlsSessionCache;
+    }
+
+    /**
+     * Set the resolver used to resolve request hosts.
+     * @param hostResolver The host resolver.  Defaults to the {@link CachingHostResolver#getDefault() default}.
+     */
+    public void setHostResolver(HostResolver hostResolver) {
+        AssertArgument.isNotNull(hostResolver, "hostResolver");
+        this.hostResolver = hostResolver;
+    }
+
+    /**
+     * Set a privately trusted cert, accepted as a fallback to the default trust managers.
+     * @param trustedCert The trusted cert, or null for default trust only.
+     * @throws GeneralSecurityException Error building the SSL context.
+     */
+    public void setTrustedCert(final X509Certificate trustedCert) throws GeneralSecurityException {
+        synchronized (this) {
+            // Shared with all other clients trusting the same cert, with the same session cache settings...
+            if (trustedCert != null) {
+                sslContext = SSLContextRegistry.getDefault().getSSLContext(tlsSessionCache, trustedCert);
+            } else {
+                sslContext = SSLContextRegistry.getDefault().getSSLContext(tlsSessionCache);
+            }
+            this.trustedCert = trustedCert;
+            this.customSSLContext = false;
+        }
+    }
+
+    /**
+     * Set the connect timeout.
+     * @param connectTimeout Connect timeout in milliseconds (0 means no timeout).
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Set the read timeout i.e. the maximum time without any progress once connected.
+     * @param readTimeout Read timeout in milliseconds (0 means no timeout).
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Set the max response body size.
+     * <p/>
+     * Bodies are buffered in memory.  A response with a larger body fails with a {@link java.net.ProtocolException}.
+     * @param maxBodySize The max body size, in bytes.  Defaults to {@link #DEFAULT_MAX_BODY_SIZE}.
+     */
+    public void setMaxBodySize(int maxBodySize) {
+        if (maxBodySize < 0) {
+            throw new IllegalArgumentException("Invalid 'maxBodySize' value '" + maxBodySize + "'. Cannot be negative.");
+        }
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Set the pool that encoded requests are held in until the exchange completes.
+     * @param bufferPool The buffer pool.  Defaults to the {@link BufferPool#getDefault() default}.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        AssertArgument.isNotNull(bufferPool, "bufferPool");
+        this.bufferPool = bufferPool;
+    }
+
+    public CompletableFuture<HttpResponse> postAsync(final byte[] content, final String contentType, final URL url) {
+        return sendAsync("POST", content, contentType, url, Collections.<String, String>emptyMap());
+    }
+
+    public CompletableFuture<HttpResponse> postAsync(final byte[] content, final String contentType, final URL url, final Map<String, String> headers) {
+        return sendAsync("POST", content, contentType, url, headers);
+    }
+
+    public CompletableFuture<HttpResponse> putAsync(final byte[] content, final String contentType, final URL url) {
+        return sendAsync("PUT", content, contentType, url, Collections.<String, String>emptyMap());
+    }
+
+    public CompletableFuture<HttpResponse> getAsync(final URL url) {
+        return sendAsync("GET", null, null, url, Collections.<String, String>emptyMap());
+    }
+
+    public CompletableFuture<HttpResponse> deleteAsync(final URL url) {
+        return sendAsync("DELETE", null, null, url, Collections.<String, String>emptyMap());
+    }
+
+    public CompletableFuture<HttpResponse> sendAsync(final String method, final byte[] content, final String contentType, final URL url, final Map<String, String> headers) {
+        final CompletableFuture<HttpResponse> future = new CompletableFuture<HttpResponse>();
+        Route route = Route.fromURL(url);
+        final Exchange exchange = new Exchange(eventLoops.next(), route, method, encodeRequest(method, url, headers, contentType, content), future);
+        HostResolver resolver = hostResolver;
+
+        if (resolver instanceof CachingHostResolver) {
+            final long resolveStartedAt = System.nanoTime();
+            ((CachingHostResolver) resolver).resolveAsync(route.getHost()).whenComplete(new BiConsumer<InetAddress[], Throwable>() {
+                @Override
+                public void accept(InetAddress[] addresses, Throwable error) {
+                    if (error != null) {
+                        exchange.failed(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                    } else {
+                        exchange.resolved(addresses, resolveStartedAt);
+                    }
+                }
+            });
+            return future;
+        }
+
+        try {
+            resolverExecutor.execute(new ResolveTask(exchange));
+        } catch (RejectedExecutionException e) {
+            exchange.failed(new IOException("Client closed."));
+        }
+
+        return future;
+    }
+
+    @Override
+    public void close() {
+        // Exchanges still waiting on resolution never reach an event loop... fail them here.  Those on an event
+        // loop are failed as the loop shuts down.
+        for (Runnable pending : resolverExecutor.shutdownNow()) {
+            ((ResolveTask) pending).exchange.failed(new IOException("Client closed."));
+        }
+        eventLoops.close();
+    }
+
+    private PooledBuffer encodeRequest(String method, URL url, Map<String, String> headers, String contentType, byte[] content) {
+        Map<String, String> requestHeaders = headers;
+
+        if (!containsHeader(headers, "Connection")) {
+            requestHeaders = new LinkedHashMap<String, String>(headers);
+            requestHeaders.put("Connection", "close");
+        }
+
+        // Direct, so the channel writes it without a copy.  Released when the exchange finishes.
+        return HttpWire.encodeRequest(method, url, requestHeaders, contentType, content, bufferPool);
+    }
+
+    private static boolean containsHeader(Map<String, String> headers, String name) {
+        for (String headerName : headers.keySet()) {
+            if (headerName.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SSLEngine createSSLEngine(Route route) throws GeneralSecurityException {
+        SSLContext context = getSSLContext();
+
+        SSLEngine sslEngine = context.createSSLEngine(route.getHost(), route.getPort());
+        SSLParameters sslParameters = sslEngine.getSSLParameters();
+
+        sslEngine.setUseClientMode(true);
+        sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+        sslEngine.setSSLParameters(sslParameters);
+
+        return sslEngine;
+    }
+
+    private synchronized SSLContext getSSLContext() throws GeneralSecurityException {
+        if (sslContext == null) {
+            // Registry context rather than the JVM default, so the session cache is configurable...
+            if (trustedCert != null) {
+                sslContext = SSLContextRegistry.getDefault().getSSLContext(tlsSessionCache, trustedCert);
+            } else {
+                sslContext = SSLContextRegistry.getDefault().getSSLContext(tlsSessionCache);
+            }
+        }
+        return sslContext;
+    }
+
+    private enum State {
+        CONNECTING, HANDSHAKING, WRITING, READING, DONE
+    }
+
+    /**
+     * Resolves the exchange host, then hands the exchange to its event loop.
+     */
+    private class ResolveTask implements Runnable {
+
+        private final Exchange exchange;
+
+        private ResolveTask(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void run() {
+            long resolveStartedAt = System.nanoTime();
+            InetAddress[] addresses;
+
+            try {
+                addresses = hostResolver.resolve(exchange.route.getHost());
+            } catch (UnknownHostException e) {
+                exchange.failed(e);
+                return;
+            } catch (RuntimeException e) {
+                exchange.failed(e);
+                return;
+            }
+            exchange.resolved(addresses, resolveStartedAt);
+        }
+    }
+
+    /**
+     * A single request/response exchange.  Only touched on its event loop thread once started.
+     */
+    private class Exchange implements ChannelHandler {
+
+        private final EventLoop eventLoop;
+        private final Route route;
+        private final PooledBuffer request;
+        private final HttpResponseParser parser;
+        private final CompletableFuture<HttpResponse> future;
+        private final long startedAt = System.nanoTime();
+        private State state = State.CONNECTING;
+        private NioConnection connection;
+        private SelectionKey key;
+        private EventLoop.Timeout timeout;
+        private long lastActivity;
+        private long dnsNanos;
+        private long connectStartedAt;
+        private long connectNanos;
+        private long writeStartedAt;
+        private long writtenAt;
+        private long firstByteAt;
+
+        private Exchange(EventLoop eventLoop, Route route, String method, PooledBuffer request, CompletableFuture<HttpResponse> future) {
+            this.eventLoop = eventLoop;
+            this.route = route;
+            this.request = request;
+            this.parser = new HttpResponseParser(method, maxBodySize);
+            this.future = future;
+        }
+
+        /**
+         * The host is resolved.  Hands the exchange over to its event loop thread, via the loop's task queue.
+         */
+        private void resolved(InetAddress[] addresses, long resolveStartedAt) {
+            final InetSocketAddress address = new InetSocketAddress(addresses[0], route.getPort());
+
+            dnsNanos = System.nanoTime() - resolveStartedAt;
+            try {
+                eventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        start(address);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                failed(new IOException("Client closed."));
+            }
+        }
+
+        private void start(InetSocketAddress address) {
+            try {
+                SocketChannel channel = SocketChannel.open();
+
+                connection = new NioConnection(channel, (route.isSecure() ? createSSLEngine(route) : null));
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                key = eventLoop.register(channel, 0, this);
+                if (connectTimeout > 0) {
+                    timeout = eventLoop.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            failed(new SocketTimeoutException("Connect to '" + route + "' timed out."));
+                        }
+                    }, connectTimeout, TimeUnit.MILLISECONDS);
+                }
+                connectStartedAt = System.nanoTime();
+                if (channel.connect(address)) {
+                    onConnected();
+                } else {
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (Throwable t) {
+                failed(t);
+            }
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            lastActivity = System.nanoTime();
+            switch (state) {
+                case CONNECTING:
+                    if (connection.getChannel().finishConnect()) {
+                        onConnected();
+                    }
+                    break;
+                case HANDSHAKING:
+                    progressHandshake();
+                    break;
+                case WRITING:
+                    progressWrite();
+                    break;
+                case READING:
+                    progressRead();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+            if (state == State.DONE) {
+                return;
+            }
+            finish();
+            future.completeExceptionally(cause);
+        }
+
+        private void onConnected() throws IOException {
+            cancelTimeout();
+            lastActivity = System.nanoTime();
+            connectNanos = lastActivity - connectStartedAt;
+            if (readTimeout > 0) {
+                scheduleReadTimeout(readTimeout);
+            }
+            if (connection.isSecure()) {
+                state = State.HANDSHAKING;
+                progressHandshake();
+            } else {
+                state = State.WRITING;
+                progressWrite();
+            }
+        }
+
+        private void progressHandshake() throws IOException {
+            int interestOps = connection.handshake();
+
+            if (interestOps != 0) {
+                key.interestOps(interestOps);
+            } else {
+                state = State.WRITING;
+                progressWrite();
+            }
+        }
+
+        private void progressWrite() throws IOException {
+            if (writeStartedAt == 0) {
+                writeStartedAt = System.nanoTime();
+            }
+            if (connection.write(request.buffer())) {
+                writtenAt = System.nanoTime();
+                state = State.READING;
+                key.interestOps(SelectionKey.OP_READ);
+                progressRead();
+            } else {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void progressRead() throws IOException {
+            ByteBuffer readBuffer = readBuffers.get();
+
+            while (true) {
+                readBuffer.clear();
+
+                int readCount = connection.read(readBuffer);
+                if (readCount == 0) {
+                    return;
+                }
+                if (readCount == -1) {
+                    parser.endOfStream();
+                    complete();
+                    return;
+                }
+                if (firstByteAt == 0) {
+                    firstByteAt = System.nanoTime();
+                }
+
+                readBuffer.flip();
+                if (parser.feed(readBuffer)) {
+                    complete();
+                    return;
+                }
+            }
+        }
+
+        private void complete() throws IOException {
+            long completedAt = System.nanoTime();
+            HttpWire.ResponseHead head = parser.getHead();
+            Certificate[] serverCerts = null;
+
+            if (head.getStatusCode() >= 200 && head.getStatusCode() < 300 && connection.isSecure()) {
+                serverCerts = connection.getSSLEngine().getSession().getPeerCertificates();
+            }
+            finish();
+            future.complete(new HttpResponseImpl(head.getStatusCode(), head.getStatusMessage(), head.getHeaderFields(),
+                    head.getHeader("Content-Type"), parser.getBody(), serverCerts, getTiming(completedAt)));
+        }
+
+        private RequestTiming getTiming(long completedAt) {
+            return new RequestTiming(dnsNanos, connectNanos, connection.getHandshakeNanos(), writtenAt - writeStartedAt,
+                    firstByteAt - writtenAt, completedAt - firstByteAt, completedAt - startedAt, false, connection.isSessionResumed());
+        }
+
+        private void finish() {
+            state = State.DONE;
+            request.release();
+            cancelTimeout();
+            if (connection != null) {
+                connection.close();
+            }
+        }
+
+        private void scheduleReadTimeout(long delayMillis) {
+            timeout = eventLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+                    if (idleMillis >= readTimeout) {
+                        failed(new SocketTimeoutException("Read from '" + route + "' timed out."));
+                    } else {
+                        scheduleReadTimeout(readTimeout - idleMillis);
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void cancelTimeout() {
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The TLS protocols and cipher suites accepted by a host, as enumerated by a {@link TlsEnumerator}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class TlsCapabilities {
+
+    private final String host;
+    private final int port;
+    private final Map<String, List<String>> cipherSuites;
+    private final Set<String> incompleteProtocols;
+    private final int attempts;
+    private final long elapsedNanos;
+    private final String error;
+
+    /**
+     * Constructor.
+     * @param host The host.
+     * @param port The port.
+     * @param cipherSuites The accepted cipher suites, keyed by protocol.  Protocols that were not accepted are
+     * not included.
+     * @param attempts The number of handshake attempts made.
+     * @param elapsedNanos The time taken to enumerate the host.
+     * @param error The (first) error that stopped (or cut short) the enumeration, or null.
+     */
+    public TlsCapabilities(String host, int port, Map<String, List<String>> cipherSuites, int attempts, long elapsedNanos, String error) {
+        this(host, port, cipherSuites, Collections.<String>emptySet(), attempts, elapsedNanos, error);
+    }
+
+    /**
+     * Constructor.
+     * @param host The host.
+     * @param port The port.
+     * @param cipherSuites The accepted cipher suites, keyed by protocol.  Protocols that were not accepted are
+     * not included.
+     * @param incompleteProtocols The protocols whose enumeration was cut short by a timeout or I/O error, so
+     * may be missing cipher suites (or, if not in {@code cipherSuites}, may be accepted after all).
+     * @param attempts The number of handshake attempts made.
+     * @param elapsedNanos The time taken to enumerate the host.
+     * @param error The (first) error that stopped (or cut short) the enumeration, or null.
+     */
+    public TlsCapabilities(String host, int port, Map<String, List<String>> cipherSuites, Set<String> incompleteProtocols, int attempts, long elapsedNanos, String error) {
+        this.host = host;
+        this.port = port;
+        this.cipherSuites = Collections.unmodifiableMap(new LinkedHashMap<String, List<String>>(cipherSuites));
+        this.incompleteProtocols = Collections.unmodifiableSet(new LinkedHashSet<String>(incompleteProtocols));
+        this.attempts = attempts;
+        this.elapsedNanos = elapsedNanos;
+        this.error = error;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the accepted protocols.
+     * @return The accepted protocols, most recent first.
+     */
+    public Set<String> getProtocols() {
+        return cipherSuites.keySet();
+    }
+
+    public boolean supports(String protocol) {
+        return cipherSuites.containsKey(protocol);
+    }
+
+    public boolean supports(String protocol, String cipherSuite) {
+        List<String> protocolCipherSuites = cipherSuites.get(protocol);
+        return (protocolCipherSuites != null && protocolCipherSuites.contains(cipherSuite));
+    }
+
+    /**
+     * Get the cipher suites accepted with the supplied protocol.
+     * <p/>
+     * The cipher suites are in the order the server selected them, which is the server's preference order
+     * if it enforces one.
+     * @param protocol The protocol.
+     * @return The cipher suites.  An empty list if the protocol was not accepted.
+     */
+    public List<String> getCipherSuites(String protocol) {
+        List<String> protocolCipherSuites = cipherSuites.get(protocol);
+        return (protocolCipherSuites != null ? Collections.unmodifiableList(protocolCipherSuites) : Collections.<String>emptyList());
+    }
+
+    /**
+     * Get the protocols whose enumeration was cut short by a timeout or I/O error.
+     * <p/>
+     * A timeout or I/O error is not a rejection, so these protocols may be missing cipher suites, or may be
+     * accepted even though {@link #supports(String)} says otherwise.
+     * @return The incomplete protocols.  Empty if the enumeration completed.
+     */
+    public Set<String> getIncompleteProtocols() {
+        return incompleteProtocols;
+    }
+
+    public boolean isComplete() {
+        return incompleteProtocols.isEmpty();
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Get the (first) error that stopped (or cut short) the enumeration.
+     * @return The error, or null if the enumeration completed.
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Get the compact capability matrix row for the host.
+     * <p/>
+     * {@link #getIncompleteProtocols() Incomplete} protocols are marked with a '?' e.g. "TLSv1.2?=..." (followed
+     * by any that were not accepted before the enumeration was cut short).
+     * @return The capability matrix row e.g. "TLSv1.3=TLS_AES_256_GCM_SHA384,TLS_AES_128_GCM_SHA256;TLSv1.2=...".
+     */
+    public String toMatrixRow() {
+        StringBuilder row = new StringBuilder(256);
+
+        for (Map.Entry<String, List<String>> protocol : cipherSuites.entrySet()) {
+            if (row.length() > 0) {
+                row.append(';');
+            }
+            row.append(protocol.getKey());
+            if (incompleteProtocols.contains(protocol.getKey())) {
+                row.append('?');
+            }
+            row.append('=');
+            for (int i = 0; i < protocol.getValue().size(); i++) {
+                if (i > 0) {
+                    row.append(',');
+                }
+                row.append(protocol.getValue().get(i));
+            }
+        }
+        for (String protocol : incompleteProtocols) {
+            if (!cipherSuites.containsKey(protocol)) {
+                if (row.length() > 0) {
+                    row.append(';');
+                }
+                row.append(protocol).append("?=");
+            }
+        }
+
+        return row.toString();
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port + " " + toMatrixRow() + " (" + attempts + " attempts" + (error != null ? ", " + error : "") + ")";
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.NamedThreadFactory;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Enumerates the TLS protocols and cipher suites accepted by hosts, via restricted {@link TlsProbe} handshakes.
+ * <p/>
+ * Each candidate protocol is enumerated concurrently.  Within a protocol, all remaining candidate cipher
+ * suites are offered and the suite the server selects is removed before the next attempt, until the server
+ * rejects the handshake.  A host is enumerated in (accepted suites + protocols + 1) handshakes, rather than
+ * one per candidate suite, and the suites come out in the server's selection order.  The host is resolved
+ * once, and the handshake attempts on each host are rate limited, across all of the host's enumerations
+ * (e.g. one per port).
+ * <p/>
+ * A handshake that times out or fails on an I/O error is not a rejection.  It is retried (up to
+ * {@link #setMaxRetries(int) max retries} times) and, if it still fails, the protocol is reported as
+ * {@link TlsCapabilities#getIncompleteProtocols() incomplete} rather than as not accepting the remaining suites.
+ * A server closing the connection mid handshake is taken as a rejection, as some servers reject that way.
+ * <p/>
+ * Only protocols and cipher suites the JDK can negotiate (by default, those enabled in the probe's
+ * {@link javax.net.ssl.SSLContext}) can be enumerated.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class TlsEnumerator implements Closeable {
+
+    public static final double DEFAULT_MAX_ATTEMPTS_PER_SECOND = 10.0;
+    public static final int DEFAULT_MAX_RETRIES = 1;
+    private static final String TLS_13 = "TLSv1.3";
+    private static final String RENEGOTIATION_INFO_SCSV = "TLS_EMPTY_RENEGOTIATION_INFO_SCSV";
+
+    private final TlsProbe probe;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, RateLimit> rateLimits = new HashMap<String, RateLimit>();
+    private volatile String[] candidateProtocols;
+    private volatile String[] candidateCipherSuites;
+    private volatile long attemptIntervalNanos = toIntervalNanos(DEFAULT_MAX_ATTEMPTS_PER_SECOND);
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+    public TlsEnumerator(TlsProbe probe) {
+        AssertArgument.isNotNull(probe, "probe");
+        this.probe = probe;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("httpanalyse-enumerator"));
+    }
+
+    /**
+     * Set the candidate protocols.
+     * @param protocols The protocols, most recent first.  Defaults to the protocols enabled by default in the
+     * probe's {@link javax.net.ssl.SSLContext}.
+     */
+    public void setCandidateProtocols(String... protocols) {
+        AssertArgument.isNotNull(protocols, "protocols");
+        this.candidateProtocols = protocols.clone();
+    }
+
+    /**
+     * Set the candidate cipher suites.
+     * @param cipherSuites The cipher suites.  Defaults to the cipher suites enabled by default in the
+     * probe's {@link javax.net.ssl.SSLContext}.
+     */
+    public void setCandidateCipherSuites(String... cipherSuites) {
+        AssertArgument.isNotNull(cipherSuites, "cipherSuites");
+        this.candidateCipherSuites = cipherSuites.clone();
+    }
+
+    /**
+     * Set the max rate of handshake attempts on each enumerated host.
+     * @param maxAttemptsPerSecond Max handshake attempts per second, per host.
+     */
+    public void setMaxAttemptsPerSecond(double maxAttemptsPerSecond) {
+        if (maxAttemptsPerSecond <= 0.0) {
+            throw new IllegalArgumentException("Invalid 'maxAttemptsPerSecond' value '" + maxAttemptsPerSecond + "'. Must be greater than zero.");
+        }
+        this.attemptIntervalNanos = toIntervalNanos(maxAttemptsPerSecond);
+    }
+
+    /**
+     * Set the max number of times a handshake attempt that timed out or failed on an I/O error is retried.
+     * @param maxRetries Max retries per attempt.  Zero for no retries.
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Invalid 'maxRetries' value '" + maxRetries + "'. Cannot be negative.");
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Enumerate the supplied host and port.
+     * @param host The host.
+     * @param port The port.
+     * @return The capabilities future.  Completed exceptionally if the host can't be resolved or connected to.
+     */
+    public CompletableFuture<TlsCapabilities> enumerateAsync(final String host, final int port) {
+        final CompletableFuture<TlsCapabilities> future = new CompletableFuture<TlsCapabilities>();
+        final HostEnumeration enumeration;
+
+        try {
+            enumeration = new HostEnumeration(host, port, getCandidateProtocols(), getCandidateCipherSuites(), future);
+        } catch (GeneralSecurityException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        future.whenComplete(new BiConsumer<TlsCapabilities, Throwable>() {
+            @Override
+            public void accept(TlsCapabilities capabilities, Throwable error) {
+                releaseRateLimit(enumeration.rateLimit);
+            }
+        });
+
+        probe.resolveAsync(host, port).whenComplete(new BiConsumer<InetSocketAddress, Throwable>() {
+            @Override
+            public void accept(InetSocketAddress address, Throwable error) {
+                if (error != null) {
+                    future.completeExceptionally(unwrap(error));
+                } else {
+                    enumeration.start(address);
+                }
+            }
+        });
+
+        return future;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Get the rate limit of the supplied host, shared by all of its running enumerations.
+     */
+    private RateLimit acquireRateLimit(String host) {
+        String key = host.toLowerCase();
+
+        synchronized (rateLimits) {
+            RateLimit rateLimit = rateLimits.get(key);
+            if (rateLimit == null) {
+                rateLimit = new RateLimit(key);
+                rateLimits.put(key, rateLimit);
+            }
+            rateLimit.enumerations++;
+            return rateLimit;
+        }
+    }
+
+    private void releaseRateLimit(RateLimit rateLimit) {
+        synchronized (rateLimits) {
+            if (--rateLimit.enumerations == 0) {
+                rateLimits.remove(rateLimit.host);
+            }
+        }
+    }
+
+    private String[] getCandidateProtocols() throws GeneralSecurityException {
+        String[] protocols = candidateProtocols;
+        if (protocols == null) {
+            protocols = probe.getSSLContext().getDefaultSSLParameters().getProtocols();
+            candidateProtocols = protocols;
+        }
+        return protocols;
+    }
+
+    private String[] getCandidateCipherSuites() throws GeneralSecurityException {
+        String[] cipherSuites = candidateCipherSuites;
+        if (cipherSuites == null) {
+            SSLParameters defaults = probe.getSSLContext().getDefaultSSLParameters();
+            List<String> suites = new ArrayList<String>(Arrays.asList(defaults.getCipherSuites()));
+            suites.remove(RENEGOTIATION_INFO_SCSV);
+            cipherSuites = suites.toArray(new String[suites.size()]);
+            candidateCipherSuites = cipherSuites;
+        }
+        return cipherSuites;
+    }
+
+    /**
+     * Is the supplied cipher suite usable with the supplied protocol.
+     * <p/>
+     * TLS 1.3 suites only name the AEAD and hash (e.g. TLS_AES_128_GCM_SHA256), while earlier suites name the
+     * key exchange "WITH" the cipher (e.g. TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256).
+     */
+    private static boolean isUsable(String cipherSuite, String protocol) {
+        return (TLS_13.equals(protocol) != cipherSuite.contains("_WITH_"));
+    }
+
+    private static long toIntervalNanos(double maxAttemptsPerSecond) {
+        return (long) (TimeUnit.SECONDS.toNanos(1) / maxAttemptsPerSecond);
+    }
+
+    /**
+     * Is the supplied handshake failure a rejection by the server.
+     * <p/>
+     * {@link TlsProbe} reports any failure after connecting as a handshake failure, with the underlying failure
+     * as its cause.  Only a failure from the TLS engine itself (e.g. an alert from the server), or the server
+     * closing the connection, is a rejection.  A timeout or I/O error is not.
+     */
+    private static boolean isRejection(Throwable failure) {
+        if (!(failure instanceof SSLException)) {
+            return false;
+        }
+        Throwable cause = failure.getCause();
+        return (cause == null || cause instanceof SSLException || cause instanceof EOFException);
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return (error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+    }
+
+    /**
+     * Handshake attempt rate limit of a host.
+     */
+    private class RateLimit {
+
+        private final String host;
+        // Guarded by rateLimits.
+        private int enumerations;
+        private long nextAttemptAt;
+
+        private RateLimit(String host) {
+            this.host = host;
+        }
+
+        /**
+         * Reserve the next attempt slot for the host.
+         * @return The delay (nanoseconds) until the reserved slot.
+         */
+        private synchronized long reserveAttempt() {
+            long now = System.nanoTime();
+            long attemptAt = (nextAttemptAt - now > 0 ? nextAttemptAt : now);
+
+            nextAttemptAt = attemptAt + attemptIntervalNanos;
+
+            return attemptAt - now;
+        }
+    }
+
+    /**
+     * The enumeration of a single host.
+     */
+    private class HostEnumeration {
+
+        private final String host;
+        private final int port;
+        private final String[] protocols;
+        private final String[] cipherSuites;
+        private final CompletableFuture<TlsCapabilities> future;
+        private final long startedAt = System.nanoTime();
+        private final RateLimit rateLimit;
+        // Accepted suites per candidate protocol (index), each only touched by its own attempt chain.
+        private final List<List<String>> accepted;
+        private final AtomicInteger pendingProtocols;
+        private final AtomicInteger attempts = new AtomicInteger();
+        // Incomplete flag per candidate protocol (index), each only touched by its own attempt chain.
+        private final boolean[] incomplete;
+        // The first error... later ones are usually knock-on failures.
+        private final AtomicReference<String> error = new AtomicReference<String>();
+        private volatile InetSocketAddress address;
+
+        private HostEnumeration(String host, int port, String[] protocols, String[] cipherSuites, CompletableFuture<TlsCapabilities> future) {
+            this.host = host;
+            this.port = port;
+            this.protocols = protocols;
+            this.cipherSuites = cipherSuites;
+            this.future = future;
+            this.rateLimit = acquireRateLimit(host);
+            this.accepted = new ArrayList<List<String>>(protocols.length);
+            this.pendingProtocols = new AtomicInteger(protocols.length);
+            this.incomplete = new boolean[protocols.length];
+        }
+
+        private void start(InetSocketAddress address) {
+            this.address = address;
+
+            // Unrestricted first attempt: checks the host is reachable and gives the preferred protocol's first suite.
+            attempt(protocols, cipherSuites, new BiConsumer<TlsProbeResult, Throwable>() {
+                @Override
+                public void accept(TlsProbeResult result, Throwable failure) {
+                    if (failure != null && !isRejection(failure)) {
+                        future.completeExceptionally(failure);
+                        return;
+                    }
+                    if (protocols.length == 0) {
+                        complete();
+                        return;
+                    }
+                    // All lists are in place before any attempt chain starts, so the chains never see the list grow.
+                    List<List<String>> remainingByProtocol = new ArrayList<List<String>>(protocols.length);
+                    for (String protocol : protocols) {
+                        List<String> remaining = new ArrayList<String>();
+                        List<String> protocolAccepted = new ArrayList<String>();
+                        for (String cipherSuite : cipherSuites) {
+                            if (isUsable(cipherSuite, protocol)) {
+                                remaining.add(cipherSuite);
+                            }
+                        }
+                        if (result != null && protocol.equals(result.getProtocol()) && remaining.remove(result.getCipherSuite())) {
+                            protocolAccepted.add(result.getCipherSuite());
+                        }
+                        remainingByProtocol.add(remaining);
+                        accepted.add(protocolAccepted);
+                    }
+                    for (int i = 0; i < protocols.length; i++) {
+                        enumerateProtocol(i, remainingByProtocol.get(i));
+                    }
+                }
+            });
+        }
+
+        private void enumerateProtocol(final int protocolIndex, final List<String> remaining) {
+            if (remaining.isEmpty()) {
+                protocolDone();
+                return;
+            }
+
+            attempt(new String[] {protocols[protocolIndex]}, remaining.toArray(new String[remaining.size()]), new BiConsumer<TlsProbeResult, Throwable>() {
+                @Override
+                public void accept(TlsProbeResult result, Throwable failure) {
+                    if (failure != null) {
+                        if (!isRejection(failure)) {
+                            // Still failing after the retries.  The remaining suites are unknown, not rejected.
+                            incomplete[protocolIndex] = true;
+                            error.compareAndSet(null, String.valueOf(failure));
+                        }
+                        protocolDone();
+                    } else if (!remaining.remove(result.getCipherSuite())) {
+                        error.compareAndSet(null, "Server selected cipher suite '" + result.getCipherSuite() + "', which was not offered.");
+                        protocolDone();
+                    } else {
+                        accepted.get(protocolIndex).add(result.getCipherSuite());
+                        enumerateProtocol(protocolIndex, remaining);
+                    }
+                }
+            });
+        }
+
+        private void attempt(final String[] attemptProtocols, final String[] attemptCipherSuites, final BiConsumer<TlsProbeResult, Throwable> callback) {
+            attempt(attemptProtocols, attemptCipherSuites, callback, maxRetries);
+        }
+
+        private void attempt(final String[] attemptProtocols, final String[] attemptCipherSuites, final BiConsumer<TlsProbeResult, Throwable> callback,
+                             final int retries) {
+            final BiConsumer<TlsProbeResult, Throwable> unwrappingCallback = new BiConsumer<TlsProbeResult, Throwable>() {
+                @Override
+                public void accept(TlsProbeResult result, Throwable failure) {
+                    if (failure != null) {
+                        failure = unwrap(failure);
+                        if (retries > 0 && !isRejection(failure)) {
+                            attempt(attemptProtocols, attemptCipherSuites, callback, retries - 1);
+                            return;
+                        }
+                    }
+                    callback.accept(result, failure);
+                }
+            };
+            Runnable attempt = new Runnable() {
+                @Override
+                public void run() {
+                    attempts.incrementAndGet();
+                    probe.probeAsync(host, address, attemptProtocols, attemptCipherSuites).whenComplete(unwrappingCallback);
+                }
+            };
+
+            long delay = rateLimit.reserveAttempt();
+            try {
+                if (delay == 0) {
+                    attempt.run();
+                } else {
+                    scheduler.schedule(attempt, delay, TimeUnit.NANOSECONDS);
+                }
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(new IllegalStateException("Enumerator closed."));
+            }
+        }
+
+        private void protocolDone() {
+            if (pendingProtocols.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            Map<String, List<String>> cipherSuitesByProtocol = new LinkedHashMap<String, List<String>>();
+            Set<String> incompleteProtocols = new LinkedHashSet<String>();
+
+            for (int i = 0; i < protocols.length; i++) {
+                if (!accepted.get(i).isEmpty()) {
+                    cipherSuitesByProtocol.put(protocols[i], accepted.get(i));
+                }
+                if (incomplete[i]) {
+                    incompleteProtocols.add(protocols[i]);
+                }
+            }
+            future.complete(new TlsCapabilities(host, port, cipherSuitesByProtocol, incompleteProtocols, attempts.get(), System.nanoTime() - startedAt, error.get()));
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import org.tfennelly.httpanalyse.common.dns.CachingHostResolver;
+import org.tfennelly.httpanalyse.common.dns.HostResolver;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.NamedThreadFactory;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Handshake-only TLS probe.
+ * <p/>
+ * Connects, completes the TLS handshake, captures the peer certificate chain, negotiated protocol and cipher
+ * suite, and closes the connection without sending any application data.  Driven by {@link SSLEngine} on
+ * non-blocking channels (see {@link NioConnection}), so no thread is tied up per probe and very large
+ * numbers of probes can be in flight at once.
+ * <p/>
+ * By default the probe accepts every certificate chain (it captures chains, it does not validate them).
+ * Probes never resume a cached session.  Validate the captured chain separately if required.
+ * <p/>
+ * A probe that connects but fails to complete the handshake (rejected by the server, aborted by the client,
+ * connection dropped or timed out mid handshake) fails with an {@link SSLHandshakeException}.  Any other
+ * failure means the host could not be resolved or connected to.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class TlsProbe implements Closeable {
+
+    public static final int DEFAULT_TIMEOUT = 10000;
+    private static final int RESOLVER_THREADS = 8;
+
+    private final EventLoopGroup eventLoops;
+    private final ExecutorService resolverExecutor;
+    private volatile SSLContext sslContext;
+    private volatile int timeout = DEFAULT_TIMEOUT;
+    private volatile HostResolver hostResolver = CachingHostResolver.getDefault();
+
+    public TlsProbe() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public TlsProbe(int eventLoopCount) throws IOException {
+        this.eventLoops = new EventLoopGroup(eventLoopCount, "httpanalyse-probe");
+        this.resolverExecutor = Executors.newFixedThreadPool(RESOLVER_THREADS, new NamedThreadFactory("httpanalyse-probe-resolver"));
+    }
+
+    /**
+     * Set the SSL context used to create the probe {@link SSLEngine SSLEngines}.
+     * <p/>
+     * Use to probe with a specific trust configuration, in which case probes of untrusted hosts fail.
+     * @param sslContext The SSL context.
+     */
+    public void setSSLContext(SSLContext sslContext) {
+        AssertArgument.isNotNull(sslContext, "sslContext");
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Set the resolver used to resolve probed hosts.
+     * @param hostResolver The host resolver.  Defaults to the {@link CachingHostResolver#getDefault() default}.
+     */
+    public void setHostResolver(HostResolver hostResolver) {
+        AssertArgument.isNotNull(hostResolver, "hostResolver");
+        this.hostResolver = hostResolver;
+    }
+
+    /**
+     * Set the probe timeout, covering the connect and the TLS handshake.
+     * @param timeout Timeout in milliseconds (0 means no timeout).
+     */
+    public void setTimeout(int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Invalid 'timeout' value '" + timeout + "'. Cannot be negative.");
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * Probe the supplied host and port.
+     * @param host The host.
+     * @param port The port.
+     * @return The probe result future.  Completed on an event loop thread.
+     */
+    public CompletableFuture<TlsProbeResult> probeAsync(final String host, final int port) {
+        final CompletableFuture<TlsProbeResult> future = new CompletableFuture<TlsProbeResult>();
+        final long resolveStartedAt = System.nanoTime();
+
+        resolveAsync(host, port).whenComplete(new BiConsumer<InetSocketAddress, Throwable>() {
+            @Override
+            public void accept(InetSocketAddress address, Throwable error) {
+                if (error != null) {
+                    future.completeExceptionally(error);
+                } else {
+                    probe(host, address, null, null, System.nanoTime() - resolveStartedAt, future);
+                }
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Probe an already resolved host, restricting the handshake to the supplied protocols and cipher suites.
+     * @param host The host name, used for SNI.
+     * @param address The resolved host address.
+     * @param protocols The protocols to offer, or null for the {@link SSLContext} defaults.
+     * @param cipherSuites The cipher suites to offer, or null for the {@link SSLContext} defaults.
+     * @return The probe result future.  Completed on an event loop thread.
+     */
+    public CompletableFuture<TlsProbeResult> probeAsync(String host, InetSocketAddress address, String[] protocols, String[] cipherSuites) {
+        AssertArgument.isNotNullAndNotEmpty(host, "host");
+        AssertArgument.isNotNull(address, "address");
+        if (address.isUnresolved()) {
+            throw new IllegalArgumentException("Invalid 'address' value '" + address + "'. Must be resolved.");
+        }
+
+        CompletableFuture<TlsProbeResult> future = new CompletableFuture<TlsProbeResult>();
+        probe(host, address, protocols, cipherSuites, 0, future);
+        return future;
+    }
+
+    /**
+     * Resolve the supplied host and port, off the calling thread.
+     * @param host The host.
+     * @param port The port.
+     * @return The resolved address future.  Completed exceptionally with {@link UnknownHostException} if the
+     * host cannot be resolved.
+     */
+    public CompletableFuture<InetSocketAddress> resolveAsync(final String host, final int port) {
+        AssertArgument.isNotNullAndNotEmpty(host, "host");
+
+        CompletableFuture<InetSocketAddress> future = new CompletableFuture<InetSocketAddress>();
+        try {
+            resolverExecutor.execute(new ResolveTask(host, port, future));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("Probe closed."));
+        }
+
+        return future;
+    }
+
+    /**
+     * Get the SSL context used to create the probe {@link SSLEngine SSLEngines}.
+     * @return The SSL context.
+     * @throws GeneralSecurityException Error creating the default probe SSL context.
+     */
+    public synchronized SSLContext getSSLContext() throws GeneralSecurityException {
+        if (sslContext == null) {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[] {CAPTURE_ALL_TRUST_MANAGER}, new SecureRandom());
+            // Probe sessions are never resumed (see createSSLEngine), so there's no point holding on to them.
+            context.getClientSessionContext().setSessionCacheSize(1);
+            sslContext = context;
+        }
+        return sslContext;
+    }
+
+    @Override
+    public void close() {
+        // Resolutions still queued never complete their futures... fail them here.  Probes on an event loop
+        // are failed as the loop shuts down.
+        for (Runnable pending : resolverExecutor.shutdownNow()) {
+            ((ResolveTask) pending).future.completeExceptionally(new IOException("Probe closed."));
+        }
+        eventLoops.close();
+    }
+
+    private void probe(final String host, final InetSocketAddress address, final String[] protocols, final String[] cipherSuites,
+                       long dnsNanos, CompletableFuture<TlsProbeResult> future) {
+        final Probe probe = new Probe(eventLoops.next(), host, address.getPort(), dnsNanos, future);
+
+        try {
+            probe.eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    probe.start(address, protocols, cipherSuites);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("Probe closed."));
+        }
+    }
+
+    private SSLEngine createSSLEngine(String host, String[] protocols, String[] cipherSuites) throws GeneralSecurityException {
+        // No peer host/port, so the engine never looks up (or resumes) a cached session, and SNI is set explicitly.
+        SSLEngine sslEngine = getSSLContext().createSSLEngine();
+        SSLParameters sslParameters = sslEngine.getSSLParameters();
+
+        sslEngine.setUseClientMode(true);
+        if (!isIPAddress(host)) {
+            sslParameters.setServerNames(Collections.<SNIServerName>singletonList(new SNIHostName(host)));
+        }
+        if (protocols != null) {
+            sslParameters.setProtocols(protocols);
+        }
+        if (cipherSuites != null) {
+            sslParameters.setCipherSuites(cipherSuites);
+        }
+        sslEngine.setSSLParameters(sslParameters);
+
+        return sslEngine;
+    }
+
+    private static boolean isIPAddress(String host) {
+        if (host.indexOf(':') != -1) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Accepts every chain.  An {@link X509ExtendedTrustManager}, so JSSE does not add its own algorithm
+     * constraint or endpoint identification checks, which would hide weak or mismatched chains.
+     */
+    private static final X509ExtendedTrustManager CAPTURE_ALL_TRUST_MANAGER = new X509ExtendedTrustManager() {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    };
+
+    /**
+     * Resolution of a probed host, on a resolver thread.
+     */
+    private class ResolveTask implements Runnable {
+
+        private final String host;
+        private final int port;
+        private final CompletableFuture<InetSocketAddress> future;
+
+        private ResolveTask(String host, int port, CompletableFuture<InetSocketAddress> future) {
+            this.host = host;
+            this.port = port;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            try {
+                future.complete(new InetSocketAddress(hostResolver.resolve(host)[0], port));
+            } catch (UnknownHostException e) {
+                future.completeExceptionally(e);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * A single probe.  Only touched on its event loop thread once started.
+     */
+    private class Probe implements ChannelHandler {
+
+        private final EventLoop eventLoop;
+        private final String host;
+        private final int port;
+        private final long dnsNanos;
+        private final CompletableFuture<TlsProbeResult> future;
+        private NioConnection connection;
+        private SelectionKey key;
+        private EventLoop.Timeout timeoutTask;
+        private boolean connected;
+        private boolean done;
+        private long connectStartedAt;
+        private long connectNanos;
+
+        private Probe(EventLoop eventLoop, String host, int port, long dnsNanos, CompletableFuture<TlsProbeResult> future) {
+            this.eventLoop = eventLoop;
+            this.host = host;
+            this.port = port;
+            this.dnsNanos = dnsNanos;
+            this.future = future;
+        }
+
+        private void start(InetSocketAddress address, String[] protocols, String[] cipherSuites) {
+            try {
+                // Engine first, so nothing can fail between opening the channel and finish() owning it.
+                SSLEngine sslEngine = createSSLEngine(host, protocols, cipherSuites);
+                SocketChannel channel = SocketChannel.open();
+
+                connection = new NioConnection(channel, sslEngine);
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                key = eventLoop.register(channel, 0, this);
+                if (timeout > 0) {
+                    timeoutTask = eventLoop.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            failed(new SocketTimeoutException(connected ? "Timed out." : "Connect to '" + host + ":" + port + "' timed out."));
+                        }
+                    }, timeout, TimeUnit.MILLISECONDS);
+                }
+                connectStartedAt = System.nanoTime();
+                if (channel.connect(address)) {
+                    onConnected();
+                } else {
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (Throwable t) {
+                failed(t);
+            }
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if (!connected) {
+                if (connection.getChannel().finishConnect()) {
+                    onConnected();
+                }
+            } else {
+                progressHandshake();
+            }
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+            if (done) {
+                return;
+            }
+            finish();
+            if (!connected || cause instanceof SSLHandshakeException) {
+                future.completeExceptionally(cause);
+            } else {
+                SSLHandshakeException handshakeException = new SSLHandshakeException("TLS handshake with '" + host + ":" + port + "' failed: " + cause.getMessage());
+                handshakeException.initCause(cause);
+                future.completeExceptionally(handshakeException);
+            }
+        }
+
+        private void onConnected() throws IOException {
+            connected = true;
+            connectNanos = System.nanoTime() - connectStartedAt;
+            progressHandshake();
+        }
+
+        private void progressHandshake() throws IOException {
+            int interestOps = connection.handshake();
+
+            if (interestOps != 0) {
+                key.interestOps(interestOps);
+            } else {
+                complete();
+            }
+        }
+
+        private void complete() throws IOException {
+            SSLSession session = connection.getSSLEngine().getSession();
+            TlsProbeResult result = new TlsProbeResult(host, port, toX509(session.getPeerCertificates()), session.getProtocol(),
+                    session.getCipherSuite(), dnsNanos, connectNanos, connection.getHandshakeNanos(), connection.isSessionResumed());
+
+            finish();
+            future.complete(result);
+        }
+
+        private void finish() {
+            done = true;
+            if (timeoutTask != null) {
+                timeoutTask.cancel();
+                timeoutTask = null;
+            }
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private static X509Certificate[] toX509(Certificate[] certificates) {
+        X509Certificate[] x509Certificates = new X509Certificate[certificates.length];
+        for (int i = 0; i < certificates.length; i++) {
+            x509Certificates[i] = (X509Certificate) certificates[i];
+        }
+        return x509Certificates;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result of a handshake-only {@link TlsProbe}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class TlsProbeResult {
+
+    private final String host;
+    private final int port;
+    private final X509Certificate[] peerCertificates;
+    private final String protocol;
+    private final String cipherSuite;
+    private final long dnsNanos;
+    private final long connectNanos;
+    private final long handshakeNanos;
+    private final boolean sessionResumed;
+
+    public TlsProbeResult(String host, int port, X509Certificate[] peerCertificates, String protocol, String cipherSuite,
+                          long dnsNanos, long connectNanos, long handshakeNanos, boolean sessionResumed) {
+        this.host = host;
+        this.port = port;
+        this.peerCertificates = peerCertificates;
+        this.protocol = protocol;
+        this.cipherSuite = cipherSuite;
+        this.dnsNanos = dnsNanos;
+        this.connectNanos = connectNanos;
+        this.handshakeNanos = handshakeNanos;
+        this.sessionResumed = sessionResumed;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the peer certificate chain, as presented by the server (leaf first).
+     * <p/>
+     * The chain is captured whether or not it is trusted.
+     * @return The peer certificate chain.
+     */
+    public X509Certificate[] getPeerCertificates() {
+        return peerCertificates.clone();
+    }
+
+    /**
+     * Get the server (leaf) certificate.
+     * @return The server certificate, or null if the server presented no certificates.
+     */
+    public X509Certificate getServerCertificate() {
+        return (peerCertificates.length > 0 ? peerCertificates[0] : null);
+    }
+
+    /**
+     * Get the negotiated protocol e.g. "TLSv1.3".
+     * @return The negotiated protocol.
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Get the negotiated cipher suite.
+     * @return The negotiated cipher suite.
+     */
+    public String getCipherSuite() {
+        return cipherSuite;
+    }
+
+    public long getDnsNanos() {
+        return dnsNanos;
+    }
+
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    @Override
+    public String toString() {
+        X509Certificate serverCertificate = getServerCertificate();
+        return host + ":" + port + " " + protocol + " " + cipherSuite
+                + " (dns " + toMillis(dnsNanos) + "ms, connect " + toMillis(connectNanos) + "ms, handshake " + toMillis(handshakeNanos) + "ms"
+                + (sessionResumed ? ", resumed" : "") + ")"
+                + (serverCertificate != null ? " " + serverCertificate.getSubjectX500Principal().getName() : "");
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.pool;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Opens new connections on behalf of a {@link ConnectionPool}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public interface ConnectionFactory {
+
+    /**
+     * Open a new, fully established (incl. TLS handshake for https) connection on the supplied route.
+     *
+     * @param route The route.
+     * @param timing Connection phase timing, to be populated by the factory.
+     * @return The connected socket.
+     * @throws IOException Failed to connect.
+     */
+    Socket connect(Route route, ConnectionTiming timing) throws IOException;
+}
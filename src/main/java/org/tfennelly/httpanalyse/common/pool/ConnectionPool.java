@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.pool;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keep-alive connection pool.
+ * <p/>
+ * Connections are pooled per {@link Route}, with a cap on the number of connections per route
+ * and on the total number of connections in the pool.  Idle connections are evicted once they
+ * have been sitting in the pool for longer than the idle timeout.
+ * <p/>
+ * Pooled https connections carry the trust configuration they were established with, so a pool
+ * should only be shared between clients that have the same trust configuration.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class ConnectionPool {
+
+    public static final int DEFAULT_MAX_PER_ROUTE = 5;
+    public static final int DEFAULT_MAX_TOTAL = 50;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+    public static final long DEFAULT_LEASE_TIMEOUT = 30000;
+    public static final long DEFAULT_VALIDATE_AFTER_INACTIVITY = 2000;
+
+    private final int maxPerRoute;
+    private final int maxTotal;
+    private final long idleTimeout;
+    private long leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+    private long validateAfterInactivity = DEFAULT_VALIDATE_AFTER_INACTIVITY;
+
+    private final Map<Route, RouteConnections> routes = new HashMap<Route, RouteConnections>();
+    // All idle connections, oldest first.
+    private final LinkedHashSet<PooledConnection> idleConnections = new LinkedHashSet<PooledConnection>();
+    private int allocated;
+    private boolean closed;
+
+    private long createdCount;
+    private long reusedCount;
+    private long evictedCount;
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_PER_ROUTE, DEFAULT_MAX_TOTAL, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     * @param maxPerRoute The maximum number of connections (leased + idle) per route.
+     * @param maxTotal The maximum number of connections (leased + idle) in the pool.
+     * @param idleTimeout The time (in milliseconds) after which an idle connection is evicted.
+     */
+    public ConnectionPool(int maxPerRoute, int maxTotal, long idleTimeout) {
+        if (maxPerRoute < 1) {
+            throw new IllegalArgumentException("'maxPerRoute' must be greater than zero.");
+        }
+        if (maxTotal < maxPerRoute) {
+            throw new IllegalArgumentException("'maxTotal' must be greater than or equal to 'maxPerRoute'.");
+        }
+        this.maxPerRoute = maxPerRoute;
+        this.maxTotal = maxTotal;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set the maximum time (in milliseconds) to wait for a connection when the pool is at capacity.
+     * @param leaseTimeout The lease timeout.
+     */
+    public void setLeaseTimeout(long leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * Set the time (in milliseconds) a connection can be idle before it is checked for staleness on lease.
+     * @param validateAfterInactivity Validate after inactivity time.
+     */
+    public void setValidateAfterInactivity(long validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+    }
+
+    /**
+     * Lease a connection for the supplied route.
+     * <p/>
+     * Reuses an idle connection if one is available on the route, otherwise opens a new one via the
+     * supplied {@link ConnectionFactory}, waiting for a connection to be released if the pool is at capacity.
+     *
+     * @param route The route.
+     * @param connectionFactory The factory used to open a new connection.
+     * @return The leased connection.
+     * @throws IOException Failed to connect, or timed out waiting for a connection.
+     */
+    public PooledConnection lease(Route route, ConnectionFactory connectionFactory) throws IOException {
+        AssertArgument.isNotNull(route, "route");
+        AssertArgument.isNotNull(connectionFactory, "connectionFactory");
+
+        PooledConnection idleConnection;
+
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + leaseTimeout;
+
+            while (true) {
+                if (closed) {
+                    throw new IOException("Connection pool closed.");
+                }
+                evictExpired(System.currentTimeMillis());
+
+                RouteConnections routeConnections = getRouteConnections(route);
+                idleConnection = routeConnections.idle.pollLast();
+                if (idleConnection != null) {
+                    idleConnections.remove(idleConnection);
+                    break;
+                }
+                if (routeConnections.allocated < maxPerRoute) {
+                    if (allocated >= maxTotal) {
+                        evictOldestIdle();
+                    }
+                    if (allocated < maxTotal) {
+                        routeConnections.allocated++;
+                        allocated++;
+                        break;
+                    }
+                }
+
+                long waitTime = deadline - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    throw new IOException("Timed out waiting for a pooled connection on route '" + route + "'.");
+                }
+                try {
+                    wait(waitTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for a pooled connection on route '" + route + "'.");
+                }
+            }
+        }
+
+        if (idleConnection != null) {
+            if (System.currentTimeMillis() - idleConnection.getLastUsedAt() > validateAfterInactivity && idleConnection.isStale()) {
+                release(idleConnection, false);
+                synchronized (this) {
+                    evictedCount++;
+                }
+                return lease(route, connectionFactory);
+            }
+            synchronized (this) {
+                reusedCount++;
+            }
+            idleConnection.markLeased();
+            return idleConnection;
+        }
+
+        try {
+            ConnectionTiming timing = new ConnectionTiming();
+            Socket socket = connectionFactory.connect(route, timing);
+            PooledConnection connection = new PooledConnection(this, route, socket, timing);
+
+            synchronized (this) {
+                createdCount++;
+            }
+            connection.markLeased();
+
+            return connection;
+        } catch (IOException e) {
+            deallocate(route);
+            throw e;
+        } catch (RuntimeException e) {
+            deallocate(route);
+            throw e;
+        }
+    }
+
+    /**
+     * Release a leased connection back to the pool.
+     * @param connection The connection.
+     * @param reusable True if the connection can be kept alive for reuse, otherwise false.
+     */
+    public void release(PooledConnection connection, boolean reusable) {
+        AssertArgument.isNotNull(connection, "connection");
+
+        synchronized (this) {
+            if (reusable && !closed && connection.isOpen()) {
+                connection.markReleased();
+                getRouteConnections(connection.getRoute()).idle.addLast(connection);
+                idleConnections.add(connection);
+                notifyAll();
+                return;
+            }
+        }
+
+        connection.close();
+        deallocate(connection.getRoute());
+    }
+
+    /**
+     * Close all connections that have been idle for longer than the specified time.
+     * @param idleTime The idle time in milliseconds.
+     */
+    public void closeIdleConnections(long idleTime) {
+        List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+
+        synchronized (this) {
+            long cutoff = System.currentTimeMillis() - idleTime;
+            Iterator<PooledConnection> idleIterator = idleConnections.iterator();
+
+            while (idleIterator.hasNext()) {
+                PooledConnection connection = idleIterator.next();
+                if (connection.getLastUsedAt() > cutoff) {
+                    // Ordered oldest first, so we're done.
+                    break;
+                }
+                idleIterator.remove();
+                removeIdle(connection);
+                toClose.add(connection);
+            }
+        }
+
+        for (PooledConnection connection : toClose) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Close all connections that have exceeded the pool idle timeout.
+     */
+    public void closeExpiredConnections() {
+        closeIdleConnections(idleTimeout);
+    }
+
+    /**
+     * Close the pool.
+     * <p/>
+     * Idle connections are closed immediately.  Leased connections are closed when released.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        closeIdleConnections(-1);
+    }
+
+    public synchronized PoolStats getStats() {
+        return new PoolStats(createdCount, reusedCount, evictedCount, allocated - idleConnections.size(), idleConnections.size());
+    }
+
+    private RouteConnections getRouteConnections(Route route) {
+        RouteConnections routeConnections = routes.get(route);
+        if (routeConnections == null) {
+            routeConnections = new RouteConnections();
+            routes.put(route, routeConnections);
+        }
+        return routeConnections;
+    }
+
+    private synchronized void deallocate(Route route) {
+        RouteConnections routeConnections = routes.get(route);
+
+        routeConnections.allocated--;
+        allocated--;
+        if (routeConnections.allocated == 0) {
+            routes.remove(route);
+        }
+        notifyAll();
+    }
+
+    private void evictExpired(long now) {
+        Iterator<PooledConnection> idleIterator = idleConnections.iterator();
+
+        while (idleIterator.hasNext()) {
+            PooledConnection connection = idleIterator.next();
+            if (now - connection.getLastUsedAt() < idleTimeout) {
+                break;
+            }
+            idleIterator.remove();
+            removeIdle(connection);
+            connection.close();
+        }
+    }
+
+    private void evictOldestIdle() {
+        Iterator<PooledConnection> idleIterator = idleConnections.iterator();
+
+        if (idleIterator.hasNext()) {
+            PooledConnection connection = idleIterator.next();
+            idleIterator.remove();
+            removeIdle(connection);
+            connection.close();
+        }
+    }
+
+    private void removeIdle(PooledConnection connection) {
+        RouteConnections routeConnections = routes.get(connection.getRoute());
+
+        routeConnections.idle.remove(connection);
+        routeConnections.allocated--;
+        allocated--;
+        evictedCount++;
+        if (routeConnections.allocated == 0) {
+            routes.remove(connection.getRoute());
+        }
+        notifyAll();
+    }
+
+    private static class RouteConnections {
+        private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+        private int allocated;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.pool;
+
+/**
+ * Timings for the phases of establishing a connection, as recorded by the {@link ConnectionFactory}.
+ * <p/>
+ * All times are in nanoseconds.  A phase that does not apply (e.g. TLS on a plain http route) is left at 0.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class ConnectionTiming {
+
+    private long dnsNanos;
+    private long connectNanos;
+    private long tlsHandshakeNanos;
+    private boolean tlsSessionResumed;
+
+    public long getDnsNanos() {
+        return dnsNanos;
+    }
+
+    public void setDnsNanos(long dnsNanos) {
+        this.dnsNanos = dnsNanos;
+    }
+
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    public void setConnectNanos(long connectNanos) {
+        this.connectNanos = connectNanos;
+    }
+
+    public long getTlsHandshakeNanos() {
+        return tlsHandshakeNanos;
+    }
+
+    public void setTlsHandshakeNanos(long tlsHandshakeNanos) {
+        this.tlsHandshakeNanos = tlsHandshakeNanos;
+    }
+
+    /**
+     * Did the TLS handshake resume a cached session.
+     * @return True if the TLS session was resumed, otherwise false.
+     */
+    public boolean isTlsSessionResumed() {
+        return tlsSessionResumed;
+    }
+
+    public void setTlsSessionResumed(boolean tlsSessionResumed) {
+        this.tlsSessionResumed = tlsSessionResumed;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.pool;
+
+/**
+ * Point in time snapshot of {@link ConnectionPool} statistics.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class PoolStats {
+
+    private final long created;
+    private final long reused;
+    private final long evicted;
+    private final int leased;
+    private final int idle;
+
+    PoolStats(long created, long reused, long evicted, int leased, int idle) {
+        this.created = created;
+        this.reused = reused;
+        this.evicted = evicted;
+        this.leased = leased;
+        this.idle = idle;
+    }
+
+    /**
+     * Get the number of new connections opened by the pool.
+     * @return The number of new connections.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Get the number of leases satisfied by reusing an idle connection.
+     * @return The number of reused connections.
+     */
+    public long getReused() {
+        return reused;
+    }
+
+    /**
+     * Get the number of idle connections closed by the pool (idle timeout, stale or pool cap).
+     * @return The number of evicted connections.
+     */
+    public long getEvicted() {
+        return evicted;
+    }
+
+    public int getLeased() {
+        return leased;
+    }
+
+    public int getIdle() {
+        return idle;
+    }
+
+    /**
+     * Get the ratio of leases that were satisfied by reusing a connection.
+     * @return The reuse ratio (0.0 - 1.0).
+     */
+    public double getReuseRatio() {
+        long total = created + reused;
+        return (total == 0 ? 0.0 : (double) reused / total);
+    }
+
+    @Override
+    public String toString() {
+        return "created: " + created + ", reused: " + reused + ", evicted: " + evicted + ", leased: " + leased + ", idle: " + idle;
+    }
+}
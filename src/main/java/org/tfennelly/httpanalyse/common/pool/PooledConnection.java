@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.pool;
+
+import org.tfennelly.httpanalyse.common.util.StreamUtils;
+
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A connection leased from a {@link ConnectionPool}.
+ * <p/>
+ * Must be handed back to the pool via {@link #release(boolean)} once the exchange is complete.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class PooledConnection {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ConnectionPool pool;
+    private final Route route;
+    private final Socket socket;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final ConnectionTiming timing;
+    private final long createdAt;
+    private long lastUsedAt;
+    private int useCount;
+
+    PooledConnection(ConnectionPool pool, Route route, Socket socket, ConnectionTiming timing) throws IOException {
+        this.pool = pool;
+        this.route = route;
+        this.socket = socket;
+        this.inputStream = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        this.outputStream = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        this.timing = timing;
+        this.createdAt = System.currentTimeMillis();
+        this.lastUsedAt = createdAt;
+    }
+
+    public Route getRoute() {
+        return route;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public boolean isSecure() {
+        return (socket instanceof SSLSocket);
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Get the timing of the phases involved in establishing this connection.
+     * @return The connection timing.
+     */
+    public ConnectionTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     * Block until the first byte of the next response is available on the connection, without consuming it.
+     * @throws IOException Error reading from the connection, or the connection was closed by the server.
+     */
+    public void awaitInput() throws IOException {
+        inputStream.mark(1);
+        if (inputStream.read() == -1) {
+            throw new EOFException("Connection closed by server.");
+        }
+        inputStream.reset();
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getLastUsedAt() {
+        return lastUsedAt;
+    }
+
+    /**
+     * Get the number of times this connection has been leased from the pool.
+     * @return The lease count.
+     */
+    public int getUseCount() {
+        return useCount;
+    }
+
+    /**
+     * Is this a connection that was previously used for another exchange.
+     * @return True if the connection is being reused, otherwise false.
+     */
+    public boolean isReused() {
+        return useCount > 1;
+    }
+
+    /**
+     * Release the connection back to the pool.
+     * @param reusable True if the exchange was fully consumed and the connection can be
+     * kept alive for reuse, otherwise false (in which case the connection is closed).
+     */
+    public void release(boolean reusable) {
+        pool.release(this, reusable);
+    }
+
+    void markLeased() {
+        useCount++;
+    }
+
+    void markReleased() {
+        lastUsedAt = System.currentTimeMillis();
+    }
+
+    boolean isOpen() {
+        return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    /**
+     * Check has the server closed this connection while it was sitting in the pool.
+     * @return True if the connection is no longer usable, otherwise false.
+     */
+    boolean isStale() {
+        if (!isOpen()) {
+            return true;
+        }
+
+        try {
+            int soTimeout = socket.getSoTimeout();
+            try {
+                socket.setSoTimeout(1);
+                inputStream.mark(1);
+                if (inputStream.read() == -1) {
+                    return true;
+                }
+                inputStream.reset();
+                return false;
+            } finally {
+                socket.setSoTimeout(soTimeout);
+            }
+        } catch (SocketTimeoutException e) {
+            // Nothing to read... connection is still good.
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    void close() {
+        StreamUtils.safeClose(socket);
+    }
+
+    @Override
+    public String toString() {
+        return route + " (uses: " + useCount + ")";
+    }
+}
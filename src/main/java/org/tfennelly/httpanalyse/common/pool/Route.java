@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.pool;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * Connection route i.e. the scheme, host and port a connection is made to, and the proxy (if any) it's made through.
+ * <p/>
+ * Pooled connections are only ever reused for requests on the same route.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class Route {
+
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final Proxy proxy;
+    private final int hashCode;
+
+    public Route(String scheme, String host, int port) {
+        this(scheme, host, port, Proxy.NO_PROXY);
+    }
+
+    /**
+     * Constructor.
+     * @param scheme The scheme.
+     * @param host The host.
+     * @param port The port.
+     * @param proxy The proxy the connection is made through, or {@link Proxy#NO_PROXY} for a direct connection.
+     */
+    public Route(String scheme, String host, int port, Proxy proxy) {
+        AssertArgument.isNotNullAndNotEmpty(scheme, "scheme");
+        AssertArgument.isNotNullAndNotEmpty(host, "host");
+        AssertArgument.isNotNull(proxy, "proxy");
+        this.scheme = scheme.toLowerCase();
+        this.host = host.toLowerCase();
+        this.port = port;
+        this.proxy = proxy;
+        this.hashCode = 31 * (31 * (31 * this.scheme.hashCode() + this.host.hashCode()) + port) + proxy.hashCode();
+    }
+
+    public static Route fromURL(URL url) {
+        return fromURL(url, Proxy.NO_PROXY);
+    }
+
+    /**
+     * Get the route for the supplied URL, through the supplied proxy.
+     * @param url The URL.
+     * @param proxy The proxy, or {@link Proxy#NO_PROXY} for a direct connection.
+     * @return The route.
+     */
+    public static Route fromURL(URL url, Proxy proxy) {
+        AssertArgument.isNotNull(url, "url");
+        int port = url.getPort();
+        if (port == -1) {
+            port = url.getDefaultPort();
+        }
+        return new Route(url.getProtocol(), url.getHost(), port, proxy);
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isSecure() {
+        return scheme.equals("https");
+    }
+
+    public Proxy getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Are requests on this route forwarded by an HTTP proxy i.e. sent to the proxy with an absolute-form request
+     * target.  https requests are tunnelled through an HTTP proxy (CONNECT), so are not forwarded.
+     * @return True if requests are forwarded by an HTTP proxy, otherwise false.
+     */
+    public boolean isProxyForwarded() {
+        return proxy.type() == Proxy.Type.HTTP && !isSecure();
+    }
+
+    /**
+     * Get the value to be used in the "Host" request header for this route.
+     * @return The "Host" header value.
+     */
+    public String toHostHeader() {
+        if ((isSecure() && port == 443) || (!isSecure() && port == 80)) {
+            return host;
+        }
+        return host + ":" + port;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Route)) {
+            return false;
+        }
+        Route route = (Route) o;
+        return port == route.port && host.equals(route.host) && scheme.equals(route.scheme) && proxy.equals(route.proxy);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        if (proxy.type() == Proxy.Type.DIRECT) {
+            return scheme + "://" + host + ":" + port;
+        }
+        return scheme + "://" + host + ":" + port + " via " + proxy;
+    }
+}
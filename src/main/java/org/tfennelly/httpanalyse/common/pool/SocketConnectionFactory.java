@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.pool;
+
+import org.tfennelly.httpanalyse.common.HttpWire;
+import org.tfennelly.httpanalyse.common.dns.CachingHostResolver;
+import org.tfennelly.httpanalyse.common.dns.HostResolver;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+
+/**
+ * Default {@link ConnectionFactory}.
+ * <p/>
+ * Opens a plain socket and, for https routes, layers TLS over it using the configured
+ * {@link SSLSocketFactory}, with hostname verification enabled.
+ * <p/>
+ * Connections on a proxied {@link Route route} are made to the proxy.  Through an HTTP proxy, https connections are
+ * tunnelled (CONNECT) and plain http connections are left for the requests to be forwarded.  SOCKS proxies are
+ * handled by the JDK socket.  Proxy authentication is not supported.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class SocketConnectionFactory implements ConnectionFactory {
+
+    private final SSLSocketFactory sslSocketFactory;
+    private final HostResolver hostResolver;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    public SocketConnectionFactory() {
+        this(null, 0, 0);
+    }
+
+    /**
+     * Constructor.
+     * @param sslSocketFactory The {@link SSLSocketFactory} to use for https routes. If null, the
+     * {@link HttpsURLConnection#getDefaultSSLSocketFactory() default} is used.
+     * @param connectTimeout Connect timeout in milliseconds (0 means no timeout).
+     * @param readTimeout Read timeout in milliseconds (0 means no timeout).
+     */
+    public SocketConnectionFactory(SSLSocketFactory sslSocketFactory, int connectTimeout, int readTimeout) {
+        this(sslSocketFactory, null, connectTimeout, readTimeout);
+    }
+
+    /**
+     * Constructor.
+     * @param sslSocketFactory The {@link SSLSocketFactory} to use for https routes. If null, the
+     * {@link HttpsURLConnection#getDefaultSSLSocketFactory() default} is used.
+     * @param hostResolver The resolver used to resolve route hosts. If null, the
+     * {@link CachingHostResolver#getDefault() default} is used.
+     * @param connectTimeout Connect timeout in milliseconds (0 means no timeout).
+     * @param readTimeout Read timeout in milliseconds (0 means no timeout).
+     */
+    public SocketConnectionFactory(SSLSocketFactory sslSocketFactory, HostResolver hostResolver, int connectTimeout, int readTimeout) {
+        this.sslSocketFactory = (sslSocketFactory != null ? sslSocketFactory : HttpsURLConnection.getDefaultSSLSocketFactory());
+        this.hostResolver = (hostResolver != null ? hostResolver : CachingHostResolver.getDefault());
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    public Socket connect(Route route, ConnectionTiming timing) throws IOException {
+        Proxy proxy = route.getProxy();
+        long start = System.nanoTime();
+        InetSocketAddress address;
+        Socket socket;
+
+        if (proxy.type() == Proxy.Type.SOCKS) {
+            // Resolved by the proxy.
+            address = InetSocketAddress.createUnresolved(route.getHost(), route.getPort());
+            socket = new Socket(proxy);
+        } else if (proxy.type() == Proxy.Type.HTTP) {
+            InetSocketAddress proxyAddress = (InetSocketAddress) proxy.address();
+            address = new InetSocketAddress(hostResolver.resolve(proxyAddress.getHostString())[0], proxyAddress.getPort());
+            socket = new Socket();
+        } else {
+            address = new InetSocketAddress(hostResolver.resolve(route.getHost())[0], route.getPort());
+            socket = new Socket();
+        }
+        long resolved = System.nanoTime();
+
+        timing.setDnsNanos(resolved - start);
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeout);
+            socket.connect(address, connectTimeout);
+            if (proxy.type() == Proxy.Type.HTTP && route.isSecure()) {
+                tunnel(socket, route);
+            }
+            long connected = System.nanoTime();
+            timing.setConnectNanos(connected - resolved);
+
+            if (route.isSecure()) {
+                SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, route.getHost(), route.getPort(), true);
+                SSLParameters sslParameters = sslSocket.getSSLParameters();
+
+                sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(sslParameters);
+                long handshakeStartedAt = System.currentTimeMillis();
+                sslSocket.startHandshake();
+                timing.setTlsHandshakeNanos(System.nanoTime() - connected);
+                // A resumed session keeps the creation time of the cached session it was resumed from.
+                timing.setTlsSessionResumed(sslSocket.getSession().getCreationTime() < handshakeStartedAt);
+
+                return sslSocket;
+            }
+
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a tunnel to the route host through the HTTP proxy the socket is connected to.
+     */
+    private static void tunnel(Socket socket, Route route) throws IOException {
+        String authority = route.getHost() + ":" + route.getPort();
+        OutputStream outputStream = socket.getOutputStream();
+
+        outputStream.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n").getBytes(HttpWire.ISO_8859_1));
+        outputStream.flush();
+
+        // Read straight off the socket (unbuffered), so nothing after the proxy's response head is consumed.
+        HttpWire.ResponseHead head = HttpWire.readResponseHead(socket.getInputStream());
+        if (head.getStatusCode() < 200 || head.getStatusCode() > 299) {
+            throw new IOException("Proxy " + route.getProxy() + " refused tunnel to " + authority + ": " + head.getStatusCode() + " " + head.getStatusMessage());
+        }
+    }
+}
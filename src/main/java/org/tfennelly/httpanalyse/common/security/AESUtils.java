@@ -7,7 +7,6 @@
 package org.tfennelly.httpanalyse.common.security;
 
 import org.tfennelly.httpanalyse.common.util.ByteUtils;
-import org.tfennelly.httpanalyse.common.util.CharsetUtils;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
@@ -16,7 +15,6 @@ import javax.crypto.spec.SecretKeySpec;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.UUID;
 
 /**
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
@@ -44,6 +42,10 @@ public class AESUtils {
         }
     }
 
+    // One shared, self seeding SecureRandom.  Creating and seeding a new one per key is slow and (seeded from
+    // a UUID) no stronger.  SecureRandom is thread safe.
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
     private AESUtils() {
     }
 
@@ -60,32 +62,44 @@ public class AESUtils {
             throw new IllegalStateException("Unexpected Exception getting AES KeyGenerator.", e);
         }
 
-        SecureRandom random = null;
-        try {
-            random = SecureRandom.getInstance("SHA1PRNG");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException("Unexpected Exception getting SecureRandom instance.", e);
-        }
-        UUID uuid = UUID.randomUUID();
-        random.setSeed(uuid.toString().getBytes(CharsetUtils.UTF8));
-
-        keyGenerator.init(keySize.toInt(), random);
+        keyGenerator.init(keySize.toInt(), SECURE_RANDOM);
         SecretKey skey = keyGenerator.generateKey();
 
         return skey.getEncoded();
     }
 
+    /**
+     * Get the shared {@link SecureRandom} e.g. for generating salts and nonces.
+     * @return The shared {@link SecureRandom}.
+     */
+    public static SecureRandom getSecureRandom() {
+        return SECURE_RANDOM;
+    }
+
     public static Cipher toCipher(String key, int mode) throws InvalidKeyException {
         return toCipher(ByteUtils.fromHexString(key), mode);
     }
 
+    /**
+     * Create an AES/ECB/PKCS5Padding {@link Cipher}.
+     * <p/>
+     * This is the transformation a plain "AES" resolves to, named explicitly so existing ciphertext still
+     * decrypts.  ECB is deterministic and unauthenticated (equal blocks encrypt to equal blocks), so it's only
+     * suitable for short, random values such as keys.  Use {@link StreamingAesGcm} to encrypt payloads.
+     * <p/>
+     * A new {@link Cipher} is created per call because it's handed to the caller.
+     * @param key The AES key.
+     * @param mode The cipher mode e.g. {@link Cipher#ENCRYPT_MODE}.
+     * @return The initialized cipher.
+     * @throws InvalidKeyException Invalid key.
+     */
     public static Cipher toCipher(byte[] key, int mode) throws InvalidKeyException {
         Cipher cipher;
 
         SecretKeySpec skeySpec = new SecretKeySpec(key, "AES");
 
         try {
-            cipher = Cipher.getInstance("AES");
+            cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
         } catch (Exception e) {
             throw new IllegalStateException("Unexpected Exception creating AES Cipher.", e);
         }
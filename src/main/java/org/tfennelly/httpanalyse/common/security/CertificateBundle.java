@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+
+package org.tfennelly.httpanalyse.common.security;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.NamedThreadFactory;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Immutable bundle of X.509 certificates, indexed by subject, issuer and SHA-256 fingerprint.
+ * <p/>
+ * Bundles are loaded from a PEM file (any number of "CERTIFICATE" blocks, other blocks are ignored) or a DER
+ * file (concatenated DER certificates).  The file is memory mapped and scanned for entry boundaries, and the
+ * entries are then parsed in parallel.  Duplicate certificates (same fingerprint) are only included once.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class CertificateBundle {
+
+    /**
+     * Bundles with fewer entries than this are parsed on the calling thread.
+     */
+    public static final int MIN_PARALLEL_ENTRIES = 256;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] PEM_BEGIN = "-----BEGIN CERTIFICATE-----".getBytes(ASCII);
+    private static final byte[] PEM_END = "-----END CERTIFICATE-----".getBytes(ASCII);
+    private static final byte DER_SEQUENCE = 0x30;
+
+    private final List<X509Certificate> certificates;
+    private final Map<String, X509Certificate> byFingerprint;
+    private final Map<X500Principal, List<X509Certificate>> bySubject;
+    private final Map<X500Principal, List<X509Certificate>> byIssuer;
+
+    private CertificateBundle(List<ParsedEntry> entries) {
+        Map<String, X509Certificate> fingerprints = new LinkedHashMap<String, X509Certificate>(entries.size() * 2);
+        Map<X500Principal, List<X509Certificate>> subjects = new HashMap<X500Principal, List<X509Certificate>>(entries.size() * 2);
+        Map<X500Principal, List<X509Certificate>> issuers = new HashMap<X500Principal, List<X509Certificate>>(entries.size() * 2);
+
+        for (ParsedEntry entry : entries) {
+            if (fingerprints.containsKey(entry.fingerprint)) {
+                continue;
+            }
+            fingerprints.put(entry.fingerprint, entry.certificate);
+            index(subjects, entry.certificate.getSubjectX500Principal(), entry.certificate);
+            index(issuers, entry.certificate.getIssuerX500Principal(), entry.certificate);
+        }
+
+        this.certificates = Collections.unmodifiableList(new ArrayList<X509Certificate>(fingerprints.values()));
+        this.byFingerprint = fingerprints;
+        this.bySubject = subjects;
+        this.byIssuer = issuers;
+    }
+
+    /**
+     * Load a PEM or DER certificate bundle file, parsing in parallel across all available processors.
+     * @param bundleFile The bundle file.
+     * @return The certificate bundle.
+     * @throws IOException Error reading the file.
+     * @throws CertificateException Error parsing a certificate in the bundle.
+     */
+    public static CertificateBundle load(File bundleFile) throws IOException, CertificateException {
+        return load(bundleFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Load a PEM or DER certificate bundle file.
+     * @param bundleFile The bundle file.
+     * @param parallelism The max number of threads used to parse the bundle.
+     * @return The certificate bundle.
+     * @throws IOException Error reading the file.
+     * @throws CertificateException Error parsing a certificate in the bundle.
+     */
+    public static CertificateBundle load(File bundleFile, int parallelism) throws IOException, CertificateException {
+        AssertArgument.isNotNull(bundleFile, "bundleFile");
+
+        FileChannel channel = FileChannel.open(bundleFile.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Certificate bundle '" + bundleFile.getAbsolutePath() + "' is too large (" + size + " bytes).");
+            }
+
+            // The mapping remains valid after the channel is closed.
+            MappedByteBuffer bundle = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return load(bundle, parallelism);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Load a PEM or DER certificate bundle from a buffer.
+     * @param bundle The bundle, between the buffer's position and limit.  The buffer itself is not modified.
+     * @param parallelism The max number of threads used to parse the bundle.
+     * @return The certificate bundle.
+     * @throws CertificateException Error parsing a certificate in the bundle.
+     */
+    public static CertificateBundle load(final ByteBuffer bundle, int parallelism) throws CertificateException {
+        AssertArgument.isNotNull(bundle, "bundle");
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid 'parallelism' value '" + parallelism + "'. Must be greater than zero.");
+        }
+
+        List<Segment> segments = (isDer(bundle) ? scanDer(bundle) : scanPem(bundle));
+        int threads = Math.min(parallelism, segments.size() / MIN_PARALLEL_ENTRIES);
+
+        if (threads <= 1) {
+            return new CertificateBundle(parse(bundle, segments));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("httpanalyse-cert-loader"));
+        try {
+            List<Future<List<ParsedEntry>>> futures = new ArrayList<Future<List<ParsedEntry>>>(threads);
+            int chunkSize = (segments.size() + threads - 1) / threads;
+
+            for (int start = 0; start < segments.size(); start += chunkSize) {
+                final List<Segment> chunk = segments.subList(start, Math.min(start + chunkSize, segments.size()));
+                futures.add(executor.submit(new Callable<List<ParsedEntry>>() {
+                    @Override
+                    public List<ParsedEntry> call() throws CertificateException {
+                        return parse(bundle, chunk);
+                    }
+                }));
+            }
+
+            List<ParsedEntry> entries = new ArrayList<ParsedEntry>(segments.size());
+            for (Future<List<ParsedEntry>> future : futures) {
+                entries.addAll(future.get());
+            }
+
+            return new CertificateBundle(entries);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CertificateException("Interrupted while loading certificate bundle.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CertificateException) {
+                throw (CertificateException) e.getCause();
+            }
+            throw new CertificateException("Unexpected error loading certificate bundle.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the certificates in the bundle, in bundle order.
+     * @return The certificates.
+     */
+    public List<X509Certificate> getCertificates() {
+        return certificates;
+    }
+
+    /**
+     * Get a certificate by its SHA-256 fingerprint.
+     * @param sha256Fingerprint The fingerprint, as a hex string (as returned by {@link X509CertUtil#getSHA256Fingerprint(X509Certificate)}).
+     * @return The certificate, or null if the bundle does not contain a certificate with that fingerprint.
+     */
+    public X509Certificate getByFingerprint(String sha256Fingerprint) {
+        AssertArgument.isNotNull(sha256Fingerprint, "sha256Fingerprint");
+        return byFingerprint.get(sha256Fingerprint.toLowerCase());
+    }
+
+    /**
+     * Get the certificates with the supplied subject.
+     * @param subject The subject.
+     * @return The certificates.  An empty list if there are none.
+     */
+    public List<X509Certificate> getBySubject(X500Principal subject) {
+        return get(bySubject, subject);
+    }
+
+    /**
+     * Get the certificates issued by the supplied issuer.
+     * @param issuer The issuer.
+     * @return The certificates.  An empty list if there are none.
+     */
+    public List<X509Certificate> getByIssuer(X500Principal issuer) {
+        return get(byIssuer, issuer);
+    }
+
+    public int size() {
+        return certificates.size();
+    }
+
+    /**
+     * Create a {@link PinSet} pinning all the certificates in the bundle.
+     * @return The pin set.
+     */
+    public PinSet toPinSet() {
+        return new PinSet(certificates);
+    }
+
+    private static void index(Map<X500Principal, List<X509Certificate>> index, X500Principal principal, X509Certificate certificate) {
+        List<X509Certificate> certs = index.get(principal);
+        if (certs == null) {
+            certs = new ArrayList<X509Certificate>(1);
+            index.put(principal, certs);
+        }
+        certs.add(certificate);
+    }
+
+    private static List<X509Certificate> get(Map<X500Principal, List<X509Certificate>> index, X500Principal principal) {
+        AssertArgument.isNotNull(principal, "principal");
+        List<X509Certificate> certs = index.get(principal);
+        return (certs != null ? Collections.unmodifiableList(certs) : Collections.<X509Certificate>emptyList());
+    }
+
+    private static boolean isDer(ByteBuffer bundle) {
+        for (int i = bundle.position(); i < bundle.limit(); i++) {
+            byte b = bundle.get(i);
+            if (!Character.isWhitespace(b)) {
+                return (b == DER_SEQUENCE);
+            }
+        }
+        return false;
+    }
+
+    private static List<Segment> scanPem(ByteBuffer bundle) {
+        List<Segment> segments = new ArrayList<Segment>();
+        int limit = bundle.limit();
+        int index = bundle.position();
+
+        while (true) {
+            int begin = indexOf(bundle, PEM_BEGIN, index, limit);
+            if (begin == -1) {
+                break;
+            }
+            int bodyStart = begin + PEM_BEGIN.length;
+            int end = indexOf(bundle, PEM_END, bodyStart, limit);
+            if (end == -1) {
+                break;
+            }
+            segments.add(new Segment(bodyStart, end - bodyStart, true));
+            index = end + PEM_END.length;
+        }
+
+        return segments;
+    }
+
+    private static List<Segment> scanDer(ByteBuffer bundle) throws CertificateException {
+        List<Segment> segments = new ArrayList<Segment>();
+        int limit = bundle.limit();
+        int index = bundle.position();
+
+        while (index < limit) {
+            if (Character.isWhitespace(bundle.get(index))) {
+                index++;
+                continue;
+            }
+            if (bundle.get(index) != DER_SEQUENCE || index + 2 > limit) {
+                throw new CertificateException("Invalid DER certificate bundle. Expected an ASN.1 SEQUENCE at offset " + index + ".");
+            }
+
+            // ASN.1 definite length: short form, or long form with up to 4 length bytes.
+            int length = bundle.get(index + 1) & 0xFF;
+            int headerLength = 2;
+            if (length > 0x7F) {
+                int lengthBytes = length & 0x7F;
+                if (lengthBytes == 0 || lengthBytes > 4 || index + 2 + lengthBytes > limit) {
+                    throw new CertificateException("Invalid DER certificate bundle. Unsupported length encoding at offset " + index + ".");
+                }
+                length = 0;
+                for (int i = 0; i < lengthBytes; i++) {
+                    length = (length << 8) | (bundle.get(index + 2 + i) & 0xFF);
+                }
+                headerLength += lengthBytes;
+            }
+            if (length < 0 || (long) index + headerLength + length > limit) {
+                throw new CertificateException("Invalid DER certificate bundle. Truncated certificate at offset " + index + ".");
+            }
+
+            segments.add(new Segment(index, headerLength + length, false));
+            index += headerLength + length;
+        }
+
+        return segments;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] pattern, int from, int limit) {
+        byte first = pattern[0];
+        int last = limit - pattern.length;
+
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (buffer.get(i) != first) {
+                continue;
+            }
+            for (int j = 1; j < pattern.length; j++) {
+                if (buffer.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+
+        return -1;
+    }
+
+    private static List<ParsedEntry> parse(ByteBuffer bundle, List<Segment> segments) throws CertificateException {
+        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+        MessageDigest messageDigest = HashUtil.getMessageDigest(HashUtil.SHA256);
+        // Own view of the buffer, as position/limit aren't thread-safe.
+        ByteBuffer view = bundle.duplicate();
+        List<ParsedEntry> entries = new ArrayList<ParsedEntry>(segments.size());
+        Set<String> fingerprints = new HashSet<String>(segments.size() * 2);
+
+        for (Segment segment : segments) {
+            byte[] bytes = new byte[segment.length];
+
+            view.limit(segment.offset + segment.length);
+            view.position(segment.offset);
+            view.get(bytes);
+
+            byte[] der;
+            if (segment.pem) {
+                try {
+                    der = Base64.getMimeDecoder().decode(bytes);
+                } catch (IllegalArgumentException e) {
+                    throw new CertificateException("Invalid PEM certificate at offset " + segment.offset + ".", e);
+                }
+            } else {
+                der = bytes;
+            }
+
+            // Fingerprint before parsing, so duplicates are not parsed.
+            String fingerprint = HashUtil.toHexString(messageDigest.digest(der));
+            if (!fingerprints.add(fingerprint)) {
+                continue;
+            }
+
+            X509Certificate certificate;
+            try {
+                certificate = (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(der));
+            } catch (CertificateException e) {
+                throw new CertificateException("Invalid certificate at offset " + segment.offset + ".", e);
+            }
+
+            // Compute the principals' (cached) hash codes here, rather than on the indexing thread.
+            certificate.getSubjectX500Principal().hashCode();
+            certificate.getIssuerX500Principal().hashCode();
+
+            entries.add(new ParsedEntry(certificate, fingerprint));
+        }
+
+        return entries;
+    }
+
+    private static final class Segment {
+
+        private final int offset;
+        private final int length;
+        private final boolean pem;
+
+        private Segment(int offset, int length, boolean pem) {
+            this.offset = offset;
+            this.length = length;
+            this.pem = pem;
+        }
+    }
+
+    private static final class ParsedEntry {
+
+        private final X509Certificate certificate;
+        private final String fingerprint;
+
+        private ParsedEntry(X509Certificate certificate, String fingerprint) {
+            this.certificate = certificate;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
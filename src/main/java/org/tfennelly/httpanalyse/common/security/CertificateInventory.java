@@ -0,0 +1,619 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.security;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.ByteUtils;
+import org.tfennelly.httpanalyse.common.util.CountingInputStream;
+import org.tfennelly.httpanalyse.common.util.StreamUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Persistent inventory of observed certificate chains.
+ * <p/>
+ * Each certificate is stored once, keyed by its SHA-256 fingerprint, and each host (and port) maps to the
+ * chain it last presented.  The inventory is an append-only log in the inventory directory: certificates are
+ * appended when first seen, and host observations are appended only when a host's chain changes (or the host
+ * is first seen).  The log is replayed into in-memory indexes:
+ * <ul>
+ *     <li>certificates by notAfter,</li>
+ *     <li>hosts by the notAfter of their current server (leaf) certificate, and</li>
+ *     <li>hosts by the time their chain last changed,</li>
+ * </ul>
+ * so expiry and change queries are range scans of a sorted index.  Certificate bodies are not held in
+ * memory, they are read back from the log on demand.
+ * <p/>
+ * Closing the inventory checkpoints the indexes to an index file, recording how much of the log they cover.
+ * Opening an inventory loads the checkpoint and only replays the log written after it, falling back to replaying
+ * the whole log if the checkpoint is missing or doesn't match the log.
+ * <p/>
+ * Thread safe.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class CertificateInventory implements Closeable {
+
+    public static final String LOG_FILE_NAME = "inventory.log";
+    public static final String INDEX_FILE_NAME = "inventory.idx";
+
+    private static final int MAGIC = 0x48414956;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int FINGERPRINT_LENGTH = 32;
+    private static final byte CERTIFICATE_RECORD = 'C';
+    private static final byte OBSERVATION_RECORD = 'O';
+    private static final int INDEX_MAGIC = 0x48414958;
+    private static final int INDEX_VERSION = 1;
+
+    private final File logFile;
+    private final File indexFile;
+    private final FileChannel channel;
+    private long writePosition;
+
+    private final Map<String, CertificateEntry> certificates = new HashMap<String, CertificateEntry>();
+    private final Map<String, HostEntry> hosts = new HashMap<String, HostEntry>();
+    private final TreeMap<Long, Set<String>> certificatesByNotAfter = new TreeMap<Long, Set<String>>();
+    private final TreeMap<Long, Set<String>> hostsByNotAfter = new TreeMap<Long, Set<String>>();
+    private final TreeMap<Long, Set<String>> hostsByChange = new TreeMap<Long, Set<String>>();
+
+    /**
+     * Open (or create) the inventory in the supplied directory.
+     * @param directory The inventory directory.
+     * @throws IOException Error opening or replaying the inventory log.
+     */
+    public CertificateInventory(File directory) throws IOException {
+        AssertArgument.isNotNull(directory, "directory");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create inventory directory '" + directory.getAbsolutePath() + "'.");
+        }
+
+        this.logFile = new File(directory, LOG_FILE_NAME);
+        this.indexFile = new File(directory, INDEX_FILE_NAME);
+        this.channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                write(header);
+            } else {
+                replay();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Record the chain presented by a host.
+     * @param host The host.
+     * @param port The port.
+     * @param chain The chain, leaf first.  Non X.509 certificates are ignored.
+     * @return True if the host's chain changed (or the host is new to the inventory), otherwise false.
+     * @throws IOException Error writing to the inventory log.
+     */
+    public boolean record(String host, int port, Certificate[] chain) throws IOException {
+        return record(host, port, chain, System.currentTimeMillis());
+    }
+
+    /**
+     * Record the chain presented by a host.
+     * @param host The host.
+     * @param port The port.
+     * @param chain The chain, leaf first.  Non X.509 certificates are ignored.
+     * @param observedAt The time the chain was observed.
+     * @return True if the host's chain changed (or the host is new to the inventory), otherwise false.
+     * @throws IOException Error writing to the inventory log.
+     */
+    public boolean record(String host, int port, Certificate[] chain, long observedAt) throws IOException {
+        AssertArgument.isNotNullAndNotEmpty(host, "host");
+        AssertArgument.isNotNull(chain, "chain");
+
+        List<X509Certificate> x509Chain = new ArrayList<X509Certificate>(chain.length);
+        for (Certificate certificate : chain) {
+            if (certificate instanceof X509Certificate) {
+                x509Chain.add((X509Certificate) certificate);
+            }
+        }
+
+        // Encode and digest outside the lock.
+        byte[][] encodings = new byte[x509Chain.size()][];
+        byte[][] digests = new byte[x509Chain.size()][];
+        String[] fingerprints = new String[x509Chain.size()];
+        MessageDigest messageDigest = HashUtil.getMessageDigest(HashUtil.SHA256);
+        for (int i = 0; i < encodings.length; i++) {
+            try {
+                encodings[i] = x509Chain.get(i).getEncoded();
+            } catch (CertificateEncodingException e) {
+                throw new IOException("Unable to encode certificate '" + x509Chain.get(i).getSubjectX500Principal() + "'.", e);
+            }
+            digests[i] = messageDigest.digest(encodings[i]);
+            fingerprints[i] = HashUtil.toHexString(digests[i]);
+        }
+
+        String hostKey = toHostKey(host, port);
+        synchronized (this) {
+            HostEntry hostEntry = hosts.get(hostKey);
+            if (hostEntry != null && Arrays.equals(hostEntry.chain, fingerprints)) {
+                return false;
+            }
+
+            // The new certificates and the observation are written as one append, and only applied once written.
+            ByteArrayOutputStream records = new ByteArrayOutputStream(1024);
+            DataOutputStream recordStream = new DataOutputStream(records);
+            Map<String, CertificateEntry> newCertificates = new HashMap<String, CertificateEntry>();
+            for (int i = 0; i < fingerprints.length; i++) {
+                if (!certificates.containsKey(fingerprints[i]) && !newCertificates.containsKey(fingerprints[i])) {
+                    long notAfter = x509Chain.get(i).getNotAfter().getTime();
+                    long offset = writePosition + writeCertificate(recordStream, digests[i], encodings[i], notAfter);
+                    newCertificates.put(fingerprints[i], new CertificateEntry(offset, encodings[i].length, notAfter));
+                }
+            }
+            writeObservation(recordStream, hostKey, observedAt, digests);
+            recordStream.flush();
+
+            append(ByteBuffer.wrap(records.toByteArray()));
+            for (Map.Entry<String, CertificateEntry> certificate : newCertificates.entrySet()) {
+                applyCertificate(certificate.getKey(), certificate.getValue());
+            }
+            applyObservation(hostKey, observedAt, fingerprints);
+
+            return true;
+        }
+    }
+
+    /**
+     * Get a certificate by its SHA-256 fingerprint.
+     * @param sha256Fingerprint The fingerprint, as a hex string.
+     * @return The certificate, or null if the certificate is not in the inventory.
+     * @throws IOException Error reading the certificate from the inventory log.
+     */
+    public X509Certificate getCertificate(String sha256Fingerprint) throws IOException {
+        AssertArgument.isNotNull(sha256Fingerprint, "sha256Fingerprint");
+
+        CertificateEntry entry;
+        synchronized (this) {
+            entry = certificates.get(sha256Fingerprint.toLowerCase());
+        }
+        if (entry == null) {
+            return null;
+        }
+
+        ByteBuffer encoded = ByteBuffer.allocate(entry.length);
+        while (encoded.hasRemaining()) {
+            if (channel.read(encoded, entry.offset + encoded.position()) == -1) {
+                throw new EOFException("Unexpected end of inventory log '" + logFile.getAbsolutePath() + "' reading certificate '" + sha256Fingerprint + "'.");
+            }
+        }
+        try {
+            return X509CertUtil.loadCertificate(new ByteArrayInputStream(encoded.array()));
+        } catch (CertificateException e) {
+            throw new IOException("Invalid certificate '" + sha256Fingerprint + "' in inventory log '" + logFile.getAbsolutePath() + "'.", e);
+        }
+    }
+
+    /**
+     * Get the fingerprints of the chain last presented by a host.
+     * @param host The host.
+     * @param port The port.
+     * @return The chain fingerprints (leaf first), or null if the host is not in the inventory.
+     */
+    public synchronized String[] getChainFingerprints(String host, int port) {
+        HostEntry hostEntry = hosts.get(toHostKey(host, port));
+        return (hostEntry != null ? hostEntry.chain.clone() : null);
+    }
+
+    /**
+     * Get the chain last presented by a host.
+     * @param host The host.
+     * @param port The port.
+     * @return The chain (leaf first), or null if the host is not in the inventory.
+     * @throws IOException Error reading a certificate from the inventory log.
+     */
+    public X509Certificate[] getChain(String host, int port) throws IOException {
+        String[] fingerprints = getChainFingerprints(host, port);
+        if (fingerprints == null) {
+            return null;
+        }
+
+        X509Certificate[] chain = new X509Certificate[fingerprints.length];
+        for (int i = 0; i < fingerprints.length; i++) {
+            chain[i] = getCertificate(fingerprints[i]);
+        }
+        return chain;
+    }
+
+    /**
+     * Get the certificates that expire in the supplied time range.
+     * @param from Start of the range (inclusive), in milliseconds since the epoch.
+     * @param to End of the range (exclusive), in milliseconds since the epoch.
+     * @return The fingerprints of the expiring certificates, in expiry order.
+     */
+    public synchronized List<String> getCertificatesExpiring(long from, long to) {
+        return flatten(range(certificatesByNotAfter, from, to));
+    }
+
+    /**
+     * Get the hosts whose current server certificate expires in the supplied time range.
+     * @param from Start of the range (inclusive), in milliseconds since the epoch.
+     * @param to End of the range (exclusive), in milliseconds since the epoch.
+     * @return The hosts ("host:port"), in expiry order.
+     */
+    public synchronized List<String> getHostsExpiring(long from, long to) {
+        return flatten(range(hostsByNotAfter, from, to));
+    }
+
+    /**
+     * Get the hosts whose chain changed at or after the supplied time.
+     * <p/>
+     * A host seen for the first time has not changed.
+     * @param since The time, in milliseconds since the epoch.
+     * @return The hosts ("host:port"), in change order.
+     */
+    public synchronized List<String> getHostsChangedSince(long since) {
+        return flatten(hostsByChange.tailMap(since, true));
+    }
+
+    /**
+     * Get the notAfter time of a host's current server certificate.
+     * @param host The host.
+     * @param port The port.
+     * @return The notAfter time, in milliseconds since the epoch, or -1 if the host is not in the inventory
+     * or presented no certificates.
+     */
+    public long getNotAfter(String host, int port) {
+        return getNotAfter(toHostKey(host, port));
+    }
+
+    /**
+     * Get the notAfter time of a host's current server certificate.
+     * @param hostKey The host, as returned by the query methods ("host:port").
+     * @return The notAfter time, in milliseconds since the epoch, or -1 if the host is not in the inventory
+     * or presented no certificates.
+     */
+    public synchronized long getNotAfter(String hostKey) {
+        HostEntry hostEntry = hosts.get(hostKey);
+        return (hostEntry != null ? hostEntry.notAfter : -1);
+    }
+
+    public synchronized int getCertificateCount() {
+        return certificates.size();
+    }
+
+    public synchronized int getHostCount() {
+        return hosts.size();
+    }
+
+    /**
+     * Force all recorded observations to disk.
+     * @throws IOException Error syncing the inventory log.
+     */
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Close the inventory, checkpointing its indexes.
+     * @throws IOException Error syncing the inventory log or writing the checkpoint.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            flush();
+            writeCheckpoint();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private int writeCertificate(DataOutputStream recordStream, byte[] digest, byte[] encoded, long notAfter) throws IOException {
+        recordStream.writeByte(CERTIFICATE_RECORD);
+        recordStream.write(digest);
+        recordStream.writeLong(notAfter);
+        recordStream.writeInt(encoded.length);
+        int offset = recordStream.size();
+        recordStream.write(encoded);
+        return offset;
+    }
+
+    private void writeObservation(DataOutputStream recordStream, String hostKey, long observedAt, byte[][] digests) throws IOException {
+        recordStream.writeByte(OBSERVATION_RECORD);
+        recordStream.writeUTF(hostKey);
+        recordStream.writeLong(observedAt);
+        recordStream.writeShort(digests.length);
+        for (byte[] digest : digests) {
+            recordStream.write(digest);
+        }
+    }
+
+    private void append(ByteBuffer records) throws IOException {
+        long recordStart = writePosition;
+        try {
+            write(records);
+        } catch (IOException e) {
+            rollback(recordStart);
+            throw e;
+        }
+    }
+
+    private void rollback(long recordStart) {
+        try {
+            channel.truncate(recordStart);
+        } catch (IOException e) {
+            // The torn records are dropped by the replay the next time the inventory is opened.
+        }
+        writePosition = recordStart;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            writePosition += channel.write(buffer, writePosition);
+        }
+    }
+
+    private void applyCertificate(String fingerprint, CertificateEntry entry) {
+        certificates.put(fingerprint, entry);
+        add(certificatesByNotAfter, entry.notAfter, fingerprint);
+    }
+
+    private void applyObservation(String hostKey, long observedAt, String[] fingerprints) {
+        HostEntry previous = hosts.get(hostKey);
+        CertificateEntry leaf = (fingerprints.length > 0 ? certificates.get(fingerprints[0]) : null);
+        long notAfter = (leaf != null ? leaf.notAfter : -1);
+        long changedAt = -1;
+
+        if (previous != null) {
+            remove(hostsByNotAfter, previous.notAfter, hostKey);
+            remove(hostsByChange, previous.changedAt, hostKey);
+            changedAt = observedAt;
+        }
+        applyHost(hostKey, new HostEntry(fingerprints, notAfter, changedAt));
+    }
+
+    private void applyHost(String hostKey, HostEntry hostEntry) {
+        hosts.put(hostKey, hostEntry);
+        if (hostEntry.notAfter != -1) {
+            add(hostsByNotAfter, hostEntry.notAfter, hostKey);
+        }
+        if (hostEntry.changedAt != -1) {
+            add(hostsByChange, hostEntry.changedAt, hostKey);
+        }
+    }
+
+    private void replay() throws IOException {
+        long checkpoint = readCheckpoint();
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(checkpoint)), 64 * 1024));
+        DataInputStream log = new DataInputStream(counter);
+        byte[] digest = new byte[FINGERPRINT_LENGTH];
+        long recordStart = 0;
+
+        try {
+            if (checkpoint == 0 && (log.readInt() != MAGIC || log.readInt() != VERSION)) {
+                throw new IOException("File '" + logFile.getAbsolutePath() + "' is not a version " + VERSION + " certificate inventory log.");
+            }
+
+            while (true) {
+                recordStart = checkpoint + counter.getCount();
+
+                int recordType = log.read();
+                if (recordType == -1) {
+                    break;
+                } else if (recordType == CERTIFICATE_RECORD) {
+                    log.readFully(digest);
+                    long notAfter = log.readLong();
+                    int length = log.readInt();
+                    long offset = checkpoint + counter.getCount();
+                    StreamUtils.skipFully(log, length);
+                    applyCertificate(HashUtil.toHexString(digest), new CertificateEntry(offset, length, notAfter));
+                } else if (recordType == OBSERVATION_RECORD) {
+                    String hostKey = log.readUTF();
+                    long observedAt = log.readLong();
+                    String[] fingerprints = new String[log.readShort()];
+                    for (int i = 0; i < fingerprints.length; i++) {
+                        log.readFully(digest);
+                        fingerprints[i] = HashUtil.toHexString(digest);
+                    }
+                    applyObservation(hostKey, observedAt, fingerprints);
+                } else {
+                    throw new IOException("Corrupt certificate inventory log '" + logFile.getAbsolutePath() + "'. Unknown record type at offset " + recordStart + ".");
+                }
+            }
+        } catch (EOFException e) {
+            if (recordStart == 0) {
+                throw new IOException("File '" + logFile.getAbsolutePath() + "' is not a certificate inventory log.", e);
+            }
+            // Record torn by a crash mid write.  Drop it.
+            channel.truncate(recordStart);
+        }
+
+        writePosition = recordStart;
+    }
+
+    /**
+     * Load the index checkpoint.
+     * @return The length of the log covered by the checkpoint, or 0 if there's no usable checkpoint.
+     */
+    private long readCheckpoint() {
+        if (!indexFile.isFile()) {
+            return 0;
+        }
+
+        DataInputStream index = null;
+        try {
+            index = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024));
+            if (index.readInt() != INDEX_MAGIC || index.readInt() != INDEX_VERSION) {
+                return 0;
+            }
+            long logLength = index.readLong();
+            if (logLength < HEADER_LENGTH || logLength > channel.size()) {
+                // Not a checkpoint of this log.
+                return 0;
+            }
+
+            byte[] digest = new byte[FINGERPRINT_LENGTH];
+            int certificateCount = index.readInt();
+            for (int i = 0; i < certificateCount; i++) {
+                index.readFully(digest);
+                long offset = index.readLong();
+                int length = index.readInt();
+                long notAfter = index.readLong();
+                applyCertificate(HashUtil.toHexString(digest), new CertificateEntry(offset, length, notAfter));
+            }
+            int hostCount = index.readInt();
+            for (int i = 0; i < hostCount; i++) {
+                String hostKey = index.readUTF();
+                long notAfter = index.readLong();
+                long changedAt = index.readLong();
+                String[] chain = new String[index.readShort()];
+                for (int ii = 0; ii < chain.length; ii++) {
+                    index.readFully(digest);
+                    chain[ii] = HashUtil.toHexString(digest);
+                }
+                applyHost(hostKey, new HostEntry(chain, notAfter, changedAt));
+            }
+            return logLength;
+        } catch (IOException e) {
+            // Unreadable checkpoint.  Replay the whole log.
+            certificates.clear();
+            hosts.clear();
+            certificatesByNotAfter.clear();
+            hostsByNotAfter.clear();
+            hostsByChange.clear();
+            return 0;
+        } finally {
+            StreamUtils.safeClose(index);
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        File tempFile = new File(indexFile.getParentFile(), INDEX_FILE_NAME + ".tmp");
+        DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+        try {
+            index.writeInt(INDEX_MAGIC);
+            index.writeInt(INDEX_VERSION);
+            index.writeLong(writePosition);
+            index.writeInt(certificates.size());
+            for (Map.Entry<String, CertificateEntry> certificate : certificates.entrySet()) {
+                CertificateEntry entry = certificate.getValue();
+                index.write(ByteUtils.fromHexString(certificate.getKey()));
+                index.writeLong(entry.offset);
+                index.writeInt(entry.length);
+                index.writeLong(entry.notAfter);
+            }
+            index.writeInt(hosts.size());
+            for (Map.Entry<String, HostEntry> host : hosts.entrySet()) {
+                HostEntry entry = host.getValue();
+                index.writeUTF(host.getKey());
+                index.writeLong(entry.notAfter);
+                index.writeLong(entry.changedAt);
+                index.writeShort(entry.chain.length);
+                for (String fingerprint : entry.chain) {
+                    index.write(ByteUtils.fromHexString(fingerprint));
+                }
+            }
+        } finally {
+            index.close();
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String toHostKey(String host, int port) {
+        return host.toLowerCase() + ":" + port;
+    }
+
+    private static NavigableMap<Long, Set<String>> range(TreeMap<Long, Set<String>> index, long from, long to) {
+        if (from >= to) {
+            return new TreeMap<Long, Set<String>>();
+        }
+        return index.subMap(from, true, to, false);
+    }
+
+    private static List<String> flatten(NavigableMap<Long, Set<String>> range) {
+        List<String> values = new ArrayList<String>();
+        for (Collection<String> keys : range.values()) {
+            values.addAll(keys);
+        }
+        return values;
+    }
+
+    private static void add(TreeMap<Long, Set<String>> index, long key, String value) {
+        Set<String> values = index.get(key);
+        if (values == null) {
+            values = new HashSet<String>(2);
+            index.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private static void remove(TreeMap<Long, Set<String>> index, long key, String value) {
+        Set<String> values = index.get(key);
+        if (values != null && values.remove(value) && values.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static final class CertificateEntry {
+
+        private final long offset;
+        private final int length;
+        private final long notAfter;
+
+        private CertificateEntry(long offset, int length, long notAfter) {
+            this.offset = offset;
+            this.length = length;
+            this.notAfter = notAfter;
+        }
+    }
+
+    private static final class HostEntry {
+
+        private final String[] chain;
+        private final long notAfter;
+        private final long changedAt;
+
+        private HostEntry(String[] chain, long notAfter, long changedAt) {
+            this.chain = chain;
+            this.notAfter = notAfter;
+            this.changedAt = changedAt;
+        }
+    }
+}
@@ -6,12 +6,21 @@
 
 package org.tfennelly.httpanalyse.common.security;
 
+import org.tfennelly.httpanalyse.common.codec.HexCodec;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 /**
  * Hash Utilities.
+ * <p/>
+ * MD5, SHA-1 and SHA-256 {@link MessageDigest MessageDigests} are created once per thread and reused, so
+ * hashing doesn't pay for a provider lookup (and digest allocation) on every call.
  *
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
  */
@@ -19,23 +28,123 @@ public class HashUtil {
 
     public static final Charset UTF8 = Charset.forName("UTF-8");
 
+    public static final String MD5 = "MD5";
+    public static final String SHA1 = "SHA-1";
+    public static final String SHA256 = "SHA-256";
+
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<MessageDigest> MD5_DIGEST = newDigestThreadLocal(MD5);
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST = newDigestThreadLocal(SHA1);
+    private static final ThreadLocal<MessageDigest> SHA256_DIGEST = newDigestThreadLocal(SHA256);
+    private static final ThreadLocal<byte[]> STREAM_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[STREAM_BUFFER_SIZE];
+        }
+    };
+
     private HashUtil() {
     }
 
-    public static byte[] toMD5Bytes(String string) {
-        return toMD5Bytes(string.getBytes(UTF8));
-    }
+    /**
+     * Get a reset {@link MessageDigest} for the supplied algorithm.
+     * <p/>
+     * MD5, SHA-1 and SHA-256 digests are reused by the calling thread, so the digest must be completed before
+     * the next call to a {@link HashUtil} digest method on the same thread, and must not be shared with other
+     * threads.  Other algorithms get a new instance.
+     *
+     * @param algorithm The digest algorithm e.g. {@link #SHA256}.
+     * @return The digest.
+     */
+    public static MessageDigest getMessageDigest(String algorithm) {
+        AssertArgument.isNotNullAndNotEmpty(algorithm, "algorithm");
 
-    public static byte[] toMD5Bytes(byte[] data) {
         MessageDigest messageDigest;
+        if (algorithm.equals(SHA256)) {
+            messageDigest = SHA256_DIGEST.get();
+        } else if (algorithm.equals(SHA1)) {
+            messageDigest = SHA1_DIGEST.get();
+        } else if (algorithm.equals(MD5)) {
+            messageDigest = MD5_DIGEST.get();
+        } else {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Invalid 'algorithm' value '" + algorithm + "'. Unsupported digest algorithm.", e);
+            }
+        }
+
+        // Left mid digest if a previous update threw.
+        messageDigest.reset();
+
+        return messageDigest;
+    }
+
+    public static byte[] digest(String algorithm, byte[] data) {
+        AssertArgument.isNotNull(data, "data");
+        return getMessageDigest(algorithm).digest(data);
+    }
+
+    /**
+     * Digest the remaining bytes of the supplied buffer.
+     * @param algorithm The digest algorithm.
+     * @param data The data.  Its position is advanced to its limit.
+     * @return The digest.
+     */
+    public static byte[] digest(String algorithm, ByteBuffer data) {
+        AssertArgument.isNotNull(data, "data");
+
+        MessageDigest messageDigest = getMessageDigest(algorithm);
+        messageDigest.update(data);
+
+        return messageDigest.digest();
+    }
+
+    /**
+     * Digest the supplied stream, up to the end of the stream.
+     * @param algorithm The digest algorithm.
+     * @param stream The stream.  Not closed.
+     * @return The digest.
+     * @throws IOException Error reading the stream.
+     */
+    public static byte[] digest(String algorithm, InputStream stream) throws IOException {
+        MessageDigest messageDigest = getMessageDigest(algorithm);
+        update(messageDigest, stream);
+        return messageDigest.digest();
+    }
+
+    /**
+     * Update the supplied digest with the supplied stream, up to the end of the stream.
+     * <p/>
+     * Use to digest a stream incrementally, along with other data.
+     * @param messageDigest The digest.
+     * @param stream The stream.  Not closed.
+     * @return The number of bytes read from the stream.
+     * @throws IOException Error reading the stream.
+     */
+    public static long update(MessageDigest messageDigest, InputStream stream) throws IOException {
+        AssertArgument.isNotNull(messageDigest, "messageDigest");
+        AssertArgument.isNotNull(stream, "stream");
 
-        try {
-            messageDigest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException("Unexpected error creating MD5 MessageDigest instance.", e);
+        byte[] buffer = STREAM_BUFFER.get();
+        long total = 0;
+        int read;
+
+        while ((read = stream.read(buffer)) != -1) {
+            messageDigest.update(buffer, 0, read);
+            total += read;
         }
 
-        return messageDigest.digest(data);
+        return total;
+    }
+
+    public static byte[] toMD5Bytes(String string) {
+        return toMD5Bytes(string.getBytes(UTF8));
+    }
+
+    public static byte[] toMD5Bytes(byte[] data) {
+        return digest(MD5, data);
     }
 
     public static String toMD5String(String string) {
@@ -48,13 +157,61 @@ public class HashUtil {
         return toHexString(digestedPWBytes);
     }
 
-    private static String toHexString(byte[] bytes) {
-        StringBuffer toStringBuffer = new StringBuffer();
+    public static byte[] toSHA1Bytes(byte[] data) {
+        return digest(SHA1, data);
+    }
 
-        for (int i = 0; i < bytes.length; ++i) {
-            toStringBuffer.append(Integer.toHexString((bytes[i] & 0xFF) | 0x100).substring(1, 3));
-        }
+    public static String toSHA1String(byte[] data) {
+        return toHexString(toSHA1Bytes(data));
+    }
+
+    public static byte[] toSHA256Bytes(byte[] data) {
+        return digest(SHA256, data);
+    }
+
+    public static String toSHA256String(byte[] data) {
+        return toHexString(toSHA256Bytes(data));
+    }
+
+    /**
+     * Encode the supplied bytes as lowercase hex into the supplied buffer.
+     * @param bytes The bytes.
+     * @param offset The offset of the first byte to encode.
+     * @param length The number of bytes to encode.
+     * @param out The output buffer.  Must have room for {@code length * 2} chars from {@code outOffset}.
+     * @param outOffset The offset in the output buffer to start writing at.
+     * @return The number of chars written.
+     * @see HexCodec
+     */
+    public static int toHex(byte[] bytes, int offset, int length, char[] out, int outOffset) {
+        return HexCodec.encode(bytes, offset, length, out, outOffset);
+    }
+
+    /**
+     * Append the supplied bytes to the supplied builder as lowercase hex.
+     * @param builder The builder.
+     * @param bytes The bytes.
+     * @return The builder.
+     */
+    public static StringBuilder appendHex(StringBuilder builder, byte[] bytes) {
+        AssertArgument.isNotNull(bytes, "bytes");
+        return HexCodec.encode(bytes, 0, bytes.length, builder);
+    }
+
+    static String toHexString(byte[] bytes) {
+        return HexCodec.encode(bytes);
+    }
 
-        return toStringBuffer.toString();
+    private static ThreadLocal<MessageDigest> newDigestThreadLocal(final String algorithm) {
+        return new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("Unexpected error creating " + algorithm + " MessageDigest instance.", e);
+                }
+            }
+        };
     }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.security;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.security.GeneralSecurityException;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable set of pinned certificates and SPKI (Subject Public Key Info) SHA-256 hashes.
+ * <p/>
+ * Pins are hash indexed at construction time, so a lookup is a single hash set probe regardless of the
+ * number of pins.  Certificate lookups use the certificate's own (cached) hash code and encoding, so
+ * nothing is re-encoded or digested.  SPKI lookups digest a certificate's public key once, and cache the digest
+ * (LRU, bounded).  The PKIX validator used for pinned CA keys is created once per pin set, and the validation
+ * parameters once per trust anchor (LRU, bounded).
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class PinSet {
+
+    private static final String SHA256_PREFIX = "sha256/";
+    private static final int MAX_CACHED_SPKI_HASHES = 256;
+    private static final int MAX_CACHED_ANCHORS = 16;
+
+    private final Set<X509Certificate> certificates;
+    private final Set<DigestKey> spkiHashes;
+    private final String id;
+    private final Map<X509Certificate, DigestKey> spkiHashCache = new LinkedHashMap<X509Certificate, DigestKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<X509Certificate, DigestKey> eldest) {
+            return size() > MAX_CACHED_SPKI_HASHES;
+        }
+    };
+    private final Map<X509Certificate, PKIXParameters> anchorParameters = new LinkedHashMap<X509Certificate, PKIXParameters>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<X509Certificate, PKIXParameters> eldest) {
+            return size() > MAX_CACHED_ANCHORS;
+        }
+    };
+    // Neither is thread safe.  Created on first use and guarded by the anchorParameters lock.
+    private CertificateFactory certificateFactory;
+    private CertPathValidator certPathValidator;
+
+    /**
+     * Create a pin set of certificates only.
+     * @param certificates The pinned certificates.
+     */
+    public PinSet(Collection<X509Certificate> certificates) {
+        this(certificates, Collections.<String>emptySet());
+    }
+
+    /**
+     * Constructor.
+     * @param certificates The pinned certificates.
+     * @param spkiPins The pinned SPKI SHA-256 hashes, base64 encoded, optionally prefixed with "sha256/"
+     * (the HPKP pin format).
+     */
+    public PinSet(Collection<X509Certificate> certificates, Collection<String> spkiPins) {
+        AssertArgument.isNotNull(certificates, "certificates");
+        AssertArgument.isNotNull(spkiPins, "spkiPins");
+
+        this.certificates = Collections.unmodifiableSet(new HashSet<X509Certificate>(certificates));
+        this.spkiHashes = new HashSet<DigestKey>(spkiPins.size() * 2);
+        for (String spkiPin : spkiPins) {
+            byte[] hash;
+            try {
+                hash = Base64.getDecoder().decode(spkiPin.startsWith(SHA256_PREFIX) ? spkiPin.substring(SHA256_PREFIX.length()) : spkiPin);
+            } catch (IllegalArgumentException e) {
+                hash = null;
+            }
+            if (hash == null || hash.length != 32) {
+                throw new IllegalArgumentException("Invalid SPKI pin '" + spkiPin + "'. Must be a base64 encoded SHA-256 hash.");
+            }
+            spkiHashes.add(new DigestKey(hash));
+        }
+        this.id = createId();
+    }
+
+    /**
+     * Get the SPKI pin for the supplied certificate's public key.
+     * @param certificate The certificate.
+     * @return The pin, in the "sha256/&lt;base64&gt;" format.
+     */
+    public static String toSpkiPin(X509Certificate certificate) {
+        return SHA256_PREFIX + Base64.getEncoder().encodeToString(spkiHash(certificate));
+    }
+
+    /**
+     * Is the supplied certificate pinned, either directly or by its public key.
+     * @param certificate The certificate.
+     * @return True if the certificate is pinned, otherwise false.
+     */
+    public boolean contains(X509Certificate certificate) {
+        if (certificates.contains(certificate)) {
+            return true;
+        }
+        return (!spkiHashes.isEmpty() && spkiHashes.contains(getSpkiHash(certificate)));
+    }
+
+    /**
+     * Is the supplied chain trusted by this pin set.
+     * <p/>
+     * The chain is trusted if its leaf certificate is pinned, or if the public key of a certificate in
+     * the chain is pinned (allowing an issuing CA key to be pinned) and the path from the leaf up to that
+     * certificate validates (PKIX, without revocation checking) with the pinned certificate as its trust
+     * anchor.  A pinned key anywhere in the chain is not enough on its own... anyone can append a pinned
+     * CA certificate to a chain.
+     * @param chain The certificate chain.
+     * @return True if the chain is trusted, otherwise false.
+     */
+    public boolean trusts(X509Certificate[] chain) {
+        if (chain == null || chain.length == 0) {
+            return false;
+        }
+        if (certificates.contains(chain[0])) {
+            return true;
+        }
+        if (!spkiHashes.isEmpty()) {
+            for (int i = 0; i < chain.length; i++) {
+                if (spkiHashes.contains(getSpkiHash(chain[i])) && isValidPath(chain, i)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public Set<X509Certificate> getCertificates() {
+        return certificates;
+    }
+
+    public int size() {
+        return certificates.size() + spkiHashes.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Get an identifier for the pin set, derived from its content (order independent).
+     * @return The pin set identifier.
+     */
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return (other instanceof PinSet && id.equals(((PinSet) other).id));
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    private String createId() {
+        List<String> pins = new ArrayList<String>(size());
+
+        for (X509Certificate certificate : certificates) {
+            try {
+                pins.add(X509CertUtil.getSHA256Fingerprint(certificate));
+            } catch (CertificateEncodingException e) {
+                throw new IllegalArgumentException("Unable to encode pinned certificate '" + certificate.getSubjectX500Principal() + "'.", e);
+            }
+        }
+        for (DigestKey spkiHash : spkiHashes) {
+            pins.add(SHA256_PREFIX + HashUtil.toHexString(spkiHash.digest));
+        }
+        Collections.sort(pins);
+
+        StringBuilder idBuilder = new StringBuilder(pins.size() * 72);
+        for (String pin : pins) {
+            idBuilder.append(pin).append(',');
+        }
+
+        return idBuilder.toString();
+    }
+
+    /**
+     * Validate the path from the leaf up to (but not including) the certificate at the anchor index, with
+     * that certificate as the trust anchor.
+     */
+    private boolean isValidPath(X509Certificate[] chain, int anchorIndex) {
+        if (anchorIndex == 0) {
+            // The leaf key itself is pinned... the peer proved it holds the private key in the handshake.
+            return true;
+        }
+
+        List<X509Certificate> path = Arrays.asList(chain).subList(0, anchorIndex);
+        X509Certificate anchor = chain[anchorIndex];
+        try {
+            synchronized (anchorParameters) {
+                if (certPathValidator == null) {
+                    certificateFactory = CertificateFactory.getInstance("X.509");
+                    certPathValidator = CertPathValidator.getInstance("PKIX");
+                }
+
+                PKIXParameters parameters = anchorParameters.get(anchor);
+                if (parameters == null) {
+                    parameters = new PKIXParameters(Collections.singleton(new TrustAnchor(anchor, null)));
+                    parameters.setRevocationEnabled(false);
+                    anchorParameters.put(anchor, parameters);
+                }
+                certPathValidator.validate(certificateFactory.generateCertPath(path), parameters);
+            }
+
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private DigestKey getSpkiHash(X509Certificate certificate) {
+        DigestKey spkiHash;
+        synchronized (spkiHashCache) {
+            spkiHash = spkiHashCache.get(certificate);
+        }
+        if (spkiHash == null) {
+            // Digested outside the lock.  A concurrent miss on the same certificate just digests it twice.
+            spkiHash = new DigestKey(spkiHash(certificate));
+            synchronized (spkiHashCache) {
+                spkiHashCache.put(certificate, spkiHash);
+            }
+        }
+        return spkiHash;
+    }
+
+    private static byte[] spkiHash(X509Certificate certificate) {
+        return HashUtil.digest(HashUtil.SHA256, certificate.getPublicKey().getEncoded());
+    }
+
+    private static final class DigestKey {
+
+        private final byte[] digest;
+        private final int hashCode;
+
+        private DigestKey(byte[] digest) {
+            this.digest = digest;
+            this.hashCode = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof DigestKey && Arrays.equals(digest, ((DigestKey) other).digest));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
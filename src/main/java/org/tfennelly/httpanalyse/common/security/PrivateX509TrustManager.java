@@ -3,35 +3,50 @@
  *
  * All rights reserved.
  */
-
 package org.tfennelly.httpanalyse.common.security;
 
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
 import javax.net.ssl.X509TrustManager;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
 
 /**
- *
+ * Trust manager that trusts a {@link PinSet} of privately trusted certificates and SPKI hashes.
+ * <p/>
+ * A chain is trusted if its leaf certificate is pinned, or the public key of a certificate in the
+ * chain is pinned and the path from the leaf to that certificate validates.
+ * See {@link PinSet#trusts(X509Certificate[])}.
  */
 public class PrivateX509TrustManager implements X509TrustManager {
 
-    private X509Certificate cerverCert;
+    private final PinSet pinSet;
 
     public PrivateX509TrustManager(X509Certificate trustedCert) {
-        this.cerverCert = trustedCert;
+        this(new PinSet(Collections.singleton(trustedCert)));
+    }
+
+    public PrivateX509TrustManager(PinSet pinSet) {
+        AssertArgument.isNotNull(pinSet, "pinSet");
+        this.pinSet = pinSet;
+    }
+
+    public PinSet getPinSet() {
+        return pinSet;
     }
 
     @Override
     public void checkClientTrusted(X509Certificate[] x509Certificates, String s) throws CertificateException {
-        if (!x509Certificates[0].equals(cerverCert)) {
-            throw new CertificateException("Untrusted Client certificate: " + x509Certificates[0].getSubjectDN());
+        if (!pinSet.trusts(x509Certificates)) {
+            throw new CertificateException("Untrusted Client certificate: " + getSubject(x509Certificates));
         }
     }
 
     @Override
     public void checkServerTrusted(X509Certificate[] x509Certificates, String s) throws CertificateException {
-        if (!x509Certificates[0].equals(cerverCert)) {
-            throw new CertificateException("Untrusted Server certificate: " + x509Certificates[0].getSubjectDN());
+        if (!pinSet.trusts(x509Certificates)) {
+            throw new CertificateException("Untrusted Server certificate: " + getSubject(x509Certificates));
         }
     }
 
@@ -39,4 +54,8 @@ public class PrivateX509TrustManager implements X509TrustManager {
     public X509Certificate[] getAcceptedIssuers() {
         return new X509Certificate[0];
     }
+
+    private static Object getSubject(X509Certificate[] x509Certificates) {
+        return (x509Certificates != null && x509Certificates.length > 0 ? x509Certificates[0].getSubjectX500Principal() : "<empty chain>");
+    }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.security;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe registry of {@link SSLContext SSLContexts}, keyed by trust configuration.
+ * <p/>
+ * Building an {@link SSLContext} is expensive (trust manager initialisation, {@link SecureRandom} seeding).
+ * The registry builds each trust configuration (default trust, plus a {@link PinSet} of privately trusted
+ * certs and SPKI hashes, identified by its content) once and hands the same context, and so the same
+ * {@link javax.net.ssl.SSLSocketFactory} and TLS session cache, to every client with that configuration.
+ * The {@link TlsSessionCache} settings are part of the configuration, so clients with different session cache
+ * settings get contexts of their own, rather than overwriting each other's settings on a shared context.
+ * <p/>
+ * Entries that have not been requested for the idle timeout are evicted.  Clients already holding an
+ * evicted context can keep using it.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class SSLContextRegistry {
+
+    public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    private static final SSLContextRegistry DEFAULT_REGISTRY = new SSLContextRegistry(DEFAULT_IDLE_TIMEOUT);
+    private static final String DEFAULT_TRUST_KEY = "";
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final long idleTimeout;
+    private volatile long lastEvictionCheck = System.currentTimeMillis();
+
+    /**
+     * Constructor.
+     * @param idleTimeout Idle timeout in milliseconds, after which an unused entry is evicted.
+     */
+    public SSLContextRegistry(long idleTimeout) {
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("Invalid 'idleTimeout' value '" + idleTimeout + "'. Must be greater than zero.");
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Get the shared registry.
+     * @return The shared registry.
+     */
+    public static SSLContextRegistry getDefault() {
+        return DEFAULT_REGISTRY;
+    }
+
+    /**
+     * Get the {@link SSLContext} for the supplied trust configuration, building it if needed.
+     * @param trustedCerts Privately trusted certs, accepted as a fallback to the default trust managers.
+     * No certs means default trust only.
+     * @return The SSL context.
+     * @throws GeneralSecurityException Error building the SSL context.
+     */
+    public SSLContext getSSLContext(final X509Certificate... trustedCerts) throws GeneralSecurityException {
+        return getSSLContext(null, trustedCerts);
+    }
+
+    /**
+     * Get the {@link SSLContext} for the supplied trust and session cache configuration, building it if needed.
+     * @param sessionCache The TLS session cache settings applied to the context, or null for the JSSE defaults.
+     * The context is bound to the cache.
+     * @param trustedCerts Privately trusted certs, accepted as a fallback to the default trust managers.
+     * No certs means default trust only.
+     * @return The SSL context.
+     * @throws GeneralSecurityException Error building the SSL context.
+     */
+    public SSLContext getSSLContext(TlsSessionCache sessionCache, final X509Certificate... trustedCerts) throws GeneralSecurityException {
+        if (trustedCerts == null || trustedCerts.length == 0) {
+            return getSSLContext((PinSet) null, sessionCache);
+        }
+        return getSSLContext(new PinSet(Arrays.asList(trustedCerts)), sessionCache);
+    }
+
+    /**
+     * Get the {@link SSLContext} for the supplied trust configuration, building it if needed.
+     * @param pinSet Privately trusted certs and SPKI hashes, accepted as a fallback to the default trust
+     * managers.  Null or an empty pin set means default trust only.
+     * @return The SSL context.
+     * @throws GeneralSecurityException Error building the SSL context.
+     */
+    public SSLContext getSSLContext(PinSet pinSet) throws GeneralSecurityException {
+        return getSSLContext(pinSet, null);
+    }
+
+    /**
+     * Get the {@link SSLContext} for the supplied trust and session cache configuration, building it if needed.
+     * @param pinSet Privately trusted certs and SPKI hashes, accepted as a fallback to the default trust
+     * managers.  Null or an empty pin set means default trust only.
+     * @param sessionCache The TLS session cache settings applied to the context, or null for the JSSE defaults.
+     * The context is bound to the cache.
+     * @return The SSL context.
+     * @throws GeneralSecurityException Error building the SSL context.
+     */
+    public SSLContext getSSLContext(PinSet pinSet, TlsSessionCache sessionCache) throws GeneralSecurityException {
+        String key = (pinSet == null || pinSet.isEmpty() ? DEFAULT_TRUST_KEY : pinSet.getId());
+        if (sessionCache != null) {
+            key += "#" + sessionCache.getMaxSessions() + ":" + sessionCache.getTtlSeconds();
+        }
+        Entry entry = entries.get(key);
+
+        evictIdle(false);
+        if (entry == null) {
+            Entry newEntry = new Entry();
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+
+        SSLContext sslContext = entry.getSSLContext(pinSet, sessionCache);
+        if (sessionCache != null) {
+            sessionCache.bind(sslContext);
+        }
+
+        return sslContext;
+    }
+
+    /**
+     * Evict entries that have been idle for longer than the idle timeout.
+     */
+    public void evictIdle() {
+        evictIdle(true);
+    }
+
+    /**
+     * Get the number of trust configurations in the registry.
+     * @return The number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Clear the registry.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private void evictIdle(boolean force) {
+        long now = System.currentTimeMillis();
+
+        // Sweep at most every half idle timeout, so the check is cheap on the lookup path.
+        if (!force && now - lastEvictionCheck < idleTimeout / 2) {
+            return;
+        }
+        lastEvictionCheck = now;
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue().lastAccessed > idleTimeout) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static SSLContext buildSSLContext(PinSet pinSet, TlsSessionCache sessionCache) throws GeneralSecurityException {
+        TrustManager[] trustManagers;
+
+        if (pinSet == null || pinSet.isEmpty()) {
+            trustManagers = TrustManagerUtil.getDefaultTrustManagers();
+        } else {
+            trustManagers = TrustManagerUtil.getDefaultTrustManagersWithX509Fallback(new PrivateX509TrustManager(pinSet));
+        }
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagers, new SecureRandom());
+        if (sessionCache != null) {
+            // Before the context is published... no other client shares it yet.
+            sessionCache.configure(sslContext);
+        }
+
+        return sslContext;
+    }
+
+    private static class Entry {
+
+        private volatile SSLContext sslContext;
+        private volatile long lastAccessed = System.currentTimeMillis();
+
+        private SSLContext getSSLContext(PinSet pinSet, TlsSessionCache sessionCache) throws GeneralSecurityException {
+            lastAccessed = System.currentTimeMillis();
+
+            SSLContext context = sslContext;
+            if (context == null) {
+                // Only one thread builds each configuration, but other configurations aren't blocked.
+                synchronized (this) {
+                    context = sslContext;
+                    if (context == null) {
+                        context = buildSSLContext(pinSet, sessionCache);
+                        sslContext = context;
+                    }
+                }
+            }
+
+            return context;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.security;
+
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Streaming AES-GCM encryption over channels, for encrypting large payloads (e.g. captured response bodies) at
+ * rest without ever holding them in memory.
+ * <p/>
+ * A single GCM operation can't be decrypted incrementally (the JDK buffers the whole ciphertext until the tag is
+ * verified), so the plaintext is split into fixed size chunks, each encrypted and authenticated on its own.
+ * Each stream starts with a header holding a random salt, from which a stream key is derived from the master key,
+ * so nonces never repeat across streams.  Each chunk's nonce holds the chunk index and a final chunk flag, so
+ * chunks can't be reordered, dropped or the stream truncated without decryption failing.
+ * <p/>
+ * Stream layout: header (magic, version, chunk size, salt), then chunks of {@code chunkSize} ciphertext bytes
+ * plus a 16 byte tag.  The final chunk may be shorter (or empty).
+ * <p/>
+ * Instances are thread safe.  {@link Cipher} and {@link Mac} instances are reused per thread.  Each channel is
+ * for use by one thread at a time.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class StreamingAesGcm {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAGIC = 0x48414753;
+    private static final byte VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int HEADER_LENGTH = 4 + 1 + 4 + SALT_LENGTH;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final byte[] KEY_INFO = "httpanalyse-aes-gcm-stream".getBytes(HashUtil.UTF8);
+
+    private static final ThreadLocal<Cipher> GCM_CIPHER = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unexpected Exception creating AES/GCM Cipher.", e);
+            }
+        }
+    };
+    private static final ThreadLocal<Mac> HMAC = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance("HmacSHA256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Unexpected Exception creating HmacSHA256 Mac.", e);
+            }
+        }
+    };
+
+    private final SecretKeySpec masterKey;
+    private final int keyLength;
+    private final int chunkSize;
+
+    public StreamingAesGcm(byte[] key) {
+        this(key, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param key The AES key (16, 24 or 32 bytes) e.g. from {@link AESUtils#generateKey(AESUtils.KEY_SIZE)}.
+     * @param chunkSize The plaintext chunk size used when encrypting.  Decryption uses the chunk size recorded in
+     * the stream header.
+     */
+    public StreamingAesGcm(byte[] key, int chunkSize) {
+        AssertArgument.isNotNull(key, "key");
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("Invalid 'key' length '" + key.length + "'. Must be 16, 24 or 32 bytes.");
+        }
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid 'chunkSize' value '" + chunkSize + "'. Must be between 1 and " + MAX_CHUNK_SIZE + ".");
+        }
+        this.masterKey = new SecretKeySpec(key, "HmacSHA256");
+        this.keyLength = key.length;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Get the length of the encrypted stream for the supplied plaintext length.
+     * @param plaintextLength The plaintext length.
+     * @return The encrypted length, incl. header and tags.
+     */
+    public long getEncryptedLength(long plaintextLength) {
+        long chunks = Math.max(1, (plaintextLength + chunkSize - 1) / chunkSize);
+        return HEADER_LENGTH + plaintextLength + chunks * TAG_LENGTH;
+    }
+
+    /**
+     * Create a channel that encrypts everything written to it into the supplied channel.
+     * <p/>
+     * The channel must be closed to write the final chunk.  Closing it does not close the supplied channel.
+     * @param out The ciphertext channel.
+     * @return The encrypting channel.
+     * @throws IOException Error writing the stream header.
+     */
+    public WritableByteChannel newEncryptingChannel(WritableByteChannel out) throws IOException {
+        AssertArgument.isNotNull(out, "out");
+        return new EncryptingChannel(out);
+    }
+
+    /**
+     * Create a channel that decrypts the supplied channel.
+     * <p/>
+     * Reads fail with an {@link IOException} if the ciphertext fails authentication or is truncated.  Plaintext
+     * is only returned once the chunk it's in has been authenticated.  Once a read has failed, every later read
+     * fails too.
+     * @param in The ciphertext channel.
+     * @return The decrypting channel.
+     */
+    public ReadableByteChannel newDecryptingChannel(ReadableByteChannel in) {
+        AssertArgument.isNotNull(in, "in");
+        return new DecryptingChannel(in);
+    }
+
+    /**
+     * Encrypt the supplied channel into the other.
+     * @param in The plaintext channel, read to the end.  Not closed.
+     * @param out The ciphertext channel.  Not closed.
+     * @return The number of plaintext bytes encrypted.
+     * @throws IOException Error reading or writing.
+     */
+    public long encrypt(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        return copy(in, newEncryptingChannel(out));
+    }
+
+    /**
+     * Decrypt the supplied channel into the other.
+     * @param in The ciphertext channel, read to the end.  Not closed.
+     * @param out The plaintext channel.  Not closed.
+     * @return The number of plaintext bytes decrypted.
+     * @throws IOException Error reading or writing, or the ciphertext failed authentication.
+     */
+    public long decrypt(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        ReadableByteChannel decrypting = newDecryptingChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        long total = 0;
+
+        while (decrypting.read(buffer) != -1) {
+            buffer.flip();
+            total += buffer.remaining();
+            writeFully(out, buffer);
+            buffer.clear();
+        }
+
+        return total;
+    }
+
+    private long copy(ReadableByteChannel in, WritableByteChannel encrypting) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        long total = 0;
+
+        try {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                total += buffer.remaining();
+                encrypting.write(buffer);
+                buffer.clear();
+            }
+        } finally {
+            encrypting.close();
+        }
+
+        return total;
+    }
+
+    private SecretKeySpec deriveStreamKey(byte[] salt) throws IOException {
+        Mac mac = HMAC.get();
+
+        try {
+            mac.init(masterKey);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to derive AES-GCM stream key.", e);
+        }
+        mac.update(salt);
+        mac.update(KEY_INFO);
+
+        return new SecretKeySpec(Arrays.copyOf(mac.doFinal(), keyLength), "AES");
+    }
+
+    /**
+     * Encrypt or decrypt a chunk, from {@code in} (position to limit) into {@code out}.
+     */
+    private static void processChunk(int mode, SecretKeySpec streamKey, byte[] header, long index, boolean last, ByteBuffer in, ByteBuffer out) throws IOException {
+        if (index > 0xFFFFFFFFL) {
+            throw new IOException("AES-GCM stream too long. Max 2^32 chunks.");
+        }
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        nonce[7] = (byte) (index >>> 24);
+        nonce[8] = (byte) (index >>> 16);
+        nonce[9] = (byte) (index >>> 8);
+        nonce[10] = (byte) index;
+        nonce[11] = (byte) (last ? 1 : 0);
+
+        Cipher cipher = GCM_CIPHER.get();
+        try {
+            cipher.init(mode, streamKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(header);
+            cipher.doFinal(in, out);
+        } catch (GeneralSecurityException e) {
+            if (mode == Cipher.DECRYPT_MODE) {
+                throw new IOException("AES-GCM stream failed authentication at chunk " + index + (last ? " (final chunk)" : "") + ". Corrupt, tampered with or truncated.", e);
+            }
+            throw new IOException("Failed to encrypt AES-GCM stream chunk " + index + ".", e);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private final class EncryptingChannel implements WritableByteChannel {
+
+        private final WritableByteChannel out;
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private final SecretKeySpec streamKey;
+        private final ByteBuffer plaintext = ByteBuffer.allocate(chunkSize);
+        private final ByteBuffer ciphertext = ByteBuffer.allocate(chunkSize + TAG_LENGTH);
+        private long chunkIndex;
+        private boolean open = true;
+
+        private EncryptingChannel(WritableByteChannel out) throws IOException {
+            byte[] salt = new byte[SALT_LENGTH];
+            AESUtils.getSecureRandom().nextBytes(salt);
+
+            ByteBuffer.wrap(header).putInt(MAGIC).put(VERSION).putInt(chunkSize).put(salt);
+            this.out = out;
+            this.streamKey = deriveStreamKey(salt);
+            writeFully(out, ByteBuffer.wrap(header));
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+
+            int written = src.remaining();
+            while (src.hasRemaining()) {
+                if (!plaintext.hasRemaining()) {
+                    // More to come, so the buffered chunk isn't the last.
+                    writeChunk(false);
+                }
+                int length = Math.min(src.remaining(), plaintext.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + length);
+                plaintext.put(slice);
+                src.position(src.position() + length);
+            }
+
+            return written;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() throws IOException {
+            if (open) {
+                open = false;
+                writeChunk(true);
+            }
+        }
+
+        private void writeChunk(boolean last) throws IOException {
+            plaintext.flip();
+            ciphertext.clear();
+            processChunk(Cipher.ENCRYPT_MODE, streamKey, header, chunkIndex++, last, plaintext, ciphertext);
+            ciphertext.flip();
+            writeFully(out, ciphertext);
+            plaintext.clear();
+        }
+    }
+
+    private final class DecryptingChannel implements ReadableByteChannel {
+
+        private final ReadableByteChannel in;
+        private byte[] header;
+        private SecretKeySpec streamKey;
+        private ByteBuffer ciphertext;
+        private ByteBuffer plaintext;
+        private long chunkIndex;
+        private boolean lastChunkRead;
+        private IOException failure;
+        private boolean open = true;
+
+        private DecryptingChannel(ReadableByteChannel in) {
+            this.in = in;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (failure != null) {
+                // Don't let a retry pick up where the failure left off... the stream position is unknown.
+                throw new IOException(failure.getMessage(), failure);
+            }
+
+            try {
+                if (header == null) {
+                    readHeader();
+                }
+                while (!plaintext.hasRemaining()) {
+                    if (lastChunkRead) {
+                        return -1;
+                    }
+                    readChunk();
+                }
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+
+            int length = Math.min(dst.remaining(), plaintext.remaining());
+            ByteBuffer slice = plaintext.duplicate();
+            slice.limit(slice.position() + length);
+            dst.put(slice);
+            plaintext.position(plaintext.position() + length);
+
+            return length;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() {
+            open = false;
+        }
+
+        private void readHeader() throws IOException {
+            ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_LENGTH);
+            if (fill(headerBuffer) < HEADER_LENGTH) {
+                throw new IOException("Invalid AES-GCM stream. Truncated header.");
+            }
+            headerBuffer.flip();
+            if (headerBuffer.getInt() != MAGIC || headerBuffer.get() != VERSION) {
+                throw new IOException("Invalid AES-GCM stream. Unknown header.");
+            }
+            int streamChunkSize = headerBuffer.getInt();
+            if (streamChunkSize < 1 || streamChunkSize > MAX_CHUNK_SIZE) {
+                throw new IOException("Invalid AES-GCM stream. Invalid chunk size '" + streamChunkSize + "'.");
+            }
+            byte[] salt = new byte[SALT_LENGTH];
+            headerBuffer.get(salt);
+
+            streamKey = deriveStreamKey(salt);
+            // A byte of lookahead, to tell a full final chunk from a full chunk that's followed by more.
+            ciphertext = ByteBuffer.allocate(streamChunkSize + TAG_LENGTH + 1);
+            plaintext = ByteBuffer.allocate(streamChunkSize);
+            plaintext.flip();
+            header = headerBuffer.array();
+        }
+
+        private void readChunk() throws IOException {
+            fill(ciphertext);
+            ciphertext.flip();
+
+            int chunkLength = ciphertext.capacity() - 1;
+            boolean last = (ciphertext.remaining() <= chunkLength);
+            if (last) {
+                chunkLength = ciphertext.remaining();
+            }
+            if (chunkLength < TAG_LENGTH) {
+                throw new IOException("AES-GCM stream failed authentication at chunk " + chunkIndex + ". Truncated.");
+            }
+
+            ByteBuffer chunk = ciphertext.duplicate();
+            chunk.limit(chunkLength);
+            plaintext.clear();
+            try {
+                processChunk(Cipher.DECRYPT_MODE, streamKey, header, chunkIndex++, last, chunk, plaintext);
+            } catch (IOException e) {
+                // Nothing from a chunk that failed authentication is ever returned.
+                plaintext.limit(0);
+                throw e;
+            }
+            plaintext.flip();
+
+            ciphertext.position(chunkLength);
+            ciphertext.compact();
+            lastChunkRead = last;
+        }
+
+        /**
+         * Read until the buffer is full or end of stream.
+         */
+        private int fill(ByteBuffer buffer) throws IOException {
+            int total = 0;
+            while (buffer.hasRemaining()) {
+                int read = in.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                total += read;
+            }
+            return total;
+        }
+    }
+}
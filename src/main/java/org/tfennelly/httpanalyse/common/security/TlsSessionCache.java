@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.security;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Client side TLS session cache configuration.
+ * <p/>
+ * Sessions (TLS 1.2 session IDs and TLS 1.3 session tickets) are held by the JSSE client session context of
+ * each {@link SSLContext} bound to the cache, where they are looked up by peer host and port when a new
+ * connection is established to that host and port.  This class sizes and expires that store, and allows
+ * it to be inspected and invalidated per host and port.
+ * <p/>
+ * Note that sessions can only be resumed through the {@link SSLContext} that created them, so clients
+ * should keep using the same {@link SSLContext} for as long as their trust configuration is unchanged.
+ * Get contexts from {@link SSLContextRegistry#getSSLContext(TlsSessionCache, java.security.cert.X509Certificate...)},
+ * which builds a context per trust and session cache configuration.  Binding a context does not change its
+ * settings, because a shared context would change under every other client using it.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class TlsSessionCache {
+
+    public static final int DEFAULT_MAX_SESSIONS = 10000;
+    public static final int DEFAULT_TTL_SECONDS = 3600;
+
+    private final int maxSessions;
+    private final int ttlSeconds;
+    private final Set<SSLContext> contexts = Collections.newSetFromMap(new WeakHashMap<SSLContext, Boolean>());
+
+    public TlsSessionCache() {
+        this(DEFAULT_MAX_SESSIONS, DEFAULT_TTL_SECONDS);
+    }
+
+    /**
+     * Constructor.
+     * @param maxSessions Max number of sessions cached per {@link SSLContext} (0 means no limit).
+     * @param ttlSeconds Session time to live in seconds (0 means no limit).
+     */
+    public TlsSessionCache(int maxSessions, int ttlSeconds) {
+        if (maxSessions < 0) {
+            throw new IllegalArgumentException("Invalid 'maxSessions' value '" + maxSessions + "'. Cannot be negative.");
+        }
+        if (ttlSeconds < 0) {
+            throw new IllegalArgumentException("Invalid 'ttlSeconds' value '" + ttlSeconds + "'. Cannot be negative.");
+        }
+        this.maxSessions = maxSessions;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public int getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * Bind an {@link SSLContext} to this cache, so its sessions can be inspected and invalidated through the cache.
+     * <p/>
+     * The context's session cache size and TTL are left as they are.
+     * @param sslContext The SSL context.
+     * @return The SSL context.
+     */
+    public SSLContext bind(SSLContext sslContext) {
+        synchronized (contexts) {
+            contexts.add(sslContext);
+        }
+
+        return sslContext;
+    }
+
+    /**
+     * Apply the cache size and TTL to the client session context of a new {@link SSLContext}, before it is
+     * shared.
+     * @param sslContext The SSL context.
+     */
+    void configure(SSLContext sslContext) {
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+
+        sessionContext.setSessionCacheSize(maxSessions);
+        sessionContext.setSessionTimeout(ttlSeconds);
+    }
+
+    /**
+     * Is there a cached session for the supplied host and port.
+     * @param host The host.
+     * @param port The port.
+     * @return True if there is a resumable session for the host and port, otherwise false.
+     */
+    public boolean contains(String host, int port) {
+        for (SSLSessionContext sessionContext : getSessionContexts()) {
+            Enumeration<byte[]> ids = sessionContext.getIds();
+            while (ids.hasMoreElements()) {
+                SSLSession session = sessionContext.getSession(ids.nextElement());
+                if (matches(session, host, port) && session.isValid()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Invalidate all cached sessions for the supplied host and port, forcing a full handshake on the
+     * next connection.
+     * @param host The host.
+     * @param port The port.
+     * @return The number of sessions invalidated.
+     */
+    public int invalidate(String host, int port) {
+        int invalidated = 0;
+
+        for (SSLSessionContext sessionContext : getSessionContexts()) {
+            Enumeration<byte[]> ids = sessionContext.getIds();
+            while (ids.hasMoreElements()) {
+                SSLSession session = sessionContext.getSession(ids.nextElement());
+                if (matches(session, host, port)) {
+                    session.invalidate();
+                    invalidated++;
+                }
+            }
+        }
+
+        return invalidated;
+    }
+
+    /**
+     * Get the number of cached sessions, across all bound {@link SSLContext SSLContexts}.
+     * @return The number of cached sessions.
+     */
+    public int size() {
+        int size = 0;
+
+        for (SSLSessionContext sessionContext : getSessionContexts()) {
+            Enumeration<byte[]> ids = sessionContext.getIds();
+            while (ids.hasMoreElements()) {
+                ids.nextElement();
+                size++;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Was the supplied session resumed from the cache, rather than established by a full handshake.
+     * <p/>
+     * A resumed session keeps the creation time of the session it was resumed from.
+     * @param session The session.
+     * @param handshakeStartedAt The time ({@link System#currentTimeMillis()}) the handshake was started.
+     * @return True if the session was resumed, otherwise false.
+     */
+    public static boolean isResumed(SSLSession session, long handshakeStartedAt) {
+        return (session != null && session.getCreationTime() < handshakeStartedAt);
+    }
+
+    private List<SSLSessionContext> getSessionContexts() {
+        List<SSLSessionContext> sessionContexts = new ArrayList<SSLSessionContext>();
+
+        synchronized (contexts) {
+            for (SSLContext context : contexts) {
+                sessionContexts.add(context.getClientSessionContext());
+            }
+        }
+
+        return sessionContexts;
+    }
+
+    private static boolean matches(SSLSession session, String host, int port) {
+        return (session != null && host.equalsIgnoreCase(session.getPeerHost()) && session.getPeerPort() == port);
+    }
+}
@@ -19,16 +19,43 @@ import java.security.cert.X509Certificate;
  */
 public class TrustManagerUtil {
 
+    // Initialising the default factory loads the JDK cacerts, so only do it once.
+    private static volatile TrustManager[] defaultTrustManagers;
+
     private TrustManagerUtil() {
     }
 
     public static TrustManager[] getDefaultTrustManagers() throws GeneralSecurityException {
-        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        trustManagerFactory.init((KeyStore)null);
-        return trustManagerFactory.getTrustManagers();
+        TrustManager[] trustManagers = defaultTrustManagers;
+
+        if (trustManagers == null) {
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init((KeyStore)null);
+            trustManagers = trustManagerFactory.getTrustManagers();
+            defaultTrustManagers = trustManagers;
+        }
+
+        // Copy, so callers can't modify the cached array...
+        return trustManagers.clone();
     }
 
     public static TrustManager[] getDefaultTrustManagersWithX509Fallback(final X509TrustManager x509Fallback) throws GeneralSecurityException {
+        return getDefaultTrustManagersWithX509Fallback(x509Fallback, new TrustVerdictCache());
+    }
+
+    /**
+     * Get the default trust managers, with the default {@link X509TrustManager} wrapped to fall back to the supplied
+     * trust manager.
+     * <p/>
+     * Accepted chains are cached in the supplied verdict cache, so repeat handshakes with the same chain skip
+     * revalidation (and the exception thrown by the default trust manager for chains only the fallback accepts).
+     *
+     * @param x509Fallback The fallback trust manager.
+     * @param verdictCache The verdict cache.  Must only be shared by trust managers with the same fallback.
+     * @return The trust managers.
+     * @throws GeneralSecurityException Error getting the default trust managers.
+     */
+    public static TrustManager[] getDefaultTrustManagersWithX509Fallback(final X509TrustManager x509Fallback, final TrustVerdictCache verdictCache) throws GeneralSecurityException {
         TrustManager[] defaultTrustManagers = getDefaultTrustManagers();
         int defaultTrustManagerMatchIndex = -1;
 
@@ -52,18 +79,40 @@ public class TrustManagerUtil {
 
                 @Override
                 public void checkClientTrusted(X509Certificate[] x509Certificates, String s) throws CertificateException {
+                    TrustVerdictCache.ChainKey key = TrustVerdictCache.ChainKey.create(x509Certificates, s, false);
+                    if (key != null && verdictCache.get(key) != null) {
+                        return;
+                    }
+
+                    TrustVerdictCache.Verdict verdict;
                     try {
                         defaultX509TrustManager.checkClientTrusted(x509Certificates, s);
+                        verdict = TrustVerdictCache.Verdict.DEFAULT;
                     } catch (CertificateException e) {
                         x509Fallback.checkClientTrusted (x509Certificates, s);
+                        verdict = TrustVerdictCache.Verdict.FALLBACK;
+                    }
+                    if (key != null) {
+                        verdictCache.put(key, x509Certificates, verdict);
                     }
                 }
                 @Override
                 public void checkServerTrusted(X509Certificate[] x509Certificates, String s) throws CertificateException {
+                    TrustVerdictCache.ChainKey key = TrustVerdictCache.ChainKey.create(x509Certificates, s, true);
+                    if (key != null && verdictCache.get(key) != null) {
+                        return;
+                    }
+
+                    TrustVerdictCache.Verdict verdict;
                     try {
                         defaultX509TrustManager.checkServerTrusted(x509Certificates, s);
+                        verdict = TrustVerdictCache.Verdict.DEFAULT;
                     } catch (CertificateException e) {
                         x509Fallback.checkServerTrusted(x509Certificates, s);
+                        verdict = TrustVerdictCache.Verdict.FALLBACK;
+                    }
+                    if (key != null) {
+                        verdictCache.put(key, x509Certificates, verdict);
                     }
                 }
                 @Override
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.security;
+
+import java.security.MessageDigest;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, TTL based cache of certificate chain trust verdicts.
+ * <p/>
+ * Chains are keyed by a SHA-256 digest over the encoding of every cert in the chain, plus the auth type
+ * and the side (client/server) being checked.  Only accepted chains are cached, along with which trust
+ * manager accepted them, so a chain that fails is always fully revalidated.  An entry never outlives the
+ * validity period of any cert in its chain.
+ * <p/>
+ * A cache must only be shared by trust managers with the same trust configuration.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class TrustVerdictCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The trust manager that accepted a chain.
+     */
+    public enum Verdict {
+        /**
+         * Accepted by the default (PKIX) trust manager.
+         */
+        DEFAULT,
+        /**
+         * Accepted by the fallback (private) trust manager.
+         */
+        FALLBACK
+    }
+
+    private final int maxEntries;
+    private final long ttl;
+    private final LinkedHashMap<ChainKey, CachedVerdict> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public TrustVerdictCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+
+    /**
+     * Constructor.
+     * @param maxEntries Max number of cached chains.  The least recently used chain is evicted beyond this.
+     * @param ttl Time to live of a cached verdict, in milliseconds.
+     */
+    public TrustVerdictCache(final int maxEntries, long ttl) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid 'maxEntries' value '" + maxEntries + "'. Must be greater than zero.");
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Invalid 'ttl' value '" + ttl + "'. Must be greater than zero.");
+        }
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<ChainKey, CachedVerdict>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ChainKey, CachedVerdict> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Get the cached verdict for a chain.
+     * @param chain The cert chain.
+     * @param authType The auth type.
+     * @param server True if the chain is a server chain, false if a client chain.
+     * @return The verdict, or null if the chain has no (unexpired) cached verdict.
+     */
+    public Verdict get(X509Certificate[] chain, String authType, boolean server) {
+        ChainKey key = ChainKey.create(chain, authType, server);
+        if (key == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        return get(key);
+    }
+
+    /**
+     * Cache the verdict for an accepted chain.
+     * @param chain The cert chain.
+     * @param authType The auth type.
+     * @param server True if the chain is a server chain, false if a client chain.
+     * @param verdict The verdict.
+     */
+    public void put(X509Certificate[] chain, String authType, boolean server, Verdict verdict) {
+        ChainKey key = ChainKey.create(chain, authType, server);
+        if (key != null) {
+            put(key, chain, verdict);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    Verdict get(ChainKey key) {
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            CachedVerdict entry = entries.get(key);
+            if (entry != null) {
+                if (now < entry.expiresAt) {
+                    hits.incrementAndGet();
+                    return entry.verdict;
+                }
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+
+        return null;
+    }
+
+    void put(ChainKey key, X509Certificate[] chain, Verdict verdict) {
+        long expiresAt = System.currentTimeMillis() + ttl;
+
+        for (X509Certificate cert : chain) {
+            expiresAt = Math.min(expiresAt, cert.getNotAfter().getTime());
+        }
+        synchronized (this) {
+            entries.put(key, new CachedVerdict(verdict, expiresAt));
+        }
+    }
+
+    private static class CachedVerdict {
+
+        private final Verdict verdict;
+        private final long expiresAt;
+
+        private CachedVerdict(Verdict verdict, long expiresAt) {
+            this.verdict = verdict;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Chain cache key.
+     */
+    static final class ChainKey {
+
+        private final byte[] digest;
+        private final int hashCode;
+
+        private ChainKey(byte[] digest) {
+            this.digest = digest;
+            this.hashCode = Arrays.hashCode(digest);
+        }
+
+        /**
+         * Create a chain key.
+         * @return The key, or null if the chain can't be keyed (empty, or a cert can't be encoded).
+         */
+        static ChainKey create(X509Certificate[] chain, String authType, boolean server) {
+            if (chain == null || chain.length == 0) {
+                return null;
+            }
+
+            try {
+                MessageDigest messageDigest = HashUtil.getMessageDigest(HashUtil.SHA256);
+
+                messageDigest.update((byte) (server ? 1 : 0));
+                if (authType != null) {
+                    messageDigest.update(authType.getBytes(HashUtil.UTF8));
+                }
+                for (X509Certificate cert : chain) {
+                    messageDigest.update((byte) 0);
+                    messageDigest.update(cert.getEncoded());
+                }
+
+                return new ChainKey(messageDigest.digest());
+            } catch (CertificateEncodingException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof ChainKey && Arrays.equals(digest, ((ChainKey) other).digest));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -6,8 +6,10 @@
 
 package org.tfennelly.httpanalyse.common.security;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
@@ -17,12 +19,45 @@ import java.security.cert.X509Certificate;
  */
 public class X509CertUtil {
 
+    // CertificateFactory instances aren't guaranteed thread-safe, but are costly to look up per cert.
+    private static final ThreadLocal<CertificateFactory> CERTIFICATE_FACTORY = new ThreadLocal<CertificateFactory>() {
+        @Override
+        protected CertificateFactory initialValue() {
+            try {
+                return CertificateFactory.getInstance("X.509");
+            } catch (CertificateException e) {
+                throw new IllegalStateException("Unexpected error creating X.509 CertificateFactory instance.", e);
+            }
+        }
+    };
+
     public static X509Certificate loadCertificate(InputStream certStream) throws IOException, CertificateException {
         try {
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            return (X509Certificate) cf.generateCertificate(certStream);
+            return (X509Certificate) CERTIFICATE_FACTORY.get().generateCertificate(certStream);
         } finally {
             certStream.close();
         }
     }
+
+    /**
+     * Load a PEM or DER certificate bundle file.
+     * @param bundleFile The bundle file.
+     * @return The certificate bundle.
+     * @throws IOException Error reading the file.
+     * @throws CertificateException Error parsing a certificate in the bundle.
+     * @see CertificateBundle
+     */
+    public static CertificateBundle loadCertificateBundle(File bundleFile) throws IOException, CertificateException {
+        return CertificateBundle.load(bundleFile);
+    }
+
+    /**
+     * Get the SHA-256 fingerprint of the supplied certificate.
+     * @param cert The certificate.
+     * @return The fingerprint, as a lowercase hex string.
+     * @throws CertificateEncodingException Error encoding the certificate.
+     */
+    public static String getSHA256Fingerprint(X509Certificate cert) throws CertificateEncodingException {
+        return HashUtil.toHexString(HashUtil.digest(HashUtil.SHA256, cert.getEncoded()));
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.store;
+
+import org.tfennelly.httpanalyse.common.codec.HexCodec;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+
+import java.util.Arrays;
+
+/**
+ * Reference to a body in a {@link BodyStore}.
+ * <p/>
+ * A reference is just the body's SHA-256 and length, so equal bodies have equal references, in any store.
+ * References are equal if their SHA-256s are equal.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class BodyRef {
+
+    public static final int DIGEST_LENGTH = 32;
+
+    private final byte[] digest;
+    private final int length;
+
+    /**
+     * Constructor.
+     * @param digest The body SHA-256.
+     * @param length The body length.
+     */
+    public BodyRef(byte[] digest, int length) {
+        AssertArgument.isNotNull(digest, "digest");
+        if (digest.length != DIGEST_LENGTH) {
+            throw new IllegalArgumentException("Invalid 'digest' length '" + digest.length + "'. Must be a " + DIGEST_LENGTH + " byte SHA-256.");
+        }
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid 'length' value '" + length + "'. Must be zero or greater.");
+        }
+        this.digest = digest.clone();
+        this.length = length;
+    }
+
+    /**
+     * Create a reference from a hex SHA-256.
+     * @param sha256 The body SHA-256, as a hex string.
+     * @param length The body length.
+     * @return The reference.
+     */
+    public static BodyRef valueOf(String sha256, int length) {
+        AssertArgument.isNotNullAndNotEmpty(sha256, "sha256");
+        return new BodyRef(HexCodec.decode(sha256), length);
+    }
+
+    /**
+     * Get the body SHA-256.
+     * @return A copy of the body SHA-256.
+     */
+    public byte[] getDigest() {
+        return digest.clone();
+    }
+
+    /**
+     * Get the body SHA-256 as a lowercase hex string.
+     * @return The body SHA-256.
+     */
+    public String getSha256() {
+        return HexCodec.encode(digest);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    byte[] digest() {
+        return digest;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BodyRef)) {
+            return false;
+        }
+        BodyRef other = (BodyRef) o;
+        return Arrays.equals(digest, other.digest);
+    }
+
+    @Override
+    public int hashCode() {
+        // Already uniformly distributed.
+        return ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16) | ((digest[2] & 0xFF) << 8) | (digest[3] & 0xFF);
+    }
+
+    @Override
+    public String toString() {
+        return getSha256() + " (" + length + " bytes)";
+    }
+}
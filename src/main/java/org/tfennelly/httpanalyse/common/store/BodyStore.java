@@ -0,0 +1,701 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.store;
+
+import org.tfennelly.httpanalyse.common.security.HashUtil;
+import org.tfennelly.httpanalyse.common.util.AssertArgument;
+import org.tfennelly.httpanalyse.common.util.CountingInputStream;
+import org.tfennelly.httpanalyse.common.util.NamedThreadFactory;
+import org.tfennelly.httpanalyse.common.util.StreamUtils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Content addressed, deduplicating, reference counted body store.
+ * <p/>
+ * Bodies are keyed by their SHA-256 (see {@link BodyRef}), so a body that's put any number of times is stored once.
+ * Every {@link #put(byte[]) put} and {@link #retain(BodyRef) retain} adds a reference to the body and every
+ * {@link #release(BodyRef) release} drops one.  A body with no references is garbage and is no longer readable.
+ * <p/>
+ * The store is an append-only log in the store directory, in the same style as the
+ * {@link org.tfennelly.httpanalyse.common.security.CertificateInventory}: body records are appended when a body is
+ * first put, and reference records (a reference count delta) on every put, retain and release.  Opening a store
+ * replays the log into an in-memory index of the referenced bodies.  Bodies are not held in memory, they are read
+ * back from the log on demand.
+ * <p/>
+ * Garbage (unreferenced bodies and applied reference records) is reclaimed by {@link #compact() compaction}, which
+ * rewrites the referenced bodies (and one reference record per body) to a new log and atomically replaces the old
+ * log with it.  Compaction is scheduled automatically on release once the garbage exceeds both the
+ * {@link #setCompactionThreshold(double, long) threshold} ratio of the log and the minimum size, and runs on a
+ * background thread.  The bulk of the rewrite is done without holding the store lock, so puts, releases and reads
+ * only wait on its final step: copying the bodies put while it ran, and swapping the logs.
+ * <p/>
+ * Thread safe.  Reads run concurrently.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class BodyStore implements Closeable {
+
+    public static final String LOG_FILE_NAME = "bodies.log";
+    public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+    public static final long DEFAULT_MIN_COMPACTION_BYTES = 64 * 1024 * 1024;
+
+    private static final String COMPACT_FILE_NAME = LOG_FILE_NAME + ".compact";
+    private static final int MAGIC = 0x48414253;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final byte BODY_RECORD = 'B';
+    private static final byte REFERENCE_RECORD = 'R';
+    private static final int BODY_RECORD_HEADER_LENGTH = 1 + BodyRef.DIGEST_LENGTH + 4;
+    private static final int REFERENCE_RECORD_LENGTH = 1 + BodyRef.DIGEST_LENGTH + 4;
+
+    private final File directory;
+    private final File logFile;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<BodyRef, BodyEntry> bodies = new HashMap<BodyRef, BodyEntry>();
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(BODY_RECORD_HEADER_LENGTH + REFERENCE_RECORD_LENGTH);
+    // Held for the whole of a compaction, so only one runs at a time.  Taken before the store lock.
+    private final Object compactionLock = new Object();
+    // The thread is only started by the first scheduled compaction.
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new NamedThreadFactory("httpanalyse-body-compactor"));
+    private FileChannel channel;
+    private long writePosition;
+    private double compactionRatio = DEFAULT_COMPACTION_RATIO;
+    private long minCompactionBytes = DEFAULT_MIN_COMPACTION_BYTES;
+    private boolean compactionScheduled;
+    private boolean closed;
+
+    // Stats...
+    private long references;
+    private long storedBytes;
+    private long liveLogBytes;
+    private long puts;
+    private long dedupedPuts;
+    private long dedupedBytes;
+    private long compactions;
+
+    /**
+     * Open (or create) the store in the supplied directory.
+     * @param directory The store directory.
+     * @throws IOException Error opening or replaying the store log.
+     */
+    public BodyStore(File directory) throws IOException {
+        AssertArgument.isNotNull(directory, "directory");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create body store directory '" + directory.getAbsolutePath() + "'.");
+        }
+
+        this.directory = directory;
+        this.logFile = new File(directory, LOG_FILE_NAME);
+        // Left by a compaction that didn't complete.  The log it was replacing is intact.
+        Files.deleteIfExists(new File(directory, COMPACT_FILE_NAME).toPath());
+
+        this.channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                write(header);
+            } else {
+                replay();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Set when compaction runs automatically.
+     * @param ratio The ratio of garbage to log size above which the log is compacted (0.0 to 1.0).
+     * @param minBytes The minimum amount of garbage (in bytes) worth compacting.
+     */
+    public void setCompactionThreshold(double ratio, long minBytes) {
+        if (ratio <= 0.0 || ratio > 1.0) {
+            throw new IllegalArgumentException("Invalid 'ratio' value '" + ratio + "'. Must be greater than 0.0 and no greater than 1.0.");
+        }
+        if (minBytes < 0) {
+            throw new IllegalArgumentException("Invalid 'minBytes' value '" + minBytes + "'. Must be zero or greater.");
+        }
+        lock.writeLock().lock();
+        try {
+            this.compactionRatio = ratio;
+            this.minCompactionBytes = minBytes;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Put a body, adding a reference to it.
+     * <p/>
+     * The body is only written if it's not already in the store.
+     * @param body The body.
+     * @return The body reference.
+     * @throws IOException Error writing to the store log.
+     */
+    public BodyRef put(byte[] body) throws IOException {
+        AssertArgument.isNotNull(body, "body");
+
+        // Digest outside the lock.
+        BodyRef ref = new BodyRef(HashUtil.toSHA256Bytes(body), body.length);
+
+        lock.writeLock().lock();
+        try {
+            assertOpen();
+            BodyEntry entry = bodies.get(ref);
+            if (entry != null) {
+                appendReference(ref, 1);
+                entry.referenceCount++;
+                dedupedPuts++;
+                dedupedBytes += body.length;
+            } else {
+                entry = appendBody(ref, body);
+                bodies.put(ref, entry);
+                storedBytes += body.length;
+                liveLogBytes += BODY_RECORD_HEADER_LENGTH + body.length + REFERENCE_RECORD_LENGTH;
+            }
+            puts++;
+            references++;
+            return entry.ref;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a reference to a body.
+     * @param ref The body reference.
+     * @return True if the reference was added, false if the body is not in the store.
+     * @throws IOException Error writing to the store log.
+     */
+    public boolean retain(BodyRef ref) throws IOException {
+        AssertArgument.isNotNull(ref, "ref");
+
+        lock.writeLock().lock();
+        try {
+            assertOpen();
+            BodyEntry entry = bodies.get(ref);
+            if (entry == null) {
+                return false;
+            }
+            appendReference(ref, 1);
+            entry.referenceCount++;
+            references++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop a reference to a body.
+     * <p/>
+     * Dropping the last reference makes the body garbage, and may schedule a background {@link #compact() compaction}.
+     * @param ref The body reference.
+     * @return True if the reference was dropped, false if the body is not in the store.
+     * @throws IOException Error writing to the store log.
+     */
+    public boolean release(BodyRef ref) throws IOException {
+        AssertArgument.isNotNull(ref, "ref");
+
+        lock.writeLock().lock();
+        try {
+            assertOpen();
+            BodyEntry entry = bodies.get(ref);
+            if (entry == null) {
+                return false;
+            }
+            appendReference(ref, -1);
+            references--;
+            if (--entry.referenceCount == 0) {
+                bodies.remove(ref);
+                storedBytes -= entry.ref.getLength();
+                liveLogBytes -= BODY_RECORD_HEADER_LENGTH + entry.ref.getLength() + REFERENCE_RECORD_LENGTH;
+
+                if (!compactionScheduled && isCompactionDue()) {
+                    compactionScheduled = true;
+                    compactor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            compactIfDue();
+                        }
+                    });
+                }
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read a body.
+     * @param ref The body reference.
+     * @return The body, or null if the body is not in the store.
+     * @throws IOException Error reading the store log.
+     */
+    public byte[] get(BodyRef ref) throws IOException {
+        AssertArgument.isNotNull(ref, "ref");
+
+        lock.readLock().lock();
+        try {
+            assertOpen();
+            BodyEntry entry = bodies.get(ref);
+            if (entry == null) {
+                return null;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(entry.ref.getLength());
+            while (body.hasRemaining()) {
+                if (channel.read(body, entry.offset + body.position()) == -1) {
+                    throw new EOFException("Unexpected end of body store log '" + logFile.getAbsolutePath() + "' reading body '" + ref.getSha256() + "'.");
+                }
+            }
+            return body.array();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find a body by its SHA-256.
+     * @param sha256 The body SHA-256, as a hex string.
+     * @return The body reference, or null if the body is not in the store.
+     */
+    public BodyRef find(String sha256) {
+        AssertArgument.isNotNullAndNotEmpty(sha256, "sha256");
+        // References are equal by digest, so the probe length doesn't matter.
+        BodyRef probe = BodyRef.valueOf(sha256, 0);
+
+        lock.readLock().lock();
+        try {
+            BodyEntry entry = bodies.get(probe);
+            return (entry != null ? entry.ref : null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(BodyRef ref) {
+        return getReferenceCount(ref) > 0;
+    }
+
+    /**
+     * Get the number of references held on a body.
+     * @param ref The body reference.
+     * @return The reference count, or 0 if the body is not in the store.
+     */
+    public long getReferenceCount(BodyRef ref) {
+        AssertArgument.isNotNull(ref, "ref");
+
+        lock.readLock().lock();
+        try {
+            BodyEntry entry = bodies.get(ref);
+            return (entry != null ? entry.referenceCount : 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the store log with only the referenced bodies, reclaiming the garbage.
+     * @throws IOException Error compacting the log.  The store is unchanged.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            compactLog();
+        }
+    }
+
+    public BodyStoreStats getStats() {
+        lock.readLock().lock();
+        try {
+            return new BodyStoreStats(bodies.size(), references, storedBytes, puts, dedupedPuts, dedupedBytes, writePosition,
+                    getGarbageBytes(), compactions);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Force all writes to disk.
+     * @throws IOException Error syncing the store log.
+     */
+    public void flush() throws IOException {
+        lock.readLock().lock();
+        try {
+            assertOpen();
+            channel.force(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // A scheduled compaction finds the store closed.  Not shutdownNow()... an interrupt closes the log channel.
+            compactor.shutdown();
+            try {
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void assertOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Body store '" + directory.getAbsolutePath() + "' is closed.");
+        }
+    }
+
+    private long getGarbageBytes() {
+        return writePosition - HEADER_LENGTH - liveLogBytes;
+    }
+
+    private boolean isCompactionDue() {
+        long garbage = getGarbageBytes();
+        return (garbage >= minCompactionBytes && garbage > writePosition * compactionRatio);
+    }
+
+    private void compactIfDue() {
+        synchronized (compactionLock) {
+            boolean due;
+            lock.writeLock().lock();
+            try {
+                compactionScheduled = false;
+                // An explicit compact() may have got there first.
+                due = (!closed && isCompactionDue());
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            if (due) {
+                try {
+                    compactLog();
+                } catch (IOException e) {
+                    // The store is unchanged.  Rescheduled by the next release that finds the garbage over the threshold.
+                }
+            }
+        }
+    }
+
+    private BodyEntry appendBody(BodyRef ref, byte[] body) throws IOException {
+        long recordStart = writePosition;
+        try {
+            recordBuffer.clear();
+            recordBuffer.put(BODY_RECORD).put(ref.digest()).putInt(body.length).flip();
+            write(recordBuffer);
+            write(ByteBuffer.wrap(body));
+            appendReference(ref, 1);
+        } catch (IOException e) {
+            rollback(recordStart);
+            throw e;
+        }
+        return new BodyEntry(ref, recordStart + BODY_RECORD_HEADER_LENGTH, 1);
+    }
+
+    private void appendReference(BodyRef ref, int delta) throws IOException {
+        long recordStart = writePosition;
+        try {
+            recordBuffer.clear();
+            recordBuffer.put(REFERENCE_RECORD).put(ref.digest()).putInt(delta).flip();
+            write(recordBuffer);
+        } catch (IOException e) {
+            rollback(recordStart);
+            throw e;
+        }
+    }
+
+    /**
+     * Drop a partially written record, so the next record isn't appended after it.
+     */
+    private void rollback(long recordStart) {
+        try {
+            channel.truncate(recordStart);
+        } catch (IOException e) {
+            // A torn tail record is dropped on the next open anyway.
+        }
+        writePosition = recordStart;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            writePosition += channel.write(buffer, writePosition);
+        }
+    }
+
+    /**
+     * Rewrite the log with only the referenced bodies.  Must be called holding the compaction lock.
+     * <p/>
+     * The bodies referenced when the compaction starts are copied without holding the store lock (the log is
+     * append-only, so they don't move).  The write lock is only held to copy the bodies put in the meantime, write
+     * the (current) reference counts and swap the logs.
+     */
+    private void compactLog() throws IOException {
+        List<BodyEntry> snapshot;
+        long[] snapshotOffsets;
+        FileChannel source;
+
+        lock.readLock().lock();
+        try {
+            assertOpen();
+            if (getGarbageBytes() == 0) {
+                return;
+            }
+            snapshot = new ArrayList<BodyEntry>(bodies.values());
+            snapshotOffsets = new long[snapshot.size()];
+            for (int i = 0; i < snapshotOffsets.length; i++) {
+                snapshotOffsets[i] = snapshot.get(i).offset;
+            }
+            source = channel;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        File compactFile = new File(directory, COMPACT_FILE_NAME);
+        CompactedLog compacted = new CompactedLog(compactFile, snapshot.size());
+        try {
+            for (int i = 0; i < snapshotOffsets.length; i++) {
+                // Closing the store closes the source channel under us, failing the copy.
+                compacted.appendBody(snapshot.get(i), source, snapshotOffsets[i]);
+            }
+
+            lock.writeLock().lock();
+            try {
+                assertOpen();
+                for (BodyEntry entry : bodies.values()) {
+                    if (!compacted.contains(entry)) {
+                        // Put since the snapshot.
+                        compacted.appendBody(entry, channel, entry.offset);
+                    }
+                }
+                for (BodyEntry entry : bodies.values()) {
+                    compacted.appendReferences(entry);
+                }
+                compacted.finish();
+
+                Files.move(compactFile.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                FileChannel replaced = channel;
+                channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                replaced.close();
+
+                // Bodies copied but released since the snapshot are garbage in the new log.
+                liveLogBytes = 0;
+                for (BodyEntry entry : bodies.values()) {
+                    entry.offset = compacted.offsetOf(entry);
+                    liveLogBytes += BODY_RECORD_HEADER_LENGTH + entry.ref.getLength() + REFERENCE_RECORD_LENGTH;
+                }
+                writePosition = channel.size();
+                compactions++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            compacted.close();
+            Files.deleteIfExists(compactFile.toPath());
+            throw e;
+        }
+    }
+
+    private static int drain(ByteBuffer buffer, FileChannel to, long position) throws IOException {
+        buffer.flip();
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += to.write(buffer, position + written);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    private long copy(FileChannel from, long fromPosition, int length, FileChannel to, long position) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            long transferred = from.transferTo(fromPosition + copied, length - copied, to.position(position + copied));
+            if (transferred <= 0) {
+                throw new EOFException("Unexpected end of body store log '" + logFile.getAbsolutePath() + "' compacting.");
+            }
+            copied += transferred;
+        }
+        return copied;
+    }
+
+    private void replay() throws IOException {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 64 * 1024));
+        DataInputStream log = new DataInputStream(counter);
+        byte[] digest = new byte[BodyRef.DIGEST_LENGTH];
+        long recordStart = 0;
+
+        try {
+            if (log.readInt() != MAGIC || log.readInt() != VERSION) {
+                throw new IOException("File '" + logFile.getAbsolutePath() + "' is not a version " + VERSION + " body store log.");
+            }
+
+            while (true) {
+                recordStart = counter.getCount();
+
+                int recordType = log.read();
+                if (recordType == -1) {
+                    break;
+                } else if (recordType == BODY_RECORD) {
+                    log.readFully(digest);
+                    int length = log.readInt();
+                    long offset = counter.getCount();
+                    StreamUtils.skipFully(log, length);
+                    BodyRef ref = new BodyRef(digest, length);
+                    BodyEntry entry = bodies.get(ref);
+                    if (entry == null) {
+                        bodies.put(ref, new BodyEntry(ref, offset, 0));
+                    } else {
+                        // Duplicate body record... read the latest copy.
+                        entry.offset = offset;
+                    }
+                } else if (recordType == REFERENCE_RECORD) {
+                    log.readFully(digest);
+                    int delta = log.readInt();
+                    BodyEntry entry = bodies.get(new BodyRef(digest, 0));
+                    if (entry == null) {
+                        throw new IOException("Corrupt body store log '" + logFile.getAbsolutePath() + "'. Reference to unknown body at offset " + recordStart + ".");
+                    }
+                    entry.referenceCount += delta;
+                    if (entry.referenceCount <= 0) {
+                        bodies.remove(entry.ref);
+                    }
+                } else {
+                    throw new IOException("Corrupt body store log '" + logFile.getAbsolutePath() + "'. Unknown record type at offset " + recordStart + ".");
+                }
+            }
+        } catch (EOFException e) {
+            if (recordStart == 0) {
+                throw new IOException("File '" + logFile.getAbsolutePath() + "' is not a body store log.", e);
+            }
+            // Record torn by a crash mid write.  Drop it.
+            channel.truncate(recordStart);
+        }
+        writePosition = recordStart;
+
+        Iterator<BodyEntry> entries = bodies.values().iterator();
+        while (entries.hasNext()) {
+            BodyEntry entry = entries.next();
+            if (entry.referenceCount <= 0) {
+                // Body record written but its reference record torn.
+                entries.remove();
+                continue;
+            }
+            references += entry.referenceCount;
+            storedBytes += entry.ref.getLength();
+            liveLogBytes += BODY_RECORD_HEADER_LENGTH + entry.ref.getLength() + REFERENCE_RECORD_LENGTH;
+        }
+    }
+
+    /**
+     * The new log written by a compaction.
+     */
+    private final class CompactedLog {
+
+        private final FileChannel out;
+        // Keyed by identity... an entry released and put again is a new entry.
+        private final Map<BodyEntry, Long> offsets;
+        private final ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+        private long position;
+
+        private CompactedLog(File file, int expectedBodies) throws IOException {
+            this.out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.offsets = new HashMap<BodyEntry, Long>(expectedBodies * 2);
+            // The header is written with the first record.
+            record.putInt(MAGIC).putInt(VERSION);
+        }
+
+        private boolean contains(BodyEntry entry) {
+            return offsets.containsKey(entry);
+        }
+
+        private long offsetOf(BodyEntry entry) {
+            return offsets.get(entry);
+        }
+
+        private void appendBody(BodyEntry entry, FileChannel source, long sourceOffset) throws IOException {
+            int length = entry.ref.getLength();
+            if (record.remaining() < BODY_RECORD_HEADER_LENGTH) {
+                position += drain(record, out, position);
+            }
+            record.put(BODY_RECORD).put(entry.ref.digest()).putInt(length);
+            position += drain(record, out, position);
+            offsets.put(entry, position);
+            position += copy(source, sourceOffset, length, out, position);
+        }
+
+        private void appendReferences(BodyEntry entry) throws IOException {
+            // Reference counts are written as deltas... a count too large for one record is split.
+            long referenceCount = entry.referenceCount;
+            while (referenceCount > 0) {
+                int delta = (int) Math.min(referenceCount, Integer.MAX_VALUE);
+                if (record.remaining() < REFERENCE_RECORD_LENGTH) {
+                    position += drain(record, out, position);
+                }
+                record.put(REFERENCE_RECORD).put(entry.ref.digest()).putInt(delta);
+                referenceCount -= delta;
+            }
+        }
+
+        private void finish() throws IOException {
+            position += drain(record, out, position);
+            out.force(false);
+            out.close();
+        }
+
+        private void close() {
+            StreamUtils.safeClose(out);
+        }
+    }
+
+    private static final class BodyEntry {
+
+        private final BodyRef ref;
+        private long offset;
+        private long referenceCount;
+
+        private BodyEntry(BodyRef ref, long offset, long referenceCount) {
+            this.ref = ref;
+            this.offset = offset;
+            this.referenceCount = referenceCount;
+        }
+    }
+}
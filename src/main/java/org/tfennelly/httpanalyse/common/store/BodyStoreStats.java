@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.store;
+
+/**
+ * Point in time snapshot of {@link BodyStore} statistics.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public final class BodyStoreStats {
+
+    private final int bodies;
+    private final long references;
+    private final long storedBytes;
+    private final long puts;
+    private final long dedupedPuts;
+    private final long dedupedBytes;
+    private final long logBytes;
+    private final long garbageBytes;
+    private final long compactions;
+
+    BodyStoreStats(int bodies, long references, long storedBytes, long puts, long dedupedPuts, long dedupedBytes, long logBytes,
+                   long garbageBytes, long compactions) {
+        this.bodies = bodies;
+        this.references = references;
+        this.storedBytes = storedBytes;
+        this.puts = puts;
+        this.dedupedPuts = dedupedPuts;
+        this.dedupedBytes = dedupedBytes;
+        this.logBytes = logBytes;
+        this.garbageBytes = garbageBytes;
+        this.compactions = compactions;
+    }
+
+    /**
+     * Get the number of distinct (referenced) bodies in the store.
+     * @return The number of bodies.
+     */
+    public int getBodies() {
+        return bodies;
+    }
+
+    /**
+     * Get the total number of references held on the bodies in the store.
+     * @return The number of references.
+     */
+    public long getReferences() {
+        return references;
+    }
+
+    /**
+     * Get the total length of the distinct bodies in the store.
+     * @return The stored body bytes.
+     */
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * Get the number of bodies put since the store was opened.
+     * @return The number of puts.
+     */
+    public long getPuts() {
+        return puts;
+    }
+
+    /**
+     * Get the number of puts of a body that was already in the store.
+     * @return The number of deduplicated puts.
+     */
+    public long getDedupedPuts() {
+        return dedupedPuts;
+    }
+
+    /**
+     * Get the total length of the deduplicated puts i.e. the body bytes not written.
+     * @return The deduplicated bytes.
+     */
+    public long getDedupedBytes() {
+        return dedupedBytes;
+    }
+
+    /**
+     * Get the size of the store log.
+     * @return The log size in bytes.
+     */
+    public long getLogBytes() {
+        return logBytes;
+    }
+
+    /**
+     * Get the number of log bytes reclaimable by {@link BodyStore#compact() compaction}.
+     * @return The garbage bytes.
+     */
+    public long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    public long getCompactions() {
+        return compactions;
+    }
+
+    @Override
+    public String toString() {
+        return "bodies: " + bodies + ", references: " + references + ", stored bytes: " + storedBytes + ", puts: " + puts
+                + ", deduped puts: " + dedupedPuts + ", deduped bytes: " + dedupedBytes + ", log bytes: " + logBytes
+                + ", garbage bytes: " + garbageBytes + ", compactions: " + compactions;
+    }
+}
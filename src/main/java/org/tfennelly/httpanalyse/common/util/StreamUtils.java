@@ -7,15 +7,20 @@
 package org.tfennelly.httpanalyse.common.util;
 
 
+import org.tfennelly.httpanalyse.common.buffer.BufferPool;
+import org.tfennelly.httpanalyse.common.buffer.PooledBuffer;
+
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Stream Utilities.
@@ -24,11 +29,25 @@ import java.io.StringReader;
  */
 public abstract class StreamUtils {
 
+    private static final int SCRATCH_SIZE = 8 * 1024;
+    // Initial buffer size cap when reading a stream of "known" length.
+    private static final int MAX_INITIAL_LENGTH = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SCRATCH_SIZE];
+        }
+    };
+
     private StreamUtils() {
     }
 
     /**
 	 * Read the supplied InputStream and return as a byte array.
+	 * <p/>
+	 * The data is accumulated in a buffer from the {@link BufferPool#getDefault() default pool}, so the only
+	 * allocation is the returned array.
 	 *
 	 * @param stream
 	 *            The stream to read.
@@ -39,16 +58,153 @@ public abstract class StreamUtils {
 	public static byte[] readStream(InputStream stream) throws IOException {
         AssertArgument.isNotNull(stream, "stream");
 
-        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-		byte[] byteBuf = new byte[1024];
-		int readCount = 0;
+        PooledBuffer buffer = readStream(stream, -1, BufferPool.getDefault());
+        try {
+            ByteBuffer data = buffer.buffer();
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            return bytes;
+        } finally {
+            buffer.release();
+        }
+	}
 
-		while ((readCount = stream.read(byteBuf)) != -1) {
-			bytesOut.write(byteBuf, 0, readCount);
-		}
+    /**
+     * Read the supplied InputStream and return as a byte array.
+     * <p/>
+     * If the stream length is known up front, the data is read into a byte array grown (up to that exact
+     * size) as the data arrives, avoiding the final copy of {@link #readStream(java.io.InputStream)}.  The
+     * length usually comes from the other end of a connection, so it's not trusted to size the array up front.
+     *
+     * @param stream
+     *            The stream to read.
+     * @param expectedLength
+     *            The expected stream length, or -1 if not known.
+     * @return byte array containing the Stream data.
+     * @throws java.io.IOException
+     *             Exception reading from the stream.
+     */
+    public static byte[] readStream(InputStream stream, long expectedLength) throws IOException {
+        AssertArgument.isNotNull(stream, "stream");
 
-		return bytesOut.toByteArray();
-	}
+        if (expectedLength < 0 || expectedLength > Integer.MAX_VALUE) {
+            return readStream(stream);
+        }
+
+        byte[] bytes = new byte[(int) Math.min(expectedLength, MAX_INITIAL_LENGTH)];
+        int offset = 0;
+
+        while (offset < expectedLength) {
+            if (offset == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(expectedLength, (long) bytes.length * 2));
+            }
+            int readCount = stream.read(bytes, offset, bytes.length - offset);
+            if (readCount == -1) {
+                throw new EOFException("Stream ended after " + offset + " of " + expectedLength + " expected bytes.");
+            }
+            offset += readCount;
+        }
+        if (stream.read() != -1) {
+            throw new IOException("Stream contains more than the " + expectedLength + " expected bytes.");
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Read the supplied InputStream into a buffer leased from the supplied pool.
+     * <p/>
+     * The buffer is grown (see {@link BufferPool#grow(PooledBuffer, int)}) as the data arrives.  If the stream
+     * length is known up front, the growth is capped at that length, but (as with
+     * {@link #readStream(java.io.InputStream, long)}) the length is not trusted to size the buffer up front.
+     * The caller must release the returned buffer.
+     *
+     * @param stream
+     *            The stream to read.
+     * @param expectedLength
+     *            The expected stream length, or -1 if not known.
+     * @param pool
+     *            The pool.
+     * @return Buffer containing the Stream data, flipped ready for reading.
+     * @throws java.io.IOException
+     *             Exception reading from the stream.
+     */
+    public static PooledBuffer readStream(InputStream stream, long expectedLength, BufferPool pool) throws IOException {
+        AssertArgument.isNotNull(stream, "stream");
+        AssertArgument.isNotNull(pool, "pool");
+
+        boolean lengthKnown = (expectedLength >= 0 && expectedLength <= Integer.MAX_VALUE);
+        byte[] scratch = SCRATCH.get();
+        PooledBuffer buffer = pool.lease(lengthKnown ? (int) Math.min(expectedLength, MAX_INITIAL_LENGTH) : pool.getMinBufferSize());
+        boolean read = false;
+
+        try {
+            while (true) {
+                ByteBuffer data = buffer.buffer();
+                int readLength = scratch.length;
+                if (lengthKnown) {
+                    readLength = (int) Math.min(readLength, expectedLength - data.position());
+                    if (readLength == 0) {
+                        break;
+                    }
+                }
+
+                int readCount = stream.read(scratch, 0, readLength);
+                if (readCount == -1) {
+                    if (lengthKnown) {
+                        throw new EOFException("Stream ended after " + data.position() + " of " + expectedLength + " expected bytes.");
+                    }
+                    break;
+                }
+                if (data.remaining() < readCount) {
+                    int minCapacity = data.position() + readCount;
+                    buffer = (lengthKnown ? pool.grow(buffer, minCapacity, (int) expectedLength) : pool.grow(buffer, minCapacity));
+                    data = buffer.buffer();
+                }
+                data.put(scratch, 0, readCount);
+            }
+            if (lengthKnown && stream.read() != -1) {
+                throw new IOException("Stream contains more than the " + expectedLength + " expected bytes.");
+            }
+
+            buffer.buffer().flip();
+            read = true;
+            return buffer;
+        } finally {
+            if (!read) {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Skip exactly the supplied number of bytes.
+     *
+     * @param stream
+     *            The stream.
+     * @param length
+     *            The number of bytes to skip.
+     * @throws java.io.EOFException
+     *             The stream ended before the bytes were skipped.
+     * @throws java.io.IOException
+     *             Exception reading from the stream.
+     */
+    public static void skipFully(InputStream stream, long length) throws IOException {
+        AssertArgument.isNotNull(stream, "stream");
+
+        long remaining = length;
+        while (remaining > 0) {
+            long skipped = stream.skip(remaining);
+            if (skipped <= 0) {
+                // skip() may skip nothing before the end of the stream... read a byte to find out.
+                if (stream.read() == -1) {
+                    throw new EOFException("Stream ended with " + remaining + " of " + length + " bytes still to skip.");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
 
     /**
      * Read the supplied InputStream and return as a byte array.
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.util;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel.
+ * <p/>
+ * Schedules large numbers of tasks with a single timer thread.  Scheduling is an enqueue, and each tick only
+ * touches the tasks in one bucket of the wheel, so the cost doesn't grow with the number of scheduled tasks
+ * (unlike one sleeping thread, or one {@link java.util.concurrent.ScheduledExecutorService} heap entry, per task).
+ * <p/>
+ * Tasks never run early, and run up to one tick late.  Tasks due on the same tick are handed to the executor in
+ * the order they were scheduled.  Tasks scheduled in the past run on the next tick.
+ * <p/>
+ * The timer thread only ticks while there are tasks in the wheel.  An empty wheel parks the thread until a task
+ * is scheduled, and then until that task's tick.
+ * <p/>
+ * Thread safe.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class TimingWheel implements Closeable {
+
+    private final long tickNanos;
+    private final List<Entry>[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger scheduled = new AtomicInteger();
+    private final long startTime;
+    private final Thread ticker;
+    private volatile boolean closed;
+    // The time the ticker is parked until, Long.MAX_VALUE if until a task is scheduled, or 0 if not parked.
+    private volatile long parkedUntil;
+    // Only touched by the ticker thread.
+    private long tick;
+    private int wheelCount;
+    // No task in the wheel is due before this tick.
+    private long nextDueTick;
+    private List<Entry> spare = new ArrayList<Entry>();
+
+    /**
+     * Create and start a timing wheel.
+     * @param tickDuration The tick duration i.e. the timer precision.
+     * @param unit The tick duration unit.
+     * @param wheelSize The number of buckets in the wheel (rounded up to a power of 2).  Tasks more than
+     * {@code wheelSize} ticks out are carried around the wheel.
+     * @param executor The executor the tasks are run on.  Tasks should not be run on the timer thread.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickDuration, TimeUnit unit, int wheelSize, Executor executor) {
+        AssertArgument.isNotNull(unit, "unit");
+        AssertArgument.isNotNull(executor, "executor");
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Invalid 'tickDuration' value '" + tickDuration + "'. Must be greater than zero.");
+        }
+        if (wheelSize < 1 || wheelSize > (1 << 20)) {
+            throw new IllegalArgumentException("Invalid 'wheelSize' value '" + wheelSize + "'. Must be between 1 and " + (1 << 20) + ".");
+        }
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<Entry>();
+        }
+        this.mask = size - 1;
+        this.executor = executor;
+        this.startTime = System.nanoTime();
+        this.ticker = new NamedThreadFactory("httpanalyse-timer").newThread(new Runnable() {
+            public void run() {
+                runTicks();
+            }
+        });
+        ticker.start();
+    }
+
+    /**
+     * Schedule a task.
+     * @param task The task.
+     * @param deadline The time to run the task, in {@link System#nanoTime()} time.
+     */
+    public void schedule(Runnable task, long deadline) {
+        AssertArgument.isNotNull(task, "task");
+        if (closed) {
+            throw new IllegalStateException("Timing wheel is closed.");
+        }
+        scheduled.incrementAndGet();
+        pending.add(new Entry(task, deadline));
+        if (deadline - parkedUntil < 0 || parkedUntil == Long.MAX_VALUE) {
+            // Due before the ticker wakes up.
+            LockSupport.unpark(ticker);
+        }
+    }
+
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        schedule(task, System.nanoTime() + unit.toNanos(delay));
+    }
+
+    /**
+     * Get the number of tasks scheduled that have not yet been handed to the executor.
+     * @return The number of scheduled tasks.
+     */
+    public int getScheduledCount() {
+        return scheduled.get();
+    }
+
+    /**
+     * Stop the timer.  Tasks that are not yet due are discarded.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(ticker);
+        try {
+            ticker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runTicks() {
+        while (!closed) {
+            transferPending();
+
+            // Skip straight to the next tick that can have a task due, or park until a task is scheduled.  Ticks
+            // are only skipped up to a tick no task is due before, so no bucket is skipped that has a due task.
+            boolean empty = (wheelCount == 0);
+            long targetTick = Math.max(tick, nextDueTick);
+            long tickDeadline = (empty ? Long.MAX_VALUE : startTime + (targetTick + 1) * tickNanos);
+
+            parkedUntil = tickDeadline;
+            while (!closed && pending.isEmpty()) {
+                if (empty) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = tickDeadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            parkedUntil = 0;
+            if (closed) {
+                return;
+            }
+            if (empty || tickDeadline - System.nanoTime() > 0) {
+                // Woken by a schedule... transfer it and work out the next tick again.
+                continue;
+            }
+
+            // Anything scheduled since is due on this tick at the earliest (its deadline may have passed).
+            tick = targetTick;
+            transferPending();
+            expire(tick & mask);
+            tick++;
+            nextDueTick = Math.max(nextDueTick, tick);
+        }
+    }
+
+    private void transferPending() {
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            // Round down... the bucket for tick T is expired at the end of T, at or after the deadline.
+            long dueTick = Math.max(Math.max(0, entry.deadline - startTime) / tickNanos, tick);
+            entry.dueTick = dueTick;
+            wheel[(int) (dueTick & mask)].add(entry);
+            if (wheelCount++ == 0 || dueTick < nextDueTick) {
+                nextDueTick = dueTick;
+            }
+        }
+    }
+
+    private void expire(long bucketIndex) {
+        List<Entry> bucket = wheel[(int) bucketIndex];
+        if (bucket.isEmpty()) {
+            return;
+        }
+
+        List<Entry> remaining = spare;
+        for (Entry entry : bucket) {
+            if (entry.dueTick > tick) {
+                // Due on a later turn of the wheel.
+                remaining.add(entry);
+            } else {
+                wheelCount--;
+                scheduled.decrementAndGet();
+                try {
+                    executor.execute(entry.task);
+                } catch (RuntimeException e) {
+                    // Rejected... the executor is shutting down.
+                }
+            }
+        }
+        bucket.clear();
+        wheel[(int) bucketIndex] = remaining;
+        spare = bucket;
+    }
+
+    private static final class Entry {
+
+        private final Runnable task;
+        private final long deadline;
+        private long dueTick;
+
+        private Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
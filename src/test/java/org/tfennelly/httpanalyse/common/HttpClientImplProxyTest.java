@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link HttpClientImpl} tests, through a local stand-in HTTP proxy selected by the default {@link ProxySelector}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class HttpClientImplProxyTest {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private final List<String> proxiedRequestLines = new CopyOnWriteArrayList<String>();
+    private ProxySelector defaultProxySelector;
+    private ServerSocket proxySocket;
+    private ServerSocket tlsServerSocket;
+    private volatile boolean refuseTunnels;
+    private HttpClientImpl httpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        proxySocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        accept(proxySocket, new Handler() {
+            public void handle(Socket socket) throws IOException {
+                proxy(socket);
+            }
+        });
+
+        defaultProxySelector = ProxySelector.getDefault();
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                return Collections.singletonList(new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("localhost", proxySocket.getLocalPort())));
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress address, IOException e) {
+            }
+        });
+
+        httpClient = new HttpClientImpl();
+        httpClient.setConnectTimeout(5000);
+        httpClient.setReadTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ProxySelector.setDefault(defaultProxySelector);
+        httpClient.close();
+        proxySocket.close();
+        if (tlsServerSocket != null) {
+            tlsServerSocket.close();
+        }
+    }
+
+    @Test
+    public void test_http_forwarded() throws Exception {
+        // Never resolved by the client... the proxy is sent the absolute URL.
+        HttpResponse response = httpClient.get(new URL("http://unresolvable.invalid/a?b=c"));
+
+        assertEquals(200, response.statusCode());
+        assertEquals("proxied", response.contentAsString());
+        assertEquals("GET http://unresolvable.invalid/a?b=c HTTP/1.1", proxiedRequestLines.get(0));
+    }
+
+    @Test
+    public void test_https_tunnelled() throws Exception {
+        KeyStore keyStore = startTlsServer();
+        httpClient.setTrustedCert((X509Certificate) keyStore.getCertificate("server"));
+
+        HttpResponse response = httpClient.get(new URL("https://localhost:" + tlsServerSocket.getLocalPort() + "/"));
+
+        assertEquals(200, response.statusCode());
+        assertEquals("tunnelled", response.contentAsString());
+        assertEquals("CONNECT localhost:" + tlsServerSocket.getLocalPort() + " HTTP/1.1", proxiedRequestLines.get(0));
+    }
+
+    @Test
+    public void test_https_tunnel_refused() throws Exception {
+        refuseTunnels = true;
+
+        try {
+            httpClient.get(new URL("https://localhost:1/"));
+            fail("Expected IOException.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("refused tunnel to localhost:1: 407"));
+        }
+    }
+
+    private void proxy(Socket socket) throws IOException {
+        InputStream inputStream = socket.getInputStream();
+        OutputStream outputStream = socket.getOutputStream();
+        String requestLine = HttpWire.readLine(inputStream);
+
+        proxiedRequestLines.add(requestLine);
+        skipHeaders(inputStream);
+        if (!requestLine.startsWith("CONNECT ")) {
+            outputStream.write("HTTP/1.1 200 OK\r\nContent-Length: 7\r\n\r\nproxied".getBytes(HttpWire.ISO_8859_1));
+            outputStream.flush();
+            return;
+        }
+        if (refuseTunnels) {
+            outputStream.write("HTTP/1.1 407 Proxy Authentication Required\r\nContent-Length: 0\r\n\r\n".getBytes(HttpWire.ISO_8859_1));
+            outputStream.flush();
+            return;
+        }
+
+        String authority = requestLine.split(" ")[1];
+        final Socket upstream = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(authority.substring(authority.indexOf(':') + 1)));
+        try {
+            outputStream.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(HttpWire.ISO_8859_1));
+            outputStream.flush();
+
+            Thread upstreamToClient = relay(upstream.getInputStream(), outputStream);
+            relay(inputStream, upstream.getOutputStream()).join(10000);
+            upstreamToClient.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            upstream.close();
+        }
+    }
+
+    private KeyStore startTlsServer() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream stream = getClass().getResourceAsStream("/test-server.p12");
+        try {
+            keyStore.load(stream, PASSWORD);
+        } finally {
+            stream.close();
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, PASSWORD);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+        tlsServerSocket = sslContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        accept(tlsServerSocket, new Handler() {
+            public void handle(Socket socket) throws IOException {
+                skipHeaders(socket.getInputStream());
+                socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 9\r\nConnection: close\r\n\r\ntunnelled".getBytes(HttpWire.ISO_8859_1));
+                socket.getOutputStream().flush();
+            }
+        });
+
+        return keyStore;
+    }
+
+    private static void skipHeaders(InputStream inputStream) throws IOException {
+        String line = HttpWire.readLine(inputStream);
+        while (line != null && line.length() > 0) {
+            line = HttpWire.readLine(inputStream);
+        }
+    }
+
+    private static Thread relay(final InputStream from, final OutputStream to) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[4096];
+                try {
+                    int readCount;
+                    while ((readCount = from.read(buffer)) != -1) {
+                        to.write(buffer, 0, readCount);
+                        to.flush();
+                    }
+                } catch (IOException e) {
+                    // One side closed.
+                }
+            }
+        }, "proxy-test-relay");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void accept(final ServerSocket serverSocket, final Handler handler) {
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        Thread connection = new Thread(new Runnable() {
+                            public void run() {
+                                try {
+                                    handler.handle(socket);
+                                } catch (IOException e) {
+                                    // Only fails this connection.
+                                } finally {
+                                    try {
+                                        socket.close();
+                                    } catch (IOException e) {
+                                        // Closing anyway.
+                                    }
+                                }
+                            }
+                        }, "proxy-test-connection");
+                        connection.setDaemon(true);
+                        connection.start();
+                    } catch (IOException e) {
+                        // Server socket closed.
+                    }
+                }
+            }
+        }, "proxy-test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private interface Handler {
+        void handle(Socket socket) throws IOException;
+    }
+}
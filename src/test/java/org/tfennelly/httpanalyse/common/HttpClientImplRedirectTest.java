@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tfennelly.httpanalyse.common.capture.CaptureLog;
+import org.tfennelly.httpanalyse.common.capture.CapturedExchange;
+import org.tfennelly.httpanalyse.common.metrics.HttpMetricsSnapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link HttpClientImpl} redirect tests, against a local server that redirects "/old" (on "localhost") to
+ * "/new" (on "127.0.0.1").
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class HttpClientImplRedirectTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private HttpClientImpl httpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        try {
+                            respond(socket);
+                        } catch (IOException e) {
+                            // Only fails this connection.
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // Server socket closed.
+                    }
+                }
+            }
+        }, "redirect-test-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        httpClient = new HttpClientImpl();
+        httpClient.setConnectTimeout(5000);
+        httpClient.setReadTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        acceptor.join(5000);
+    }
+
+    @Test
+    public void test_metrics_recorded_for_last_hop() throws Exception {
+        HttpResponse response = httpClient.get(new URL("http://localhost:" + serverSocket.getLocalPort() + "/old"));
+
+        assertEquals("new", response.contentAsString());
+        HttpMetricsSnapshot snapshot = httpClient.getMetrics().snapshot();
+        assertEquals(Collections.singleton("127.0.0.1"), snapshot.getHosts());
+        assertEquals(1, snapshot.getStatusCount(200));
+    }
+
+    @Test
+    public void test_capture_recorded_for_last_hop() throws Exception {
+        CaptureLog captureLog = new CaptureLog(tempFolder.getRoot());
+        try {
+            httpClient.setCaptureLog(captureLog);
+            Map<String, String> headers = Collections.emptyMap();
+
+            httpClient.send("POST", "form".getBytes(StandardCharsets.UTF_8), "text/plain",
+                    new URL("http://localhost:" + serverSocket.getLocalPort() + "/old"), headers);
+            captureLog.flush();
+
+            // The 302 turns the POST into a GET, without the content.
+            CapturedExchange exchange = captureLog.read(captureLog.getNextSequence() - 1);
+            assertEquals("GET", exchange.getMethod());
+            assertEquals("http://127.0.0.1:" + serverSocket.getLocalPort() + "/new", exchange.getUrl());
+            assertNull(exchange.getRequestBody());
+            assertNull(exchange.getRequestHeaders().get("Content-Type"));
+            assertEquals(200, exchange.getStatusCode());
+        } finally {
+            captureLog.close();
+        }
+    }
+
+    private void respond(Socket socket) throws IOException {
+        String head = readHead(socket.getInputStream());
+        String response;
+        if (head.contains(" /old ")) {
+            response = "HTTP/1.1 302 Found\r\nLocation: http://127.0.0.1:" + serverSocket.getLocalPort() + "/new\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        } else {
+            response = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 3\r\nConnection: close\r\n\r\nnew";
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int tail = 0;
+
+        while (tail != 0x0D0A0D0A) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed reading the request head.");
+            }
+            head.write(b);
+            tail = (tail << 8) | b;
+        }
+
+        return new String(head.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
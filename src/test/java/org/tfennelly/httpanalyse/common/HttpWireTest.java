@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link HttpWire} tests.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class HttpWireTest {
+
+    @Test
+    public void test_write_request_head() throws IOException {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("X-Trace", "a b\tc");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        HttpWire.writeRequest(out, "GET", new URL("http://localhost:8080/a?b=c"), headers, null, null);
+        String head = new String(out.toByteArray(), HttpWire.ISO_8859_1);
+
+        assertEquals("GET /a?b=c HTTP/1.1\r\nHost: localhost:8080\r\nUser-Agent: httpanalyse\r\nAccept: */*\r\nX-Trace: a b\tc\r\n\r\n", head);
+    }
+
+    @Test
+    public void test_rejects_line_breaks_in_header_value() throws IOException {
+        assertRejected("X-Trace", "a\r\nX-Injected: true");
+        assertRejected("X-Trace", "a\nb");
+        assertRejected("X-Trace", "a\rb");
+        assertRejected("X-Trace", "a\0b");
+    }
+
+    @Test
+    public void test_rejects_invalid_header_name() throws IOException {
+        assertRejected("X Trace", "a");
+        assertRejected("X-Trace:", "a");
+        assertRejected("X-Trace\r\n", "a");
+        assertRejected("", "a");
+    }
+
+    @Test
+    public void test_rejects_line_breaks_in_content_type() throws IOException {
+        Map<String, String> headers = Collections.emptyMap();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            HttpWire.writeRequest(out, "POST", new URL("http://localhost/"), headers, "text/plain\r\nX-Injected: true", new byte[1]);
+            fail("Expected IllegalArgumentException.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, out.size());
+        }
+    }
+
+    @Test
+    public void test_rejects_invalid_method() throws IOException {
+        Map<String, String> headers = Collections.emptyMap();
+
+        try {
+            HttpWire.writeRequest(new ByteArrayOutputStream(), "GET / HTTP/1.1\r\nX:", new URL("http://localhost/"), headers, null, null);
+            fail("Expected IllegalArgumentException.");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid method"));
+        }
+    }
+
+    private static void assertRejected(String name, String value) throws IOException {
+        Map<String, String> headers = Collections.singletonMap(name, value);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            HttpWire.writeRequest(out, "GET", new URL("http://localhost/"), headers, null, null);
+            fail("Expected IllegalArgumentException.");
+        } catch (IllegalArgumentException e) {
+            // Nothing written.
+            assertEquals(0, out.size());
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.cache;
+
+import org.junit.Test;
+import org.tfennelly.httpanalyse.common.HttpResponse;
+import org.tfennelly.httpanalyse.common.HttpResponseImpl;
+import org.tfennelly.httpanalyse.common.RequestTiming;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link HttpCache} tests, against a fake {@link HttpCache.Origin} that plays back queued responses.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class HttpCacheTest {
+
+    private final HttpCache cache = new HttpCache(3, 1024, null);
+    private final FakeOrigin origin = new FakeOrigin();
+
+    @Test
+    public void test_fresh_served_from_cache() throws Exception {
+        origin.add(200, "hello", "Cache-Control", "max-age=60");
+
+        assertEquals("hello", get("/a").contentAsString());
+        HttpResponse cached = get("/a");
+
+        assertEquals("hello", cached.contentAsString());
+        assertEquals("0", cached.headerFields().get("Age").get(0));
+        assertEquals(1, origin.requests.size());
+        assertEquals(1, cache.getStats().getHits());
+        assertEquals(1, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void test_stale_revalidated() throws Exception {
+        origin.add(200, "hello", "Cache-Control", "max-age=0", "ETag", "\"v1\"");
+        origin.add(200, "hello again", "Cache-Control", "max-age=0", "ETag", "\"v2\"");
+
+        get("/a");
+        assertEquals("hello again", get("/a").contentAsString());
+
+        assertEquals("\"v1\"", origin.requests.get(1).get("If-None-Match"));
+        assertEquals(1, cache.getStats().getRevalidations());
+        assertEquals(1, cache.getStats().getEntries());
+    }
+
+    @Test
+    public void test_not_modified_merge() throws Exception {
+        origin.add(200, "hello", "Cache-Control", "max-age=0", "ETag", "\"v1\"", "X-Version", "1", "Content-Length", "5");
+        origin.add(304, null, "Cache-Control", "max-age=60", "X-Version", "2", "Content-Length", "0");
+
+        get("/a");
+        HttpResponse response = get("/a");
+
+        // The stored body, with the 304's headers... other than Content-Length.
+        assertEquals(200, response.statusCode());
+        assertEquals("hello", response.contentAsString());
+        assertEquals("2", response.headerFields().get("X-Version").get(0));
+        assertEquals("5", response.headerFields().get("Content-Length").get(0));
+        assertEquals(1, cache.getStats().getNotModified());
+
+        // Freshened by the 304's max-age.
+        assertEquals("hello", get("/a").contentAsString());
+        assertEquals(2, origin.requests.size());
+    }
+
+    @Test
+    public void test_vary() throws Exception {
+        origin.add(200, "english", "Cache-Control", "max-age=60", "Vary", "Accept-Language");
+        origin.add(200, "french", "Cache-Control", "max-age=60", "Vary", "Accept-Language");
+
+        assertEquals("english", get("/a", "Accept-Language", "en").contentAsString());
+        assertEquals("french", get("/a", "Accept-Language", "fr").contentAsString());
+        assertEquals("english", get("/a", "Accept-Language", "en").contentAsString());
+        assertEquals("french", get("/a", "Accept-Language", " fr ").contentAsString());
+
+        assertEquals(2, origin.requests.size());
+        assertEquals(2, cache.getStats().getEntries());
+    }
+
+    @Test
+    public void test_evict_max_entries() throws Exception {
+        origin.add(200, "a", "Cache-Control", "max-age=60");
+        origin.add(200, "b", "Cache-Control", "max-age=60");
+        origin.add(200, "c", "Cache-Control", "max-age=60");
+        origin.add(200, "d", "Cache-Control", "max-age=60");
+        origin.add(200, "b2", "Cache-Control", "max-age=60");
+
+        get("/a");
+        get("/b");
+        get("/c");
+        // Touch "/a", so "/b" is the least recently used.
+        get("/a");
+        get("/d");
+
+        assertEquals(3, cache.getStats().getEntries());
+        assertEquals(1, cache.getStats().getEvictions());
+        assertEquals("a", get("/a").contentAsString());
+        assertEquals("b2", get("/b").contentAsString());
+        assertEquals(5, origin.requests.size());
+    }
+
+    @Test
+    public void test_evict_max_bytes() throws Exception {
+        // maxBytes / 8 is the largest storable body.
+        String body = new String(new char[128]).replace('\0', 'x');
+        for (int i = 0; i < 9; i++) {
+            origin.add(200, body, "Cache-Control", "max-age=60");
+        }
+        HttpCache bigCache = new HttpCache(100, 1024, null);
+
+        for (int i = 0; i < 9; i++) {
+            bigCache.send("GET", null, null, new URL("http://localhost/" + i), Collections.<String, String>emptyMap(), origin);
+        }
+
+        assertEquals(8, bigCache.getStats().getEntries());
+        assertEquals(1024, bigCache.getStats().getBytes());
+        assertEquals(1, bigCache.getStats().getEvictions());
+    }
+
+    @Test
+    public void test_too_large_not_stored() throws Exception {
+        origin.add(200, new String(new char[129]), "Cache-Control", "max-age=60");
+
+        get("/a");
+
+        assertEquals(0, cache.getStats().getEntries());
+    }
+
+    @Test
+    public void test_request_no_store() throws Exception {
+        origin.add(200, "hello", "Cache-Control", "max-age=60");
+        origin.add(200, "not stored", "Cache-Control", "max-age=60");
+
+        get("/a");
+        // A fresh stored response is served...
+        assertEquals("hello", get("/a", "Cache-Control", "no-store").contentAsString());
+        assertEquals(1, origin.requests.size());
+
+        // ... but an origin response isn't stored.
+        assertEquals("not stored", get("/b", "Cache-Control", "no-store").contentAsString());
+        assertEquals(1, cache.getStats().getEntries());
+    }
+
+    @Test
+    public void test_response_no_store() throws Exception {
+        origin.add(200, "one", "Cache-Control", "no-store");
+        origin.add(200, "two", "Cache-Control", "no-store");
+
+        assertEquals("one", get("/a").contentAsString());
+        assertEquals("two", get("/a").contentAsString());
+        assertEquals(0, cache.getStats().getEntries());
+    }
+
+    @Test
+    public void test_only_if_cached() throws Exception {
+        HttpResponse response = get("/a", "Cache-Control", "only-if-cached");
+
+        assertEquals(504, response.statusCode());
+        assertEquals(0, origin.requests.size());
+    }
+
+    @Test
+    public void test_unsafe_method_invalidates() throws Exception {
+        origin.add(200, "hello", "Cache-Control", "max-age=60");
+        origin.add(204, null);
+        origin.add(200, "hello again", "Cache-Control", "max-age=60");
+
+        get("/a");
+        cache.send("POST", new byte[0], "text/plain", new URL("http://localhost/a"), Collections.<String, String>emptyMap(), origin);
+
+        assertEquals("hello again", get("/a").contentAsString());
+        assertEquals(1, cache.getStats().getInvalidations());
+    }
+
+    @Test
+    public void test_cached_content_copied() throws Exception {
+        origin.add(200, "hello", "Cache-Control", "max-age=60");
+
+        get("/a");
+        get("/a").content()[0] = 'j';
+
+        assertEquals("hello", get("/a").contentAsString());
+    }
+
+    private HttpResponse get(String path, String... headers) throws IOException {
+        Map<String, String> requestHeaders = new LinkedHashMap<String, String>();
+        for (int i = 0; i < headers.length; i += 2) {
+            requestHeaders.put(headers[i], headers[i + 1]);
+        }
+        return cache.send("GET", null, null, new URL("http://localhost" + path), requestHeaders, origin);
+    }
+
+    private static final class FakeOrigin implements HttpCache.Origin {
+
+        private final List<HttpResponse> responses = new ArrayList<HttpResponse>();
+        private final List<Map<String, String>> requests = new ArrayList<Map<String, String>>();
+
+        private void add(int statusCode, String body, String... headers) {
+            Map<String, List<String>> headerFields = new LinkedHashMap<String, List<String>>();
+            for (int i = 0; i < headers.length; i += 2) {
+                headerFields.put(headers[i], Collections.singletonList(headers[i + 1]));
+            }
+            byte[] content = (body != null ? body.getBytes(StandardCharsets.UTF_8) : null);
+            responses.add(new HttpResponseImpl(statusCode, "Status " + statusCode, headerFields, "text/plain", content, null,
+                    RequestTiming.totalOnly(0)));
+        }
+
+        @Override
+        public HttpResponse send(String method, byte[] content, String contentType, URL url, Map<String, String> headers) throws IOException {
+            if (responses.isEmpty()) {
+                fail("Unexpected origin request to " + url + ".");
+            }
+            requests.add(new LinkedHashMap<String, String>(headers));
+            return responses.remove(0);
+        }
+    }
+}
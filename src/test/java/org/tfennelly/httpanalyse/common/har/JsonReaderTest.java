@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.har;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link JsonReader} tests.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class JsonReaderTest {
+
+    @Test
+    public void test_read_value() throws Exception {
+        Map<?, ?> object = (Map<?, ?>) read("{\"a\": [1, \"two\", true, null], \"b\": {\"c\": \"\\u0041\"}}");
+
+        assertEquals(Arrays.asList(1.0, "two", Boolean.TRUE, null), object.get("a"));
+        assertEquals("A", ((Map<?, ?>) object.get("b")).get("c"));
+    }
+
+    @Test
+    public void test_max_depth() throws Exception {
+        List<?> array = (List<?>) read(nested(JsonReader.MAX_DEPTH));
+        assertEquals(1, array.size());
+
+        try {
+            read(nested(JsonReader.MAX_DEPTH + 1));
+            fail("Expected IOException.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("JSON nested deeper than " + JsonReader.MAX_DEPTH + " levels"));
+        }
+    }
+
+    @Test
+    public void test_max_depth_skip() throws Exception {
+        try {
+            new JsonReader(new StringReader(nested(100000))).skipValue();
+            fail("Expected IOException.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("JSON nested deeper than"));
+        }
+    }
+
+    private static Object read(String json) throws IOException {
+        return new JsonReader(new StringReader(json)).readValue();
+    }
+
+    private static String nested(int depth) {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            json.append('[');
+        }
+        json.append('0');
+        for (int i = 0; i < depth; i++) {
+            json.append(']');
+        }
+        return json.toString();
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tfennelly.httpanalyse.common.HttpResponse;
+import org.tfennelly.httpanalyse.common.dns.CachingHostResolver;
+import org.tfennelly.httpanalyse.common.dns.HostResolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link NioHttpClient} tests, against a local server that plays back canned (raw) responses.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class NioHttpClientTest {
+
+    private NioHttpClient client;
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    // Connections the server holds open after responding.
+    private final List<Socket> heldOpen = Collections.synchronizedList(new ArrayList<Socket>());
+    private final List<String> requestHeads = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        client = new NioHttpClient(1, 1);
+        client.setConnectTimeout(5000);
+        client.setReadTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        if (serverSocket != null) {
+            serverSocket.close();
+            acceptor.join(5000);
+        }
+        for (Socket socket : heldOpen) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void test_content_length() throws Exception {
+        startServer(response("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 5\r\n\r\nhello"), false);
+
+        HttpResponse response = get("/a");
+
+        assertEquals(200, response.statusCode());
+        assertEquals("text/plain", response.contentType());
+        assertEquals("hello", response.contentAsString());
+        assertTrue(requestHeads.get(0), requestHeads.get(0).startsWith("GET /a HTTP/1.1\r\n"));
+    }
+
+    @Test
+    public void test_content_length_keep_alive() throws Exception {
+        // Connection left open... the response is complete at Content-Length, not at close.
+        startServer(response("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello"), true);
+
+        assertEquals("hello", get("/").contentAsString());
+    }
+
+    @Test
+    public void test_chunked() throws Exception {
+        startServer(response("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\nX-Trailer: t\r\n\r\n"), true);
+
+        assertEquals("hello world", get("/").contentAsString());
+    }
+
+    @Test
+    public void test_until_close() throws Exception {
+        startServer(response("HTTP/1.1 200 OK\r\n\r\nuntil close"), false);
+
+        assertEquals("until close", get("/").contentAsString());
+    }
+
+    @Test
+    public void test_large_body() throws Exception {
+        byte[] body = new byte[1024 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        startServer(concat(response("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n"), body), true);
+
+        assertArrayEquals(body, get("/").content());
+    }
+
+    @Test
+    public void test_no_body() throws Exception {
+        startServer(response("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 204 No Content\r\n\r\n"), true);
+
+        HttpResponse response = get("/");
+
+        assertEquals(204, response.statusCode());
+        assertFalse(response.hasContent());
+    }
+
+    @Test
+    public void test_error_status() throws Exception {
+        startServer(response("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 4\r\n\r\nbusy"), false);
+
+        HttpResponse response = get("/");
+
+        assertEquals(503, response.statusCode());
+        assertEquals("Service Unavailable", response.statusMessage());
+        assertNull(response.getServerCerts());
+    }
+
+    @Test
+    public void test_max_body_size_content_length() throws Exception {
+        client.setMaxBodySize(4);
+        startServer(response("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello"), true);
+
+        assertFailure(ProtocolException.class);
+    }
+
+    @Test
+    public void test_max_body_size_chunked() throws Exception {
+        client.setMaxBodySize(8);
+        startServer(response("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n"), true);
+
+        assertFailure(ProtocolException.class);
+    }
+
+    @Test
+    public void test_max_body_size_until_close() throws Exception {
+        client.setMaxBodySize(8);
+        startServer(response("HTTP/1.1 200 OK\r\n\r\nuntil close"), false);
+
+        assertFailure(ProtocolException.class);
+    }
+
+    @Test
+    public void test_truncated_body() throws Exception {
+        startServer(response("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello"), false);
+
+        assertFailure(EOFException.class);
+    }
+
+    @Test
+    public void test_invalid_chunk_size() throws Exception {
+        startServer(response("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n"), true);
+
+        assertFailure(ProtocolException.class);
+    }
+
+    @Test
+    public void test_read_timeout() throws Exception {
+        client.setReadTimeout(200);
+        startServer(response("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nhello"), true);
+
+        assertFailure(SocketTimeoutException.class);
+    }
+
+    @Test
+    public void test_connection_refused() throws Exception {
+        ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        int port = closed.getLocalPort();
+        closed.close();
+
+        try {
+            client.getAsync(new URL("http://localhost:" + port + "/")).get(10, TimeUnit.SECONDS);
+            fail("Expected IOException.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void test_custom_resolver() throws Exception {
+        client.setHostResolver(new HostResolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                if (!host.equals("test.invalid")) {
+                    throw new UnknownHostException(host);
+                }
+                return new InetAddress[] {InetAddress.getLoopbackAddress()};
+            }
+        });
+        startServer(response("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello"), false);
+
+        HttpResponse response = client.getAsync(new URL("http://test.invalid:" + serverSocket.getLocalPort() + "/")).get(10, TimeUnit.SECONDS);
+        assertEquals("hello", response.contentAsString());
+        assertTrue(response.getTiming().getDnsNanos() > 0);
+
+        try {
+            client.getAsync(new URL("http://other.invalid/")).get(10, TimeUnit.SECONDS);
+            fail("Expected UnknownHostException.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof UnknownHostException);
+        }
+    }
+
+    @Test
+    public void test_caching_resolver() throws Exception {
+        CachingHostResolver resolver = new CachingHostResolver(new HostResolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                if (!host.equals("test.invalid")) {
+                    throw new UnknownHostException(host);
+                }
+                return new InetAddress[] {InetAddress.getLoopbackAddress()};
+            }
+        }, 1);
+        try {
+            client.setHostResolver(resolver);
+            startServer(response("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello"), false);
+
+            URL url = new URL("http://test.invalid:" + serverSocket.getLocalPort() + "/");
+            // A miss, then a hit.
+            assertEquals("hello", client.getAsync(url).get(10, TimeUnit.SECONDS).contentAsString());
+            assertEquals("hello", client.getAsync(url).get(10, TimeUnit.SECONDS).contentAsString());
+
+            try {
+                client.getAsync(new URL("http://other.invalid/")).get(10, TimeUnit.SECONDS);
+                fail("Expected UnknownHostException.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof UnknownHostException);
+            }
+        } finally {
+            resolver.close();
+        }
+    }
+
+    @Test
+    public void test_no_trusted_cert() throws Exception {
+        // Null is default trust only.
+        client.setTrustedCert(null);
+        startServer(response("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello"), false);
+
+        assertEquals("hello", get("/").contentAsString());
+    }
+
+    private HttpResponse get(String path) throws Exception {
+        return client.getAsync(new URL("http://localhost:" + serverSocket.getLocalPort() + path)).get(10, TimeUnit.SECONDS);
+    }
+
+    private void assertFailure(Class<? extends Throwable> expected) throws Exception {
+        try {
+            get("/");
+            fail("Expected " + expected.getSimpleName() + ".");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), expected.isInstance(e.getCause()));
+        }
+    }
+
+    private static byte[] response(String response) {
+        return response.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] concat(byte[] head, byte[] body) {
+        byte[] bytes = new byte[head.length + body.length];
+        System.arraycopy(head, 0, bytes, 0, head.length);
+        System.arraycopy(body, 0, bytes, head.length, body.length);
+        return bytes;
+    }
+
+    /**
+     * Start a server that reads the request head and plays back the supplied response to every connection.
+     */
+    private void startServer(final byte[] response, final boolean holdOpen) throws Exception {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        try {
+                            requestHeads.add(readHead(socket.getInputStream()));
+                            OutputStream out = socket.getOutputStream();
+                            out.write(response);
+                            out.flush();
+                        } catch (IOException e) {
+                            // Only fails this connection.
+                        }
+                        if (holdOpen) {
+                            heldOpen.add(socket);
+                        } else {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // Server socket closed.
+                    }
+                }
+            }
+        }, "nio-client-test-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int tail = 0;
+
+        while (tail != 0x0D0A0D0A) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed reading the request head.");
+            }
+            head.write(b);
+            tail = (tail << 8) | b;
+        }
+
+        return new String(head.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
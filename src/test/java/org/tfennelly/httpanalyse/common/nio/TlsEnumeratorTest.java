@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link TlsEnumerator} tests, against a local {@link SSLServerSocket} stand-in.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class TlsEnumeratorTest {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+    private static final String TLS13_SUITE = "TLS_AES_128_GCM_SHA256";
+    private static final String TLS12_SUITE_A = "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256";
+    private static final String TLS12_SUITE_B = "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384";
+    private static final String UNSUPPORTED_SUITE = "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256";
+
+    private TlsProbe probe;
+    private TlsEnumerator enumerator;
+    private SSLServerSocket serverSocket;
+    private Thread acceptor;
+    // Connections the server holds open without ever handshaking, so the probe times out.
+    private final List<Socket> stalled = Collections.synchronizedList(new ArrayList<Socket>());
+
+    @Before
+    public void setUp() throws Exception {
+        probe = new TlsProbe(1);
+        probe.setTimeout(500);
+        enumerator = new TlsEnumerator(probe);
+        enumerator.setMaxAttemptsPerSecond(1000.0);
+        enumerator.setCandidateCipherSuites(TLS13_SUITE, TLS12_SUITE_A, TLS12_SUITE_B, UNSUPPORTED_SUITE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        enumerator.close();
+        probe.close();
+        if (serverSocket != null) {
+            serverSocket.close();
+            acceptor.join(5000);
+        }
+        for (Socket socket : stalled) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void test_enumerate() throws Exception {
+        startServer(new String[] {"TLSv1.3", "TLSv1.2"}, -1);
+        enumerator.setCandidateProtocols("TLSv1.3", "TLSv1.2");
+
+        TlsCapabilities capabilities = enumerate();
+
+        assertEquals(Arrays.asList("TLSv1.3", "TLSv1.2"), new ArrayList<String>(capabilities.getProtocols()));
+        assertEquals(Arrays.asList(TLS13_SUITE), capabilities.getCipherSuites("TLSv1.3"));
+        assertEquals(2, capabilities.getCipherSuites("TLSv1.2").size());
+        assertTrue(capabilities.supports("TLSv1.2", TLS12_SUITE_A));
+        assertTrue(capabilities.supports("TLSv1.2", TLS12_SUITE_B));
+        assertFalse(capabilities.supports("TLSv1.2", UNSUPPORTED_SUITE));
+        assertTrue(capabilities.isComplete());
+        assertNull(capabilities.getError());
+    }
+
+    @Test
+    public void test_protocol_rejected() throws Exception {
+        startServer(new String[] {"TLSv1.2"}, -1);
+        enumerator.setCandidateProtocols("TLSv1.3", "TLSv1.2");
+
+        TlsCapabilities capabilities = enumerate();
+
+        assertFalse(capabilities.supports("TLSv1.3"));
+        assertEquals(2, capabilities.getCipherSuites("TLSv1.2").size());
+        assertTrue(capabilities.isComplete());
+        assertNull(capabilities.getError());
+    }
+
+    @Test
+    public void test_timeout_is_not_rejection() throws Exception {
+        // Handshakes the first (unrestricted) attempt, then stalls every later connection.
+        startServer(new String[] {"TLSv1.2"}, 1);
+        enumerator.setCandidateProtocols("TLSv1.2");
+
+        TlsCapabilities capabilities = enumerate();
+
+        assertFalse(capabilities.isComplete());
+        assertEquals(Collections.singleton("TLSv1.2"), capabilities.getIncompleteProtocols());
+        assertEquals(1, capabilities.getCipherSuites("TLSv1.2").size());
+        assertTrue(capabilities.toMatrixRow(), capabilities.toMatrixRow().startsWith("TLSv1.2?="));
+        assertNotNull(capabilities.getError());
+        // The first attempt, then the second attempt and its one retry.
+        assertEquals(3, capabilities.getAttempts());
+    }
+
+    @Test
+    public void test_timeout_retried() throws Exception {
+        // Stalls only the second connection.
+        startServer(new String[] {"TLSv1.2"}, 1, 2);
+        enumerator.setCandidateProtocols("TLSv1.2");
+
+        TlsCapabilities capabilities = enumerate();
+
+        assertTrue(capabilities.isComplete());
+        assertEquals(2, capabilities.getCipherSuites("TLSv1.2").size());
+        assertNull(capabilities.getError());
+    }
+
+    @Test
+    public void test_timeout_no_retries() throws Exception {
+        startServer(new String[] {"TLSv1.2"}, 1, 2);
+        enumerator.setCandidateProtocols("TLSv1.2");
+        enumerator.setMaxRetries(0);
+
+        TlsCapabilities capabilities = enumerate();
+
+        assertFalse(capabilities.isComplete());
+        assertEquals(1, capabilities.getCipherSuites("TLSv1.2").size());
+        assertEquals(2, capabilities.getAttempts());
+    }
+
+    private TlsCapabilities enumerate() throws Exception {
+        return enumerator.enumerateAsync("localhost", serverSocket.getLocalPort()).get(20, TimeUnit.SECONDS);
+    }
+
+    private void startServer(String[] protocols, int stallFrom) throws Exception {
+        startServer(protocols, stallFrom, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Start the server, stalling connections from index {@code stallFrom} (inclusive) to {@code stallTo}
+     * (exclusive).  A negative {@code stallFrom} stalls none.
+     */
+    private void startServer(String[] protocols, final int stallFrom, final int stallTo) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream stream = getClass().getResourceAsStream("/test-server.p12");
+        try {
+            keyStore.load(stream, PASSWORD);
+        } finally {
+            stream.close();
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, PASSWORD);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+        serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverSocket.setEnabledProtocols(protocols);
+        serverSocket.setEnabledCipherSuites(new String[] {TLS13_SUITE, TLS12_SUITE_A, TLS12_SUITE_B});
+
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int connectionIndex = 0;
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        if (stallFrom >= 0 && connectionIndex >= stallFrom && connectionIndex < stallTo) {
+                            connectionIndex++;
+                            stalled.add(socket);
+                            continue;
+                        }
+                        connectionIndex++;
+                        try {
+                            ((SSLSocket) socket).startHandshake();
+                            // Wait for the probe to close.
+                            socket.getInputStream().read();
+                        } catch (IOException e) {
+                            // Only fails this connection e.g. a rejected handshake.
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // Server socket closed.
+                    }
+                }
+            }
+        }, "enumerator-test-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+}
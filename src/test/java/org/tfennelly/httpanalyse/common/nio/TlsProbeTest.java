@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.nio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tfennelly.httpanalyse.common.dns.HostResolver;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link TlsProbe} tests, against a local {@link SSLServerSocket} stand-in.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class TlsProbeTest {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private KeyStore keyStore;
+    private TlsProbe probe;
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+
+    @Before
+    public void setUp() throws Exception {
+        keyStore = KeyStore.getInstance("PKCS12");
+        InputStream stream = getClass().getResourceAsStream("/test-server.p12");
+        try {
+            keyStore.load(stream, PASSWORD);
+        } finally {
+            stream.close();
+        }
+        probe = new TlsProbe(1);
+        probe.setTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        probe.close();
+        if (serverSocket != null) {
+            serverSocket.close();
+            acceptor.join(5000);
+        }
+    }
+
+    @Test
+    public void test_probe() throws Exception {
+        startServer(true);
+
+        TlsProbeResult result = probe.probeAsync("localhost", serverSocket.getLocalPort()).get(10, TimeUnit.SECONDS);
+
+        assertEquals(keyStore.getCertificate("server"), result.getServerCertificate());
+        assertNotNull(result.getProtocol());
+        assertNotNull(result.getCipherSuite());
+        assertTrue(result.getHandshakeNanos() > 0);
+        assertFalse(result.isSessionResumed());
+    }
+
+    @Test
+    public void test_probe_never_resumes() throws Exception {
+        startServer(true);
+
+        for (int i = 0; i < 3; i++) {
+            TlsProbeResult result = probe.probeAsync("localhost", serverSocket.getLocalPort()).get(10, TimeUnit.SECONDS);
+            assertFalse(result.isSessionResumed());
+        }
+    }
+
+    @Test
+    public void test_probe_restricted_protocol() throws Exception {
+        startServer(true);
+
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        TlsProbeResult result = probe.probeAsync("localhost", address, new String[] {"TLSv1.2"}, null).get(10, TimeUnit.SECONDS);
+
+        assertEquals("TLSv1.2", result.getProtocol());
+    }
+
+    @Test
+    public void test_probe_handshake_failure() throws Exception {
+        // Plain socket server that drops the connection... connected, but no handshake.
+        startServer(false);
+
+        try {
+            probe.probeAsync("localhost", serverSocket.getLocalPort()).get(10, TimeUnit.SECONDS);
+            fail("Expected SSLHandshakeException.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof SSLHandshakeException);
+        }
+    }
+
+    @Test
+    public void test_probe_connect_failure() throws Exception {
+        ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        int port = closed.getLocalPort();
+        closed.close();
+
+        try {
+            probe.probeAsync("localhost", port).get(10, TimeUnit.SECONDS);
+            fail("Expected IOException.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+            assertFalse(e.getCause().toString(), e.getCause() instanceof SSLHandshakeException);
+        }
+    }
+
+    @Test
+    public void test_probe_invalid_port() throws Exception {
+        try {
+            probe.probeAsync("localhost", 70000).get(10, TimeUnit.SECONDS);
+            fail("Expected IllegalArgumentException.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void test_probe_resolver_error() throws Exception {
+        probe.setHostResolver(new HostResolver() {
+            @Override
+            public InetAddress[] resolve(String host) {
+                throw new IllegalStateException("Resolver broken.");
+            }
+        });
+
+        try {
+            probe.probeAsync("localhost", 443).get(10, TimeUnit.SECONDS);
+            fail("Expected IllegalStateException.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void test_close_fails_pending_probes() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        List<CompletableFuture<TlsProbeResult>> futures = new ArrayList<CompletableFuture<TlsProbeResult>>();
+
+        probe.setHostResolver(new HostResolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new UnknownHostException(host);
+                }
+                return new InetAddress[] {InetAddress.getLoopbackAddress()};
+            }
+        });
+        // More than there are resolver threads, so some are still queued on close.
+        for (int i = 0; i < 20; i++) {
+            futures.add(probe.probeAsync("localhost", 443));
+        }
+        probe.close();
+
+        for (CompletableFuture<TlsProbeResult> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("Expected failure.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+            }
+        }
+        release.countDown();
+    }
+
+    private void startServer(boolean tls) throws Exception {
+        if (tls) {
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, PASSWORD);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            serverSocket = sslContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        } else {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        }
+
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        try {
+                            if (socket instanceof SSLSocket) {
+                                ((SSLSocket) socket).startHandshake();
+                                // Wait for the probe to close.
+                                socket.getInputStream().read();
+                            }
+                        } catch (IOException e) {
+                            // Only fails this connection.
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // Server socket closed.
+                    }
+                }
+            }
+        }, "probe-test-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 CloudBees Inc.
+ *
+ * All rights reserved.
+ */
+package org.tfennelly.httpanalyse.common.security;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link StreamingAesGcm} tests.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class StreamingAesGcmTest {
+
+    private static final int CHUNK_SIZE = 64;
+    private static final int HEADER_LENGTH = 25;
+    private static final int TAG_LENGTH = 16;
+
+    private final byte[] key = AESUtils.generateKey(AESUtils.KEY_SIZE.KEY128BITS);
+    private final StreamingAesGcm aesGcm = new StreamingAesGcm(key, CHUNK_SIZE);
+
+    @Test
+    public void test_round_trip() throws IOException {
+        int[] lengths = {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, CHUNK_SIZE * 3, CHUNK_SIZE * 3 + 17};
+
+        for (int length : lengths) {
+            byte[] plaintext = randomBytes(length);
+            byte[] ciphertext = encrypt(plaintext);
+
+            assertEquals(aesGcm.getEncryptedLength(length), ciphertext.length);
+            assertArrayEquals("Length " + length, plaintext, decrypt(aesGcm, ciphertext));
+        }
+    }
+
+    @Test
+    public void test_round_trip_small_reads() throws IOException {
+        byte[] plaintext = randomBytes(CHUNK_SIZE * 2 + 5);
+        ReadableByteChannel decrypting = aesGcm.newDecryptingChannel(Channels.newChannel(new ByteArrayInputStream(encrypt(plaintext))));
+        ByteBuffer buffer = ByteBuffer.allocate(7);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+
+        while (decrypting.read(buffer) != -1) {
+            decrypted.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        assertArrayEquals(plaintext, decrypted.toByteArray());
+    }
+
+    @Test
+    public void test_decrypt_with_other_chunk_size() throws IOException {
+        // The chunk size comes from the stream header.
+        byte[] plaintext = randomBytes(1000);
+        assertArrayEquals(plaintext, decrypt(new StreamingAesGcm(key, 1024), encrypt(plaintext)));
+    }
+
+    @Test
+    public void test_wrong_key() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(100));
+        StreamingAesGcm other = new StreamingAesGcm(AESUtils.generateKey(AESUtils.KEY_SIZE.KEY128BITS), CHUNK_SIZE);
+
+        assertDecryptFails(other, ciphertext);
+    }
+
+    @Test
+    public void test_tampered_chunk() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(CHUNK_SIZE * 3));
+
+        for (int index : new int[] {HEADER_LENGTH, HEADER_LENGTH + CHUNK_SIZE + TAG_LENGTH + 5, ciphertext.length - 1}) {
+            byte[] tampered = ciphertext.clone();
+            tampered[index] ^= 1;
+            assertDecryptFails(aesGcm, tampered);
+        }
+    }
+
+    @Test
+    public void test_tampered_header() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(100));
+
+        // Salt... derives a different stream key.
+        byte[] tampered = ciphertext.clone();
+        tampered[HEADER_LENGTH - 1] ^= 1;
+        assertDecryptFails(aesGcm, tampered);
+
+        // Magic.
+        tampered = ciphertext.clone();
+        tampered[0] ^= 1;
+        assertDecryptFails(aesGcm, tampered);
+    }
+
+    @Test
+    public void test_truncated() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(CHUNK_SIZE * 3 + 10));
+
+        // Mid chunk, mid tag, and the whole final chunk.
+        assertDecryptFails(aesGcm, Arrays.copyOf(ciphertext, ciphertext.length - 1));
+        assertDecryptFails(aesGcm, Arrays.copyOf(ciphertext, HEADER_LENGTH + CHUNK_SIZE + 3));
+        assertDecryptFails(aesGcm, Arrays.copyOf(ciphertext, ciphertext.length - 10 - TAG_LENGTH));
+        assertDecryptFails(aesGcm, Arrays.copyOf(ciphertext, HEADER_LENGTH - 1));
+    }
+
+    @Test
+    public void test_truncated_at_chunk_boundary() throws IOException {
+        // Plaintext an exact multiple of the chunk size, so dropping the last chunk leaves whole chunks.
+        byte[] ciphertext = encrypt(randomBytes(CHUNK_SIZE * 3));
+        int chunkLength = CHUNK_SIZE + TAG_LENGTH;
+
+        assertDecryptFails(aesGcm, Arrays.copyOf(ciphertext, ciphertext.length - chunkLength));
+        assertDecryptFails(aesGcm, Arrays.copyOf(ciphertext, HEADER_LENGTH));
+    }
+
+    @Test
+    public void test_reordered_chunks() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(CHUNK_SIZE * 3));
+        int chunkLength = CHUNK_SIZE + TAG_LENGTH;
+        byte[] reordered = ciphertext.clone();
+
+        System.arraycopy(ciphertext, HEADER_LENGTH, reordered, HEADER_LENGTH + chunkLength, chunkLength);
+        System.arraycopy(ciphertext, HEADER_LENGTH + chunkLength, reordered, HEADER_LENGTH, chunkLength);
+        assertDecryptFails(aesGcm, reordered);
+    }
+
+    @Test
+    public void test_read_after_failure_fails() throws IOException {
+        byte[] plaintext = randomBytes(CHUNK_SIZE * 3);
+        byte[] tampered = encrypt(plaintext);
+        int chunkLength = CHUNK_SIZE + TAG_LENGTH;
+        tampered[HEADER_LENGTH + chunkLength + 1] ^= 1;
+
+        ReadableByteChannel decrypting = aesGcm.newDecryptingChannel(Channels.newChannel(new ByteArrayInputStream(tampered)));
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+
+        // First chunk is good.
+        assertEquals(CHUNK_SIZE, decrypting.read(buffer));
+        assertArrayEquals(Arrays.copyOf(plaintext, CHUNK_SIZE), buffer.array());
+
+        // Second is not, and no retry returns any of it.
+        for (int i = 0; i < 3; i++) {
+            buffer.clear();
+            try {
+                decrypting.read(buffer);
+                fail("Expected IOException.");
+            } catch (IOException e) {
+                assertEquals(0, buffer.position());
+            }
+        }
+    }
+
+    @Test
+    public void test_invalid_key_length() {
+        try {
+            new StreamingAesGcm(new byte[10]);
+            fail("Expected IllegalArgumentException.");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid 'key' length '10'. Must be 16, 24 or 32 bytes.", e.getMessage());
+        }
+    }
+
+    private byte[] encrypt(byte[] plaintext) throws IOException {
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        aesGcm.encrypt(Channels.newChannel(new ByteArrayInputStream(plaintext)), Channels.newChannel(ciphertext));
+        return ciphertext.toByteArray();
+    }
+
+    private static byte[] decrypt(StreamingAesGcm aesGcm, byte[] ciphertext) throws IOException {
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+        aesGcm.decrypt(Channels.newChannel(new ByteArrayInputStream(ciphertext)), Channels.newChannel(plaintext));
+        return plaintext.toByteArray();
+    }
+
+    private static void assertDecryptFails(StreamingAesGcm aesGcm, byte[] ciphertext) {
+        ReadableByteChannel decrypting = aesGcm.newDecryptingChannel(Channels.newChannel(new ByteArrayInputStream(ciphertext)));
+        ByteBuffer buffer = ByteBuffer.allocate(ciphertext.length);
+
+        try {
+            while (decrypting.read(buffer) != -1) {
+                buffer.clear();
+            }
+            fail("Expected IOException.");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}